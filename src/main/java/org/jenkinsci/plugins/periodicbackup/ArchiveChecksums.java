@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * ArchiveChecksums collects the CRC32 checksums computed by a Storage while it writes its archives,
+ * the checksum of every entry is computed on the bytes copied into the archive so no extra read pass is needed.
+ */
+public class ArchiveChecksums implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, Long> archiveChecksums = Maps.newLinkedHashMap();
+    private final List<BackupMetadata.Entry> entries = Lists.newArrayList();
+
+    /**
+     *
+     * Copies the content of a file into the stream of an archive entry and records its checksum
+     *
+     * @param archiveName name of the archive the entry belongs to
+     * @param entryName name of the entry inside the archive
+     * @param source content of the file, it is not closed
+     * @param destination stream of the archive entry
+     * @return number of bytes copied
+     * @throws IOException If an IO problem occurs
+     */
+    public long copy(String archiveName, String entryName, InputStream source, OutputStream destination) throws IOException {
+        return copy(archiveName, entryName, source, destination, -1);
+    }
+
+    /**
+     *
+     * Copies at most maxSize bytes of a file into the stream of an archive entry and records their checksum
+     *
+     * @param archiveName name of the archive the entry belongs to
+     * @param entryName name of the entry inside the archive
+     * @param source content of the file, it is not closed
+     * @param destination stream of the archive entry
+     * @param maxSize maximum number of bytes to copy, negative for the whole file
+     * @return number of bytes copied
+     * @throws IOException If an IO problem occurs
+     */
+    public long copy(String archiveName, String entryName, InputStream source, OutputStream destination, long maxSize) throws IOException {
+        return copyEntry(archiveName, entryName, source, destination, maxSize).getSize();
+    }
+
+    /**
+     *
+     * Copies at most maxSize bytes of a file into the stream of an archive entry and records their checksum
+     *
+     * @param archiveName name of the archive the entry belongs to
+     * @param entryName name of the entry inside the archive
+     * @param source content of the file, it is not closed
+     * @param destination stream of the archive entry
+     * @param maxSize maximum number of bytes to copy, negative for the whole file
+     * @return the recorded entry
+     * @throws IOException If an IO problem occurs
+     */
+    public BackupMetadata.Entry copyEntry(String archiveName, String entryName, InputStream source, OutputStream destination, long maxSize) throws IOException {
+        CRC32 checksum = new CRC32();
+        long size = Util.copy(source, destination, maxSize, checksum);
+        return addEntry(archiveName, entryName, size, checksum.getValue());
+    }
+
+    public synchronized BackupMetadata.Entry addEntry(String archiveName, String entryName, long size, long checksum) {
+        BackupMetadata.Entry entry = new BackupMetadata.Entry(archiveName, entryName, size, checksum);
+        entries.add(entry);
+        return entry;
+    }
+
+    public synchronized void setArchiveChecksum(String archiveName, long checksum) {
+        archiveChecksums.put(archiveName, checksum);
+    }
+
+    /**
+     *
+     * @param archiveName name of the archive
+     * @return checksum of the whole archive file or null if it was not recorded
+     */
+    public synchronized Long getArchiveChecksum(String archiveName) {
+        return archiveChecksums.get(archiveName);
+    }
+
+    public synchronized List<BackupMetadata.Entry> getEntries() {
+        return ImmutableList.copyOf(entries);
+    }
+
+    /**
+     *
+     * @param archiveNames names of the archives
+     * @return copy of the checksums of the given archives and their entries
+     */
+    public synchronized ArchiveChecksums forArchives(Collection<String> archiveNames) {
+        ArchiveChecksums result = new ArchiveChecksums();
+        for (BackupMetadata.Entry entry : entries) {
+            if (archiveNames.contains(entry.getArchive())) {
+                result.entries.add(entry);
+            }
+        }
+        for (Map.Entry<String, Long> checksum : archiveChecksums.entrySet()) {
+            if (archiveNames.contains(checksum.getKey())) {
+                result.archiveChecksums.put(checksum.getKey(), checksum.getValue());
+            }
+        }
+        return result;
+    }
+}
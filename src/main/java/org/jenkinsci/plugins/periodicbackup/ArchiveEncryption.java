@@ -0,0 +1,619 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import com.google.common.collect.Lists;
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ *
+ * ArchiveEncryption encrypts archive files with AES-GCM while they are written. The archive is split in chunks
+ * which are encrypted and authenticated independently, so they are processed on several cores at the same time.
+ * The key is derived from a secret text credential selected in the backup configuration.
+ *
+ * An encrypted archive starts with a header (magic, chunk size, key derivation iterations, salt, nonce prefix and
+ * key id) followed by the chunks, each one is a flag marking the last chunk and the encrypted chunk with its tag.
+ * All the chunks but the last one hold the same amount of data, which allows to start decrypting at any offset.
+ * The key id is a digest of the credentials ID, archives are decrypted with the credentials they were encrypted
+ * with even after the configured credentials changed.
+ *
+ * The passphrase is not kept once the key is derived, it is read from the credentials again when an archive
+ * with another salt is decrypted.
+ */
+public class ArchiveEncryption {
+
+    private static final byte[] MAGIC = {'P', 'B', 'K', 'E', 'N', 'C', 0, 2};     // The last byte is the version
+    private static final int SALT_LENGTH = 16;
+    private static final int NONCE_PREFIX_LENGTH = 8;
+    private static final int KEY_ID_LENGTH = 16;
+    private static final int TAG_LENGTH = 16;
+    public static final int HEADER_LENGTH = MAGIC.length + 4 + 4 + SALT_LENGTH + NONCE_PREFIX_LENGTH + KEY_ID_LENGTH;
+
+    private static final int CHUNK_SIZE = Math.max(4096,
+            SystemProperties.getInteger(ArchiveEncryption.class.getName() + ".chunkSize", 1024 * 1024));
+    private static final int ITERATIONS = Math.max(1000,
+            SystemProperties.getInteger(ArchiveEncryption.class.getName() + ".iterations", 100000));
+    private static final int THREADS = Math.max(1,
+            SystemProperties.getInteger(ArchiveEncryption.class.getName() + ".threads", Math.min(8, Runtime.getRuntime().availableProcessors())));
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // Encryptions of the credentials in use, by credentials ID, the keys are derived once
+    private static final Map<String, ArchiveEncryption> ENCRYPTIONS = new LinkedHashMap<String, ArchiveEncryption>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ArchiveEncryption> eldest) {
+            return size() > 16;
+        }
+    };
+
+    private final String credentialsId;
+    private final byte[] keyId;
+    private final byte[] salt;                      // Salt of the key used for encryption
+    private final byte[] fingerprint;               // Digest of the salt and the passphrase, tells whether the secret changed
+    private final SecretKey key;
+    private final Map<String, SecretKey> keys;      // Keys derived for decryption, by salt and iterations
+
+    /**
+     *
+     * @param credentialsId ID of the credentials the passphrase belongs to
+     * @param passphrase passphrase the key is derived from, it is not kept, the caller may clear it afterwards
+     * @throws IOException if the key cannot be derived
+     */
+    ArchiveEncryption(String credentialsId, char[] passphrase) throws IOException {
+        this.credentialsId = credentialsId;
+        this.keyId = getKeyId(credentialsId);
+        this.salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        this.fingerprint = fingerprint(salt, passphrase);
+        this.key = deriveKey(passphrase, salt, ITERATIONS);
+        this.keys = Collections.synchronizedMap(new LinkedHashMap<String, SecretKey>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SecretKey> eldest) {
+                return size() > 16;
+            }
+        });
+    }
+
+    String getCredentialsId() {
+        return credentialsId;
+    }
+
+    /**
+     *
+     * @return encryption using the credentials configured in the backup configuration or null if the archives are not encrypted
+     * @throws IOException if the configured credentials do not exist
+     */
+    public static ArchiveEncryption get() throws IOException {
+        if (Jenkins.getInstanceOrNull() == null) {
+            return null;
+        }
+        PeriodicBackupLink link = PeriodicBackupLink.get();
+        String credentialsId = link != null ? link.getEncryptionCredentialsId() : null;
+        if (StringUtils.isEmpty(credentialsId)) {
+            return null;
+        }
+        return forCredentials(credentialsId);
+    }
+
+    /**
+     *
+     * @param credentialsId ID of secret text credentials
+     * @return encryption using the given credentials, a new key is derived when their secret changed
+     * @throws IOException if the credentials do not exist
+     */
+    private static synchronized ArchiveEncryption forCredentials(String credentialsId) throws IOException {
+        char[] passphrase = lookupPassphrase(credentialsId);
+        try {
+            ArchiveEncryption encryption = ENCRYPTIONS.get(credentialsId);
+            if (encryption == null || !Arrays.equals(encryption.fingerprint, fingerprint(encryption.salt, passphrase))) {
+                encryption = new ArchiveEncryption(credentialsId, passphrase);
+                ENCRYPTIONS.put(credentialsId, encryption);
+            }
+            return encryption;
+        } finally {
+            Arrays.fill(passphrase, '\0');
+        }
+    }
+
+    /**
+     *
+     * @param credentialsId ID of secret text credentials
+     * @return copy of the secret, the caller clears it once it is used
+     * @throws IOException if the credentials do not exist or Jenkins is not available, like in a forked BackupWorker
+     */
+    static char[] lookupPassphrase(String credentialsId) throws IOException {
+        StringCredentials credentials = Jenkins.getInstanceOrNull() == null ? null : CredentialsMatchers.firstOrNull(
+                CredentialsProvider.lookupCredentials(StringCredentials.class, Jenkins.get(), ACL.SYSTEM,
+                        Collections.<DomainRequirement>emptyList()),
+                CredentialsMatchers.withId(credentialsId));
+        if (credentials == null) {
+            throw new IOException("The encryption credentials " + credentialsId + " could not be found");
+        }
+        return credentials.getSecret().getPlainText().toCharArray();
+    }
+
+    /**
+     *
+     * @param header header of an encrypted archive
+     * @return encryption using the credentials the archive was encrypted with
+     * @throws IOException if the header is not valid or the credentials do not exist anymore
+     */
+    static ArchiveEncryption forArchive(byte[] header) throws IOException {
+        Header parsed = new Header(header);
+        ArchiveEncryption configured = get();
+        if (configured != null && Arrays.equals(configured.keyId, parsed.keyId)) {
+            return configured;
+        }
+        if (Jenkins.getInstanceOrNull() != null) {
+            for (StringCredentials credentials : CredentialsProvider.lookupCredentials(StringCredentials.class, Jenkins.get(),
+                    ACL.SYSTEM, Collections.<DomainRequirement>emptyList())) {
+                if (Arrays.equals(getKeyId(credentials.getId()), parsed.keyId)) {
+                    return forCredentials(credentials.getId());
+                }
+            }
+        }
+        throw new IOException("The archive is encrypted with credentials which do not exist anymore, "
+                + "they have to be restored with their original ID to decrypt it");
+    }
+
+    /**
+     *
+     * Opens an archive for reading, encrypted archives are decrypted with the credentials they were encrypted with
+     *
+     * @param archive stream with the content of an archive file
+     * @return stream with the content of the archive
+     * @throws IOException if the archive is encrypted and cannot be decrypted
+     */
+    public static InputStream open(InputStream archive) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(archive);
+        in.mark(HEADER_LENGTH);
+        byte[] start = new byte[HEADER_LENGTH];
+        int length = IOUtils.read(in, start);
+        in.reset();
+        if (!isEncrypted(start, length)) {
+            return in;
+        }
+        return forArchive(start).decrypt(in);
+    }
+
+    /**
+     *
+     * Reads the header of an archive
+     *
+     * @param archive stream positioned at the beginning of the archive
+     * @return the header or null if the archive is not encrypted
+     * @throws IOException If an IO problem occurs
+     */
+    public static byte[] readHeader(InputStream archive) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        int length = IOUtils.read(archive, header);
+        return isEncrypted(header, length) ? header : null;
+    }
+
+    /**
+     *
+     * @param start first bytes of an archive
+     * @param length number of bytes read
+     * @return whether the archive is encrypted, by any version of the format
+     */
+    public static boolean isEncrypted(byte[] start, int length) {
+        return length >= HEADER_LENGTH && Arrays.equals(Arrays.copyOf(start, MAGIC.length - 1), Arrays.copyOf(MAGIC, MAGIC.length - 1));
+    }
+
+    /**
+     *
+     * @param header header of an encrypted archive
+     * @param offset offset in the decrypted content
+     * @return offset in the encrypted archive of the chunk which holds the given offset
+     * @throws IOException if the header is not valid
+     */
+    public static long getEncryptedOffset(byte[] header, long offset) throws IOException {
+        Header parsed = new Header(header);
+        return HEADER_LENGTH + (offset / parsed.chunkSize) * (1 + parsed.chunkSize + TAG_LENGTH);
+    }
+
+    /**
+     *
+     * Writes the header to the stream and returns a stream encrypting everything written to it,
+     * the chunks are encrypted in parallel and written in order
+     *
+     * @param out stream of the encrypted archive file, it is closed together with the returned stream
+     * @return stream receiving the content of the archive
+     * @throws IOException If an IO problem occurs
+     */
+    public OutputStream encrypt(OutputStream out) throws IOException {
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        RANDOM.nextBytes(noncePrefix);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.put(MAGIC).putInt(CHUNK_SIZE).putInt(ITERATIONS).put(salt).put(noncePrefix).put(keyId);
+        Header parsed = new Header(header.array());
+        out.write(parsed.bytes);
+        return new EncryptingOutputStream(out, parsed, key);
+    }
+
+    /**
+     *
+     * @param in stream positioned at the beginning of an encrypted archive, it is closed together with the returned stream
+     * @return stream with the decrypted content
+     * @throws IOException if the header is not valid
+     */
+    public InputStream decrypt(InputStream in) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        IOUtils.readFully(in, header);
+        Header parsed = new Header(header);
+        return new DecryptingInputStream(in, parsed, getKey(parsed), 0, 0);
+    }
+
+    /**
+     *
+     * @param header header of the encrypted archive
+     * @param in stream positioned at {@link #getEncryptedOffset(byte[], long)} of the given offset
+     * @param offset offset in the decrypted content where the returned stream starts
+     * @return stream with the decrypted content starting at the given offset
+     * @throws IOException if the header is not valid
+     */
+    public InputStream decrypt(byte[] header, InputStream in, long offset) throws IOException {
+        Header parsed = new Header(header);
+        return new DecryptingInputStream(in, parsed, getKey(parsed), offset / parsed.chunkSize, (int) (offset % parsed.chunkSize));
+    }
+
+    private SecretKey getKey(Header header) throws IOException {
+        if (header.iterations == ITERATIONS && Arrays.equals(header.salt, salt)) {
+            return key;
+        }
+        String id = header.iterations + ":" + Arrays.toString(header.salt);
+        SecretKey derived = keys.get(id);
+        if (derived == null) {
+            char[] passphrase = lookupPassphrase(credentialsId);
+            try {
+                derived = deriveKey(passphrase, header.salt, header.iterations);
+            } finally {
+                Arrays.fill(passphrase, '\0');
+            }
+            keys.put(id, derived);
+        }
+        return derived;
+    }
+
+    private static byte[] getKeyId(String credentialsId) throws IOException {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(credentialsId.getBytes(StandardCharsets.UTF_8));
+            return Arrays.copyOf(digest, KEY_ID_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not compute the key id " + e.getMessage(), e);
+        }
+    }
+
+    private static byte[] fingerprint(byte[] salt, char[] passphrase) throws IOException {
+        ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(passphrase));
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            digest.update(encoded);
+            return digest.digest();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not compute the fingerprint of the key " + e.getMessage(), e);
+        } finally {
+            Arrays.fill(encoded.array(), (byte) 0);
+        }
+    }
+
+    private static SecretKey deriveKey(char[] passphrase, byte[] salt, int iterations) throws IOException {
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            byte[] encoded = factory.generateSecret(new PBEKeySpec(passphrase, salt, iterations, 256)).getEncoded();
+            return new SecretKeySpec(encoded, "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not derive the encryption key " + e.getMessage(), e);
+        }
+    }
+
+    private static ExecutorService createExecutor() {
+        return Executors.newFixedThreadPool(THREADS, new NamingThreadFactory(new DaemonThreadFactory(), "PeriodicBackup encryption"));
+    }
+
+    /**
+     *
+     * Encrypts or decrypts a single chunk, the chunk index is part of the nonce and the header together
+     * with the last chunk flag are authenticated, so chunks cannot be reordered, dropped or appended
+     */
+    private static Cipher initCipher(int mode, SecretKey key, Header header, long index, boolean last) throws GeneralSecurityException, IOException {
+        if (index > 0xFFFFFFFFL) {
+            throw new IOException("The archive has too many chunks to be encrypted");
+        }
+        byte[] nonce = ByteBuffer.allocate(NONCE_PREFIX_LENGTH + 4).put(header.noncePrefix).putInt((int) index).array();
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(header.bytes);
+        cipher.updateAAD(new byte[]{(byte) (last ? 1 : 0)});
+        return cipher;
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a chunk");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private static class Header {
+        private final byte[] bytes;
+        private final int chunkSize;
+        private final int iterations;
+        private final byte[] salt = new byte[SALT_LENGTH];
+        private final byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        private final byte[] keyId = new byte[KEY_ID_LENGTH];
+
+        Header(byte[] bytes) throws IOException {
+            if (!isEncrypted(bytes, bytes.length)) {
+                throw new IOException("The archive is not encrypted");
+            }
+            if (bytes[MAGIC.length - 1] != MAGIC[MAGIC.length - 1]) {
+                throw new IOException("The archive was encrypted by another version of the plugin, version " + bytes[MAGIC.length - 1]);
+            }
+            this.bytes = Arrays.copyOf(bytes, HEADER_LENGTH);
+            ByteBuffer buffer = ByteBuffer.wrap(this.bytes, MAGIC.length, HEADER_LENGTH - MAGIC.length);
+            chunkSize = buffer.getInt();
+            iterations = buffer.getInt();
+            buffer.get(salt).get(noncePrefix).get(keyId);
+            if (chunkSize <= 0 || iterations <= 0) {
+                throw new IOException("The header of the encrypted archive is corrupted");
+            }
+        }
+    }
+
+    /**
+     *
+     * Collects chunks of data and hands them to the encryption threads, at most two chunks per thread are pending
+     */
+    private static class EncryptingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final Header header;
+        private final SecretKey key;
+        private final ExecutorService executor = createExecutor();
+        private final Deque<Future<byte[]>> pending = Lists.newLinkedList();
+        private byte[] buffer;
+        private int count;
+        private long index;
+        private boolean closed;
+
+        EncryptingOutputStream(OutputStream out, Header header, SecretKey key) {
+            this.out = out;
+            this.header = header;
+            this.key = key;
+            this.buffer = new byte[header.chunkSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                // A full chunk is only sent once more data follows, the last chunk is sent on close
+                if (count == buffer.length) {
+                    submit(false);
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void submit(final boolean last) throws IOException {
+            final byte[] chunk = buffer;
+            final int length = count;
+            final long chunkIndex = index++;
+            pending.addLast(executor.submit(new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    byte[] record = new byte[1 + length + TAG_LENGTH];
+                    record[0] = (byte) (last ? 1 : 0);
+                    initCipher(Cipher.ENCRYPT_MODE, key, header, chunkIndex, last).doFinal(chunk, 0, length, record, 1);
+                    return record;
+                }
+            }));
+            buffer = last ? null : new byte[header.chunkSize];
+            count = 0;
+            while (pending.size() >= 2 * THREADS) {
+                out.write(await(pending.removeFirst()));
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            while (!pending.isEmpty()) {
+                out.write(await(pending.removeFirst()));
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                submit(true);
+                flush();
+            } finally {
+                executor.shutdownNow();
+                out.close();
+            }
+        }
+    }
+
+    /**
+     *
+     * Reads the chunks ahead and hands them to the decryption threads, the decrypted chunks are returned in order
+     */
+    private static class DecryptingInputStream extends InputStream {
+        private final InputStream in;
+        private final Header header;
+        private final SecretKey key;
+        private final Deque<Future<byte[]>> pending = Lists.newLinkedList();
+        private ExecutorService executor;
+        private long index;
+        private int skip;               // Bytes of the first chunk before the requested offset
+        private boolean lastRead;       // The chunk marked as the last one was read
+        private byte[] chunk = new byte[0];
+        private int position;
+
+        DecryptingInputStream(InputStream in, Header header, SecretKey key, long index, int skip) {
+            this.in = in;
+            this.header = header;
+            this.key = key;
+            this.index = index;
+            this.skip = skip;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == chunk.length) {
+                if (!nextChunk()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        private boolean nextChunk() throws IOException {
+            while (!lastRead && pending.size() < 2 * THREADS) {
+                readChunk();
+            }
+            if (pending.isEmpty()) {
+                return false;
+            }
+            chunk = await(pending.removeFirst());
+            position = Math.min(skip, chunk.length);
+            skip = 0;
+            return true;
+        }
+
+        private void readChunk() throws IOException {
+            int flag = in.read();
+            if (flag == -1) {
+                throw new EOFException("The encrypted archive is truncated");
+            }
+            if (flag > 1) {
+                throw new IOException("The encrypted archive is corrupted");
+            }
+            final boolean last = flag == 1;
+            byte[] record = new byte[header.chunkSize + TAG_LENGTH];
+            int length = IOUtils.read(in, record);
+            if (!last && length < record.length) {
+                throw new EOFException("The encrypted archive is truncated");
+            }
+            if (last && in.read() != -1) {
+                throw new IOException("The encrypted archive has unexpected data after its last chunk");
+            }
+            final byte[] encrypted = length < record.length ? Arrays.copyOf(record, length) : record;
+            final long chunkIndex = index++;
+            lastRead = last;
+            if (executor == null) {
+                executor = createExecutor();
+            }
+            pending.addLast(executor.submit(new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    try {
+                        return initCipher(Cipher.DECRYPT_MODE, key, header, chunkIndex, last).doFinal(encrypted);
+                    } catch (AEADBadTagException e) {
+                        throw new IOException("Chunk " + chunkIndex + " of the encrypted archive could not be authenticated, "
+                                + "the archive is corrupted or it was encrypted with different credentials");
+                    }
+                }
+            }));
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * BackupCatalog caches the BackupObject(s) available in each location,
+ * so the UI and the restore do not have to list the locations on every request.
+ * Whenever this plugin stores or deletes a backup the location is marked dirty and listed again in the background,
+ * the readers get the previous list until then. The catalog is also refreshed periodically to pick up changes
+ * done outside of Jenkins. A location is only listed while reading it if it was never listed before.
+ */
+@Extension
+public class BackupCatalog extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(BackupCatalog.class.getName());
+
+    private final ConcurrentMap<Location, List<BackupObject>> backups = new ConcurrentHashMap<Location, List<BackupObject>>();
+    // Incremented on every invalidation of the location, a listing started before an invalidation is not cached
+    private final ConcurrentMap<Location, AtomicLong> generations = new ConcurrentHashMap<Location, AtomicLong>();
+    // Locations whose cached list is stale and waits for the refresh in the background
+    private final Set<Location> dirty = Collections.newSetFromMap(new ConcurrentHashMap<Location, Boolean>());
+    private final ExecutorService refreshExecutor = Executors.newSingleThreadExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "PeriodicBackup catalog refresh"));
+
+    public BackupCatalog() {
+        super("PeriodicBackup catalog");
+    }
+
+    /**
+     *
+     * Returns the BackupObject(s) in the given location, the location is listed
+     * only if it is not in the catalog yet
+     *
+     * @param location Location
+     * @return BackupObject(s) in the location sorted by timestamp
+     */
+    public List<BackupObject> getBackups(Location location) {
+        List<BackupObject> cached = backups.get(location);
+        if (cached == null) {
+            cached = refresh(location);
+        }
+        return cached;
+    }
+
+    /**
+     *
+     * Marks the given location as changed, the cached list is kept until the location is listed again in the background
+     *
+     * @param location Location which content has changed
+     * @return the refresh in the background
+     */
+    public Future<?> invalidate(final Location location) {
+        getGeneration(location).incrementAndGet();
+        dirty.add(location);
+        return refreshExecutor.submit(new Runnable() {
+            public void run() {
+                // The location may have been listed since, for example by the retention
+                if (dirty.contains(location)) {
+                    refresh(location);
+                }
+            }
+        });
+    }
+
+    /**
+     *
+     * @param location Location
+     * @return true if the location changed since its cached list was created
+     */
+    public boolean isDirty(Location location) {
+        return dirty.contains(location);
+    }
+
+    /**
+     *
+     * Lists the given location and updates the catalog. If the listing fails the previous list is kept.
+     *
+     * @param location Location
+     * @return BackupObject(s) in the location sorted by timestamp
+     */
+    public List<BackupObject> refresh(Location location) {
+        AtomicLong generation = getGeneration(location);
+        long start = generation.get();
+        List<BackupObject> available = list(location);
+        if (available == null) {
+            List<BackupObject> previous = backups.get(location);
+            return previous != null ? previous : ImmutableList.<BackupObject>of();
+        }
+        synchronized (generation) {
+            if (generation.get() == start) {
+                backups.put(location, available);
+                dirty.remove(location);
+            }
+        }
+        return available;
+    }
+
+    private AtomicLong getGeneration(Location location) {
+        AtomicLong generation = generations.get(location);
+        if (generation == null) {
+            AtomicLong created = new AtomicLong();
+            generation = generations.putIfAbsent(location, created);
+            if (generation == null) {
+                generation = created;
+            }
+        }
+        return generation;
+    }
+
+    @Override
+    protected void execute(TaskListener taskListener) {
+        Set<Location> locations = Sets.newHashSet(PeriodicBackupLink.get().getAllLocations());
+        for (Location location : locations) {
+            refresh(location);
+        }
+        // Forget about the locations which are not configured anymore
+        backups.keySet().retainAll(locations);
+        generations.keySet().retainAll(locations);
+        dirty.retainAll(locations);
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return 5 * MIN;
+    }
+
+    /**
+     *
+     * @return the backups in the location or null if it cannot be listed
+     */
+    private static List<BackupObject> list(Location location) {
+        try {
+            Iterable<BackupObject> available = location.getAvailableBackups();
+            if (available == null) {
+                return ImmutableList.of();
+            }
+            return ImmutableList.copyOf(Iterables.filter(available, Predicates.notNull()));
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not list the backups in " + location.getDisplayName(), e);
+            return null;
+        }
+    }
+
+    public static BackupCatalog get() {
+        return AsyncPeriodicWork.all().get(BackupCatalog.class);
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import hudson.XmlFile;
+import jenkins.model.Jenkins;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * BackupCheckpoint records the progress of a backup in its temporary directory, so a backup interrupted
+ * by a restart of Jenkins is resumed by the next run instead of being started again.
+ * For every storage it records the archive volumes which are complete and the locations which stored all
+ * the archives already, the files inside the completed volumes are not archived again.
+ */
+public class BackupCheckpoint {
+
+    static final String FILE_NAME = "periodicbackup-checkpoint.xml";
+    private static final Logger LOGGER = Logger.getLogger(BackupCheckpoint.class.getName());
+
+    private final Date timestamp;                                       // Timestamp of the interrupted run
+    private final String fileManagerClass;
+    private final Map<String, StorageState> storages = Maps.newHashMap(); // By archive file extension
+    private Date updated;
+    private transient File tempDirectory;
+
+    BackupCheckpoint(File tempDirectory, Date timestamp, FileManager fileManager) {
+        this.tempDirectory = tempDirectory;
+        this.timestamp = timestamp;
+        this.fileManagerClass = fileManager.getClass().getName();
+        this.updated = new Date();
+    }
+
+    /**
+     *
+     * Returns the checkpoint of an interrupted backup in the temporary directory, or starts a new one.
+     * Checkpoints older than the maximum age or created with another file manager are discarded together
+     * with the archives they refer to.
+     *
+     * @param tempDirectory temporary directory of the backups
+     * @param fileManager FileManager of the new backup
+     * @param maxAgeHours maximum age of a checkpoint since its last update, 0 disables resuming
+     * @return checkpoint of the backup to run or null if resuming is disabled
+     */
+    public static BackupCheckpoint load(File tempDirectory, FileManager fileManager, int maxAgeHours) {
+        XmlFile file = getFile(tempDirectory);
+        if (file.exists()) {
+            try {
+                BackupCheckpoint checkpoint = (BackupCheckpoint) file.read();
+                checkpoint.tempDirectory = tempDirectory;
+                long age = System.currentTimeMillis() - checkpoint.updated.getTime();
+                if (maxAgeHours > 0 && age <= maxAgeHours * 3600000L
+                        && checkpoint.fileManagerClass.equals(fileManager.getClass().getName())) {
+                    LOGGER.info("Resuming the backup started at " + checkpoint.timestamp);
+                    return checkpoint;
+                }
+                LOGGER.info("Discarding the checkpoint of the backup started at " + checkpoint.timestamp);
+                checkpoint.discard();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not read the backup checkpoint " + file.getFile().getAbsolutePath(), e);
+                FileUtils.deleteQuietly(file.getFile());
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not read the backup checkpoint " + file.getFile().getAbsolutePath(), e);
+                FileUtils.deleteQuietly(file.getFile());
+            }
+        }
+        if (maxAgeHours <= 0) {
+            return null;
+        }
+        BackupCheckpoint checkpoint = new BackupCheckpoint(tempDirectory, new Date(), fileManager);
+        // Saved right away so that the temporary files of the run are found after a crash
+        checkpoint.save();
+        return checkpoint;
+    }
+
+    private static XmlFile getFile(File tempDirectory) {
+        return new XmlFile(Jenkins.XSTREAM, new File(tempDirectory, FILE_NAME));
+    }
+
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     *
+     * @param storage Storage
+     * @return temporary directory where the storage creates its archives in this backup
+     */
+    public File getStorageDirectory(Storage storage) {
+        return new File(tempDirectory, Util.generateFileNameBase(timestamp, storage));
+    }
+
+    /**
+     *
+     * @param storage Storage
+     * @return names of the archives of the storage which are complete
+     */
+    public synchronized List<String> getCompletedArchives(Storage storage) {
+        StorageState state = storages.get(getKey(storage));
+        return state == null ? ImmutableList.<String>of() : ImmutableList.copyOf(state.completedArchives);
+    }
+
+    /**
+     *
+     * @param storage Storage
+     * @return checksums of the completed archives of the storage, null if there are none
+     */
+    public synchronized ArchiveChecksums getChecksums(Storage storage) {
+        StorageState state = storages.get(getKey(storage));
+        return state == null ? null : state.checksums;
+    }
+
+    /**
+     *
+     * @param storage Storage
+     * @return true if the storage finished all its archives and the metadata
+     */
+    public synchronized boolean isArchived(Storage storage) {
+        StorageState state = storages.get(getKey(storage));
+        return state != null && state.archived;
+    }
+
+    /**
+     *
+     * @param storage Storage
+     * @param location Location
+     * @return true if the location stored all the archives of the storage
+     */
+    public synchronized boolean isUploaded(Storage storage, Location location) {
+        StorageState state = storages.get(getKey(storage));
+        return state != null && state.uploadedLocations.contains(location.getDisplayName());
+    }
+
+    /**
+     *
+     * Records the archives which will not be modified anymore together with the checksums of their entries
+     */
+    public synchronized void archivesCompleted(Storage storage, Collection<File> archives, ArchiveChecksums checksums) {
+        StorageState state = getState(storage);
+        state.completedArchives.clear();
+        for (File archive : archives) {
+            state.completedArchives.add(archive.getName());
+        }
+        state.checksums = checksums != null ? checksums.forArchives(state.completedArchives) : null;
+        save();
+    }
+
+    public synchronized void archived(Storage storage) {
+        getState(storage).archived = true;
+        save();
+    }
+
+    public synchronized void uploaded(Storage storage, Location location) {
+        getState(storage).uploadedLocations.add(location.getDisplayName());
+        save();
+    }
+
+    private StorageState getState(Storage storage) {
+        StorageState state = storages.get(getKey(storage));
+        if (state == null) {
+            state = new StorageState();
+            storages.put(getKey(storage), state);
+        }
+        return state;
+    }
+
+    private static String getKey(Storage storage) {
+        return storage.getDescriptor().getArchiveFileExtension();
+    }
+
+    private void save() {
+        updated = new Date();
+        try {
+            getFile(tempDirectory).write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not save the backup checkpoint", e);
+        }
+    }
+
+    /**
+     *
+     * Deletes the checkpoint and the temporary directories of the storages of its backup
+     */
+    public synchronized void discard() {
+        String prefix = Util.generateFileNameBase(timestamp) + ".";
+        File[] directories = tempDirectory.listFiles();
+        if (directories != null) {
+            for (File directory : directories) {
+                if (directory.isDirectory() && directory.getName().startsWith(prefix)) {
+                    LOGGER.info("Deleting the temporary directory " + directory.getAbsolutePath());
+                    FileUtils.deleteQuietly(directory);
+                }
+            }
+        }
+        FileUtils.deleteQuietly(getFile(tempDirectory).getFile());
+    }
+
+    private static class StorageState {
+        private final List<String> completedArchives = Lists.newArrayList();
+        private final Set<String> uploadedLocations = Sets.newHashSet();
+        private ArchiveChecksums checksums;
+        private boolean archived;
+    }
+}
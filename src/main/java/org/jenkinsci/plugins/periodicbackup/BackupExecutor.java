@@ -22,114 +22,951 @@
  * THE SOFTWARE.
  */
 
+
 package org.jenkinsci.plugins.periodicbackup;
 
+import com.google.common.base.Objects;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.DescribableList;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 import org.apache.commons.io.FileUtils;
 import org.codehaus.plexus.archiver.ArchiverException;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 public class BackupExecutor {
 
+    /**
+     * Maximum number of locations the backup is uploaded to at the same time
+     */
+    private static final int MAX_PARALLEL_UPLOADS = Math.max(1,
+            SystemProperties.getInteger(BackupExecutor.class.getName() + ".maxParallelUploads", 4));
+
+    /**
+     * Maximum number of storages creating their archives at the same time, each one uses CPU and temporary disk space
+     */
+    private static final int MAX_PARALLEL_STORAGES = Math.max(1,
+            SystemProperties.getInteger(BackupExecutor.class.getName() + ".maxParallelStorages", 2));
+
     private final Set<File> filesToBackup = Sets.newHashSet();
+    private final String profile;   // Name of the backup profile, null for the default profile
+    private final Settings settings;
     private static final Logger LOGGER = Logger.getLogger(BackupExecutor.class.getName());
 
+    public BackupExecutor() {
+        this(null);
+    }
+
+    /**
+     *
+     * @param profile name of the backup profile the backups are created for, null for the default profile.
+     * The retention limits only apply to the backups of the same profile.
+     */
+    public BackupExecutor(String profile) {
+        this(profile, new Settings());
+    }
+
+    /**
+     *
+     * @param profile name of the backup profile the backups are created for, null for the default profile.
+     * The retention limits only apply to the backups of the same profile.
+     * @param settings how the backups are created
+     */
+    public BackupExecutor(String profile, Settings settings) {
+        this.profile = profile;
+        this.settings = settings;
+    }
+
     public void backup(FileManager fileManager,
                        DescribableList<Storage, StorageDescriptor> storages,
                        DescribableList<Location, LocationDescriptor> locations,
                        String tempDirectory,
                        int cycleQuantity,
                        int cycleDays) throws ArchiverException, PeriodicBackupException, IOException {
+        backup(fileManager, (List<Storage>) storages, (List<Location>) locations, tempDirectory, cycleQuantity, cycleDays);
+    }
+
+    /**
+     *
+     * Performs the backup, the scanning, archiving and upload stages are paced by the LoadMonitor of the settings.
+     * The files are enumerated once and archived by the storages in parallel, all the backups
+     * of the run share the same timestamp. The archives of each storage are uploaded to all
+     * the enabled locations in parallel. The progress is recorded in a {@link BackupCheckpoint},
+     * a backup which did not finish is resumed by the next call.
+     *
+     * @param fileManager FileManager selecting the files
+     * @param storages Storages creating the archives
+     * @param locations Locations where the archives will be stored
+     * @param tempDirectory temporary directory for the archives
+     * @param cycleQuantity maximum amount of backups allowed in a location
+     * @param cycleDays maximum number of days to keep the backups for
+     * @throws ArchiverException if archiving fails
+     * @throws PeriodicBackupException if not enough locations stored the backup or anything else goes wrong
+     * @throws IOException If an IO problem occurs
+     */
+    public void backup(FileManager fileManager,
+                       List<Storage> storages,
+                       List<Location> locations,
+                       String tempDirectory,
+                       int cycleQuantity,
+                       int cycleDays) throws ArchiverException, PeriodicBackupException, IOException {
+        BackupProgress progress = BackupProgress.get();
+        // The backups of other profiles running at the same time share the progress, every one of them
+        // is counted so that the progress is finished by the last one
+        progress.startBackup();
+        try {
+            backup(fileManager, storages, locations, tempDirectory, cycleQuantity, cycleDays, settings.requiredLocations,
+                    settings.checkpointMaxAgeHours, settings.loadMonitor, progress);
+        } finally {
+            progress.finish();
+        }
+    }
+
+    private void backup(FileManager fileManager,
+                        List<Storage> storages,
+                        List<Location> locations,
+                        String tempDirectory,
+                        int cycleQuantity,
+                        int cycleDays,
+                        int requiredLocations,
+                        int checkpointMaxAgeHours,
+                        LoadMonitor loadMonitor,
+                        BackupProgress progress) throws ArchiverException, PeriodicBackupException, IOException {
         long start = System.currentTimeMillis(); // Measure the duration of the backup
-        // Collecting files for backup
-        for(File f: fileManager.getFilesToBackup()) {
-            filesToBackup.add(f);
+        // Collecting files for backup, the result is shared by all the storages
+        loadMonitor.pace("scanning");
+        BackupMetrics.Timer scanTimer = BackupMetrics.get().start(BackupMetrics.Phase.SCAN, fileManager.getDisplayName());
+        BackupProgress.PhaseProgress scanProgress = progress.enter(BackupMetrics.Phase.SCAN);
+        try {
+            for(File f: fileManager.getFilesToBackup()) {
+                if (filesToBackup.add(f)) {
+                    scanProgress.addDone(1, f.length());
+                }
+            }
+        } catch (RuntimeException e) {
+            scanTimer.failed();
+            throw e;
+        } finally {
+            scanTimer.files(filesToBackup.size()).stop();
         }
 
-        File backupObjectFile;
-        Date timestamp;
-        String fileNameBase;
+        // An interrupted backup is continued with its original timestamp
+        BackupCheckpoint checkpoint = BackupCheckpoint.load(new File(tempDirectory), fileManager, checkpointMaxAgeHours);
+        Date timestamp = checkpoint != null ? checkpoint.getTimestamp() : new Date(); // Timestamp for the BackupObject(s) of this run
+        String fileNameBase = Util.generateFileNameBase(timestamp);
 
         // timeThreshold is used to compare timestamps of backups in each location.
         // Older backups will be deleted after creating the backup.
         Calendar timeThreshold = Calendar.getInstance();
         timeThreshold.add(Calendar.DAY_OF_MONTH, (-1 * cycleDays));
 
-        // Creating backup archives for each storage defined
+        List<Location> enabledLocations = Lists.newArrayList();
+        for (Location location : locations) {
+            if (location.enabled) {
+                enabledLocations.add(location);
+            }
+            else {
+                LOGGER.info(location.getDisplayName() + " is disabled, ignoring.");
+            }
+        }
+        // In the tiered mode the backup finishes once it is stored in the primary location,
+        // the other locations get their copy from the BackupReplicator
+        Location primary = settings.tieredReplication ? BackupReplicator.getPrimary(enabledLocations) : null;
+        List<Location> replicaLocations = Lists.newArrayList();
+        if (primary != null) {
+            replicaLocations.addAll(enabledLocations);
+            replicaLocations.remove(primary);
+            enabledLocations = Lists.newArrayList(primary);
+        }
+        else if (settings.tieredReplication) {
+            LOGGER.warning("Tiered replication needs an enabled LocalDirectory as primary location, storing the backup in all the locations.");
+        }
+        int required = requiredLocations <= 0 ? enabledLocations.size() : Math.min(requiredLocations, enabledLocations.size());
+
+        // The archives are named after the run and the archive extension, so every kind of storage can be used once
+        List<Storage> storagesToRun = Lists.newArrayList();
+        Set<String> extensions = Sets.newHashSet();
         for (Storage storage : storages) {
-            timestamp = new Date(); // Timestamp for the BackupObject
-            fileNameBase = Util.generateFileNameBase(timestamp);
-
-            storage.backupStart(tempDirectory, fileNameBase);
-            for (File fileToBackup : filesToBackup) {
-                storage.backupAddFile(fileToBackup);
-            }
-            Iterable<File> archives = storage.backupStop();
-            for (Location location : locations) {
-                // Sends all the backup archives and backup files to all the active locations
-                if(location.enabled) {
-                    BackupObject backupObject = new BackupObject(fileManager, storage, location, timestamp);
-                    backupObjectFile = Util.createBackupObjectFile(backupObject, tempDirectory, fileNameBase);
-                    location.storeBackupInLocation(archives, backupObjectFile);
-
-                    // Delete the temporary BackupObject file
-                    LOGGER.info("Deleting the temporary file " + backupObjectFile.getAbsolutePath());
-                    if (!backupObjectFile.delete()) {
-                        LOGGER.warning("Could not delete " + backupObjectFile.getAbsolutePath());
-                    }
+            if (extensions.add(storage.getDescriptor().getArchiveFileExtension())) {
+                storagesToRun.add(storage);
+            }
+            else {
+                LOGGER.warning(storage.getDisplayName() + " is configured more than once, ignoring.");
+            }
+        }
 
-                    // Checking for redundant and old backups in the location
-                    if (location.getAvailableBackups() != null) {
-                        List<BackupObject> backupsInLocation = Lists.newArrayList(location.getAvailableBackups());
-                        LOGGER.info("Checking for redundant and old backups in the location.");
+        Map<Location, LocationResult> results = Maps.newLinkedHashMap();
+        BackupWorker worker = settings.forkWorker || settings.workerLabel != null ? startWorker(tempDirectory, storagesToRun) : null;
+        ExecutorService storageExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(MAX_PARALLEL_STORAGES, storagesToRun.size())),
+                new NamingThreadFactory(new DaemonThreadFactory(), "PeriodicBackup archiving"));
+        ExecutorService uploadExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(MAX_PARALLEL_UPLOADS, enabledLocations.size())),
+                new NamingThreadFactory(new DaemonThreadFactory(), "PeriodicBackup upload"));
+        try {
+            // Creating backup archives for each storage defined
+            List<Future<List<LocationResult>>> futures = Lists.newArrayList();
+            progress.get(BackupMetrics.Phase.ARCHIVE).addTotal((long) filesToBackup.size() * storagesToRun.size(),
+                    scanProgress.getBytesDone() * storagesToRun.size());
+            for (Storage storage : storagesToRun) {
+                storage.setDeduplicate(settings.deduplicate);
+                futures.add(storageExecutor.submit(new StorageRun(storage, fileManager, filesToBackup, timestamp,
+                        fileNameBase, new File(tempDirectory, Util.generateFileNameBase(timestamp, storage)),
+                        enabledLocations, uploadExecutor, loadMonitor, checkpoint, profile, worker)));
+            }
+            PeriodicBackupException failure = null;
+            for (Future<List<LocationResult>> future : futures) {
+                try {
+                    for (LocationResult result : future.get()) {
+                        LocationResult previous = results.get(result.getLocation());
+                        // A location succeeds only if it stored the archives of all the storages
+                        if (previous == null || previous.isSuccess()) {
+                            results.put(result.getLocation(), result);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new PeriodicBackupException("Interrupted while creating the backup", e);
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = new PeriodicBackupException("Could not create the backup archives", e.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            storageExecutor.shutdownNow();
+            uploadExecutor.shutdownNow();
+            if (worker != null) {
+                worker.close();
+            }
+        }
 
-                        int index1 = -1; // index in backupsInLocation if the number of backups exceeds the allowed one
-                        int index2 = -1; // index in backupsInLocation if the backups are older than allowed
+        // Checking for redundant and old backups in the locations which stored the backup
+        BackupCatalog catalog = BackupCatalog.get();
+        for (LocationResult result : results.values()) {
+            if (result.isSuccess()) {
+                try {
+                    removeOldBackups(result.getLocation(), catalog, profile, cycleQuantity, timeThreshold.getTime());
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Could not remove old backups from " + result.getLocation().getDisplayName(), e);
+                }
+            }
+        }
+        checkResults(results.values(), required);
+        if (checkpoint != null) {
+            checkpoint.discard();
+        }
+        if (!replicaLocations.isEmpty()) {
+            BackupReplicator replicator = BackupReplicator.get();
+            for (Storage storage : storagesToRun) {
+                replicator.enqueue(profile, timestamp, storage, primary, replicaLocations, cycleQuantity, cycleDays);
+            }
+            replicator.schedule();
+        }
+        LOGGER.info("Backup finished successfully after " + (System.currentTimeMillis() - start) + " ms" );
+    }
 
-                        if (backupsInLocation.size() > cycleQuantity) {
-                            index1 = backupsInLocation.size() - cycleQuantity;
+    /**
+     *
+     * Forks the worker JVM if one of the storages can create its archives there,
+     * the archives are created in the controller JVM if the worker cannot be started.
+     * An agent is only used if it may receive all the files of the backup.
+     */
+    private BackupWorker startWorker(String tempDirectory, List<Storage> storages) {
+        for (Storage storage : storages) {
+            if (storage.isWorkerSupported()) {
+                try {
+                    if (settings.workerLabel != null) {
+                        if (settings.workerSecrets || !containsSecrets()) {
+                            return BackupWorker.onAgent(settings.workerLabel, settings.workerSecrets);
                         }
-                        for (BackupObject backupObj : backupsInLocation) {
-                            if (backupObj.getTimestamp().before(timeThreshold.getTime())) {
-                                index2++;
-                            }
+                        LOGGER.warning("The backup includes the secrets directory, which is only sent to an agent if this is allowed in the configuration. Creating the archives on the controller.");
+                        if (!settings.forkWorker) {
+                            return null;
                         }
-                        if (index1 != -1 || index2 != -1) {
-                            for (int index = 0; index < Math.max(index1, index2); index++) {
-                                location.deleteBackupFiles(backupsInLocation.get(index));
+                    }
+                    return BackupWorker.start(new File(tempDirectory), settings.workerJvmOptions);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not start the backup worker, archiving in the controller JVM", e);
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean containsSecrets() {
+        File rootDirectory = Jenkins.getActiveInstance().getRootDir();
+        for (File file : filesToBackup) {
+            if (BackupWorker.isSecret(Util.getRelativePath(file, rootDirectory))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static void removeOldBackups(Location location, BackupCatalog catalog, String profile, int cycleQuantity, Date timeThreshold) {
+        BackupMetrics.Timer retentionTimer = BackupMetrics.get().start(BackupMetrics.Phase.RETENTION, location.getDisplayName());
+        BackupProgress.get().enter(BackupMetrics.Phase.RETENTION);
+        try {
+            removeOldBackups(location, catalog, profile, cycleQuantity, timeThreshold, retentionTimer);
+        } catch (RuntimeException e) {
+            retentionTimer.failed();
+            throw e;
+        } finally {
+            retentionTimer.stop();
+        }
+    }
+
+    private static void removeOldBackups(Location location, BackupCatalog catalog, String profile, int cycleQuantity,
+                                         Date timeThreshold, BackupMetrics.Timer retentionTimer) {
+        // Other profiles may store their backups in the same location with their own limits
+        List<BackupObject> backupsInLocation = Lists.newArrayList();
+        for (BackupObject backupObj : catalog.refresh(location)) {
+            if (Objects.equal(profile, backupObj.getProfile())) {
+                backupsInLocation.add(backupObj);
+            }
+        }
+        if (backupsInLocation.isEmpty()) {
+            return;
+        }
+        LOGGER.info("Checking for redundant and old backups in the location.");
+        // The backups created by the same run share the timestamp, the limits apply to the runs
+        List<Date> runs = backupsInLocation.stream().map(BackupObject::getTimestamp).distinct().sorted().collect(Collectors.toList());
+
+        int index1 = -1; // index in runs if the number of backups exceeds the allowed one
+        int index2 = -1; // index in runs if the backups are older than allowed
+
+        if (runs.size() > cycleQuantity) {
+            index1 = runs.size() - cycleQuantity;
+        }
+        for (Date run : runs) {
+            if (run.before(timeThreshold)) {
+                index2++;
+            }
+        }
+        if (index1 != -1 || index2 != -1) {
+            Set<Date> expiredRuns = Sets.newHashSet(runs.subList(0, Math.max(index1, index2)));
+            List<BackupObject> expiredBackups = Lists.newArrayList();
+            BackupReplicator replicator = BackupReplicator.get();
+            for (BackupObject backupObj : backupsInLocation) {
+                if (expiredRuns.contains(backupObj.getTimestamp())) {
+                    // The primary location of the tiered mode keeps a backup until it is copied to the other locations
+                    if (replicator != null && replicator.isPending(location, backupObj)) {
+                        LOGGER.info("Keeping " + backupObj.getDisplayName() + " in " + location.getDisplayName()
+                                + " until it is replicated");
+                        continue;
+                    }
+                    expiredBackups.add(backupObj);
+                }
+            }
+            BackupProgress.PhaseProgress retentionProgress = BackupProgress.get().get(BackupMetrics.Phase.RETENTION)
+                    .addTotal(expiredBackups.size(), 0);
+            for (BackupObject backupObj : expiredBackups) {
+                location.deleteBackupFiles(backupObj);
+                retentionTimer.files(1);
+                retentionProgress.addDone(1, 0);
+            }
+            catalog.invalidate(location);
+        }
+    }
+
+    private static void checkResults(Collection<LocationResult> results, int required) throws PeriodicBackupException {
+        int succeeded = 0;
+        StringBuilder failures = new StringBuilder();
+        for (LocationResult result : results) {
+            if (result.isSuccess()) {
+                succeeded++;
+            }
+            else {
+                failures.append(' ').append(result.getLocation().getDisplayName()).append(": ").append(result.getFailure().getMessage()).append(';');
+            }
+        }
+        if (succeeded < required) {
+            throw new PeriodicBackupException("The backup was stored in " + succeeded + " location(s) out of "
+                    + results.size() + ", " + required + " required. Failures:" + failures);
+        }
+        if (failures.length() > 0) {
+            LOGGER.warning("The backup was stored in " + succeeded + " location(s) out of " + results.size() + ". Failures:" + failures);
+        }
+    }
+
+    /**
+     *
+     * Archives of a storage in the order they are finished. Its iterators wait for the next archive,
+     * so the archives are uploaded as they are produced, while the storage is still writing the following volumes.
+     * This only shortens the backup, the memory is not constant: the checksums, the tar index and the
+     * deduplication of the storage still keep an entry per archived file until the backup is finished.
+     */
+    private static class ArchiveQueue implements Iterable<File> {
+
+        private final List<File> archives = Lists.newArrayList();
+        private boolean finished;
+        private Exception failure;
+
+        /**
+         *
+         * @param archive finished archive
+         * @return false if the archive was added before
+         */
+        synchronized boolean add(File archive) {
+            if (archives.contains(archive)) {
+                return false;
+            }
+            archives.add(archive);
+            notifyAll();
+            return true;
+        }
+
+        synchronized void finish() {
+            finished = true;
+            notifyAll();
+        }
+
+        synchronized void fail(Exception failure) {
+            this.failure = failure;
+            finished = true;
+            notifyAll();
+        }
+
+        synchronized List<File> getArchives() {
+            return Lists.newArrayList(archives);
+        }
+
+        public Iterator<File> iterator() {
+            return new AbstractIterator<File>() {
+                private int next;
+
+                @Override
+                protected File computeNext() {
+                    synchronized (ArchiveQueue.this) {
+                        while (next >= archives.size() && !finished) {
+                            try {
+                                ArchiveQueue.this.wait();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new IllegalStateException("Interrupted while waiting for the next archive", e);
                             }
                         }
+                        if (failure != null) {
+                            throw new IllegalStateException("Could not create the archives", failure);
+                        }
+                        return next < archives.size() ? archives.get(next++) : endOfData();
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     *
+     * Creates the archives of a single storage in its own temporary directory and uploads them to the locations
+     */
+    private static class StorageRun implements Callable<List<LocationResult>> {
+
+        private final Storage storage;
+        private final FileManager fileManager;
+        private final Set<File> filesToBackup;
+        private final Date timestamp;
+        private final String fileNameBase;
+        private final File tempDirectory;
+        private final List<Location> locations;
+        private final ExecutorService uploadExecutor;
+        private final LoadMonitor loadMonitor;
+        private final BackupCheckpoint checkpoint;      // null if the backup cannot be resumed
+        private final String profile;
+        private final BackupWorker worker;              // null if the archives are created in this JVM
+        private final ArchiveQueue archives = new ArchiveQueue();
+        private int uploads;                            // Number of locations the archives are uploaded to
+
+        StorageRun(Storage storage, FileManager fileManager, Set<File> filesToBackup, Date timestamp, String fileNameBase,
+                   File tempDirectory, List<Location> locations, ExecutorService uploadExecutor, LoadMonitor loadMonitor,
+                   BackupCheckpoint checkpoint, String profile, BackupWorker worker) {
+            this.storage = storage;
+            this.fileManager = fileManager;
+            this.filesToBackup = filesToBackup;
+            this.timestamp = timestamp;
+            this.fileNameBase = fileNameBase;
+            this.tempDirectory = tempDirectory;
+            this.locations = locations;
+            this.uploadExecutor = uploadExecutor;
+            this.loadMonitor = loadMonitor;
+            this.checkpoint = checkpoint;
+            this.profile = profile;
+            this.worker = worker;
+        }
+
+        public List<LocationResult> call() throws Exception {
+            if (!tempDirectory.isDirectory() && !tempDirectory.mkdirs()) {
+                throw new IOException("Could not create the directory " + tempDirectory.getAbsolutePath());
+            }
+            storage.setPreserveLinks(fileManager.isLinksPreserved());
+            try {
+                String storageFileNameBase = Util.generateFileNameBase(timestamp, storage);
+                File metadataFile = new File(tempDirectory, Util.createFileName(storageFileNameBase, BackupMetadata.EXTENSION));
+
+                // Sends the backup archives to all the active locations as soon as they are finished,
+                // except to the ones which stored them before the interruption
+                List<LocationResult> results = Lists.newArrayList();
+                int skipped = 0;
+                List<Future<LocationResult>> futures = Lists.newArrayList();
+                for (int i = 0; i < locations.size(); i++) {
+                    if (checkpoint != null && checkpoint.isUploaded(storage, locations.get(i))) {
+                        results.add(new LocationResult(locations.get(i), null, 0));
+                        skipped++;
+                    } else {
+                        futures.add(uploadExecutor.submit(new LocationUpload(locations.get(i), fileManager, storage,
+                                timestamp, storageFileNameBase, archives, metadataFile,
+                                new File(tempDirectory.getParentFile(), tempDirectory.getName() + "_location_" + i),
+                                loadMonitor, checkpoint, profile)));
+                    }
+                }
+                uploads = futures.size();
+                BackupMetadata metadata;
+                try {
+                    if (checkpoint != null && checkpoint.isArchived(storage) && metadataFile.exists()) {
+                        LOGGER.info("The archives of " + storage.getDisplayName() + " were finished before the interruption");
+                        metadata = BackupMetadata.read(metadataFile);
+                        for (BackupMetadata.Archive archive : metadata.getArchives()) {
+                            handOver(new File(tempDirectory, archive.getName()));
+                        }
+                        long size = 0;
+                        for (File fileToBackup : filesToBackup) {
+                            size += fileToBackup.length();
+                        }
+                        BackupProgress.get().get(BackupMetrics.Phase.ARCHIVE).addDone(filesToBackup.size(), size);
+                    } else {
+                        metadata = worker != null && storage.isWorkerSupported() ? archiveInWorker() : archive();
+                        Util.createBackupMetadataFile(metadata, tempDirectory.getAbsolutePath(), storageFileNameBase);
+                        if (checkpoint != null) {
+                            checkpoint.archived(storage);
+                        }
+                    }
+                    // The uploads store the metadata after the last archive
+                    archives.finish();
+                } catch (Exception e) {
+                    archives.fail(e);
+                    for (Future<LocationResult> future : futures) {
+                        try {
+                            future.get();
+                        } catch (ExecutionException ignored) {
+                            // The archiving failure is reported instead
+                        }
                     }
+                    throw e;
                 }
-                else {
-                    LOGGER.info(location.getDisplayName() + " is disabled, ignoring.");
+                BackupProgress.get().get(BackupMetrics.Phase.UPLOAD)
+                        .addTotal((long) metadata.getArchives().size() * skipped, metadata.getTotalSize() * skipped)
+                        .addDone((long) metadata.getArchives().size() * skipped, metadata.getTotalSize() * skipped);
+                for (Future<LocationResult> future : futures) {
+                    results.add(future.get());
+                }
+                return results;
+            } finally {
+                // The temporary metadata and archive files are kept for resuming until the backup succeeds
+                if (checkpoint == null) {
+                    LOGGER.info("Deleting the temporary directory " + tempDirectory.getAbsolutePath());
+                    try {
+                        FileUtils.deleteDirectory(tempDirectory);
+                    } catch (IOException e) {
+                        LOGGER.warning("Could not delete " + tempDirectory.getAbsolutePath() + " " + e.getMessage());
+                    }
                 }
             }
+        }
 
-            // Delete the temporary archive files
-            for (File f : archives) {
-                if(f.isDirectory()) {
-                    LOGGER.info("Deleting temporary archive directory " + f.getAbsolutePath());
-                    FileUtils.deleteDirectory(f);
+        /**
+         *
+         * Hands a finished archive over to the uploads
+         *
+         * @param archive archive file which is not written anymore
+         */
+        private void handOver(File archive) {
+            if (archives.add(archive)) {
+                BackupProgress.get().get(BackupMetrics.Phase.UPLOAD).addTotal(uploads, archive.length() * uploads);
+            }
+        }
+
+        /**
+         *
+         * Archives the files, continuing after the archives completed before an interruption.
+         * Every archive is handed over to the uploads as soon as the storage finishes it.
+         *
+         * @return metadata of the archives
+         */
+        private BackupMetadata archive() throws Exception {
+            BackupMetrics.Timer archiveTimer = BackupMetrics.get().start(BackupMetrics.Phase.ARCHIVE, storage.getDisplayName());
+            BackupProgress.PhaseProgress archiveProgress = BackupProgress.get().enter(BackupMetrics.Phase.ARCHIVE);
+            try {
+                Set<String> archivedEntries = start();
+                // The archives completed before an interruption can be uploaded right away
+                int completedArchives = archivesCompleted(0);
+                File rootDir = Jenkins.getActiveInstance().getRootDir();
+                for (File fileToBackup : filesToBackup) {
+                    long length = fileToBackup.length();
+                    if (!archivedEntries.isEmpty() && archivedEntries.contains(Util.getRelativePath(fileToBackup, rootDir))) {
+                        archiveProgress.addDone(1, length);
+                        continue;
+                    }
+                    loadMonitor.pace("compression");
+                    storage.backupAddFile(fileToBackup);
+                    archiveTimer.files(1).bytesIn(length);
+                    archiveProgress.addDone(1, length);
+                    completedArchives = archivesCompleted(completedArchives);
+                }
+                for (File archive : storage.backupStop()) {
+                    handOver(archive);
+                }
+                BackupMetadata metadata = BackupMetadata.create(fileNameBase, timestamp, fileManager, storage,
+                        archives.getArchives(), profile);
+                archiveTimer.bytesOut(metadata.getTotalSize());
+                return metadata;
+            } catch (Exception e) {
+                archiveTimer.failed();
+                throw e;
+            } finally {
+                archiveTimer.stop();
+            }
+        }
+
+        /**
+         *
+         * Hands over the archives completed since the last call and records them in the checkpoint
+         *
+         * @param completedArchives number of completed archives at the last call
+         * @return number of completed archives
+         */
+        private int archivesCompleted(int completedArchives) {
+            Collection<File> completed = storage.getCompletedArchives();
+            if (completed.size() != completedArchives) {
+                for (File archive : completed) {
+                    handOver(archive);
+                }
+                if (checkpoint != null) {
+                    checkpoint.archivesCompleted(storage, completed, storage.getChecksums());
+                }
+            }
+            return completed.size();
+        }
+
+        /**
+         *
+         * Archives the files in the BackupWorker, the archiving is started from the beginning
+         * even if some archives were completed before an interruption. The archives are handed over
+         * to the uploads when the worker has finished all of them.
+         *
+         * @return metadata of the archives
+         */
+        private BackupMetadata archiveInWorker() throws Exception {
+            final BackupMetrics.Timer archiveTimer = BackupMetrics.get().start(BackupMetrics.Phase.ARCHIVE, storage.getDisplayName());
+            final BackupProgress.PhaseProgress archiveProgress = BackupProgress.get().enter(BackupMetrics.Phase.ARCHIVE);
+            try {
+                FileUtils.cleanDirectory(tempDirectory);
+                if (checkpoint != null) {
+                    checkpoint.archivesCompleted(storage, Collections.<File>emptyList(), null);
+                }
+                BackupWorker.Environment environment = new BackupWorker.Environment(Jenkins.getActiveInstance().getRootDir(),
+                        storage, ArchiveEncryption.get());
+                // The reports are remote calls from the worker, pacing them slows down the worker
+                BackupWorker.Result result = worker.archive(storage, filesToBackup, tempDirectory, fileNameBase, environment,
+                        new BackupWorker.Reporter() {
+                            public void archived(int files, long bytes) {
+                                archiveTimer.files(files).bytesIn(bytes);
+                                archiveProgress.addDone(files, bytes);
+                                loadMonitor.pace("compression");
+                            }
+                        });
+                for (File archive : result.getArchives()) {
+                    handOver(archive);
+                }
+                BackupMetadata metadata = BackupMetadata.create(fileNameBase, timestamp, fileManager, storage,
+                        archives.getArchives(), result.getChecksums(), profile);
+                archiveTimer.bytesOut(metadata.getTotalSize());
+                return metadata;
+            } catch (Exception e) {
+                archiveTimer.failed();
+                throw e;
+            } finally {
+                archiveTimer.stop();
+            }
+        }
+
+        /**
+         *
+         * Starts the storage, or resumes it after the archives recorded in the checkpoint
+         *
+         * @return names of the entries inside the completed archives
+         */
+        private Set<String> start() throws PeriodicBackupException {
+            List<String> completed = checkpoint != null ? checkpoint.getCompletedArchives(storage) : Collections.<String>emptyList();
+            ArchiveChecksums checksums = checkpoint != null ? checkpoint.getChecksums(storage) : null;
+            List<File> completedFiles = Lists.newArrayList();
+            for (String name : completed) {
+                File file = new File(tempDirectory, name);
+                if (file.isFile()) {
+                    completedFiles.add(file);
+                }
+            }
+            File[] files = tempDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    // Whatever was written after the last completed archive is incomplete
+                    if (!completed.contains(file.getName())) {
+                        FileUtils.deleteQuietly(file);
+                    }
                 }
-                else {
-                    LOGGER.info("Deleting temporary file " + f.getAbsolutePath());
-                    if (!f.delete()) {
-                        LOGGER.warning("Could not delete " + f.getAbsolutePath());
+            }
+            if (!completed.isEmpty() && checksums != null && completedFiles.size() == completed.size()) {
+                if (storage.backupResume(tempDirectory.getAbsolutePath(), fileNameBase, completedFiles, checksums)) {
+                    LOGGER.info("Resuming " + storage.getDisplayName() + " after " + completedFiles.size() + " completed archive(s)");
+                    Set<String> entries = Sets.newHashSet();
+                    for (BackupMetadata.Entry entry : checksums.getEntries()) {
+                        entries.add(entry.getName());
                     }
+                    return entries;
+                }
+            }
+            if (!completed.isEmpty()) {
+                for (File file : completedFiles) {
+                    FileUtils.deleteQuietly(file);
                 }
+                checkpoint.archivesCompleted(storage, Collections.<File>emptyList(), null);
+            }
+            storage.backupStart(tempDirectory.getAbsolutePath(), fileNameBase);
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     *
+     * How the backups are created, every setting has the default of the backup configuration.
+     * {@link #forLink(PeriodicBackupLink)} takes all of them from the backup configuration.
+     */
+    public static final class Settings {
+
+        private boolean forkWorker;                 // Create the archives in a BackupWorker JVM
+        private String workerJvmOptions;            // Options of the worker JVM, for example its heap size
+        private String workerLabel;                 // Label of the agent creating the archives, null to use the controller
+        private boolean workerSecrets;              // Send the secrets directory to the agent
+        private boolean tieredReplication;          // Store the backup in the primary LocalDirectory only
+        private boolean deduplicate;                // Store the copies of already archived files as references
+        private int requiredLocations;              // Number of locations which have to store the backup, 0 means all
+        private int checkpointMaxAgeHours;          // Age after which an interrupted backup is not resumed, 0 disables resuming
+        private LoadMonitor loadMonitor = LoadMonitor.disabled();
+
+        /**
+         *
+         * @param link the backup configuration
+         * @return the settings of the backup configuration
+         */
+        public static Settings forLink(PeriodicBackupLink link) {
+            return new Settings()
+                    .forkWorker(link.isForkWorker(), link.getWorkerJvmOptions())
+                    .workerLabel(link.getWorkerLabel(), link.isWorkerSecrets())
+                    .tieredReplication(link.isTieredReplication())
+                    .deduplicate(link.isDeduplicate())
+                    .requiredLocations(link.getRequiredLocations())
+                    .checkpointMaxAgeHours(link.getCheckpointMaxAgeHours())
+                    .loadMonitor(LoadMonitor.forLink(link));
+        }
+
+        /**
+         * @param forkWorker true if the archives are created in a {@link BackupWorker} JVM
+         * @param workerJvmOptions options of the worker JVM, for example its heap size, may be null
+         */
+        public Settings forkWorker(boolean forkWorker, String workerJvmOptions) {
+            this.forkWorker = forkWorker;
+            this.workerJvmOptions = workerJvmOptions;
+            return this;
+        }
 
+        /**
+         * @param workerLabel label of the agent creating the archives instead of a forked worker, null to use the controller
+         * @param workerSecrets true if the secrets directory may be sent to the agent, otherwise a backup including
+         * it is archived on the controller
+         */
+        public Settings workerLabel(String workerLabel, boolean workerSecrets) {
+            this.workerLabel = workerLabel;
+            this.workerSecrets = workerSecrets;
+            return this;
+        }
+
+        /**
+         * @param tieredReplication true if the backup is only stored in the primary LocalDirectory and copied to the
+         * other locations by the {@link BackupReplicator}
+         */
+        public Settings tieredReplication(boolean tieredReplication) {
+            this.tieredReplication = tieredReplication;
+            return this;
+        }
+
+        /**
+         * @param deduplicate true if the Storages store the copies of already archived files as references
+         */
+        public Settings deduplicate(boolean deduplicate) {
+            this.deduplicate = deduplicate;
+            return this;
+        }
+
+        /**
+         * @param requiredLocations number of locations which have to store the backup, 0 means all enabled locations
+         */
+        public Settings requiredLocations(int requiredLocations) {
+            this.requiredLocations = requiredLocations;
+            return this;
+        }
+
+        /**
+         * @param checkpointMaxAgeHours age in hours after which an interrupted backup is not resumed anymore,
+         * 0 disables resuming
+         */
+        public Settings checkpointMaxAgeHours(int checkpointMaxAgeHours) {
+            this.checkpointMaxAgeHours = checkpointMaxAgeHours;
+            return this;
+        }
+
+        /**
+         * @param loadMonitor LoadMonitor slowing down the backup while the controller is under load
+         */
+        public Settings loadMonitor(LoadMonitor loadMonitor) {
+            this.loadMonitor = loadMonitor;
+            return this;
+        }
+    }
+
+    /**
+     *
+     * Result of storing the backup in a single location
+     */
+    public static class LocationResult {
+
+        private final Location location;
+        private final Throwable failure;
+        private final long duration;
+
+        public LocationResult(Location location, Throwable failure, long duration) {
+            this.location = location;
+            this.failure = failure;
+            this.duration = duration;
+        }
+
+        public Location getLocation() {
+            return location;
+        }
+
+        /**
+         * @return the cause of the failure or null if the backup was stored successfully
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        public boolean isSuccess() {
+            return failure == null;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+    }
+
+    /**
+     *
+     * Stores the backup in a single location
+     */
+    private static class LocationUpload implements Callable<LocationResult> {
+
+        private final Location location;
+        private final FileManager fileManager;
+        private final Storage storage;
+        private final Date timestamp;
+        private final String fileNameBase;
+        private final Iterable<File> archives;
+        private final File metadataFile;
+        private final File tempDirectory;
+        private final LoadMonitor loadMonitor;
+        private final BackupCheckpoint checkpoint;
+        private final String profile;
+
+        LocationUpload(Location location, FileManager fileManager, Storage storage, Date timestamp, String fileNameBase,
+                       Iterable<File> archives, File metadataFile, File tempDirectory, LoadMonitor loadMonitor,
+                       BackupCheckpoint checkpoint, String profile) {
+            this.location = location;
+            this.fileManager = fileManager;
+            this.storage = storage;
+            this.timestamp = timestamp;
+            this.fileNameBase = fileNameBase;
+            this.archives = archives;
+            this.metadataFile = metadataFile;
+            this.tempDirectory = tempDirectory;
+            this.loadMonitor = loadMonitor;
+            this.checkpoint = checkpoint;
+            this.profile = profile;
+        }
+
+        public LocationResult call() {
+            long start = System.currentTimeMillis();
+            BackupMetrics.Timer uploadTimer = BackupMetrics.get().start(BackupMetrics.Phase.UPLOAD, location.getDisplayName());
+            BackupProgress.PhaseProgress uploadProgress = BackupProgress.get().enter(BackupMetrics.Phase.UPLOAD);
+            try {
+                loadMonitor.pace("upload");
+                // Every location gets its own BackupObject file
+                if (!tempDirectory.isDirectory() && !tempDirectory.mkdirs()) {
+                    throw new IOException("Could not create the directory " + tempDirectory.getAbsolutePath());
+                }
+                try {
+                    BackupObject backupObject = new BackupObject(fileManager, storage, location, timestamp, profile);
+                    File backupObjectFile = Util.createBackupObjectFile(backupObject, tempDirectory.getAbsolutePath(), fileNameBase);
+                    // The archives are iterated while the storage is still writing the next ones
+                    location.storeBackupInLocation(archives, backupObjectFile, metadataFile);
+                    int archiveCount = Iterables.size(archives);
+                    long archivesSize = 0;
+                    for (File archive : archives) {
+                        archivesSize += archive.length();
+                    }
+                    uploadTimer.files(archiveCount + 2).bytesOut(archivesSize + metadataFile.length() + backupObjectFile.length());
+                    uploadProgress.addDone(archiveCount, archivesSize);
+                    if (checkpoint != null) {
+                        checkpoint.uploaded(storage, location);
+                    }
+                } finally {
+                    LOGGER.info("Deleting the temporary directory " + tempDirectory.getAbsolutePath());
+                    FileUtils.deleteQuietly(tempDirectory);
+                    BackupCatalog.get().invalidate(location);
+                }
+            } catch (Exception e) {
+                uploadTimer.failed();
+                LOGGER.log(Level.WARNING, "Could not store the backup in " + location.getDisplayName(), e);
+                return new LocationResult(location, e, System.currentTimeMillis() - start);
+            } finally {
+                uploadTimer.stop();
             }
+            return new LocationResult(location, null, System.currentTimeMillis() - start);
         }
-        LOGGER.info("Backup finished successfully after " + (System.currentTimeMillis() - start) + " ms" );
     }
 }
@@ -0,0 +1,232 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import hudson.model.Descriptor;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ *
+ * BackupListing is a sorted, filtered and paginated view of the backups of several locations,
+ * it is served as JSON to the restore web page which loads the list after the page itself.
+ * Every backup is identified by its id within the location it was listed from.
+ */
+public final class BackupListing {
+
+    /**
+     * Largest page which can be requested
+     */
+    static final int MAX_LIMIT = 500;
+
+    public enum Sort {
+        TIMESTAMP, LOCATION, PROFILE, STORAGE;
+
+        /**
+         * @param value name of the sort order in any case, null or empty for the default
+         * @return matching sort order, TIMESTAMP if there is none
+         */
+        public static Sort parse(String value) {
+            for (Sort sort : values()) {
+                if (sort.name().equalsIgnoreCase(StringUtils.trimToEmpty(value))) {
+                    return sort;
+                }
+            }
+            return TIMESTAMP;
+        }
+    }
+
+    private String location;    // Display name of the only location to list, null for all
+    private String profile;     // Display name of the only profile to list, null for all
+    private String storage;     // Display name of the only storage to list, null for all
+    private String query;       // Text contained in the listed backups, null for all
+    private Sort sort = Sort.TIMESTAMP;
+    private boolean ascending;
+    private int start;
+    private int limit = 50;
+
+    public BackupListing location(String location) {
+        this.location = StringUtils.trimToNull(location);
+        return this;
+    }
+
+    public BackupListing profile(String profile) {
+        this.profile = StringUtils.trimToNull(profile);
+        return this;
+    }
+
+    public BackupListing storage(String storage) {
+        this.storage = StringUtils.trimToNull(storage);
+        return this;
+    }
+
+    public BackupListing query(String query) {
+        this.query = StringUtils.trimToNull(query);
+        return this;
+    }
+
+    public BackupListing sort(Sort sort, boolean ascending) {
+        this.sort = sort;
+        this.ascending = ascending;
+        return this;
+    }
+
+    /**
+     *
+     * @param start index of the first backup of the page
+     * @param limit number of backups of the page, 0 for the default
+     * @return this listing
+     */
+    public BackupListing page(int start, int limit) {
+        this.start = Math.max(0, start);
+        this.limit = limit <= 0 ? this.limit : Math.min(limit, MAX_LIMIT);
+        return this;
+    }
+
+    /**
+     *
+     * @param location Location the backup was listed from
+     * @param backup BackupObject
+     * @return identifier of the backup among the backups of all the locations
+     */
+    public static String getId(Location location, BackupObject backup) {
+        return backup.getId() + "@" + location.getDisplayName();
+    }
+
+    /**
+     *
+     * Lists the page of the matching backups
+     *
+     * @param backups BackupObject(s) by the Location they were listed from
+     * @return the number of matching backups and the backups of the page as JSON
+     */
+    public JSONObject list(Map<Location, List<BackupObject>> backups) {
+        List<Row> rows = Lists.newArrayList();
+        for (Map.Entry<Location, List<BackupObject>> entry : backups.entrySet()) {
+            for (BackupObject backup : entry.getValue()) {
+                Row row = new Row(entry.getKey(), backup);
+                if (matches(row)) {
+                    rows.add(row);
+                }
+            }
+        }
+        Comparator<Row> byTimestamp = Comparator.comparing(row -> row.backup.getTimestamp());
+        Comparator<Row> order;
+        switch (sort) {
+            case LOCATION:
+                order = Comparator.<Row, String>comparing(row -> row.location.getDisplayName()).thenComparing(byTimestamp);
+                break;
+            case PROFILE:
+                order = Comparator.<Row, String>comparing(row -> row.profile).thenComparing(byTimestamp);
+                break;
+            case STORAGE:
+                order = Comparator.<Row, String>comparing(row -> row.storage).thenComparing(byTimestamp);
+                break;
+            default:
+                order = byTimestamp;
+        }
+        rows.sort(ascending ? order : order.reversed());
+
+        JSONArray page = new JSONArray();
+        int end = (int) Math.min((long) start + limit, rows.size());
+        for (Row row : rows.subList(Math.min(start, rows.size()), end)) {
+            page.add(row.toJSON());
+        }
+        JSONObject result = new JSONObject();
+        result.put("total", rows.size());
+        result.put("start", start);
+        result.put("limit", limit);
+        result.put("backups", page);
+        return result;
+    }
+
+    private boolean matches(Row row) {
+        if (location != null && !location.equals(row.location.getDisplayName())) {
+            return false;
+        }
+        if (profile != null && !profile.equals(row.profile)) {
+            return false;
+        }
+        if (storage != null && !storage.equals(row.storage)) {
+            return false;
+        }
+        if (query != null) {
+            String needle = query.toLowerCase(Locale.ENGLISH);
+            return row.location.getDisplayName().toLowerCase(Locale.ENGLISH).contains(needle)
+                    || row.profile.toLowerCase(Locale.ENGLISH).contains(needle)
+                    || row.storage.toLowerCase(Locale.ENGLISH).contains(needle)
+                    || row.backup.getDisplayName().toLowerCase(Locale.ENGLISH).contains(needle);
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return display name of the Storage descriptor, the simple class name if Jenkins does not know the class
+     */
+    private static String getStorageName(String storageClass) {
+        if (storageClass == null) {
+            return "";
+        }
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        Descriptor descriptor = jenkins != null ? jenkins.getDescriptorByName(storageClass) : null;
+        return descriptor != null ? descriptor.getDisplayName() : StringUtils.substringAfterLast("." + storageClass, ".");
+    }
+
+    private static final class Row {
+
+        private final Location location;
+        private final BackupObject backup;
+        private final String profile;
+        private final String storage;
+
+        Row(Location location, BackupObject backup) {
+            this.location = location;
+            this.backup = backup;
+            this.profile = backup.getProfile() != null ? backup.getProfile() : "Default";
+            this.storage = getStorageName(backup.getStorageClass());
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("id", getId(location, backup));
+            json.put("location", location.getDisplayName());
+            json.put("profile", profile);
+            json.put("storage", storage);
+            json.put("timestamp", backup.getTimestamp().getTime());
+            json.put("displayName", backup.getDisplayName());
+            json.put("size", backup.getMetadata() != null ? backup.getMetadata().getTotalSize() : -1);
+            return json;
+        }
+    }
+}
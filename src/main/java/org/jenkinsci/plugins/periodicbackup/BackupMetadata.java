@@ -0,0 +1,580 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.logging.Logger;
+
+/**
+ *
+ * BackupMetadata is the sidecar stored next to every serialized BackupObject.
+ * It holds what is needed to list and validate a backup (id, timestamp, profile, types, archives, sizes and checksums)
+ * in a line based format which can be read without XStream. With the per-file checksums the sidecar grows with
+ * the number of backed up files, only its summary at the beginning is small.
+ *
+ * The format is a header line with the magic string and the format version followed by key=value lines.
+ * Unknown keys are ignored so that newer versions can add information without breaking older readers.
+ * The per-file checksums are written last, so listing a backup can stop reading before them.
+ */
+public class BackupMetadata {
+
+    private static final Logger LOGGER = Logger.getLogger(BackupMetadata.class.getName());
+
+    public final static String EXTENSION = "pbmeta";
+    public final static int VERSION = 1;
+    final static String MAGIC = "periodicbackup-metadata";
+    final static long NO_CHECKSUM = -1;
+
+    private final int version;
+    private final String id;
+    private final long timestamp;
+    private final String fileManagerClass;
+    private final String fileManagerName;
+    private final String storageClass;
+    private final String profile;     // Backup profile which created the backup, null for the default profile
+    private final List<Archive> archives;
+    private final List<Entry> entries;
+
+    public BackupMetadata(int version, String id, long timestamp, String fileManagerClass, String fileManagerName,
+                          String storageClass, List<Archive> archives) {
+        this(version, id, timestamp, fileManagerClass, fileManagerName, storageClass, archives, ImmutableList.<Entry>of());
+    }
+
+    public BackupMetadata(int version, String id, long timestamp, String fileManagerClass, String fileManagerName,
+                          String storageClass, List<Archive> archives, List<Entry> entries) {
+        this(version, id, timestamp, fileManagerClass, fileManagerName, storageClass, null, archives, entries);
+    }
+
+    public BackupMetadata(int version, String id, long timestamp, String fileManagerClass, String fileManagerName,
+                          String storageClass, String profile, List<Archive> archives, List<Entry> entries) {
+        this.version = version;
+        this.id = id;
+        this.timestamp = timestamp;
+        this.fileManagerClass = fileManagerClass;
+        this.fileManagerName = fileManagerName;
+        this.storageClass = storageClass;
+        this.profile = profile;
+        this.archives = ImmutableList.copyOf(archives);
+        this.entries = ImmutableList.copyOf(entries);
+    }
+
+    /**
+     *
+     * Creates the metadata of a backup. The checksums recorded by the Storage while archiving are used when available,
+     * otherwise the CRC32 checksum of each archive file is computed here
+     *
+     * @param id identifier of the backup, the first part of its filenames
+     * @param timestamp timestamp of the backup
+     * @param fileManager FileManager used for the backup
+     * @param storage Storage which created the archives
+     * @param archiveFiles archive files created by the Storage
+     * @return BackupMetadata describing the backup
+     * @throws IOException If an IO problem occurs
+     */
+    public static BackupMetadata create(String id, Date timestamp, FileManager fileManager, Storage storage,
+                                        Iterable<File> archiveFiles) throws IOException {
+        return create(id, timestamp, fileManager, storage, archiveFiles, null);
+    }
+
+    /**
+     *
+     * Creates the metadata of a backup made by the given backup profile
+     *
+     * @param id identifier of the backup, the first part of its filenames
+     * @param timestamp timestamp of the backup
+     * @param fileManager FileManager used for the backup
+     * @param storage Storage which created the archives
+     * @param archiveFiles archive files created by the Storage
+     * @param profile name of the backup profile, null for the default profile
+     * @return BackupMetadata describing the backup
+     * @throws IOException If an IO problem occurs
+     */
+    public static BackupMetadata create(String id, Date timestamp, FileManager fileManager, Storage storage,
+                                        Iterable<File> archiveFiles, String profile) throws IOException {
+        return create(id, timestamp, fileManager, storage, archiveFiles, storage.getChecksums(), profile);
+    }
+
+    /**
+     *
+     * Creates the metadata of a backup whose archives were written by a copy of the Storage, in a BackupWorker
+     *
+     * @param id identifier of the backup, the first part of its filenames
+     * @param timestamp timestamp of the backup
+     * @param fileManager FileManager used for the backup
+     * @param storage Storage which created the archives
+     * @param archiveFiles archive files created by the Storage
+     * @param checksums checksums recorded while writing the archives, null if they were not recorded
+     * @param profile name of the backup profile, null for the default profile
+     * @return BackupMetadata describing the backup
+     * @throws IOException If an IO problem occurs
+     */
+    public static BackupMetadata create(String id, Date timestamp, FileManager fileManager, Storage storage,
+                                        Iterable<File> archiveFiles, ArchiveChecksums checksums, String profile) throws IOException {
+        List<Archive> archives = Lists.newArrayList();
+        for (File archiveFile : archiveFiles) {
+            if (archiveFile.isDirectory()) {
+                archives.add(new Archive(archiveFile.getName(), FileUtils.sizeOfDirectory(archiveFile), NO_CHECKSUM));
+            }
+            else {
+                Long checksum = checksums != null ? checksums.getArchiveChecksum(archiveFile.getName()) : null;
+                archives.add(new Archive(archiveFile.getName(), archiveFile.length(),
+                        checksum != null ? checksum : checksum(archiveFile)));
+            }
+        }
+        List<Entry> entries = checksums != null ? checksums.getEntries() : ImmutableList.<Entry>of();
+        return new BackupMetadata(VERSION, id, timestamp.getTime(), fileManager.getClass().getName(),
+                fileManager.getDisplayName(), storage.getClass().getName(), profile, archives, entries);
+    }
+
+    /**
+     *
+     * Reads the metadata from a sidecar file
+     *
+     * @param file the sidecar file
+     * @return BackupMetadata
+     * @throws IOException If an IO problem occurs or the file is not a metadata sidecar
+     */
+    public static BackupMetadata read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return read(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     *
+     * Reads the metadata from a sidecar file without the per-file checksums, which is enough to list the backup
+     *
+     * @param file the sidecar file
+     * @return BackupMetadata without entries
+     * @throws IOException If an IO problem occurs or the file is not a metadata sidecar
+     */
+    public static BackupMetadata readSummary(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return readSummary(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     *
+     * Reads the complete metadata sidecar of a backup, including the checksums of the files, from the Location
+     *
+     * @param location Location where the backup is stored
+     * @param backup BackupObject of the backup
+     * @return BackupMetadata with entries
+     * @throws PeriodicBackupException if the sidecar does not exist or the Location cannot read single files
+     */
+    public static BackupMetadata read(Location location, BackupObject backup) throws PeriodicBackupException {
+        Storage storage = backup.getStorage();
+        if (storage == null) {
+            throw new PeriodicBackupException("Could not load the backup " + backup.getDisplayName());
+        }
+        // Backups created before the storages ran concurrently have a sidecar named without the storage extension
+        List<String> names = Lists.newArrayList(
+                Util.createFileName(Util.generateFileNameBase(backup.getTimestamp(), storage), EXTENSION),
+                Util.createFileName(Util.generateFileNameBase(backup.getTimestamp()), EXTENSION));
+        for (String name : names) {
+            InputStream in = null;
+            try {
+                in = location.openBackupFile(name);
+                return read(in);
+            } catch (IOException e) {
+                LOGGER.fine("Could not read the metadata " + name + " from " + location.getDisplayName() + " " + e.getMessage());
+            } catch (UnsupportedOperationException e) {
+                throw new PeriodicBackupException(e.getMessage());
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        throw new PeriodicBackupException("The backup " + backup.getDisplayName() + " has no metadata in " + location.getDisplayName());
+    }
+
+    /**
+     *
+     * Reads the metadata from a stream, the stream is not closed
+     *
+     * @param in stream with the content of a sidecar file
+     * @return BackupMetadata
+     * @throws IOException If an IO problem occurs or the content is not a metadata sidecar
+     */
+    public static BackupMetadata read(InputStream in) throws IOException {
+        return read(in, true);
+    }
+
+    /**
+     *
+     * Reads the metadata from a stream without the per-file checksums, the stream is not closed
+     *
+     * @param in stream with the content of a sidecar file
+     * @return BackupMetadata without entries
+     * @throws IOException If an IO problem occurs or the content is not a metadata sidecar
+     */
+    public static BackupMetadata readSummary(InputStream in) throws IOException {
+        return read(in, false, false);
+    }
+
+    /**
+     *
+     * Reads the summary of the metadata from the beginning of a sidecar, the stream is not closed
+     *
+     * @param in stream with the content of a sidecar file
+     * @param truncated true if the stream only holds the beginning of the sidecar
+     * @return BackupMetadata without entries
+     * @throws IOException If an IO problem occurs, the content is not a metadata sidecar or the summary
+     * does not end before the truncated stream
+     */
+    public static BackupMetadata readSummary(InputStream in, boolean truncated) throws IOException {
+        return read(in, false, truncated);
+    }
+
+    private static BackupMetadata read(InputStream in, boolean withEntries) throws IOException {
+        return read(in, withEntries, false);
+    }
+
+    private static BackupMetadata read(InputStream in, boolean withEntries, boolean truncated) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charsets.UTF_8));
+        String header = reader.readLine();
+        if (header == null || !header.startsWith(MAGIC + " ")) {
+            throw new IOException("Not a backup metadata file");
+        }
+        int version;
+        try {
+            version = Integer.parseInt(header.substring(MAGIC.length() + 1).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid backup metadata version: " + header);
+        }
+        String id = null;
+        long timestamp = -1;
+        String fileManagerClass = null;
+        String fileManagerName = null;
+        String storageClass = null;
+        String profile = null;
+        List<Archive> archives = Lists.newArrayList();
+        List<Entry> entries = Lists.newArrayList();
+        // The last line of a truncated stream may be incomplete, the summary is complete once an entry starts
+        boolean complete = !truncated;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int separator = line.indexOf('=');
+            if (separator <= 0) {
+                continue;
+            }
+            String key = line.substring(0, separator);
+            String value = line.substring(separator + 1);
+            if ("id".equals(key)) {
+                id = value;
+            } else if ("timestamp".equals(key)) {
+                timestamp = parseLong(value, line);
+            } else if ("fileManager".equals(key)) {
+                fileManagerClass = value;
+            } else if ("fileManagerName".equals(key)) {
+                fileManagerName = value;
+            } else if ("storage".equals(key)) {
+                storageClass = value;
+            } else if ("profile".equals(key)) {
+                profile = value;
+            } else if ("archive".equals(key)) {
+                archives.add(Archive.parse(value, line));
+            } else if ("entry".equals(key)) {
+                if (!withEntries) {
+                    // The entries are the last lines of the sidecar
+                    complete = true;
+                    break;
+                }
+                entries.add(Entry.parse(value, line));
+            }
+        }
+        if (!complete) {
+            throw new IOException("The summary of the backup metadata " + id + " is truncated");
+        }
+        if (id == null || timestamp < 0 || storageClass == null) {
+            throw new IOException("Incomplete backup metadata " + id);
+        }
+        return new BackupMetadata(version, id, timestamp, fileManagerClass, fileManagerName, storageClass, profile, archives, entries);
+    }
+
+    /**
+     *
+     * Writes the metadata to the given file
+     *
+     * @param file destination file
+     * @throws IOException If an IO problem occurs
+     */
+    public void write(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8);
+        try {
+            writer.write(MAGIC + " " + version + "\n");
+            writeEntry(writer, "id", id);
+            writeEntry(writer, "timestamp", Long.toString(timestamp));
+            writeEntry(writer, "fileManager", fileManagerClass);
+            writeEntry(writer, "fileManagerName", fileManagerName);
+            writeEntry(writer, "storage", storageClass);
+            writeEntry(writer, "profile", profile);
+            for (Archive archive : archives) {
+                writeEntry(writer, "archive", archive.toString());
+            }
+            for (Entry entry : entries) {
+                writeEntry(writer, "entry", entry.toString());
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void writeEntry(Writer writer, String key, String value) throws IOException {
+        if (value != null) {
+            // Values are written on a single line
+            writer.write(key + "=" + value.replace('\n', ' ').replace('\r', ' ') + "\n");
+        }
+    }
+
+    private static long parseLong(String value, String line) throws IOException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid backup metadata entry: " + line);
+        }
+    }
+
+    /**
+     *
+     * Computes the CRC32 checksum of the given file
+     *
+     * @param file file to read
+     * @return checksum value
+     * @throws IOException If an IO problem occurs
+     */
+    static long checksum(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        ByteBuffer buffer = BufferPool.direct().acquire();
+        try {
+            // The file is read into a direct buffer and checksummed without copying it to the heap
+            FileChannel channel = in.getChannel();
+            CRC32 checksum = new CRC32();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                checksum.update(buffer);
+                buffer.clear();
+            }
+            return checksum.getValue();
+        } finally {
+            BufferPool.direct().release(buffer);
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Date getTimestamp() {
+        return new Date(timestamp);
+    }
+
+    public String getFileManagerClass() {
+        return fileManagerClass;
+    }
+
+    public String getFileManagerName() {
+        return fileManagerName;
+    }
+
+    public String getStorageClass() {
+        return storageClass;
+    }
+
+    /**
+     * @return name of the backup profile which created the backup, null for the default profile
+     */
+    public String getProfile() {
+        return profile;
+    }
+
+    public List<Archive> getArchives() {
+        return archives;
+    }
+
+    /**
+     *
+     * @return checksums of the files inside the archives, empty if the Storage did not record them
+     * or if only the summary was read
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public long getTotalSize() {
+        long totalSize = 0;
+        for (Archive archive : archives) {
+            totalSize += archive.getSize();
+        }
+        return totalSize;
+    }
+
+    /**
+     *
+     * Name, size and checksum of a single archive of the backup
+     */
+    public static class Archive {
+        private final String name;
+        private final long size;
+        private final long checksum;
+
+        public Archive(String name, long size, long checksum) {
+            this.name = name;
+            this.size = size;
+            this.checksum = checksum;
+        }
+
+        static Archive parse(String value, String line) throws IOException {
+            // The name is the first field, the separator cannot be part of a file name generated by the Storages
+            String[] fields = value.split(";");
+            if (fields.length != 3) {
+                throw new IOException("Invalid backup metadata entry: " + line);
+            }
+            long checksum = fields[2].isEmpty() ? NO_CHECKSUM : parseLong(fields[2], line);
+            return new Archive(fields[0], parseLong(fields[1], line), checksum);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+
+        public boolean hasChecksum() {
+            return checksum != NO_CHECKSUM;
+        }
+
+        @Override
+        public String toString() {
+            return name + ";" + size + ";" + (hasChecksum() ? Long.toString(checksum) : "");
+        }
+    }
+
+    /**
+     *
+     * Archive, name, size and checksum of a single file inside the archives of the backup
+     */
+    public static class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private final String archive;
+        private final String name;
+        private final long size;
+        private final long checksum;
+
+        public Entry(String archive, String name, long size, long checksum) {
+            this.archive = archive;
+            this.name = name;
+            this.size = size;
+            this.checksum = checksum;
+        }
+
+        static Entry parse(String value, String line) throws IOException {
+            // The name is the last field since it may contain the separator
+            String[] fields = value.split(";", 4);
+            if (fields.length != 4) {
+                throw new IOException("Invalid backup metadata entry: " + line);
+            }
+            return new Entry(fields[0], unescape(fields[3]), parseLong(fields[1], line), parseLong(fields[2], line));
+        }
+
+        static String escape(String name) {
+            return name.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+        }
+
+        static String unescape(String name) {
+            StringBuilder result = new StringBuilder(name.length());
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (c == '\\' && i + 1 < name.length()) {
+                    char next = name.charAt(++i);
+                    result.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+                } else {
+                    result.append(c);
+                }
+            }
+            return result.toString();
+        }
+
+        public String getArchive() {
+            return archive;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+
+        @Override
+        public String toString() {
+            return archive + ";" + size + ";" + checksum + ";" + escape(name);
+        }
+    }
+}
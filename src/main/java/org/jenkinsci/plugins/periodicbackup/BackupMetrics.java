@@ -0,0 +1,336 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * BackupMetrics collects timers and counters of the backup and restore phases, in total and
+ * for each Storage and Location. The metrics are published through the Jenkins metrics plugin
+ * when it is installed and as JSON by PeriodicBackupLink.
+ */
+public final class BackupMetrics {
+
+    private static final Logger LOGGER = Logger.getLogger(BackupMetrics.class.getName());
+
+    private static final BackupMetrics INSTANCE = new BackupMetrics(true);
+
+    /**
+     * Component name of the statistics summing up all the storages or locations of a phase
+     */
+    public static final String TOTAL = "total";
+
+    public enum Phase {
+        SCAN, ARCHIVE, UPLOAD, RETENTION, DOWNLOAD, EXTRACT, RESTORE_COPY, VERIFY, REPLICATE
+    }
+
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+    private final boolean publish;
+
+    BackupMetrics(boolean publish) {
+        this.publish = publish;
+    }
+
+    public static BackupMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     *
+     * Starts measuring a phase
+     *
+     * @param phase measured phase
+     * @param component name of the Storage, Location or FileManager doing the work, or null
+     * @return Timer collecting the counters of the measured work, it has to be stopped when the work is done
+     */
+    public Timer start(Phase phase, String component) {
+        return new Timer(getStats(phase, TOTAL), component != null ? getStats(phase, component) : null);
+    }
+
+    /**
+     *
+     * @param phase phase of the statistics
+     * @param component name of the Storage, Location or FileManager, or TOTAL
+     * @return statistics of the phase and component, they are created if they do not exist yet
+     */
+    public Stats getStats(Phase phase, String component) {
+        String name = metricName(phase, component);
+        Stats existing = stats.get(name);
+        if (existing == null) {
+            Stats created = new Stats(phase, component);
+            existing = stats.putIfAbsent(name, created);
+            if (existing == null) {
+                existing = created;
+                if (publish) {
+                    publish(name, created);
+                }
+            }
+        }
+        return existing;
+    }
+
+    /**
+     *
+     * @return all the statistics as JSON, grouped by phase and component
+     */
+    public JSONObject toJSON() {
+        Map<String, JSONObject> phases = new TreeMap<String, JSONObject>();
+        for (Stats s : stats.values()) {
+            String phase = s.getPhase().name().toLowerCase(Locale.ENGLISH);
+            JSONObject components = phases.get(phase);
+            if (components == null) {
+                components = new JSONObject();
+                phases.put(phase, components);
+            }
+            components.put(s.getComponent(), s.toJSON());
+        }
+        JSONObject result = new JSONObject();
+        result.put("phases", phases);
+        return result;
+    }
+
+    static String metricName(Phase phase, String component) {
+        return "periodicbackup." + phase.name().toLowerCase(Locale.ENGLISH) + "."
+                + component.toLowerCase(Locale.ENGLISH).replaceAll("[^a-z0-9_\\-]+", "_");
+    }
+
+    private static void publish(String name, Stats created) {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null || jenkins.getPlugin("metrics") == null) {
+            return;
+        }
+        try {
+            MetricsPluginPublisher.register(name, created);
+        } catch (LinkageError e) {
+            LOGGER.log(Level.FINE, "Metrics plugin is not available", e);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not register the metrics " + name, e);
+        }
+    }
+
+    /**
+     *
+     * Publishes the queue size and the lag of the replication through the metrics plugin when it is installed
+     *
+     * @param replicator BackupReplicator
+     */
+    static void publish(BackupReplicator replicator) {
+        Jenkins jenkins = Jenkins.getInstanceOrNull();
+        if (jenkins == null || jenkins.getPlugin("metrics") == null) {
+            return;
+        }
+        try {
+            MetricsPluginPublisher.register(replicator);
+        } catch (LinkageError e) {
+            LOGGER.log(Level.FINE, "Metrics plugin is not available", e);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not register the replication metrics", e);
+        }
+    }
+
+    /**
+     *
+     * Counters and timers of a phase for a single component
+     */
+    public static final class Stats {
+
+        private final Phase phase;
+        private final String component;
+        private final LongAdder runs = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder files = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final LongAdder totalMillis = new LongAdder();
+        private final AtomicLong lastMillis = new AtomicLong();
+        private final AtomicLong lastBytesIn = new AtomicLong();
+        private final AtomicLong lastBytesOut = new AtomicLong();
+
+        Stats(Phase phase, String component) {
+            this.phase = phase;
+            this.component = component;
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        public String getComponent() {
+            return component;
+        }
+
+        public long getRuns() {
+            return runs.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getRetries() {
+            return retries.sum();
+        }
+
+        public long getFiles() {
+            return files.sum();
+        }
+
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        public long getTotalMillis() {
+            return totalMillis.sum();
+        }
+
+        public long getLastMillis() {
+            return lastMillis.get();
+        }
+
+        /**
+         * @return bytes written divided by bytes read by the last run, 0 if unknown
+         */
+        public double getLastCompressionRatio() {
+            long in = lastBytesIn.get();
+            return in > 0 ? (double) lastBytesOut.get() / in : 0;
+        }
+
+        /**
+         * @return bytes processed per second by the last run, 0 if unknown
+         */
+        public long getLastThroughput() {
+            long millis = lastMillis.get();
+            long bytes = Math.max(lastBytesIn.get(), lastBytesOut.get());
+            return millis > 0 ? bytes * 1000 / millis : 0;
+        }
+
+        void record(long millis, long fileCount, long in, long out, long retryCount, boolean failed) {
+            runs.increment();
+            totalMillis.add(millis);
+            files.add(fileCount);
+            bytesIn.add(in);
+            bytesOut.add(out);
+            retries.add(retryCount);
+            if (failed) {
+                errors.increment();
+            }
+            lastMillis.set(millis);
+            lastBytesIn.set(in);
+            lastBytesOut.set(out);
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("runs", getRuns());
+            json.put("errors", getErrors());
+            json.put("retries", getRetries());
+            json.put("files", getFiles());
+            json.put("bytesIn", getBytesIn());
+            json.put("bytesOut", getBytesOut());
+            json.put("totalMillis", getTotalMillis());
+            json.put("lastMillis", getLastMillis());
+            json.put("lastCompressionRatio", getLastCompressionRatio());
+            json.put("lastThroughput", getLastThroughput());
+            return json;
+        }
+    }
+
+    /**
+     *
+     * Measures a single run of a phase, the counters are recorded when the Timer is stopped
+     */
+    public static final class Timer {
+
+        private final Stats total;
+        private final Stats component;
+        private final long start = System.currentTimeMillis();
+        private long files;
+        private long bytesIn;
+        private long bytesOut;
+        private long retries;
+        private boolean failed;
+        private boolean stopped;
+
+        Timer(Stats total, Stats component) {
+            this.total = total;
+            this.component = component;
+        }
+
+        public Timer files(long count) {
+            files += count;
+            return this;
+        }
+
+        public Timer bytesIn(long bytes) {
+            bytesIn += bytes;
+            return this;
+        }
+
+        public Timer bytesOut(long bytes) {
+            bytesOut += bytes;
+            return this;
+        }
+
+        public Timer retry() {
+            retries++;
+            return this;
+        }
+
+        public Timer failed() {
+            failed = true;
+            return this;
+        }
+
+        public void stop() {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            long millis = System.currentTimeMillis() - start;
+            total.record(millis, files, bytesIn, bytesOut, retries, failed);
+            if (component != null) {
+                component.record(millis, files, bytesIn, bytesOut, retries, failed);
+            }
+        }
+    }
+}
@@ -26,6 +26,7 @@ package org.jenkinsci.plugins.periodicbackup;
 
 import com.google.common.base.Function;
 import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
@@ -34,53 +35,177 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 public class BackupObject implements Comparable {
 
-    private final FileManager fileManager;
-    private final Storage storage;
-    private final Location location;
+    private static final Logger LOGGER = Logger.getLogger(BackupObject.class.getName());
+
+    private FileManager fileManager;
+    private Storage storage;
+    private Location location;
     private final Date timestamp;
+    private String profile;     // Backup profile which created the backup, null for the default profile
+
+    // Set only when the BackupObject was created from its metadata sidecar, the full object is loaded on first use
+    private transient BackupMetadata metadata;
+    private transient Callable<BackupObject> loader;
+    private transient String listedLocation;    // Display name of the Location which listed the backup from its metadata
 
     public final static String EXTENSION = "pbobj";
     public final static String FILE_TIMESTAMP_PATTERN = "yyyy_MM_dd_HH_mm_ss_SSS";
 
     public BackupObject(FileManager fileManager, Storage storage, Location location, Date timestamp) {
+        this(fileManager, storage, location, timestamp, null);
+    }
+
+    public BackupObject(FileManager fileManager, Storage storage, Location location, Date timestamp, String profile) {
         this.fileManager = fileManager;
         this.storage = storage;
         this.location = location;
         this.timestamp = timestamp != null ? (Date)timestamp.clone() : null;
+        this.profile = profile;
+    }
+
+    private BackupObject(BackupMetadata metadata, Location location, Callable<BackupObject> loader) {
+        this.timestamp = metadata.getTimestamp();
+        this.metadata = metadata;
+        this.loader = loader;
+        this.profile = metadata.getProfile();
+        this.listedLocation = location != null ? location.getDisplayName() : null;
+    }
+
+    /**
+     *
+     * Creates a BackupObject from its metadata sidecar, the FileManager, Storage and Location
+     * will be deserialized by the given loader only when they are needed
+     *
+     * @param metadata metadata of the backup
+     * @param loader loads the full BackupObject
+     * @return BackupObject
+     */
+    public static BackupObject fromMetadata(BackupMetadata metadata, Callable<BackupObject> loader) {
+        return new BackupObject(metadata, null, loader);
+    }
+
+    /**
+     *
+     * Creates a BackupObject from its metadata sidecar listed in the given Location, the FileManager, Storage
+     * and Location will be deserialized by the given loader only when they are needed
+     *
+     * @param metadata metadata of the backup
+     * @param location Location which stores the sidecar
+     * @param loader loads the full BackupObject
+     * @return BackupObject
+     */
+    public static BackupObject fromMetadata(BackupMetadata metadata, Location location, Callable<BackupObject> loader) {
+        return new BackupObject(metadata, location, loader);
+    }
+
+    /**
+     *
+     * Deserializes the full BackupObject if it was created from its metadata
+     */
+    private synchronized void resolve() {
+        if (loader == null) {
+            return;
+        }
+        try {
+            BackupObject full = loader.call();
+            if (full != null) {
+                fileManager = full.fileManager;
+                storage = full.storage;
+                location = full.location;
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Could not load backup " + metadata.getId(), e);
+        } finally {
+            loader = null;
+        }
     }
 
     @SuppressWarnings("unused")
     public FileManager getFileManager() {
+        resolve();
         return fileManager;
     }
 
     @SuppressWarnings("unused")
     public Storage getStorage() {
+        resolve();
         return storage;
     }
 
     @SuppressWarnings("unused")
     public Location getLocation() {
+        resolve();
         return location;
     }
 
     /**
+     *
+     * @return name of the backup profile which created the backup, null for the default profile
+     */
+    @SuppressWarnings("unused")
+    public String getProfile() {
+        return profile;
+    }
+
+    /**
+     *
+     * @return metadata of the backup or null if the backup has no metadata sidecar
+     */
+    @SuppressWarnings("unused")
+    public BackupMetadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     *
+     * Transformation function to convert BackupObject file into BackupObject.
+     * If a metadata sidecar exists next to the file, only the sidecar is read
+     * and the BackupObject file is deserialized when it is needed.
      *
      * @return transformation function to convert BackupObject file into BackupObject
      */
     @SuppressFBWarnings(value = "EI_EXPOSE_REP2", justification = "As designed in API")
     public static Function<File, BackupObject> getFromFile() {
+        return getFromFile(null);
+    }
+
+    /**
+     *
+     * Transformation function to convert the BackupObject files of the given Location into BackupObject(s)
+     *
+     * @param location Location which stores the files, null if unknown
+     * @return transformation function to convert BackupObject file into BackupObject
+     */
+    @SuppressFBWarnings(value = "EI_EXPOSE_REP2", justification = "As designed in API")
+    public static Function<File, BackupObject> getFromFile(final Location location) {
         return new Function<File, BackupObject>() {
-            public BackupObject apply(File file) {
+            public BackupObject apply(final File file) {
                 if(file != null) {
+                    File metadataFile = Util.getMetadataFile(file);
+                    if (metadataFile.isFile()) {
+                        try {
+                            return fromMetadata(BackupMetadata.readSummary(metadataFile), location, new Callable<BackupObject>() {
+                                public BackupObject call() throws IOException {
+                                    return readFile(file);
+                                }
+                            });
+                        } catch (IOException e) {
+                            LOGGER.warning("Could not read " + metadataFile.getAbsolutePath() + ", reading " + file.getAbsolutePath() + " instead. " + e.getMessage());
+                        }
+                    }
                     try {
-                        return (BackupObject) Jenkins.XSTREAM.fromXML(Files.toString(file, Charset.defaultCharset()));
+                        return readFile(file);
                     } catch (IOException e) {
                         return null;
                     }
@@ -91,6 +216,10 @@ public class BackupObject implements Comparable {
         };
     }
 
+    private static BackupObject readFile(File file) throws IOException {
+        return (BackupObject) Jenkins.XSTREAM.fromXML(Files.toString(file, Charset.defaultCharset()));
+    }
+
     /**
      *
      * @return transformation function to convert String into BackupObject
@@ -126,30 +255,124 @@ public class BackupObject implements Comparable {
         return this.timestamp;
     }
 
+    /**
+     *
+     * @return class name of the Storage which created the archives, read from the metadata if there is one
+     */
+    public String getStorageClass() {
+        if (metadata != null && metadata.getStorageClass() != null) {
+            return metadata.getStorageClass();
+        }
+        Storage backupStorage = getStorage();
+        return backupStorage != null ? backupStorage.getClass().getName() : null;
+    }
+
+    /**
+     *
+     * Returns the identifier of this backup, it is unique within a location and does not change
+     * when the backup is listed again, unlike the hash code which depends on the deserialized plugins
+     *
+     * @return timestamp of the backup followed by the simple class name of its Storage
+     */
+    public String getId() {
+        String storageClass = getStorageClass();
+        return storageClass == null ? Util.generateFileNameBase(timestamp)
+                : Util.createFileName(Util.generateFileNameBase(timestamp), StringUtils.substringAfterLast("." + storageClass, "."));
+    }
+
     @SuppressWarnings("unused")
     public String getDisplayName() {
-        return fileManager.getDisplayName() + " created on " + timestamp.toString();
+        if (metadata != null && metadata.getFileManagerName() != null) {
+            return metadata.getFileManagerName() + " created on " + timestamp.toString();
+        }
+        return getFileManager().getDisplayName() + " created on " + timestamp.toString();
+    }
+
+    /**
+     *
+     * Checks if the given file is one of the archives of this backup. The backups created by the same run
+     * share the timestamp, so the archives are matched against the metadata or the extension of the Storage.
+     *
+     * @param fileName name of the file, a leading path (or S3 key prefix) is ignored
+     * @return true if the file is an archive of this backup
+     */
+    public boolean isArchive(String fileName) {
+        String name = StringUtils.substringAfterLast("/" + fileName, "/");
+        if (name.endsWith("." + EXTENSION) || name.endsWith("." + BackupMetadata.EXTENSION)) {
+            return false;
+        }
+        if (metadata != null) {
+            for (BackupMetadata.Archive archive : metadata.getArchives()) {
+                if (archive.getName().equals(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        Storage backupStorage = getStorage();
+        return name.contains(Util.getFormattedDate(FILE_TIMESTAMP_PATTERN, timestamp)) && (backupStorage == null
+                || name.endsWith("." + backupStorage.getDescriptor().getArchiveFileExtension()));
+    }
+
+    /**
+     *
+     * Checks if the given file belongs to this backup, which means it is either one of the archives,
+     * the BackupObject file or the metadata sidecar
+     *
+     * @param fileName name of the file, a leading path (or S3 key prefix) is ignored
+     * @return true if the file belongs to this backup
+     */
+    public boolean isBackupFile(String fileName) {
+        if (isArchive(fileName)) {
+            return true;
+        }
+        String name = StringUtils.substringAfterLast("/" + fileName, "/");
+        List<String> fileNameBases = Lists.newArrayList(Util.generateFileNameBase(timestamp));
+        Storage backupStorage = getStorage();
+        if (backupStorage != null) {
+            fileNameBases.add(Util.generateFileNameBase(timestamp, backupStorage));
+        }
+        for (String fileNameBase : fileNameBases) {
+            if (name.equals(Util.createFileName(fileNameBase, EXTENSION))
+                    || name.equals(Util.createFileName(fileNameBase, BackupMetadata.EXTENSION))) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public String getAsString() {
+        resolve();
         return Jenkins.XSTREAM.toXML(this);
     }
 
+    /**
+     *
+     * @return display name of the Location of this backup, a backup listed from its metadata is not deserialized
+     */
+    private String getLocationName() {
+        if (metadata != null) {
+            return listedLocation;
+        }
+        return location != null ? location.getDisplayName() : null;
+    }
+
+    // The identity only uses what the metadata holds, so comparing listed backups does not deserialize them
     @Override
     public boolean equals(Object o) {
         if (o instanceof BackupObject) {
             BackupObject that = (BackupObject) o;
-            return Objects.equal(this.fileManager, that.fileManager)
-                && Objects.equal(this.location,    that.location)
-                && Objects.equal(this.storage,     that.storage)
-                && Objects.equal(this.timestamp,   that.timestamp);
+            return Objects.equal(this.timestamp,            that.timestamp)
+                && Objects.equal(this.profile,              that.profile)
+                && Objects.equal(this.getStorageClass(),    that.getStorageClass())
+                && Objects.equal(this.getLocationName(),    that.getLocationName());
         }
         return false;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(fileManager, storage, location, timestamp);
+        return Objects.hashCode(timestamp, profile, getStorageClass(), getLocationName());
     }
 
     public int compareTo(Object o) {
@@ -0,0 +1,292 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import antlr.ANTLRException;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import hudson.Extension;
+import hudson.model.Describable;
+import hudson.model.Descriptor;
+import hudson.model.Failure;
+import hudson.scheduler.CronTab;
+import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
+import org.codehaus.plexus.archiver.ArchiverException;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ *
+ * BackupProfile is a named combination of FileManager, Storages and Locations with its own schedule and retention,
+ * for example a ConfigOnly backup every 15 minutes next to a nightly FullBackup. The temporary directory, encryption,
+ * load pacing and the other settings of the PeriodicBackupLink are shared by all the profiles.
+ */
+public class BackupProfile implements Describable<BackupProfile> {
+
+    private static final Logger LOGGER = Logger.getLogger(BackupProfile.class.getName());
+
+    private final String name;              // Unique name of the profile, null for the default profile
+    private final FileManager fileManagerPlugin;
+    private final List<Location> locations;
+    private final List<Storage> storages;
+    private final String cron;              // Backup schedule (cron like)
+    private final int cycleQuantity;        // Maximum amount of backups of this profile allowed in a location
+    private final int cycleDays;            // Maximum number of days to keep the backups of this profile for
+
+    @DataBoundConstructor
+    public BackupProfile(String name, FileManager fileManagerPlugin, List<Location> locations, List<Storage> storages,
+                         String cron, int cycleQuantity, int cycleDays) {
+        this.name = hudson.Util.fixEmptyAndTrim(name);
+        this.fileManagerPlugin = fileManagerPlugin;
+        this.locations = locations != null ? Lists.newArrayList(locations) : Lists.<Location>newArrayList();
+        this.storages = storages != null ? Lists.newArrayList(storages) : Lists.<Storage>newArrayList();
+        this.cron = cron;
+        this.cycleQuantity = cycleQuantity;
+        this.cycleDays = cycleDays;
+    }
+
+    /**
+     *
+     * @return name of the profile, null for the default profile configured on the main configuration page
+     */
+    @SuppressWarnings("unused")
+    public String getName() {
+        return name;
+    }
+
+    public String getDisplayName() {
+        return name != null ? name : "Default";
+    }
+
+    @SuppressWarnings("unused")
+    public FileManager getFileManagerPlugin() {
+        return fileManagerPlugin;
+    }
+
+    @SuppressWarnings("unused")
+    public List<Location> getLocations() {
+        return Collections.unmodifiableList(locations);
+    }
+
+    @SuppressWarnings("unused")
+    public List<Storage> getStorages() {
+        return Collections.unmodifiableList(storages);
+    }
+
+    @SuppressWarnings("unused")
+    public String getCron() {
+        return cron;
+    }
+
+    @SuppressWarnings("unused")
+    public int getCycleQuantity() {
+        return cycleQuantity;
+    }
+
+    @SuppressWarnings("unused")
+    public int getCycleDays() {
+        return cycleDays;
+    }
+
+    /**
+     *
+     * The backups of profiles writing to the same Location must not overlap, they would race on the retention
+     * of the Location and compete for its bandwidth
+     *
+     * @return names of the enabled Locations the profile stores its backups in
+     */
+    public Set<String> getResources() {
+        Set<String> resources = Sets.newHashSet();
+        for (Location location : locations) {
+            if (location.enabled) {
+                resources.add(location.getDisplayName());
+            }
+        }
+        return resources;
+    }
+
+    /**
+     *
+     * Every profile keeps its archives and checkpoint in its own temporary directory,
+     * the default profile uses the configured one
+     *
+     * @param tempDirectory the configured temporary directory
+     * @return temporary directory of this profile
+     */
+    public String getTempDirectory(String tempDirectory) {
+        if (name == null) {
+            return tempDirectory;
+        }
+        return new File(tempDirectory, "profile_" + hudson.Util.rawEncode(name)).getPath();
+    }
+
+    /**
+     *
+     * @return time of the next scheduled backup of this profile or null if the cron is not valid
+     */
+    @SuppressWarnings("unused")
+    public Date getNextBackup() {
+        if (hudson.Util.fixEmptyAndTrim(cron) == null) {
+            return null;
+        }
+        try {
+            return BackupSchedule.get(name).getNextRun(cron);
+        } catch (ANTLRException e) {
+            return null;
+        } catch (RuntimeException e) {
+            // The cron never matches
+            return null;
+        }
+    }
+
+    /**
+     *
+     * Checks if the scheduled time of the next backup of this profile has come
+     *
+     * @param now current time in milliseconds
+     * @param policy what to do with a missed backup
+     * @return true if a backup has to be started now
+     */
+    public boolean isDue(long now, BackupSchedule.MissedBackupPolicy policy) {
+        if (cron == null || cron.trim().isEmpty()) {
+            LOGGER.warning(name == null ? "Cron is not defined." : "Cron is not defined for the profile " + name + ".");
+            return false;
+        }
+        try {
+            return BackupSchedule.get(name).isDue(cron, now, policy);
+        } catch (ANTLRException e) {
+            LOGGER.warning("Could not parse given cron tab of the profile " + getDisplayName() + "! " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     *
+     * Moves the schedule of this profile to the next backup once the due backup was started
+     *
+     * @param now time the backup was started in milliseconds
+     */
+    public void started(long now) {
+        try {
+            BackupSchedule.get(name).started(cron, now);
+        } catch (ANTLRException e) {
+            LOGGER.warning("Could not parse given cron tab of the profile " + getDisplayName() + "! " + e.getMessage());
+        }
+    }
+
+    /**
+     *
+     * Creates a backup of this profile with the global settings of the given PeriodicBackupLink
+     *
+     * @param link PeriodicBackupLink with the global settings
+     */
+    public void backup(PeriodicBackupLink link) {
+        if (fileManagerPlugin == null) {
+            LOGGER.warning("The profile " + getDisplayName() + " has no file management strategy, the backup is skipped.");
+            return;
+        }
+        BackupExecutor executor = new BackupExecutor(name, BackupExecutor.Settings.forLink(link));
+        try {
+            executor.backup(fileManagerPlugin, storages, locations, getTempDirectory(link.getTempDirectory()), cycleQuantity,
+                    cycleDays);
+        } catch (PeriodicBackupException e) {
+            LOGGER.warning("Backup failure of the profile " + getDisplayName() + " " + e.getMessage());
+        } catch (IOException e) {
+            LOGGER.warning("Backup failure of the profile " + getDisplayName() + " " + e.getMessage());
+        } catch (ArchiverException e) {
+            LOGGER.warning("Backup failure of the profile " + getDisplayName() + " " + e.getMessage());
+        }
+    }
+
+    public DescriptorImpl getDescriptor() {
+        return Jenkins.get().getDescriptorByType(DescriptorImpl.class);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<BackupProfile> {
+
+        public String getDisplayName() {
+            return "Backup profile";
+        }
+
+        @SuppressWarnings("unused")
+        @RequirePOST
+        @Restricted(NoExternalUse.class)
+        public FormValidation doCheckName(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            if (hudson.Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.error("The name of the profile is required");
+            }
+            try {
+                Jenkins.checkGoodName(value.trim());
+            } catch (Failure e) {
+                return FormValidation.error(e.getMessage());
+            }
+            return FormValidation.ok();
+        }
+
+        @SuppressWarnings("unused")
+        @RequirePOST
+        @Restricted(NoExternalUse.class)
+        public FormValidation doCheckCron(@QueryParameter String value) {
+            Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            try {
+                new CronTab(value);
+            } catch (ANTLRException e) {
+                return FormValidation.error(value + " is not a valid cron syntax! " + e.getMessage());
+            }
+            return FormValidation.ok();
+        }
+
+        @SuppressWarnings("unused")
+        public Collection<FileManagerDescriptor> getFileManagerDescriptors() {
+            return FileManager.all();
+        }
+
+        @SuppressWarnings("unused")
+        public Collection<StorageDescriptor> getStorageDescriptors() {
+            return Storage.all();
+        }
+
+        @SuppressWarnings("unused")
+        public Collection<LocationDescriptor> getLocationDescriptors() {
+            return Location.all();
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * BackupProgress describes the backup or restore currently running. The stages update it through
+ * atomic counters and the web page polls it as JSON.
+ */
+public final class BackupProgress {
+
+    private static final BackupProgress INSTANCE = new BackupProgress();
+
+    // Minimal interval between two throughput samples
+    private static final long SAMPLE_INTERVAL = 1000;
+
+    public enum Operation {
+        IDLE, BACKUP, RESTORE, VERIFY
+    }
+
+    private volatile Operation operation = Operation.IDLE;
+    private volatile BackupMetrics.Phase phase;
+    private volatile long startedAt;
+    private volatile Map<BackupMetrics.Phase, PhaseProgress> phases = newPhases();
+    private int backups;    // Number of backups sharing the progress, guarded by this
+
+    BackupProgress() {
+    }
+
+    public static BackupProgress get() {
+        return INSTANCE;
+    }
+
+    /**
+     *
+     * Resets the progress at the beginning of a backup or restore
+     *
+     * @param operation the started operation
+     */
+    public void start(Operation operation) {
+        this.phases = newPhases();
+        this.phase = null;
+        this.startedAt = System.currentTimeMillis();
+        this.operation = operation;
+    }
+
+    /**
+     *
+     * Starts the given operation unless another backup, restore or verification is running,
+     * the operations change the same files and must not overlap
+     *
+     * @param operation the operation to start
+     * @throws PeriodicBackupException if another operation is running
+     */
+    public synchronized void startExclusive(Operation operation) throws PeriodicBackupException {
+        Operation current = this.operation;
+        if (current != Operation.IDLE) {
+            throw new PeriodicBackupException("Cannot start the " + operation.name().toLowerCase(Locale.ENGLISH) + ", a "
+                    + current.name().toLowerCase(Locale.ENGLISH) + " is already running");
+        }
+        start(operation);
+        backups = operation == Operation.BACKUP ? 1 : 0;
+    }
+
+    /**
+     *
+     * Starts a backup unless a restore or verification is running. The backups of independent profiles
+     * may run at the same time, they share the progress and the first one resets it.
+     *
+     * @throws PeriodicBackupException if a restore or verification is running
+     */
+    public synchronized void startBackup() throws PeriodicBackupException {
+        Operation current = this.operation;
+        if (current != Operation.IDLE && current != Operation.BACKUP) {
+            throw new PeriodicBackupException("Cannot start the backup, a "
+                    + current.name().toLowerCase(Locale.ENGLISH) + " is already running");
+        }
+        if (current == Operation.IDLE) {
+            start(Operation.BACKUP);
+        }
+        backups++;
+    }
+
+    /**
+     *
+     * Marks the current operation as finished, a backup is finished when all the backups sharing it are
+     */
+    public synchronized void finish() {
+        if (backups > 1) {
+            backups--;
+            return;
+        }
+        backups = 0;
+        this.operation = Operation.IDLE;
+        this.phase = null;
+    }
+
+    /**
+     *
+     * Enters the given phase, the phases may overlap when the storages and locations work in parallel
+     *
+     * @param phase the phase which is starting
+     * @return progress of the phase
+     */
+    public PhaseProgress enter(BackupMetrics.Phase phase) {
+        this.phase = phase;
+        return phases.get(phase);
+    }
+
+    /**
+     *
+     * @param phase phase of the operation
+     * @return progress of the given phase in the current operation
+     */
+    public PhaseProgress get(BackupMetrics.Phase phase) {
+        return phases.get(phase);
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public boolean isRunning() {
+        return operation != Operation.IDLE;
+    }
+
+    /**
+     *
+     * @return short human readable description of the progress, empty if nothing is running
+     */
+    public String getMessage() {
+        Operation currentOperation = operation;
+        if (currentOperation == Operation.IDLE) {
+            return "";
+        }
+        StringBuilder message = new StringBuilder(currentOperation == Operation.BACKUP ? "Creating backup..."
+                : currentOperation == Operation.VERIFY ? "Verifying backup..." : "Restoring backup...");
+        BackupMetrics.Phase currentPhase = phase;
+        if (currentPhase != null) {
+            PhaseProgress progress = phases.get(currentPhase);
+            message.append(' ').append(currentPhase.name().toLowerCase(Locale.ENGLISH).replace('_', ' '))
+                    .append(": ").append(progress.getFilesDone());
+            if (progress.getFilesTotal() > 0) {
+                message.append('/').append(progress.getFilesTotal());
+            }
+            message.append(" files");
+            int percent = progress.getPercent();
+            if (percent >= 0) {
+                message.append(" (").append(percent).append("%)");
+            }
+            long eta = progress.getEta();
+            if (eta >= 0) {
+                message.append(", ").append(formatDuration(eta)).append(" left");
+            }
+        }
+        return message.toString();
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("operation", operation.name().toLowerCase(Locale.ENGLISH));
+        json.put("running", isRunning());
+        json.put("message", getMessage());
+        BackupMetrics.Phase currentPhase = phase;
+        json.put("phase", currentPhase != null ? currentPhase.name().toLowerCase(Locale.ENGLISH) : null);
+        json.put("elapsed", isRunning() ? System.currentTimeMillis() - startedAt : 0);
+        JSONArray phaseList = new JSONArray();
+        for (PhaseProgress progress : phases.values()) {
+            if (progress.isStarted()) {
+                phaseList.add(progress.toJSON());
+            }
+        }
+        json.put("phases", phaseList);
+        return json;
+    }
+
+    static String formatDuration(long millis) {
+        long seconds = millis / 1000;
+        if (seconds < 60) {
+            return seconds + " s";
+        }
+        if (seconds < 3600) {
+            return (seconds / 60) + " min";
+        }
+        return (seconds / 3600) + " h " + (seconds % 3600) / 60 + " min";
+    }
+
+    private static Map<BackupMetrics.Phase, PhaseProgress> newPhases() {
+        Map<BackupMetrics.Phase, PhaseProgress> phases = new EnumMap<BackupMetrics.Phase, PhaseProgress>(BackupMetrics.Phase.class);
+        for (BackupMetrics.Phase phase : BackupMetrics.Phase.values()) {
+            phases.put(phase, new PhaseProgress(phase));
+        }
+        return phases;
+    }
+
+    /**
+     *
+     * Counters of a single phase, the totals grow as the work is discovered
+     */
+    public static final class PhaseProgress {
+
+        private final BackupMetrics.Phase phase;
+        private final AtomicLong filesDone = new AtomicLong();
+        private final AtomicLong filesTotal = new AtomicLong();
+        private final AtomicLong bytesDone = new AtomicLong();
+        private final AtomicLong bytesTotal = new AtomicLong();
+        private volatile long startedAt;
+        // Throughput sampling, guarded by this
+        private long sampleTime;
+        private long sampleBytes;
+        private long throughput;
+
+        PhaseProgress(BackupMetrics.Phase phase) {
+            this.phase = phase;
+        }
+
+        public PhaseProgress addTotal(long files, long bytes) {
+            start();
+            filesTotal.addAndGet(files);
+            bytesTotal.addAndGet(bytes);
+            return this;
+        }
+
+        public PhaseProgress addDone(long files, long bytes) {
+            start();
+            filesDone.addAndGet(files);
+            bytesDone.addAndGet(bytes);
+            return this;
+        }
+
+        private void start() {
+            if (startedAt == 0) {
+                startedAt = System.currentTimeMillis();
+            }
+        }
+
+        public boolean isStarted() {
+            return startedAt != 0;
+        }
+
+        public long getFilesDone() {
+            return filesDone.get();
+        }
+
+        public long getFilesTotal() {
+            return filesTotal.get();
+        }
+
+        public long getBytesDone() {
+            return bytesDone.get();
+        }
+
+        public long getBytesTotal() {
+            return bytesTotal.get();
+        }
+
+        /**
+         * @return percentage done according to the bytes, or the files if the size is not known, -1 if the total is not known
+         */
+        public int getPercent() {
+            long total = bytesTotal.get();
+            long done = bytesDone.get();
+            if (total <= 0) {
+                total = filesTotal.get();
+                done = filesDone.get();
+            }
+            return total > 0 ? (int) Math.min(100, done * 100 / total) : -1;
+        }
+
+        /**
+         * @return bytes per second processed since the previous sample
+         */
+        public synchronized long getThroughput() {
+            long now = System.currentTimeMillis();
+            if (sampleTime == 0) {
+                sampleTime = startedAt != 0 ? startedAt : now;
+            }
+            if (now - sampleTime >= SAMPLE_INTERVAL) {
+                long bytes = bytesDone.get();
+                throughput = (bytes - sampleBytes) * 1000 / (now - sampleTime);
+                sampleTime = now;
+                sampleBytes = bytes;
+            }
+            return throughput;
+        }
+
+        /**
+         * @return estimated milliseconds until the phase is done, -1 if unknown
+         */
+        public long getEta() {
+            long remaining = bytesTotal.get() - bytesDone.get();
+            long rate = getThroughput();
+            if (bytesTotal.get() > 0 && rate > 0) {
+                return Math.max(0, remaining) * 1000 / rate;
+            }
+            // Fall back to the average file rate of the phase
+            long elapsed = System.currentTimeMillis() - startedAt;
+            long files = filesDone.get();
+            if (filesTotal.get() > 0 && files > 0 && startedAt != 0) {
+                return Math.max(0, filesTotal.get() - files) * elapsed / files;
+            }
+            return -1;
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("phase", phase.name().toLowerCase(Locale.ENGLISH));
+            json.put("filesDone", getFilesDone());
+            json.put("filesTotal", getFilesTotal());
+            json.put("bytesDone", getBytesDone());
+            json.put("bytesTotal", getBytesTotal());
+            json.put("percent", getPercent());
+            json.put("throughput", getThroughput());
+            json.put("eta", getEta());
+            return json;
+        }
+    }
+}
@@ -0,0 +1,613 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * BackupReplicator copies the backups of the tiered mode from their primary location to the other locations
+ * of their profile in the background, so a backup finishes as soon as it is stored in the fast primary location.
+ * The pending copies are kept in a queue persisted in the Jenkins root directory and survive a restart,
+ * a failed copy is retried with a growing delay.
+ *
+ * The copies to different targets run in parallel, up to a configured number at a time, while the copies to the
+ * same target run one after the other. A copy which does not finish in time is interrupted and retried later,
+ * the copies to its target wait for the next run, so a hanging location does not hold up the other ones.
+ */
+@Extension
+public class BackupReplicator extends AsyncPeriodicWork {
+
+    static final String FILE_NAME = "periodicBackup-replication.xml";
+    private static final Logger LOGGER = Logger.getLogger(BackupReplicator.class.getName());
+
+    /**
+     * Delay before the first retry of a failed copy, it doubles with every further attempt
+     */
+    private static final long RETRY_DELAY_SECONDS = Math.max(1,
+            SystemProperties.getInteger(BackupReplicator.class.getName() + ".retryDelaySeconds", 60));
+
+    /**
+     * Longest delay between two attempts of a copy
+     */
+    private static final long MAX_RETRY_DELAY_SECONDS = Math.max(RETRY_DELAY_SECONDS,
+            SystemProperties.getInteger(BackupReplicator.class.getName() + ".maxRetryDelaySeconds", 3600));
+
+    /**
+     * Number of attempts after which a copy is given up, 0 retries forever
+     */
+    private static final int MAX_ATTEMPTS = Math.max(0,
+            SystemProperties.getInteger(BackupReplicator.class.getName() + ".maxAttempts", 48));
+
+    /**
+     * Maximum number of targets copied to at the same time
+     */
+    private static final int MAX_PARALLEL_TARGETS = Math.max(1,
+            SystemProperties.getInteger(BackupReplicator.class.getName() + ".maxParallelTargets", 4));
+
+    /**
+     * Time a single copy may take before it is interrupted
+     */
+    private static final int TIMEOUT_MINUTES = Math.max(1,
+            SystemProperties.getInteger(BackupReplicator.class.getName() + ".timeoutMinutes", 360));
+
+    private final Object replicationLock = new Object();
+    private final AtomicLong lastLag = new AtomicLong();
+    private final ExecutorService copyExecutor = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "PeriodicBackup replication copy"));
+    // Copies whose thread did not return yet, a copy which timed out stays here until its thread returns
+    private final Set<Replication> copying = Collections.newSetFromMap(new ConcurrentHashMap<Replication, Boolean>());
+    private final Set<Replication> timedOut = Collections.newSetFromMap(new ConcurrentHashMap<Replication, Boolean>());
+    private long timeoutMillis = TimeUnit.MINUTES.toMillis(TIMEOUT_MINUTES);
+    private List<Replication> queue;    // Loaded on first access, guarded by this
+
+    public BackupReplicator() {
+        super("PeriodicBackup replication");
+        BackupMetrics.publish(this);
+    }
+
+    /**
+     *
+     * Returns the primary location of the tiered mode, the first enabled LocalDirectory
+     *
+     * @param locations enabled locations of the backup
+     * @return primary location or null if there is no LocalDirectory
+     */
+    public static Location getPrimary(List<Location> locations) {
+        for (Location location : locations) {
+            if (location instanceof LocalDirectory && location.enabled) {
+                return location;
+            }
+        }
+        return null;
+    }
+
+    /**
+     *
+     * Adds the copies of a backup stored in the primary location to the queue,
+     * copies which are queued already are not added again
+     *
+     * @param profile name of the backup profile, null for the default profile
+     * @param timestamp timestamp of the backup
+     * @param storage Storage which created the archives
+     * @param primary Location storing the backup
+     * @param targets Locations the backup is copied to
+     * @param cycleQuantity maximum amount of backups allowed in a target location
+     * @param cycleDays maximum number of days to keep the backups for in a target location
+     */
+    public synchronized void enqueue(String profile, Date timestamp, Storage storage, Location primary,
+                                     List<Location> targets, int cycleQuantity, int cycleDays) {
+        String extension = storage.getDescriptor().getArchiveFileExtension();
+        for (Location target : targets) {
+            boolean queued = false;
+            for (Replication replication : getQueue()) {
+                queued |= replication.matches(profile, timestamp, extension)
+                        && replication.getTarget().equals(target.getDisplayName());
+            }
+            if (!queued) {
+                getQueue().add(new Replication(profile, timestamp, extension, primary.getDisplayName(),
+                        target.getDisplayName(), cycleQuantity, cycleDays));
+                LOGGER.info("Queued the replication of the backup " + Util.generateFileNameBase(timestamp, storage)
+                        + " to " + target.getDisplayName());
+            }
+        }
+        save();
+    }
+
+    /**
+     *
+     * Starts copying the queued backups now instead of waiting for the next period
+     */
+    public void schedule() {
+        doRun();
+    }
+
+    /**
+     *
+     * @return the copies which are not done yet
+     */
+    public synchronized List<Replication> getPending() {
+        return ImmutableList.copyOf(getQueue());
+    }
+
+    /**
+     *
+     * @param location Location a backup is stored in
+     * @param backup backup stored in the location
+     * @return true if the backup still has to be copied from the location to another one
+     */
+    public synchronized boolean isPending(Location location, BackupObject backup) {
+        Storage storage = backup.getStorage();
+        if (storage == null) {
+            return false;
+        }
+        String extension = storage.getDescriptor().getArchiveFileExtension();
+        for (Replication replication : getQueue()) {
+            if (replication.getSource().equals(location.getDisplayName())
+                    && replication.matches(backup.getProfile(), backup.getTimestamp(), extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *
+     * @return milliseconds since the oldest pending copy was queued, 0 if the queue is empty
+     */
+    public synchronized long getLag() {
+        long oldest = System.currentTimeMillis();
+        for (Replication replication : getQueue()) {
+            oldest = Math.min(oldest, replication.getEnqueued().getTime());
+        }
+        return System.currentTimeMillis() - oldest;
+    }
+
+    /**
+     *
+     * @return milliseconds between queueing and finishing the last successful copy
+     */
+    public long getLastLag() {
+        return lastLag.get();
+    }
+
+    /**
+     *
+     * @return the queue and the replication lag as JSON
+     */
+    public JSONObject toJSON() {
+        JSONArray pending = new JSONArray();
+        for (Replication replication : getPending()) {
+            JSONObject json = new JSONObject();
+            json.put("profile", replication.getProfile());
+            json.put("timestamp", replication.getTimestamp().getTime());
+            json.put("storage", replication.getExtension());
+            json.put("target", replication.getTarget());
+            json.put("attempts", replication.getAttempts());
+            json.put("lastError", replication.getLastError());
+            pending.add(json);
+        }
+        JSONObject result = new JSONObject();
+        result.put("queued", pending.size());
+        result.put("lagMillis", getLag());
+        result.put("lastLagMillis", getLastLag());
+        result.put("pending", pending);
+        return result;
+    }
+
+    @Override
+    protected void execute(TaskListener taskListener) {
+        replicate();
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    /**
+     *
+     * @param timeoutMillis time a single copy may take before it is interrupted
+     */
+    void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     *
+     * Copies the queued backups which are due, one copy per target and at most
+     * {@link #MAX_PARALLEL_TARGETS} copies at a time. A single run copies at a time.
+     */
+    void replicate() {
+        synchronized (replicationLock) {
+            long now = System.currentTimeMillis();
+            // A target whose copy timed out and was not interrupted yet gets no further copy
+            Set<String> busyTargets = Sets.newHashSet();
+            for (Replication replication : copying) {
+                busyTargets.add(replication.getTarget());
+            }
+            Map<String, Deque<Replication>> byTarget = Maps.newLinkedHashMap();
+            for (Replication replication : getPending()) {
+                if (replication.getNextAttempt() <= now && !busyTargets.contains(replication.getTarget())) {
+                    Deque<Replication> copies = byTarget.get(replication.getTarget());
+                    if (copies == null) {
+                        copies = Lists.newLinkedList();
+                        byTarget.put(replication.getTarget(), copies);
+                    }
+                    copies.add(replication);
+                }
+            }
+            Deque<Deque<Replication>> waiting = Lists.newLinkedList(byTarget.values());
+            Map<Future<?>, Deque<Replication>> running = Maps.newLinkedHashMap();
+            Map<Future<?>, Replication> copies = Maps.newHashMap();
+            Map<Future<?>, Long> deadlines = Maps.newHashMap();
+            CompletionService<Void> completion = new ExecutorCompletionService<Void>(copyExecutor);
+            try {
+                while (!waiting.isEmpty() || !running.isEmpty()) {
+                    while (running.size() < MAX_PARALLEL_TARGETS && !waiting.isEmpty()) {
+                        Deque<Replication> targetCopies = waiting.poll();
+                        final Replication replication = targetCopies.poll();
+                        copying.add(replication);
+                        Future<Void> future = completion.submit(new Callable<Void>() {
+                            public Void call() {
+                                replicate(replication);
+                                return null;
+                            }
+                        });
+                        running.put(future, targetCopies);
+                        copies.put(future, replication);
+                        deadlines.put(future, System.currentTimeMillis() + timeoutMillis);
+                    }
+                    long wait = Long.MAX_VALUE;
+                    for (long deadline : deadlines.values()) {
+                        wait = Math.min(wait, deadline - System.currentTimeMillis());
+                    }
+                    Future<Void> done = completion.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+                    if (done != null) {
+                        Deque<Replication> targetCopies = running.remove(done);
+                        copies.remove(done);
+                        deadlines.remove(done);
+                        // Null for a copy which timed out and was cancelled
+                        if (targetCopies != null && !targetCopies.isEmpty()) {
+                            waiting.add(targetCopies);
+                        }
+                        continue;
+                    }
+                    for (Iterator<Map.Entry<Future<?>, Long>> it = deadlines.entrySet().iterator(); it.hasNext(); ) {
+                        Map.Entry<Future<?>, Long> deadline = it.next();
+                        if (deadline.getValue() <= System.currentTimeMillis()) {
+                            // The other copies to the target wait for the next run
+                            it.remove();
+                            running.remove(deadline.getKey());
+                            timedOut(copies.remove(deadline.getKey()), deadline.getKey());
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                LOGGER.warning("Interrupted while waiting for the replication copies");
+                for (Future<?> future : running.keySet()) {
+                    future.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void timedOut(Replication replication, Future<?> future) {
+        timedOut.add(replication);
+        future.cancel(true);
+        failed(replication, new IOException("The copy to " + replication.getTarget() + " did not finish within "
+                + TimeUnit.MILLISECONDS.toMinutes(timeoutMillis) + " minutes and was interrupted"));
+    }
+
+    private void replicate(Replication replication) {
+        BackupMetrics.Timer timer = BackupMetrics.get().start(BackupMetrics.Phase.REPLICATE, replication.getTarget());
+        if (replication.getAttempts() > 0) {
+            timer.retry();
+        }
+        try {
+            if (copy(replication, timer)) {
+                lastLag.set(System.currentTimeMillis() - replication.getEnqueued().getTime());
+            }
+            synchronized (this) {
+                getQueue().remove(replication);
+                save();
+            }
+        } catch (Exception e) {
+            timer.failed();
+            // The failure of a copy which timed out was recorded already
+            if (!timedOut.contains(replication)) {
+                failed(replication, e);
+            }
+        } finally {
+            timer.stop();
+            timedOut.remove(replication);
+            copying.remove(replication);
+        }
+    }
+
+    /**
+     *
+     * Copies the backup of the given replication from the primary location to the target location
+     * and removes the old backups of the profile from the target location
+     *
+     * @return false if the replication is not possible anymore and is dropped
+     */
+    private boolean copy(Replication replication, BackupMetrics.Timer timer) throws IOException, PeriodicBackupException {
+        PeriodicBackupLink link = PeriodicBackupLink.get();
+        BackupProfile profile = null;
+        for (BackupProfile candidate : link.getAllProfiles()) {
+            if (Objects.equal(candidate.getName(), replication.getProfile())) {
+                profile = candidate;
+            }
+        }
+        Location primary = profile != null ? findLocation(profile, replication.getSource()) : null;
+        Location target = profile != null ? findLocation(profile, replication.getTarget()) : null;
+        if (primary == null || target == null || !target.enabled) {
+            LOGGER.warning("The locations of the replication to " + replication.getTarget()
+                    + " are not configured anymore, the replication is dropped.");
+            return false;
+        }
+        BackupCatalog catalog = BackupCatalog.get();
+        BackupObject backup = find(catalog.refresh(primary), replication);
+        if (backup == null) {
+            LOGGER.warning("The backup of " + replication.getTimestamp() + " is not stored in " + primary.getDisplayName()
+                    + " anymore, the replication to " + target.getDisplayName() + " is dropped.");
+            return false;
+        }
+        if (find(catalog.refresh(target), replication) != null) {
+            LOGGER.info(backup.getDisplayName() + " is already stored in " + target.getDisplayName());
+            return true;
+        }
+
+        Storage storage = backup.getStorage();
+        String fileNameBase = Util.generateFileNameBase(backup.getTimestamp(), storage);
+        File parentDirectory = new File(profile.getTempDirectory(link.getTempDirectory()));
+        if (!parentDirectory.isDirectory() && !parentDirectory.mkdirs()) {
+            throw new IOException("Could not create the directory " + parentDirectory.getAbsolutePath());
+        }
+        // The same backup may be copied to several targets at the same time
+        File tempDirectory = Files.createTempDirectory(parentDirectory.toPath(), "replication_" + fileNameBase).toFile();
+        try {
+            Iterable<File> archives = primary.retrieveBackupFromLocation(backup, tempDirectory);
+            File metadataFile = Util.createBackupMetadataFile(BackupMetadata.read(primary, backup),
+                    tempDirectory.getAbsolutePath(), fileNameBase);
+            BackupObject copy = new BackupObject(backup.getFileManager(), storage, target, backup.getTimestamp(),
+                    backup.getProfile());
+            File backupObjectFile = Util.createBackupObjectFile(copy, tempDirectory.getAbsolutePath(), fileNameBase);
+            target.storeBackupInLocation(archives, backupObjectFile, metadataFile);
+            long size = metadataFile.length() + backupObjectFile.length();
+            int count = 2;
+            for (File archive : archives) {
+                size += archive.isDirectory() ? FileUtils.sizeOfDirectory(archive) : archive.length();
+                count++;
+            }
+            timer.files(count).bytesOut(size);
+            LOGGER.info(backup.getDisplayName() + " replicated to " + target.getDisplayName());
+        } finally {
+            FileUtils.deleteQuietly(tempDirectory);
+            catalog.invalidate(target);
+        }
+
+        Calendar timeThreshold = Calendar.getInstance();
+        timeThreshold.add(Calendar.DAY_OF_MONTH, (-1 * replication.getCycleDays()));
+        try {
+            BackupExecutor.removeOldBackups(target, catalog, replication.getProfile(), replication.getCycleQuantity(),
+                    timeThreshold.getTime());
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not remove old backups from " + target.getDisplayName(), e);
+        }
+        return true;
+    }
+
+    private synchronized void failed(Replication replication, Exception e) {
+        replication.attempts++;
+        replication.lastError = e.getMessage();
+        if (MAX_ATTEMPTS > 0 && replication.attempts >= MAX_ATTEMPTS) {
+            LOGGER.log(Level.SEVERE, "Giving up the replication of the backup of " + replication.getTimestamp() + " to "
+                    + replication.getTarget() + " after " + replication.attempts + " attempts", e);
+            getQueue().remove(replication);
+        }
+        else {
+            long delay = Math.min(RETRY_DELAY_SECONDS << Math.min(replication.attempts - 1, 20), MAX_RETRY_DELAY_SECONDS);
+            replication.nextAttempt = System.currentTimeMillis() + delay * 1000;
+            LOGGER.log(Level.WARNING, "Could not replicate the backup of " + replication.getTimestamp() + " to "
+                    + replication.getTarget() + ", retrying in " + delay + " seconds", e);
+        }
+        save();
+    }
+
+    private static Location findLocation(BackupProfile profile, String displayName) {
+        for (Location location : profile.getLocations()) {
+            if (location.getDisplayName().equals(displayName)) {
+                return location;
+            }
+        }
+        return null;
+    }
+
+    private static BackupObject find(List<BackupObject> backups, Replication replication) {
+        for (BackupObject backup : backups) {
+            Storage storage = backup.getStorage();
+            if (storage != null && replication.matches(backup.getProfile(), backup.getTimestamp(),
+                    storage.getDescriptor().getArchiveFileExtension())) {
+                return backup;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Replication> getQueue() {
+        if (queue == null) {
+            queue = Lists.newArrayList();
+            XmlFile file = getFile();
+            if (file.exists()) {
+                try {
+                    queue.addAll((List<Replication>) file.read());
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not read the replication queue " + file.getFile().getAbsolutePath(), e);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Could not read the replication queue " + file.getFile().getAbsolutePath(), e);
+                }
+            }
+        }
+        return queue;
+    }
+
+    private void save() {
+        try {
+            getFile().write(Lists.newArrayList(getQueue()));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not save the replication queue", e);
+        }
+    }
+
+    private static XmlFile getFile() {
+        return new XmlFile(Jenkins.XSTREAM, new File(Jenkins.get().getRootDir(), FILE_NAME));
+    }
+
+    public static BackupReplicator get() {
+        return AsyncPeriodicWork.all().get(BackupReplicator.class);
+    }
+
+    /**
+     *
+     * A backup waiting to be copied from the primary location to one other location
+     */
+    public static final class Replication {
+
+        private final String profile;       // Name of the backup profile, null for the default profile
+        private final Date timestamp;
+        private final String extension;     // Archive file extension of the Storage
+        private final String source;        // Display name of the primary Location
+        private final String target;        // Display name of the Location the backup is copied to
+        private final int cycleQuantity;
+        private final int cycleDays;
+        private final Date enqueued;
+        private int attempts;
+        private long nextAttempt;
+        private String lastError;
+
+        Replication(String profile, Date timestamp, String extension, String source, String target,
+                    int cycleQuantity, int cycleDays) {
+            this.profile = profile;
+            this.timestamp = timestamp;
+            this.extension = extension;
+            this.source = source;
+            this.target = target;
+            this.cycleQuantity = cycleQuantity;
+            this.cycleDays = cycleDays;
+            this.enqueued = new Date();
+        }
+
+        boolean matches(String profile, Date timestamp, String extension) {
+            return Objects.equal(this.profile, profile) && this.timestamp.equals(timestamp)
+                    && this.extension.equals(extension);
+        }
+
+        public String getProfile() {
+            return profile;
+        }
+
+        public Date getTimestamp() {
+            return timestamp;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public int getCycleQuantity() {
+            return cycleQuantity;
+        }
+
+        public int getCycleDays() {
+            return cycleDays;
+        }
+
+        public Date getEnqueued() {
+            return enqueued;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public long getNextAttempt() {
+            return nextAttempt;
+        }
+
+        public String getLastError() {
+            return lastError;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import antlr.ANTLRException;
+import com.google.common.collect.Maps;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.scheduler.CronTab;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * BackupSchedule keeps the time of the next scheduled backup. It is computed once from the cron and persisted,
+ * so a backup whose time passed while Jenkins was down or busy is recognized as missed and handled
+ * according to the {@link MissedBackupPolicy} instead of being skipped silently. Every backup profile
+ * has its own schedule.
+ */
+public class BackupSchedule implements Saveable {
+
+    private static final Logger LOGGER = Logger.getLogger(BackupSchedule.class.getName());
+
+    /**
+     * Delay after the scheduled time within which a backup is considered on time, the schedule is checked every minute
+     */
+    private static final long TOLERANCE = TimeUnit.MINUTES.toMillis(2);
+
+    private static final Map<String, BackupSchedule> INSTANCES = Maps.newHashMap();
+
+    private final transient String profile;   // Name of the backup profile, null for the default profile
+    private String cron;        // Cron the next run was computed for
+    private long nextRun;       // Time of the next scheduled backup in milliseconds, 0 if it is not computed yet
+
+    /**
+     *
+     * Determines what happens with the backups whose scheduled time has passed without them being started
+     */
+    public enum MissedBackupPolicy {
+        RUN_ONCE("Run a single backup to catch up"),
+        SKIP("Skip the missed backups");
+
+        private final String displayName;
+
+        MissedBackupPolicy(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    BackupSchedule() {
+        this(null);
+    }
+
+    BackupSchedule(String profile) {
+        this.profile = profile;
+    }
+
+    /**
+     *
+     * @return schedule of the default profile
+     */
+    public static BackupSchedule get() {
+        return get(null);
+    }
+
+    /**
+     *
+     * @param profile name of the backup profile, null for the default profile
+     * @return schedule of the given profile
+     */
+    public static synchronized BackupSchedule get(String profile) {
+        BackupSchedule schedule = INSTANCES.get(profile);
+        if (schedule == null) {
+            schedule = new BackupSchedule(profile);
+            XmlFile file = schedule.getConfigFile();
+            if (file.exists()) {
+                try {
+                    file.unmarshal(schedule);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not read the backup schedule " + file.getFile().getAbsolutePath(), e);
+                }
+            }
+            INSTANCES.put(profile, schedule);
+        }
+        return schedule;
+    }
+
+    private XmlFile getConfigFile() {
+        String name = profile == null ? BackupSchedule.class.getName()
+                : BackupSchedule.class.getName() + "-" + hudson.Util.rawEncode(profile);
+        return new XmlFile(Jenkins.XSTREAM, new File(Jenkins.get().getRootDir(), name + ".xml"));
+    }
+
+    /**
+     *
+     * Reads the time of the next scheduled backup without changing the persisted schedule
+     *
+     * @param cron the configured cron
+     * @return time of the next scheduled backup
+     * @throws ANTLRException if the cron cannot be parsed
+     */
+    public synchronized Date getNextRun(String cron) throws ANTLRException {
+        if (nextRun == 0 || !cron.equals(this.cron)) {
+            return new CronTab(cron).ceil(System.currentTimeMillis()).getTime();
+        }
+        return new Date(nextRun);
+    }
+
+    /**
+     *
+     * Checks if the scheduled time of the backup has come. A due backup stays due until {@link #started(String, long)}
+     * is called, so a backup which could not be started is tried again at the next check. A backup which is overdue
+     * by more than the check interval was missed, it is started once for all the missed times or skipped according
+     * to the policy.
+     *
+     * @param cron the configured cron
+     * @param now current time in milliseconds
+     * @param policy what to do with a missed backup
+     * @return true if a backup has to be started now
+     * @throws ANTLRException if the cron cannot be parsed
+     */
+    public synchronized boolean isDue(String cron, long now, MissedBackupPolicy policy) throws ANTLRException {
+        update(cron, now);
+        if (now < nextRun) {
+            return false;
+        }
+        long scheduled = nextRun;
+        if (now - scheduled > TOLERANCE) {
+            if (policy == MissedBackupPolicy.SKIP) {
+                advance(cron, now);
+                LOGGER.warning(describe() + " scheduled at " + new Date(scheduled) + " was missed and is skipped, the next backup is scheduled at " + new Date(nextRun));
+                return false;
+            }
+            LOGGER.info(describe() + " scheduled at " + new Date(scheduled) + " was missed, starting it now");
+        }
+        return true;
+    }
+
+    /**
+     *
+     * Computes and persists the next scheduled time once the due backup was started
+     *
+     * @param cron the configured cron
+     * @param now time the backup was started in milliseconds
+     * @throws ANTLRException if the cron cannot be parsed
+     */
+    public synchronized void started(String cron, long now) throws ANTLRException {
+        update(cron, now);
+        if (now >= nextRun) {
+            advance(cron, now);
+        }
+    }
+
+    private void advance(String cron, long now) throws ANTLRException {
+        // The next backup is after the current minute, all the times in between were missed together
+        nextRun = new CronTab(cron).ceil(Math.max(now + 1, nextRun + TimeUnit.MINUTES.toMillis(1))).getTimeInMillis();
+        save();
+    }
+
+    /**
+     *
+     * Computes the next scheduled time if it is not known yet or the cron was changed
+     */
+    private void update(String cron, long now) throws ANTLRException {
+        if (nextRun == 0 || !cron.equals(this.cron)) {
+            nextRun = new CronTab(cron).ceil(now).getTimeInMillis();
+            this.cron = cron;
+            save();
+        }
+    }
+
+    private String describe() {
+        return profile == null ? "The backup" : "The backup of the profile " + profile;
+    }
+
+    public synchronized void save() {
+        try {
+            getConfigFile().write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not save the backup schedule", e);
+        }
+    }
+}
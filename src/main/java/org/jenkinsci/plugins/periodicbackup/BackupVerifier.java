@@ -0,0 +1,296 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ *
+ * BackupVerifier checks the archives of a backup stored in a Location against the checksums of its metadata sidecar.
+ * The archives are streamed from the Location and read entry by entry, nothing is extracted to disk.
+ */
+public class BackupVerifier {
+
+    private static final Logger LOGGER = Logger.getLogger(BackupVerifier.class.getName());
+
+    /**
+     * Maximum number of archives verified at the same time
+     */
+    private static final int MAX_PARALLEL_ARCHIVES = Math.max(1,
+            SystemProperties.getInteger(BackupVerifier.class.getName() + ".maxParallelArchives", 4));
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Location location;
+
+    public BackupVerifier(Location location) {
+        this.location = location;
+    }
+
+    /**
+     *
+     * Verifies the given backup, every archive is read once
+     *
+     * @param backup BackupObject of the backup stored in the Location
+     * @return Result of the verification
+     * @throws PeriodicBackupException if the backup has no checksums or its metadata cannot be read
+     */
+    public Result verify(BackupObject backup) throws PeriodicBackupException {
+        Storage storage = backup.getStorage();
+        if (storage == null) {
+            throw new PeriodicBackupException("Could not load the backup " + backup.getDisplayName());
+        }
+        BackupMetadata metadata = BackupMetadata.read(location, backup);
+        Map<String, Map<String, BackupMetadata.Entry>> entriesByArchive = Maps.newHashMap();
+        long totalSize = 0;
+        for (BackupMetadata.Entry entry : metadata.getEntries()) {
+            Map<String, BackupMetadata.Entry> entries = entriesByArchive.get(entry.getArchive());
+            if (entries == null) {
+                entries = Maps.newHashMap();
+                entriesByArchive.put(entry.getArchive(), entries);
+            }
+            entries.put(entry.getName(), entry);
+            totalSize += entry.getSize();
+        }
+        List<BackupMetadata.Archive> archives = Lists.newArrayList();
+        for (BackupMetadata.Archive archive : metadata.getArchives()) {
+            if (archive.hasChecksum() || entriesByArchive.containsKey(archive.getName())) {
+                archives.add(archive);
+            }
+        }
+        if (archives.isEmpty()) {
+            throw new PeriodicBackupException("The backup " + metadata.getId() + " has no checksums to verify");
+        }
+
+        LOGGER.info("Verifying " + archives.size() + " archive(s) of the backup " + metadata.getId() + " in " + location.getDisplayName());
+        BackupProgress.PhaseProgress progress = BackupProgress.get().enter(BackupMetrics.Phase.VERIFY)
+                .addTotal(metadata.getEntries().size(), totalSize);
+        Result result = new Result(metadata.getId());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_PARALLEL_ARCHIVES, archives.size()),
+                new NamingThreadFactory(new DaemonThreadFactory(), "PeriodicBackup verification"));
+        try {
+            List<Future<?>> futures = Lists.newArrayList();
+            for (BackupMetadata.Archive archive : archives) {
+                Map<String, BackupMetadata.Entry> entries = entriesByArchive.get(archive.getName());
+                futures.add(executor.submit(new ArchiveVerification(archive, storage,
+                        entries != null ? entries : Collections.<String, BackupMetadata.Entry>emptyMap(), result, progress)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PeriodicBackupException("Verification of the backup " + metadata.getId() + " was interrupted");
+        } catch (ExecutionException e) {
+            throw new PeriodicBackupException("Could not verify the backup " + metadata.getId() + " " + e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        LOGGER.info(result.toString());
+        return result;
+    }
+
+    /**
+     *
+     * Verifies a single archive: the checksum of every entry while the archive is read and then the checksum of the archive file
+     */
+    private class ArchiveVerification implements Callable<Void>, Storage.ArchiveEntryVisitor {
+
+        private final BackupMetadata.Archive archive;
+        private final Storage storage;
+        private final Map<String, BackupMetadata.Entry> expected;
+        // Content read for the entries, duplicates refer to earlier entries of the same archive
+        private final Map<String, BackupMetadata.Entry> read = Maps.newHashMap();
+        private final Result result;
+        private final BackupProgress.PhaseProgress progress;
+        private BackupMetrics.Timer timer;
+        private boolean valid = true;
+
+        ArchiveVerification(BackupMetadata.Archive archive, Storage storage, Map<String, BackupMetadata.Entry> expected,
+                            Result result, BackupProgress.PhaseProgress progress) {
+            this.archive = archive;
+            this.storage = storage;
+            this.expected = Maps.newHashMap(expected);
+            this.result = result;
+            this.progress = progress;
+        }
+
+        private void addProblem(String problem) {
+            valid = false;
+            result.addProblem(archive.getName() + ": " + problem);
+        }
+
+        public Void call() {
+            timer = BackupMetrics.get().start(BackupMetrics.Phase.VERIFY, storage.getDisplayName());
+            CheckedInputStream in = null;
+            try {
+                in = new CheckedInputStream(new BufferedInputStream(location.openBackupFile(archive.getName()), BUFFER_SIZE), new CRC32());
+                if (!expected.isEmpty()) {
+                    // The checksum covers the stored bytes, the entries are read from the decrypted content
+                    InputStream content = ArchiveEncryption.open(new CloseShieldInputStream(in));
+                    if (!storage.readArchive(content, this)) {
+                        addProblem(storage.getDisplayName() + " archives cannot be read entry by entry");
+                    }
+                    // Encrypted chunks after the last entry are authenticated as well
+                    Util.copy(content, NullOutputStream.NULL_OUTPUT_STREAM, -1, null);
+                    content.close();
+                    for (String name : expected.keySet()) {
+                        addProblem(name + " is missing");
+                    }
+                }
+                // Read what is left after the last entry so that the whole archive file is checksummed
+                Util.copy(in, NullOutputStream.NULL_OUTPUT_STREAM, -1, null);
+                if (archive.hasChecksum() && in.getChecksum().getValue() != archive.getChecksum()) {
+                    addProblem("checksum of the archive does not match");
+                }
+                result.archiveVerified();
+            } catch (IOException e) {
+                addProblem("could not be read " + e.getMessage());
+            } finally {
+                IOUtils.closeQuietly(in);
+                if (!valid) {
+                    timer.failed();
+                }
+                timer.stop();
+            }
+            return null;
+        }
+
+        public void visit(String name, InputStream content) throws IOException {
+            CRC32 checksum = new CRC32();
+            long size = Util.copy(content, NullOutputStream.NULL_OUTPUT_STREAM, -1, checksum);
+            timer.files(1).bytesIn(size);
+            progress.addDone(1, size);
+            read.put(name, new BackupMetadata.Entry(archive.getName(), name, size, checksum.getValue()));
+            BackupMetadata.Entry entry = expected.remove(name);
+            if (entry == null) {
+                addProblem(name + " is not part of the backup metadata");
+            } else if (entry.getSize() != size || entry.getChecksum() != checksum.getValue()) {
+                addProblem(name + " is corrupted");
+            } else {
+                result.entryVerified();
+            }
+        }
+
+        @Override
+        public void visitDuplicate(String name, String original) {
+            BackupMetadata.Entry entry = expected.remove(name);
+            BackupMetadata.Entry content = read.get(original);
+            if (entry == null) {
+                addProblem(name + " is not part of the backup metadata");
+            } else if (content == null) {
+                addProblem(name + " refers to the missing entry " + original);
+            } else if (entry.getSize() != content.getSize() || entry.getChecksum() != content.getChecksum()) {
+                addProblem(name + " is corrupted");
+            } else {
+                progress.addDone(1, entry.getSize());
+                result.entryVerified();
+            }
+        }
+    }
+
+    /**
+     *
+     * Outcome of the verification of a backup
+     */
+    public static class Result {
+
+        // Only the first problems are kept, a broken archive can report every one of its entries
+        private static final int MAX_REPORTED_PROBLEMS = 100;
+
+        private final String backupId;
+        private final List<String> problems = Lists.newArrayList();
+        private int problemCount;
+        private int verifiedArchives;
+        private long verifiedEntries;
+
+        Result(String backupId) {
+            this.backupId = backupId;
+        }
+
+        synchronized void addProblem(String problem) {
+            LOGGER.warning("Backup " + backupId + " " + problem);
+            problemCount++;
+            if (problems.size() < MAX_REPORTED_PROBLEMS) {
+                problems.add(problem);
+            }
+        }
+
+        synchronized void archiveVerified() {
+            verifiedArchives++;
+        }
+
+        synchronized void entryVerified() {
+            verifiedEntries++;
+        }
+
+        public synchronized boolean isValid() {
+            return problemCount == 0;
+        }
+
+        public synchronized List<String> getProblems() {
+            return Lists.newArrayList(problems);
+        }
+
+        public synchronized int getVerifiedArchives() {
+            return verifiedArchives;
+        }
+
+        public synchronized long getVerifiedEntries() {
+            return verifiedEntries;
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (problemCount == 0) {
+                return "Backup " + backupId + " verified: " + verifiedArchives + " archive(s), " + verifiedEntries + " file(s) match their checksums";
+            }
+            return "Backup " + backupId + " failed verification with " + problemCount + " problem(s): " + problems.get(0)
+                    + (problemCount > 1 ? ", ..." : "");
+        }
+    }
+}
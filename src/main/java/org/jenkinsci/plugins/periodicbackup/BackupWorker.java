@@ -0,0 +1,597 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.remoting.Channel;
+import hudson.remoting.Pipe;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.Channels;
+import hudson.util.ClasspathBuilder;
+import hudson.util.JVMBuilder;
+import hudson.util.LogTaskListener;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+import jenkins.security.MasterToSlaveCallable;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ *
+ * BackupWorker is a separate JVM forked for a single backup which creates the archives of the Storages, so the
+ * compression buffers and archiver objects are allocated on its own heap instead of the controller heap.
+ * The controller scans the files, uploads the archives and applies the retention, the worker reports its
+ * progress back over the remoting channel and is paced by the LoadMonitor of the controller.
+ * The worker may also run on a Jenkins agent, the controller then only reads the files and streams them as an
+ * uncompressed tar to the agent, which compresses them and sends the finished archives back. The agent gets
+ * neither the encryption passphrase nor, unless this is allowed, the secrets directory of Jenkins. The controller
+ * encrypts the archives while copying them back.
+ */
+public class BackupWorker implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(BackupWorker.class.getName());
+
+    /**
+     * Number of archived files after which the worker reports its progress, the report is a remote call
+     */
+    private static final int REPORT_FILES = 100;
+
+    /**
+     * Time in milliseconds after which the worker reports its progress
+     */
+    private static final long REPORT_INTERVAL = 1000;
+
+    /**
+     * Size of the buffer used to stream the files to an agent
+     */
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+    private static final byte[] PADDING = new byte[TRANSFER_BUFFER_SIZE];      // Zeros replacing truncated content, never written to
+
+    /**
+     * Directory of the Jenkins home holding the keys of the stored secrets and credentials
+     */
+    static final String SECRETS_DIRECTORY = "secrets";
+
+    private final Channel channel;
+    private final FilePath agentDirectory;    // Working directory on the agent, null if the worker was forked
+    private final String agentName;
+    private final boolean sendSecrets;        // Whether the secrets directory may be sent to the agent
+
+    private BackupWorker(Channel channel, FilePath agentDirectory, String agentName, boolean sendSecrets) {
+        this.channel = channel;
+        this.agentDirectory = agentDirectory;
+        this.agentName = agentName;
+        this.sendSecrets = sendSecrets;
+    }
+
+    /**
+     *
+     * Forks the worker JVM
+     *
+     * @param workDirectory working directory of the worker
+     * @param jvmOptions options of the worker JVM, for example its heap size, may be null
+     * @return the started worker
+     * @throws IOException if the JVM cannot be started
+     */
+    public static BackupWorker start(File workDirectory, String jvmOptions) throws IOException {
+        if (!workDirectory.isDirectory() && !workDirectory.mkdirs()) {
+            throw new IOException("Could not create the directory " + workDirectory.getAbsolutePath());
+        }
+        JVMBuilder vmb = new JVMBuilder();
+        if (jvmOptions != null) {
+            for (String option : hudson.Util.tokenize(jvmOptions)) {
+                vmb.vmopt(option);
+            }
+        }
+        LOGGER.info("Starting the backup worker JVM " + (jvmOptions != null ? jvmOptions : ""));
+        Channel channel = Channels.newJVM("PeriodicBackup worker", new LogTaskListener(LOGGER, Level.INFO), vmb,
+                new FilePath(workDirectory), new ClasspathBuilder());
+        return new BackupWorker(channel, null, null, false);
+    }
+
+    /**
+     *
+     * Uses the first online agent with the given label as the worker. The agent is not allocated through the
+     * build queue, the archiving does not occupy any of its executors. Every agent with the label receives the
+     * files of Jenkins, so it has to be as trusted as the controller.
+     *
+     * @param label label expression selecting the agent
+     * @param sendSecrets true if the secrets directory may be sent to the agent
+     * @return the worker running on the agent
+     * @throws IOException if no agent with the label is online
+     */
+    public static BackupWorker onAgent(String label, boolean sendSecrets) throws IOException {
+        Label agentLabel = Jenkins.getActiveInstance().getLabel(label);
+        if (agentLabel != null) {
+            for (Node node : agentLabel.getNodes()) {
+                Computer computer = node.toComputer();
+                FilePath rootPath = node.getRootPath();
+                // The controller itself only has a local channel
+                if (computer != null && computer.isOnline() && computer.getChannel() instanceof Channel && rootPath != null) {
+                    LOGGER.info("Creating the archives on the agent " + node.getNodeName());
+                    return new BackupWorker((Channel) computer.getChannel(), rootPath.child("periodicbackup"), node.getNodeName(),
+                            sendSecrets);
+                }
+            }
+        }
+        throw new IOException("There is no online agent with the label " + label);
+    }
+
+    /**
+     *
+     * @param relativePath path relative to the Jenkins home directory
+     * @return true if the path is inside the secrets directory
+     */
+    static boolean isSecret(String relativePath) {
+        return relativePath.equals(SECRETS_DIRECTORY) || relativePath.startsWith(SECRETS_DIRECTORY + "/");
+    }
+
+    /**
+     *
+     * @return true if this worker runs on an agent which must not receive the secrets directory
+     */
+    private boolean isSecretsExcluded() {
+        return agentDirectory != null && !sendSecrets;
+    }
+
+    /**
+     *
+     * Creates the archives of the given Storage in the worker. The Storage is copied to the worker, the archives
+     * and the checksums recorded while writing them are returned. On an agent the files are sent to its working
+     * directory first and the archives are copied back to the tempDirectory, they are encrypted on the way.
+     *
+     * @param storage Storage creating the archives, it has to support archiving in a worker
+     * @param files files to archive, inside the root directory of the environment
+     * @param tempDirectory directory where the archives are created
+     * @param fileNameBase first part of the archive filenames
+     * @param environment what the Storage needs from Jenkins while archiving
+     * @param reporter receives the progress of the worker
+     * @return archives and their checksums
+     * @throws IOException if the archives cannot be created or the files include secrets the agent must not receive
+     * @throws InterruptedException if interrupted while waiting for the worker
+     */
+    public Result archive(Storage storage, Collection<File> files, File tempDirectory, String fileNameBase,
+                          Environment environment, Reporter reporter) throws IOException, InterruptedException {
+        List<String> names = Lists.newArrayList();
+        for (File file : files) {
+            String name = Util.getRelativePath(file, environment.getRootDirectory());
+            if (isSecretsExcluded() && isSecret(name)) {
+                throw new IOException("The secrets directory is not sent to the agent " + agentName + " unless this is allowed in the backup configuration");
+            }
+            names.add(name);
+        }
+        Reporter remoteReporter = channel.export(Reporter.class, reporter);
+        if (agentDirectory == null) {
+            Environment forked = environment.forWorker();
+            try {
+                return toResult(channel.call(new ArchiveTask(storage, names, tempDirectory.getAbsolutePath(), fileNameBase,
+                        forked, remoteReporter)), tempDirectory);
+            } finally {
+                if (forked != environment) {
+                    forked.clearPassphrase();
+                }
+            }
+        }
+        FilePath runDirectory = agentDirectory.child(tempDirectory.getName());
+        try {
+            FilePath filesDirectory = runDirectory.child("files");
+            FilePath archivesDirectory = runDirectory.child("archives");
+            runDirectory.deleteRecursive();
+            filesDirectory.mkdirs();
+            archivesDirectory.mkdirs();
+            send(environment.getRootDirectory(), names, filesDirectory, environment.isPreserveLinks());
+            ArchiveTask.Output output = channel.call(new ArchiveTask(storage, names, archivesDirectory.getRemote(),
+                    fileNameBase, environment.forAgent(filesDirectory.getRemote()), remoteReporter));
+            ArchiveEncryption encryption = environment.getEncryption();
+            for (String archive : output.archives) {
+                receive(archivesDirectory.child(archive), new File(tempDirectory, archive), encryption, output.checksums);
+            }
+            return toResult(output, tempDirectory);
+        } finally {
+            try {
+                runDirectory.deleteRecursive();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not clean up " + runDirectory.getRemote() + " on the agent " + agentName, e);
+            }
+        }
+    }
+
+    /**
+     *
+     * Copies an archive created on the agent to the controller and encrypts it, the checksum of the archive file
+     * recorded by the Storage is replaced by the one of the encrypted file. The encryption is the part of the
+     * archiving which stays on the controller, so that the passphrase never leaves it.
+     */
+    private static void receive(FilePath source, File destination, ArchiveEncryption encryption, ArchiveChecksums checksums)
+            throws IOException, InterruptedException {
+        if (encryption == null) {
+            source.copyTo(new FilePath(destination));
+            return;
+        }
+        InputStream in = source.read();
+        CheckedOutputStream out = new CheckedOutputStream(new FileOutputStream(destination), new CRC32());
+        try {
+            OutputStream encrypted = encryption.encrypt(out);
+            Util.copy(in, encrypted, -1, null);
+            encrypted.close();
+        } finally {
+            IOUtils.closeQuietly(in);
+            out.close();
+        }
+        if (checksums != null) {
+            checksums.setArchiveChecksum(destination.getName(), out.getChecksum().getValue());
+        }
+    }
+
+    private static Result toResult(ArchiveTask.Output output, File tempDirectory) {
+        List<File> archives = Lists.newArrayList();
+        for (String archive : output.archives) {
+            archives.add(new File(tempDirectory, archive));
+        }
+        return new Result(archives, output.checksums);
+    }
+
+    /**
+     *
+     * Streams the files as an uncompressed tar to the agent, which extracts them with their modification time and
+     * permissions. Reading the files is all the work left on the controller. Preserved symbolic links are sent
+     * as links.
+     */
+    private void send(File rootDirectory, List<String> names, FilePath destination, boolean preserveLinks) throws IOException, InterruptedException {
+        Pipe pipe = Pipe.createLocalToRemote();
+        Future<Void> extraction = destination.actAsync(new ExtractTask(pipe));
+        TarArchiveOutputStream tar = new TarArchiveOutputStream(new BufferedOutputStream(pipe.getOut(), TRANSFER_BUFFER_SIZE));
+        try {
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+            for (String name : names) {
+                File file = new File(rootDirectory, name);
+                if (preserveLinks && Util.isSymbolicLink(file)) {
+                    TarArchiveEntry entry = new TarArchiveEntry(name, TarConstants.LF_SYMLINK);
+                    entry.setLinkName(Util.readSymbolicLink(file));
+                    tar.putArchiveEntry(entry);
+                    tar.closeArchiveEntry();
+                } else {
+                    addFile(tar, file, name);
+                }
+            }
+        } finally {
+            tar.close();
+        }
+        try {
+            extraction.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Could not send the files to the agent " + agentName, e.getCause());
+        }
+    }
+
+    private static void addFile(TarArchiveOutputStream tar, File file, String name) throws IOException {
+        InputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            LOGGER.warning("Could not send the file to the agent. " + e.getMessage());
+            return;
+        }
+        try {
+            TarArchiveEntry entry = new TarArchiveEntry(file, name);
+            if (file.canExecute()) {
+                entry.setMode(TarArchiveEntry.DEFAULT_FILE_MODE | 0111);
+            }
+            tar.putArchiveEntry(entry);
+            // The size in the header is fixed, a file which changed since it was measured is truncated or padded
+            long size = Util.copy(in, tar, entry.getSize(), null);
+            for (long remaining = entry.getSize() - size; remaining > 0; remaining -= PADDING.length) {
+                tar.write(PADDING, 0, (int) Math.min(remaining, PADDING.length));
+            }
+            tar.closeArchiveEntry();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     *
+     * Stops the worker JVM, the channel of an agent stays open
+     */
+    public void close() {
+        if (agentDirectory != null) {
+            return;
+        }
+        try {
+            channel.close();
+            channel.join(REPORT_INTERVAL * 10);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not stop the backup worker", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     *
+     * Receives the progress of the worker on the controller
+     */
+    public interface Reporter {
+
+        /**
+         *
+         * @param files number of files archived since the previous report
+         * @param bytes size of these files
+         */
+        void archived(int files, long bytes);
+    }
+
+    /**
+     *
+     * What a Storage needs from Jenkins while archiving in the worker, where Jenkins is not running
+     */
+    public static final class Environment implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String rootDirectory;
+        private final String archiveFileExtension;
+        private final String encryptionCredentialsId;
+        private final char[] encryptionPassphrase;
+        private final boolean preserveLinks;
+        private final boolean deduplicate;
+        private transient ArchiveEncryption encryption;
+
+        /**
+         *
+         * @param rootDirectory Jenkins home directory
+         * @param storage Storage the environment is created for
+         * @param encryption encryption of the archives, null if they are not encrypted
+         */
+        public Environment(File rootDirectory, Storage storage, ArchiveEncryption encryption) {
+            this(rootDirectory.getAbsolutePath(), storage.getDescriptor().getArchiveFileExtension(),
+                    encryption != null ? encryption.getCredentialsId() : null, null, storage.isPreserveLinks(), storage.isDeduplicate());
+            this.encryption = encryption;
+        }
+
+        private Environment(String rootDirectory, String archiveFileExtension, String encryptionCredentialsId,
+                            char[] encryptionPassphrase, boolean preserveLinks, boolean deduplicate) {
+            this.rootDirectory = rootDirectory;
+            this.archiveFileExtension = archiveFileExtension;
+            this.encryptionCredentialsId = encryptionCredentialsId;
+            this.encryptionPassphrase = encryptionPassphrase;
+            this.preserveLinks = preserveLinks;
+            this.deduplicate = deduplicate;
+        }
+
+        /**
+         *
+         * @param rootDirectory path of the directory holding the files on the agent
+         * @return copy of this environment with another root directory and without the passphrase, the archives
+         * created on an agent are encrypted by the controller
+         */
+        Environment forAgent(String rootDirectory) {
+            return new Environment(rootDirectory, archiveFileExtension, null, null, preserveLinks, deduplicate);
+        }
+
+        /**
+         *
+         * @return copy of this environment holding the passphrase, which is read from the credentials just before
+         * it is sent to a forked worker, the worker clears it once the key is derived
+         * @throws IOException if the encryption credentials do not exist anymore
+         */
+        Environment forWorker() throws IOException {
+            if (encryption == null) {
+                return this;
+            }
+            Environment copy = new Environment(rootDirectory, archiveFileExtension, encryptionCredentialsId,
+                    ArchiveEncryption.lookupPassphrase(encryptionCredentialsId), preserveLinks, deduplicate);
+            copy.encryption = encryption;
+            return copy;
+        }
+
+        /**
+         * Clears the passphrase of a copy created by {@link #forWorker()}
+         */
+        void clearPassphrase() {
+            if (encryptionPassphrase != null) {
+                Arrays.fill(encryptionPassphrase, '\0');
+            }
+        }
+
+        public File getRootDirectory() {
+            return new File(rootDirectory);
+        }
+
+        public String getArchiveFileExtension() {
+            return archiveFileExtension;
+        }
+
+        public boolean isPreserveLinks() {
+            return preserveLinks;
+        }
+
+        public boolean isDeduplicate() {
+            return deduplicate;
+        }
+
+        /**
+         *
+         * @return encryption of the archives, the key is derived again in a forked worker, null if they are not encrypted
+         * @throws IOException if the key cannot be derived
+         */
+        public synchronized ArchiveEncryption getEncryption() throws IOException {
+            if (encryption == null && encryptionPassphrase != null) {
+                encryption = new ArchiveEncryption(encryptionCredentialsId, encryptionPassphrase);
+                clearPassphrase();
+            }
+            return encryption;
+        }
+    }
+
+    /**
+     *
+     * Archives and checksums created by the worker
+     */
+    public static final class Result {
+
+        private final List<File> archives;
+        private final ArchiveChecksums checksums;
+
+        Result(List<File> archives, ArchiveChecksums checksums) {
+            this.archives = archives;
+            this.checksums = checksums;
+        }
+
+        public List<File> getArchives() {
+            return archives;
+        }
+
+        /**
+         * @return checksums recorded by the Storage, null if it does not record them
+         */
+        public ArchiveChecksums getChecksums() {
+            return checksums;
+        }
+    }
+
+    /**
+     *
+     * Runs the archiving of a single Storage in the worker
+     */
+    private static final class ArchiveTask extends MasterToSlaveCallable<ArchiveTask.Output, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Storage storage;
+        private final List<String> files;   // Paths relative to the root directory of the environment
+        private final String tempDirectory;
+        private final String fileNameBase;
+        private final Environment environment;
+        private final Reporter reporter;
+
+        ArchiveTask(Storage storage, List<String> files, String tempDirectory, String fileNameBase,
+                    Environment environment, Reporter reporter) {
+            this.storage = storage;
+            this.files = files;
+            this.tempDirectory = tempDirectory;
+            this.fileNameBase = fileNameBase;
+            this.environment = environment;
+            this.reporter = reporter;
+        }
+
+        public Output call() throws IOException {
+            storage.setWorkerEnvironment(environment);
+            File rootDirectory = environment.getRootDirectory();
+            try {
+                storage.backupStart(tempDirectory, fileNameBase);
+                int files = 0;
+                long bytes = 0;
+                long reported = System.currentTimeMillis();
+                for (String name : this.files) {
+                    File file = new File(rootDirectory, name);
+                    storage.backupAddFile(file);
+                    files++;
+                    bytes += file.length();
+                    if (files >= REPORT_FILES || System.currentTimeMillis() - reported >= REPORT_INTERVAL) {
+                        reporter.archived(files, bytes);
+                        files = 0;
+                        bytes = 0;
+                        reported = System.currentTimeMillis();
+                    }
+                }
+                reporter.archived(files, bytes);
+                List<String> archives = Lists.newArrayList();
+                for (File archive : storage.backupStop()) {
+                    archives.add(archive.getName());
+                }
+                return new Output(archives, storage.getChecksums());
+            } catch (PeriodicBackupException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+
+        /**
+         *
+         * Names of the archives inside the temp directory of the worker, which may not be able to resolve
+         * the paths of the controller
+         */
+        static final class Output implements Serializable {
+
+            private static final long serialVersionUID = 1L;
+
+            private final List<String> archives;
+            private final ArchiveChecksums checksums;
+
+            Output(List<String> archives, ArchiveChecksums checksums) {
+                this.archives = archives;
+                this.checksums = checksums;
+            }
+        }
+    }
+
+    /**
+     *
+     * Extracts the tar streamed by the controller into the working directory on the agent
+     */
+    private static final class ExtractTask extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Pipe pipe;
+
+        ExtractTask(Pipe pipe) {
+            this.pipe = pipe;
+        }
+
+        public Void invoke(File directory, VirtualChannel channel) throws IOException, InterruptedException {
+            new FilePath(directory).untarFrom(pipe.getIn(), FilePath.TarCompression.NONE);
+            return null;
+        }
+    }
+}
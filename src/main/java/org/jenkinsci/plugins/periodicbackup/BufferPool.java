@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import jenkins.util.SystemProperties;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * BufferPool lends the copy buffers of backups and restores, so copying millions of small files does not allocate
+ * a new buffer for every file. A buffer is returned to the pool after each copy. The pool keeps a bounded number of
+ * idle buffers, a copy which finds the pool empty allocates a buffer instead of waiting for one.
+ * The buffers in use are deliberately not capped: there is one per running copy, and the number of copies running
+ * at the same time is already bounded by the thread pools of the backup, the restore and the verification.
+ * Waiting for a buffer would stall a thread which holds a buffer of one pool and needs one of the other.
+ * The direct pool serves copies which only involve FileChannels, the heap pool serves copies from or to streams
+ * which need the array of the buffer.
+ */
+public final class BufferPool {
+
+    /**
+     * Size of every pooled buffer
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Maximum size of the idle buffers kept by each pool
+     */
+    private static final int MAX_POOLED_KILOBYTES = Math.max(BUFFER_SIZE / 1024,
+            SystemProperties.getInteger(BufferPool.class.getName() + ".maxPooledKilobytes", 8 * 1024));
+
+    private static final BufferPool DIRECT = new BufferPool(true, MAX_POOLED_KILOBYTES * 1024 / BUFFER_SIZE);
+    private static final BufferPool HEAP = new BufferPool(false, MAX_POOLED_KILOBYTES * 1024 / BUFFER_SIZE);
+
+    private final boolean direct;
+    private final int maxBuffers;
+    private final Deque<ByteBuffer> buffers = new ArrayDeque<ByteBuffer>();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    BufferPool(boolean direct, int maxBuffers) {
+        this.direct = direct;
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     *
+     * @return pool of direct buffers for the copies between FileChannels
+     */
+    public static BufferPool direct() {
+        return DIRECT;
+    }
+
+    /**
+     *
+     * @return pool of heap buffers for the copies from or to streams
+     */
+    public static BufferPool heap() {
+        return HEAP;
+    }
+
+    /**
+     *
+     * @return cleared buffer of BUFFER_SIZE bytes, it has to be released after the copy
+     */
+    public ByteBuffer acquire() {
+        synchronized (buffers) {
+            ByteBuffer buffer = buffers.pollFirst();
+            if (buffer != null) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        allocatedBytes.addAndGet(BUFFER_SIZE);
+        return direct ? ByteBuffer.allocateDirect(BUFFER_SIZE) : ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     *
+     * Returns a buffer to the pool, it is dropped if the pool is full
+     *
+     * @param buffer buffer acquired from this pool, may be null
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != direct || buffer.capacity() != BUFFER_SIZE) {
+            return;
+        }
+        synchronized (buffers) {
+            // The most recently used buffer is lent first, it is the most likely to be in the CPU cache
+            if (buffers.size() < maxBuffers) {
+                buffers.addFirst(buffer);
+            }
+        }
+    }
+
+    /**
+     *
+     * @return total size of the buffers this pool has allocated
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+}
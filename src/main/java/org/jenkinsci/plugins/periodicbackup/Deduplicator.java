@@ -0,0 +1,343 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import jenkins.util.SystemProperties;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * Deduplicator finds the files of a backup whose content was already archived, so that a Storage stores the content
+ * once and only a reference for the copies. Only files with the same size are candidates, their SHA-256 digests are
+ * computed when a second file of that size appears. A candidate which was modified since it was archived is not used,
+ * besides its size and modification time the CRC32 computed while digesting it must be the checksum of its entry.
+ * Deduplication is only enabled in the backup configuration, the archives it creates are not restored completely
+ * by the versions of the plugin which do not know the references.
+ */
+public class Deduplicator {
+
+    /**
+     * Name of the entry listing the references of a zip archive
+     */
+    public static final String MANIFEST_NAME = ".periodicbackup-duplicates";
+
+    /**
+     * Smaller files are always stored, their reference would not be much smaller than their compressed content
+     */
+    private static final long MIN_SIZE = SystemProperties.getInteger(Deduplicator.class.getName() + ".minSize", 4096);
+
+    /**
+     * Number of archived files kept as candidates, the files archived after that are stored but not deduplicated
+     */
+    private static final int MAX_ORIGINALS = SystemProperties.getInteger(Deduplicator.class.getName() + ".maxOriginals", 100000);
+
+    private static final Logger LOGGER = Logger.getLogger(Deduplicator.class.getName());
+
+    private final Map<Long, List<Original>> originals = Maps.newHashMap();
+    private int originalCount;
+    private long deduplicatedBytes;
+
+    /**
+     *
+     * Looks for an archived file with the same content
+     *
+     * @param file file which is going to be archived
+     * @return the archived original of the file or null if its content was not archived yet
+     * @throws IOException If the digests cannot be computed
+     */
+    public Original find(File file) throws IOException {
+        long size = file.length();
+        List<Original> candidates = size >= MIN_SIZE ? originals.get(size) : null;
+        if (candidates == null) {
+            return null;
+        }
+        byte[] digest = digest(file).sha256;
+        for (Original candidate : candidates) {
+            if (candidate.matches(digest)) {
+                deduplicatedBytes += size;
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     *
+     * Records a file which was archived with its content
+     *
+     * @param file archived file
+     * @param entry entry of the file in the archive, with the size and checksum of the archived content
+     */
+    public void archived(File file, BackupMetadata.Entry entry) {
+        if (entry.getSize() < MIN_SIZE || entry.getSize() != file.length()) {
+            return;
+        }
+        if (originalCount >= MAX_ORIGINALS) {
+            if (originalCount++ == MAX_ORIGINALS) {
+                LOGGER.info("More than " + MAX_ORIGINALS + " files were archived, the following ones are not deduplicated");
+            }
+            return;
+        }
+        originalCount++;
+        List<Original> candidates = originals.get(entry.getSize());
+        if (candidates == null) {
+            candidates = Lists.newArrayList();
+            originals.put(entry.getSize(), candidates);
+        }
+        candidates.add(new Original(file, entry, file.lastModified()));
+    }
+
+    /**
+     *
+     * @return total size of the files stored as references
+     */
+    public long getDeduplicatedBytes() {
+        return deduplicatedBytes;
+    }
+
+    private static Digest digest(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        CRC32 crc = new CRC32();
+        FileInputStream in = new FileInputStream(file);
+        ByteBuffer buffer = BufferPool.direct().acquire();
+        try {
+            FileChannel channel = in.getChannel();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                buffer.mark();
+                digest.update(buffer);
+                buffer.reset();
+                crc.update(buffer);
+                buffer.clear();
+            }
+            return new Digest(digest.digest(), crc.getValue());
+        } finally {
+            BufferPool.direct().release(buffer);
+            in.close();
+        }
+    }
+
+    /**
+     *
+     * Writes the manifest of the references of an archive
+     *
+     * @param references references stored in the archive
+     * @param out stream of the manifest entry, it is not closed
+     * @throws IOException If an IO problem occurs
+     */
+    public static void writeManifest(List<Reference> references, OutputStream out) throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        for (Reference reference : references) {
+            manifest.append(reference.getName()).append('\t').append(reference.getOriginal()).append('\t')
+                    .append(reference.getLastModified()).append('\n');
+        }
+        out.write(manifest.toString().getBytes(Charsets.UTF_8));
+    }
+
+    /**
+     *
+     * Reads the manifest of the references of an archive
+     *
+     * @param in content of the manifest entry, it is not closed
+     * @return references stored in the archive
+     * @throws IOException If an IO problem occurs or the manifest is malformed
+     */
+    public static List<Reference> readManifest(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charsets.UTF_8));
+        List<Reference> references = Lists.newArrayList();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split("\t");
+            if (fields.length != 3) {
+                throw new IOException("Malformed duplicate reference " + line);
+            }
+            try {
+                references.add(new Reference(fields[0], fields[1], Long.parseLong(fields[2])));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed duplicate reference " + line);
+            }
+        }
+        return references;
+    }
+
+    /**
+     *
+     * Creates the files of the references of an extracted archive from their extracted originals
+     *
+     * @param references references stored in the archive
+     * @param directory directory where the archive was extracted
+     * @throws IOException If an original is missing or cannot be copied
+     */
+    public static void materialize(List<Reference> references, File directory) throws IOException {
+        for (Reference reference : references) {
+            materialize(reference, new File(directory, reference.getOriginal()), directory);
+        }
+    }
+
+    /**
+     *
+     * Creates the file of a reference from the given copy of its original
+     *
+     * @param reference reference stored in the archive
+     * @param original extracted content of the original
+     * @param directory directory where the archive is extracted
+     * @throws IOException If the original cannot be copied
+     */
+    public static void materialize(Reference reference, File original, File directory) throws IOException {
+        File file = Util.resolveEntry(reference.getName(), directory);
+        Util.copyFile(original, file);
+        if (original.canExecute() && !file.setExecutable(true)) {
+            LOGGER.warning("Could not make " + file.getAbsolutePath() + " executable");
+        }
+        if (reference.getLastModified() >= 0 && !file.setLastModified(reference.getLastModified())) {
+            LOGGER.fine("Could not set the modification time of " + file.getAbsolutePath());
+        }
+    }
+
+    private static final class Digest {
+        private final byte[] sha256;
+        private final long crc32;
+
+        Digest(byte[] sha256, long crc32) {
+            this.sha256 = sha256;
+            this.crc32 = crc32;
+        }
+    }
+
+    /**
+     *
+     * A file archived with its content
+     */
+    public static final class Original {
+
+        private final File file;
+        private final BackupMetadata.Entry entry;
+        private final long lastModified;
+        private byte[] digest;
+        private boolean modified;
+
+        Original(File file, BackupMetadata.Entry entry, long lastModified) {
+            this.file = file;
+            this.entry = entry;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         *
+         * @return entry of the original in the archive
+         */
+        public BackupMetadata.Entry getEntry() {
+            return entry;
+        }
+
+        private boolean matches(byte[] otherDigest) throws IOException {
+            if (modified || file.lastModified() != lastModified || file.length() != entry.getSize()) {
+                // The archived content is not the content of the file anymore
+                return false;
+            }
+            if (digest == null) {
+                Digest read = digest(file);
+                // Rewritten with the same size within the resolution of the modification time
+                if (read.crc32 != entry.getChecksum()) {
+                    modified = true;
+                    return false;
+                }
+                digest = read.sha256;
+            }
+            return Arrays.equals(digest, otherDigest);
+        }
+    }
+
+    /**
+     *
+     * A file stored as a reference to the entry of its original
+     */
+    public static final class Reference {
+
+        private final String name;
+        private final String original;
+        private final long lastModified;
+        private final boolean hardLink;
+
+        public Reference(String name, String original, long lastModified) {
+            this(name, original, lastModified, false);
+        }
+
+        /**
+         *
+         * @param name name of the entry of the file
+         * @param original name of the entry holding the content
+         * @param lastModified modification time of the file, negative if unknown
+         * @param hardLink true if the file was a hard link to the original, false if it only had the same content
+         */
+        public Reference(String name, String original, long lastModified, boolean hardLink) {
+            this.name = name;
+            this.original = original;
+            this.lastModified = lastModified;
+            this.hardLink = hardLink;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getOriginal() {
+            return original;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public boolean isHardLink() {
+            return hardLink;
+        }
+    }
+}
@@ -31,6 +31,7 @@ import hudson.model.Describable;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
 import jenkins.model.Jenkins;
 
 /**
@@ -50,6 +51,15 @@ public abstract class FileManager extends AbstractModelObject implements Describ
      */
     public abstract Iterable<File> getFilesToBackup() throws PeriodicBackupException;
 
+    /**
+     *
+     * @return true if the symbolic links among the files to back up are links which have to be restored as they are,
+     * false if their targets are backed up
+     */
+    public boolean isLinksPreserved() {
+        return false;
+    }
+
     /**
      *
      * This will restore files to their right place in the HUDSON directory
@@ -62,6 +72,15 @@ public abstract class FileManager extends AbstractModelObject implements Describ
         restorePolicy.restore(finalResultDir);
     }
 
+    /**
+     *
+     * @return paths of the files changed by the last restoreFiles relative to the home directory,
+     * null if the whole configuration has to be reloaded
+     */
+    public Collection<String> getChangedPaths() {
+        return restorePolicy.getChangedPaths();
+    }
+
     /**
      * This will allow to retrieve the list of plugins at runtime
      *
@@ -100,9 +100,19 @@ public class FullBackup extends FileManager {
         for (String s : directoryScanner.getIncludedFiles()) {
             files.add(new File(directoryScanner.getBasedir(), s));
         }
+        // The links which were not followed are backed up themselves, like the lastSuccessfulBuild links of the jobs
+        for (String s : directoryScanner.getNotFollowedSymlinks()) {
+            // The scanner returns absolute paths, the files are inside the base directory as it was given
+            files.add(new File(directoryScanner.getBasedir(), Util.getRelativePath(new File(s), baseDir.getAbsoluteFile())));
+        }
         return files;
     }
 
+    @Override
+    public boolean isLinksPreserved() {
+        return !followSymbolicLinks;
+    }
+
     private Iterator<String> getIncludes() {
         if (this.includesString == null) {
             List<String> includes = Lists.newArrayList();
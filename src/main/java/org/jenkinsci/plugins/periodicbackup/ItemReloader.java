@@ -0,0 +1,232 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import hudson.model.AbstractItem;
+import hudson.model.Descriptor;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Items;
+import hudson.model.TopLevelItem;
+import hudson.model.User;
+import hudson.model.listeners.ItemListener;
+import hudson.security.ACL;
+import jenkins.model.DirectlyModifiableTopLevelItemGroup;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * ItemReloader reloads only the items whose files were restored instead of the whole Jenkins configuration.
+ * Restored users and descriptor configuration files are reloaded on their own as well, any other restored file
+ * outside of the item directories still requires a full reload.
+ */
+public class ItemReloader {
+
+    private static final Logger LOGGER = Logger.getLogger(ItemReloader.class.getName());
+
+    /**
+     * Directories whose files are read from the disk whenever they are used, restoring them needs no reload
+     */
+    private static final List<String> UNLOADED_DIRECTORIES = ImmutableList.of("fingerprints/", "logs/", "userContent/");
+
+    /**
+     *
+     * Reloads what is affected by the restored files
+     *
+     * @param restoredPaths paths of the restored files relative to the Jenkins home directory
+     */
+    public void reload(Collection<String> restoredPaths) {
+        Set<String> itemNames = Sets.newTreeSet();
+        Set<String> descriptorIds = Sets.newTreeSet();
+        boolean users = false;
+        boolean fullReload = false;
+        for (String path : restoredPaths) {
+            String normalized = path.replace('\\', '/');
+            String itemName = getItemFullName(normalized);
+            String descriptorId = getDescriptorId(normalized);
+            if (itemName != null) {
+                itemNames.add(itemName);
+            } else if (normalized.startsWith("users/")) {
+                users = true;
+            } else if (descriptorId != null) {
+                descriptorIds.add(descriptorId);
+            } else if (!isUnloaded(normalized)) {
+                LOGGER.info(path + " does not belong to an item, the whole configuration will be reloaded");
+                fullReload = true;
+                break;
+            }
+        }
+
+        // Reloading requires permissions the thread of the restore does not have
+        Authentication origAuth = SecurityContextHolder.getContext().getAuthentication();
+        SecurityContextHolder.getContext().setAuthentication(ACL.SYSTEM);
+        try {
+            if (fullReload) {
+                Jenkins.get().doReload();
+                return;
+            }
+            for (String descriptorId : descriptorIds) {
+                LOGGER.info("Reloading the configuration of " + descriptorId);
+                Jenkins.get().getDescriptor(descriptorId).load();
+            }
+            if (users) {
+                LOGGER.info("Reloading the users");
+                User.reload();
+            }
+            for (String itemName : getTopmost(itemNames)) {
+                reloadItem(itemName);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error reloading config files from disk: {0}", e.getMessage());
+        } finally {
+            SecurityContextHolder.getContext().setAuthentication(origAuth);
+        }
+    }
+
+    /**
+     *
+     * Returns the full name of the item a file belongs to, e.g. "folder/job" for "jobs/folder/jobs/job/builds/1/build.xml"
+     *
+     * @param path path of the file relative to the Jenkins home directory
+     * @return full name of the item or null if the file is not inside an item directory
+     */
+    static String getItemFullName(String path) {
+        String[] segments = StringUtils.split(path.replace('\\', '/'), '/');
+        List<String> names = Lists.newArrayList();
+        int i = 0;
+        while (i + 1 < segments.length && segments[i].equals("jobs")) {
+            names.add(segments[i + 1]);
+            i += 2;
+        }
+        if (i >= segments.length && !names.isEmpty()) {
+            // The last name is the file itself, placed directly inside a jobs directory
+            names.remove(names.size() - 1);
+        }
+        return names.isEmpty() ? null : StringUtils.join(names, '/');
+    }
+
+    /**
+     *
+     * Returns the id of the descriptor whose configuration is stored in the given file, e.g. "hudson.tasks.Mailer"
+     * for "hudson.tasks.Mailer.xml"
+     *
+     * @param path path of the file relative to the Jenkins home directory
+     * @return id of the descriptor or null if the file is not the configuration of a known descriptor
+     */
+    private static String getDescriptorId(String path) {
+        if (path.contains("/") || !path.endsWith(".xml")) {
+            return null;
+        }
+        String id = StringUtils.removeEnd(path, ".xml");
+        Descriptor descriptor = Jenkins.get().getDescriptor(id);
+        return descriptor != null ? id : null;
+    }
+
+    private static boolean isUnloaded(String path) {
+        for (String directory : UNLOADED_DIRECTORIES) {
+            if (path.startsWith(directory)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *
+     * Drops the items placed inside another reloaded item, loading a folder loads its children again
+     */
+    private static List<String> getTopmost(Set<String> itemNames) {
+        List<String> topmost = Lists.newArrayList();
+        for (String itemName : itemNames) {
+            boolean nested = false;
+            for (String other : itemNames) {
+                if (itemName.startsWith(other + "/")) {
+                    nested = true;
+                    break;
+                }
+            }
+            if (!nested) {
+                topmost.add(itemName);
+            }
+        }
+        return topmost;
+    }
+
+    private void reloadItem(String fullName) throws IOException {
+        Jenkins jenkins = Jenkins.get();
+        Item item = jenkins.getItemByFullName(fullName);
+        if (item instanceof AbstractItem) {
+            LOGGER.info("Reloading " + fullName);
+            ((AbstractItem) item).doReload();
+            return;
+        }
+        if (item != null) {
+            LOGGER.warning(fullName + " cannot be reloaded on its own, the whole configuration will be reloaded");
+            jenkins.doReload();
+            return;
+        }
+
+        // The item was deleted, it is loaded from the restored directory and added to its parent
+        String parentName = StringUtils.substringBeforeLast(fullName, "/");
+        String name = StringUtils.substringAfterLast("/" + fullName, "/");
+        Object parent = fullName.contains("/") ? jenkins.getItemByFullName(parentName) : jenkins;
+        if (!(parent instanceof DirectlyModifiableTopLevelItemGroup) || !(parent instanceof ItemGroup)) {
+            LOGGER.warning("The parent of " + fullName + " cannot be found, the whole configuration will be reloaded");
+            jenkins.doReload();
+            return;
+        }
+        LOGGER.info("Loading restored item " + fullName);
+        Item loaded = Items.load((ItemGroup) parent, getItemDirectory(fullName));
+        if (!(loaded instanceof TopLevelItem)) {
+            LOGGER.warning(fullName + " is not a top level item, the whole configuration will be reloaded");
+            jenkins.doReload();
+            return;
+        }
+        ((DirectlyModifiableTopLevelItemGroup) parent).add((TopLevelItem) loaded, name);
+        ItemListener.fireOnCreated(loaded);
+    }
+
+    private static File getItemDirectory(String fullName) {
+        File directory = Jenkins.get().getRootDir();
+        for (String name : StringUtils.split(fullName, '/')) {
+            directory = new File(new File(directory, "jobs"), name);
+        }
+        return directory;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import hudson.model.Computer;
+import jenkins.model.Jenkins;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ *
+ * LoadMonitor samples the load of the controller (busy executors, buildable queue items and system load average)
+ * while a backup is running and slows down or pauses the backup stages while that load is too high.
+ * A threshold lower or equal to zero disables the corresponding check.
+ * While slowed down, every thread of the backup sleeps in proportion to the time it worked, so the
+ * delay depends on the duration of the backup instead of the number of files.
+ */
+public class LoadMonitor {
+
+    /**
+     * Pace at which the backup stages are allowed to proceed
+     */
+    public enum Pace { NORMAL, SLOW, PAUSED }
+
+    private static final Logger LOGGER = Logger.getLogger(LoadMonitor.class.getName());
+
+    static final long SAMPLE_INTERVAL = TimeUnit.SECONDS.toMillis(5);   // Minimum time between two samples
+    static final double SLOW_SLEEP_RATIO = 1.0;                         // Time slept per unit of time worked while slowed down
+    static final long MIN_WORK_SLICE = 250;                             // Work time in ms before a thread sleeps while slowed down
+    static final long PAUSE_POLL_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+    static final long MAX_PAUSE = TimeUnit.MINUTES.toMillis(30);        // The backup is resumed after this time even if the load is still high
+    static final double PAUSE_FACTOR = 1.5;                             // Pressure above which the backup is paused instead of slowed down
+
+    private final boolean enabled;
+    private final int maxBusyExecutorsPercent;
+    private final int maxQueueLength;
+    private final double maxLoadAverage;
+
+    private final LongSupplier clock;
+    private final Sleeper sleeper;
+    private final Supplier<Sample> sampler;
+    // Start of the work of each thread since it last slept
+    private final ThreadLocal<Long> workStart = new ThreadLocal<Long>();
+
+    private Pace pace = Pace.NORMAL;
+    private long lastSampleTime;
+
+    public LoadMonitor(boolean enabled, int maxBusyExecutorsPercent, int maxQueueLength, double maxLoadAverage) {
+        this(enabled, maxBusyExecutorsPercent, maxQueueLength, maxLoadAverage, System::currentTimeMillis, Thread::sleep, Sample::take);
+    }
+
+    LoadMonitor(boolean enabled, int maxBusyExecutorsPercent, int maxQueueLength, double maxLoadAverage,
+                LongSupplier clock, Sleeper sleeper, Supplier<Sample> sampler) {
+        this.enabled = enabled;
+        this.maxBusyExecutorsPercent = maxBusyExecutorsPercent;
+        this.maxQueueLength = maxQueueLength;
+        this.maxLoadAverage = maxLoadAverage;
+        this.clock = clock;
+        this.sleeper = sleeper;
+        this.sampler = sampler;
+    }
+
+    /**
+     *
+     * @return LoadMonitor which never slows down the backup
+     */
+    public static LoadMonitor disabled() {
+        return new LoadMonitor(false, 0, 0, 0);
+    }
+
+    /**
+     *
+     * @param link plugin configuration
+     * @return LoadMonitor configured according to the given PeriodicBackupLink
+     */
+    public static LoadMonitor forLink(PeriodicBackupLink link) {
+        return new LoadMonitor(link.isLoadAwarePacing(), link.getMaxBusyExecutorsPercent(), link.getMaxQueueLength(), link.getMaxLoadAverage());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized Pace getPace() {
+        return pace;
+    }
+
+    /**
+     *
+     * Called by the backup stages before each unit of work (file, archive, upload).
+     * Depending on the current load it returns immediately, sleeps as long as the calling thread worked
+     * since its last sleep or blocks until the load drops.
+     *
+     * @param stage name of the calling stage, used in the log
+     */
+    public void pace(String stage) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            Pace current = update(stage, false);
+            long now = clock.getAsLong();
+            Long start = workStart.get();
+            if (current == Pace.SLOW && start != null) {
+                long worked = now - start;
+                if (worked >= MIN_WORK_SLICE) {
+                    // The load is sampled again after the sleep
+                    sleeper.sleep(Math.min((long) (worked * SLOW_SLEEP_RATIO), SAMPLE_INTERVAL));
+                    workStart.set(clock.getAsLong());
+                }
+                return;
+            }
+            if (current == Pace.PAUSED) {
+                long pauseStart = now;
+                while (current == Pace.PAUSED) {
+                    if (clock.getAsLong() - pauseStart >= MAX_PAUSE) {
+                        LOGGER.info("Backup " + stage + " has been paused for " + TimeUnit.MILLISECONDS.toMinutes(MAX_PAUSE) + " minutes, resuming despite the load");
+                        break;
+                    }
+                    sleeper.sleep(PAUSE_POLL_INTERVAL);
+                    current = update(stage, true);
+                }
+            }
+            workStart.set(clock.getAsLong());
+        } catch (InterruptedException e) {
+            LOGGER.warning("Backup " + stage + " was interrupted while waiting for the load to drop");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     *
+     * Samples the load if the last sample is old enough and records pace changes in the log
+     *
+     * @param stage name of the calling stage
+     * @param force sample even if the last sample is recent
+     * @return the current pace
+     */
+    private synchronized Pace update(String stage, boolean force) {
+        long now = clock.getAsLong();
+        if (!force && now - lastSampleTime < SAMPLE_INTERVAL) {
+            return pace;
+        }
+        lastSampleTime = now;
+        Sample sample = sampler.get();
+        Pace newPace = evaluate(sample);
+        if (newPace != pace) {
+            LOGGER.info("Backup pace changed from " + pace + " to " + newPace + " during " + stage + " (" + sample + ")");
+            pace = newPace;
+        }
+        return pace;
+    }
+
+    /**
+     *
+     * Computes the pace for the given load sample
+     *
+     * @param sample the load sample
+     * @return NORMAL when all the measures are below their thresholds, PAUSED when one of them exceeds
+     * its threshold by PAUSE_FACTOR, SLOW otherwise
+     */
+    Pace evaluate(Sample sample) {
+        double pressure = 0;
+        if (maxBusyExecutorsPercent > 0 && sample.totalExecutors > 0) {
+            double busyPercent = 100.0 * sample.busyExecutors / sample.totalExecutors;
+            pressure = Math.max(pressure, busyPercent / maxBusyExecutorsPercent);
+        }
+        if (maxQueueLength > 0) {
+            pressure = Math.max(pressure, (double) sample.queueLength / maxQueueLength);
+        }
+        // A negative load average means it is not available on this platform
+        if (maxLoadAverage > 0 && sample.loadAveragePerCore >= 0) {
+            pressure = Math.max(pressure, sample.loadAveragePerCore / maxLoadAverage);
+        }
+        if (pressure >= PAUSE_FACTOR) {
+            return Pace.PAUSED;
+        }
+        if (pressure >= 1) {
+            return Pace.SLOW;
+        }
+        return Pace.NORMAL;
+    }
+
+    /**
+     *
+     * Sleeps the calling thread, replaced in tests
+     */
+    interface Sleeper {
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    /**
+     *
+     * Snapshot of the controller load
+     */
+    static class Sample {
+        final int busyExecutors;
+        final int totalExecutors;
+        final int queueLength;
+        final double loadAveragePerCore;
+
+        Sample(int busyExecutors, int totalExecutors, int queueLength, double loadAveragePerCore) {
+            this.busyExecutors = busyExecutors;
+            this.totalExecutors = totalExecutors;
+            this.queueLength = queueLength;
+            this.loadAveragePerCore = loadAveragePerCore;
+        }
+
+        static Sample take() {
+            Jenkins jenkins = Jenkins.get();
+            int busy = 0;
+            int total = 0;
+            for (Computer computer : jenkins.getComputers()) {
+                if (computer.isOnline()) {
+                    busy += computer.countBusy();
+                    total += computer.countExecutors();
+                }
+            }
+            double loadAverage = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+            if (loadAverage >= 0) {
+                loadAverage = loadAverage / Runtime.getRuntime().availableProcessors();
+            }
+            return new Sample(busy, total, jenkins.getQueue().countBuildableItems(), loadAverage);
+        }
+
+        @Override
+        public String toString() {
+            return "busy executors: " + busyExecutors + "/" + totalExecutors + ", queue length: " + queueLength
+                    + ", load average per core: " + String.format("%.2f", loadAveragePerCore);
+        }
+    }
+}
@@ -25,10 +25,10 @@
 package org.jenkinsci.plugins.periodicbackup;
 
 import com.google.common.base.Objects;
+import com.google.common.base.Predicates;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
-import com.google.common.io.Files;
 import hudson.Extension;
 import hudson.RestrictedSince;
 import hudson.util.FormValidation;
@@ -38,7 +38,9 @@ import org.kohsuke.stapler.QueryParameter;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -88,7 +90,9 @@ public class LocalDirectory extends Location {
         // The sorting will be performed according to the timestamp
         Collections.sort(backupObjectFiles);
 
-        return Iterables.transform(backupObjectFiles, BackupObject.getFromFile());
+        // Parse the files once, unreadable ones are skipped
+        return Lists.newArrayList(Iterables.filter(Iterables.transform(backupObjectFiles, BackupObject.getFromFile(this)),
+                Predicates.notNull()));
     }
 
     @Override
@@ -97,15 +101,15 @@ public class LocalDirectory extends Location {
             for (File archive : archives) {
                 File destination = new File(path, archive.getName());
                 if(archive.isDirectory()) {
-                    FileUtils.copyDirectory(archive, destination);
+                    Util.copyDirectory(archive, destination);
                 }
                 else {
-                    Files.copy(archive, destination);
+                    Util.copyFile(archive, destination);
                 }
                 LOGGER.info(archive.getName() + " copied to " + destination.getAbsolutePath());
             }
             File backupObjectFileDestination = new File(path, backupObjectFile.getName());
-            Files.copy(backupObjectFile, backupObjectFileDestination);
+            Util.copyFile(backupObjectFile, backupObjectFileDestination);
             LOGGER.info(backupObjectFile.getName() + " copied to " + backupObjectFileDestination.getAbsolutePath());
         }
         else {
@@ -118,8 +122,7 @@ public class LocalDirectory extends Location {
         // Get the list of archive files related to the given BackupObject
         File[] files = Util.listFiles(path, new FileFilter() {
             public boolean accept(File pathname) {
-                return (pathname.getName().contains( Util.getFormattedDate(BackupObject.FILE_TIMESTAMP_PATTERN, backup.getTimestamp())) &&
-                        !pathname.getName().endsWith(BackupObject.EXTENSION));
+                return backup.isArchive(pathname.getName());
             }
         });
         if(files.length <= 0) {
@@ -143,10 +146,10 @@ public class LocalDirectory extends Location {
             }
             LOGGER.info("Copying " + file.getAbsolutePath() + " to " + copiedFile.getAbsolutePath());
             if(file.isDirectory()) {
-                FileUtils.copyDirectory(file, copiedFile);
+                Util.copyDirectory(file, copiedFile);
             }
             else {
-                FileUtils.copyFile(file, copiedFile);
+                Util.copyFile(file, copiedFile);
             }
             LOGGER.info("Archive " + file.getAbsolutePath() + " copied to " + copiedFile.getAbsolutePath());
             archivesInTemp.add(copiedFile);
@@ -154,9 +157,25 @@ public class LocalDirectory extends Location {
         return archivesInTemp;
     }
 
+    @Override
+    public InputStream openBackupFile(String fileName) throws IOException {
+        return new FileInputStream(new File(path, fileName));
+    }
+
+    @Override
+    public InputStream openBackupFile(String fileName, long offset) throws IOException {
+        FileInputStream in = new FileInputStream(new File(path, fileName));
+        try {
+            in.getChannel().position(offset);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+
     @Override
     public void deleteBackupFiles(BackupObject backupObject) {
-        String filenamePart = Util.generateFileNameBase(backupObject.getTimestamp());
         final File[] files;
         try {
             files = Util.listFiles(path);
@@ -165,9 +184,9 @@ public class LocalDirectory extends Location {
             return;
         }
 
-        // Delete all the files containing the timestamp of the given BackupObject in their names
+        // Delete the archives, the BackupObject file and the metadata sidecar of the given BackupObject
         for(File file : files) {
-            if (file.getAbsolutePath().contains(filenamePart)) {
+            if (backupObject.isBackupFile(file.getName())) {
                 if(file.isDirectory()) {
                     LOGGER.info("Deleting old/redundant backup archive directory " + file.getAbsolutePath());
                     try {
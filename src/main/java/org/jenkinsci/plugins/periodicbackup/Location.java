@@ -24,12 +24,16 @@
 
 package org.jenkinsci.plugins.periodicbackup;
 
+import com.google.common.collect.Iterables;
 import hudson.DescriptorExtensionList;
 import hudson.model.AbstractModelObject;
 import hudson.model.Describable;
+import org.apache.commons.io.IOUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
 import jenkins.model.Jenkins;
 
 /**
@@ -62,6 +66,20 @@ public abstract class Location extends AbstractModelObject implements Describabl
      */
     public abstract void storeBackupInLocation(Iterable<File> archives, File backupObjectFile) throws IOException;
 
+    /**
+     *
+     * This method puts archived backup file(s) and the metadata sidecar in location.
+     * By default the sidecar is stored like an archive, before the BackupObject file.
+     *
+     * @param archives archive file(s)
+     * @param backupObjectFile File with serialized backupObject
+     * @param metadataFile File with the BackupMetadata of the backup
+     * @throws java.io.IOException IO error
+     */
+    public void storeBackupInLocation(Iterable<File> archives, File backupObjectFile, File metadataFile) throws IOException {
+        storeBackupInLocation(Iterables.concat(archives, Collections.singleton(metadataFile)), backupObjectFile);
+    }
+
     /**
      *
      * Retrieves backup archive files from this location
@@ -74,6 +92,42 @@ public abstract class Location extends AbstractModelObject implements Describabl
      */
     public abstract Iterable<File>retrieveBackupFromLocation(BackupObject backup, File tempDir) throws IOException, PeriodicBackupException;
 
+    /**
+     *
+     * Opens a single backup file (archive or metadata sidecar) stored in this location for reading,
+     * without copying it to a temporary directory
+     *
+     * @param fileName name of the file
+     * @return stream with the content of the file, the caller closes it
+     * @throws java.io.IOException if the file cannot be read
+     * @throws UnsupportedOperationException if this location cannot stream its files
+     */
+    public InputStream openBackupFile(String fileName) throws IOException {
+        throw new UnsupportedOperationException(getDisplayName() + " does not support reading single backup files");
+    }
+
+    /**
+     *
+     * Opens a single backup file stored in this location for reading from the given offset.
+     * By default the beginning of the file is read and skipped, locations supporting ranged reads override this.
+     *
+     * @param fileName name of the file
+     * @param offset number of bytes to skip
+     * @return stream with the content of the file starting at the offset, the caller closes it
+     * @throws java.io.IOException if the file cannot be read
+     * @throws UnsupportedOperationException if this location cannot stream its files
+     */
+    public InputStream openBackupFile(String fileName, long offset) throws IOException {
+        InputStream in = openBackupFile(fileName);
+        try {
+            IOUtils.skipFully(in, offset);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(in);
+            throw e;
+        }
+        return in;
+    }
+
     /**
      * This method deletes all files related to given BackupObject
      * @param backupObject the backupObject of the backup we want to delete
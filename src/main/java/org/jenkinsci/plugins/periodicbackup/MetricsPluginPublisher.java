@@ -0,0 +1,61 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import jenkins.metrics.api.Metrics;
+
+/**
+ *
+ * Registers BackupMetrics in the registry of the metrics plugin, this class is only loaded
+ * when the plugin is installed
+ */
+final class MetricsPluginPublisher {
+
+    private MetricsPluginPublisher() {
+    }
+
+    static void register(String name, final BackupMetrics.Stats stats) {
+        MetricRegistry registry = Metrics.metricRegistry();
+        registry.register(MetricRegistry.name(name, "runs"), (Gauge<Long>) stats::getRuns);
+        registry.register(MetricRegistry.name(name, "errors"), (Gauge<Long>) stats::getErrors);
+        registry.register(MetricRegistry.name(name, "retries"), (Gauge<Long>) stats::getRetries);
+        registry.register(MetricRegistry.name(name, "files"), (Gauge<Long>) stats::getFiles);
+        registry.register(MetricRegistry.name(name, "bytesIn"), (Gauge<Long>) stats::getBytesIn);
+        registry.register(MetricRegistry.name(name, "bytesOut"), (Gauge<Long>) stats::getBytesOut);
+        registry.register(MetricRegistry.name(name, "lastMillis"), (Gauge<Long>) stats::getLastMillis);
+        registry.register(MetricRegistry.name(name, "lastCompressionRatio"), (Gauge<Double>) stats::getLastCompressionRatio);
+        registry.register(MetricRegistry.name(name, "lastThroughput"), (Gauge<Long>) stats::getLastThroughput);
+    }
+
+    static void register(final BackupReplicator replicator) {
+        MetricRegistry registry = Metrics.metricRegistry();
+        registry.register("periodicbackup.replication.queued", (Gauge<Integer>) () -> replicator.getPending().size());
+        registry.register("periodicbackup.replication.lag", (Gauge<Long>) replicator::getLag);
+        registry.register("periodicbackup.replication.lastLag", (Gauge<Long>) replicator::getLastLag);
+    }
+}
@@ -24,6 +24,8 @@
 
 package org.jenkinsci.plugins.periodicbackup;
 
+import com.google.common.base.Predicate;
+import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import hudson.Extension;
 import org.apache.commons.io.FileUtils;
@@ -31,8 +33,8 @@ import org.kohsuke.stapler.DataBoundConstructor;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.logging.Logger;
-import jenkins.model.Jenkins;
 
 public class NullStorage extends Storage {
 
@@ -57,13 +59,21 @@ public class NullStorage extends Storage {
                 LOGGER.warning("Could not delete destination directory " + destinationDirectory.getAbsolutePath());
             }
         }
+        PeriodicBackupLink link = PeriodicBackupLink.get();
+        if (link != null && !Strings.isNullOrEmpty(link.getEncryptionCredentialsId())) {
+            LOGGER.warning("NullStorage does not create archives, the backup files are stored without encryption");
+        }
     }
 
     @Override
     public void backupAddFile(File fileToStore) throws PeriodicBackupException {
         try {
-            FileUtils.copyFile(fileToStore, new File(destinationDirectory,
-                    Util.getRelativePath(fileToStore, Jenkins.getActiveInstance().getRootDir())));
+            File destination = new File(destinationDirectory, Util.getRelativePath(fileToStore, getRootDirectory()));
+            if (isPreserveLinks()) {
+                Util.copyFileOrLink(fileToStore, destination);
+            } else {
+                Util.copyFile(fileToStore, destination);
+            }
         } catch (IOException e) {
             LOGGER.warning("Could not copy " + fileToStore.getAbsolutePath() + " to " + destinationDirectory);
         }
@@ -81,10 +91,10 @@ public class NullStorage extends Storage {
             try {
                 LOGGER.info("Copying " + archive.getAbsolutePath() + " to " + finalResultDir.getAbsolutePath());
                 if(archive.isDirectory()) {
-                    FileUtils.copyDirectory(archive, finalResultDir);
+                    Util.copyDirectory(archive, finalResultDir);
                 }
                 else {
-                    FileUtils.copyFile(archive, new File(finalResultDir, archive.getName()));
+                    Util.copyFile(archive, new File(finalResultDir, archive.getName()));
                 }
             } catch (IOException e) {
                 LOGGER.warning("Error during copying " + archive.getAbsolutePath() + " to " + finalResultDir.getAbsolutePath());
@@ -92,6 +102,33 @@ public class NullStorage extends Storage {
         }
     }
 
+    @Override
+    public void unarchiveFiles(Iterable<File> archives, File finalResultDir, Predicate<String> entryFilter) {
+        for (File archive : archives) {
+            if (!archive.isDirectory()) {
+                continue;
+            }
+            // Only the selected files are copied
+            List<File> files;
+            try {
+                files = Util.listFilesAndLinks(archive);
+            } catch (IOException e) {
+                LOGGER.warning("Could not list " + archive.getAbsolutePath() + " " + e.getMessage());
+                continue;
+            }
+            for (File file : files) {
+                String relativePath = Util.getRelativePath(file, archive);
+                if (entryFilter.apply(relativePath)) {
+                    try {
+                        Util.copyFileOrLink(file, new File(finalResultDir, relativePath));
+                    } catch (IOException e) {
+                        LOGGER.warning("Error during copying " + file.getAbsolutePath() + " to " + finalResultDir.getAbsolutePath());
+                    }
+                }
+            }
+        }
+    }
+
     public String getDisplayName() {
         return "NullStorage";
     }
@@ -22,29 +22,222 @@
  * THE SOFTWARE.
  */
 
+
 package org.jenkinsci.plugins.periodicbackup;
 
-import org.apache.commons.io.FileUtils;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import jenkins.model.Jenkins;
 
 /**
  *
  * This RestorePolicy assumes that at this stage all the files in tempDir are the files to be restored.
- * The whole content of the tempDir will be copied to the home directory and the existing files will be overwritten.
+ * The files of the tempDir which differ from the files in the home directory are copied over them, the other
+ * files of the home directory are kept. A file differs if its size or its modification time is different,
+ * or if its content is different when the content is compared.
  */
 public class OverwriteRestorePolicy implements RestorePolicy {
 
     private static final Logger LOGGER = Logger.getLogger(OverwriteRestorePolicy.class.getName());
 
-    public void restore(File tempDir) throws IOException {
-        File hudsonRoot = Jenkins.getActiveInstance().getRootDir();
+    /**
+     * Modification times closer than this are the same, zip archives store them with a precision of two seconds
+     */
+    private static final long MODIFICATION_TIME_TOLERANCE = 2000;
+
+    /**
+     * Number of files compared and copied in parallel
+     */
+    private static final int THREADS = Math.max(1,
+            SystemProperties.getInteger(OverwriteRestorePolicy.class.getName() + ".threads", 4));
+
+    /**
+     * Compares the content of the files with the same size instead of their modification time
+     */
+    private static final boolean COMPARE_CONTENT = SystemProperties.getBoolean(OverwriteRestorePolicy.class.getName() + ".compareContent");
+
+    private transient Report report;
+
+    public void restore(File tempDir) throws IOException, PeriodicBackupException {
+        restore(tempDir, Jenkins.getActiveInstance().getRootDir(), COMPARE_CONTENT);
+    }
+
+    /**
+     *
+     * Copies the files of the tempDir which differ from the files of the destination directory
+     *
+     * @param tempDir directory with the unpacked content of the backup
+     * @param destinationDir directory where the files are restored
+     * @param compareContent true if the content of the files with the same size is compared
+     * @throws IOException If an IO problem occurs
+     * @throws PeriodicBackupException If interrupted
+     */
+    void restore(final File tempDir, final File destinationDir, final boolean compareContent) throws IOException, PeriodicBackupException {
+        Collection<File> files = Util.listFilesAndLinks(tempDir);
+        final BackupProgress.PhaseProgress progress = BackupProgress.get().get(BackupMetrics.Phase.RESTORE_COPY)
+                .addTotal(files.size(), 0);
+        final Report report = new Report();
+        final Util.Copier copier = new Util.Copier();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS,
+                new NamingThreadFactory(new DaemonThreadFactory(), "PeriodicBackup restore"));
+        try {
+            List<Future<Void>> futures = Lists.newArrayList();
+            for (final File file : files) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        String relativePath = Util.getRelativePath(file, tempDir);
+                        File destination = new File(destinationDir, relativePath);
+                        Change change = compare(file, destination, compareContent);
+                        if (change != Change.UNCHANGED) {
+                            copier.copy(file, destination);
+                        }
+                        report.add(change, relativePath);
+                        progress.addDone(1, change != Change.UNCHANGED ? file.length() : 0);
+                        return null;
+                    }
+                }));
+            }
+            IOException failure = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                                : new IOException("Could not restore the files", e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new PeriodicBackupException("Interrupted while restoring the files", e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        this.report = report;
+        LOGGER.info("Restoring of files finished. " + report);
+    }
+
+    private static Change compare(File source, File destination, boolean compareContent) throws IOException {
+        if (Util.isSymbolicLink(destination)) {
+            return Util.isSymbolicLink(source) && Util.readSymbolicLink(source).equals(Util.readSymbolicLink(destination))
+                    ? Change.UNCHANGED : Change.UPDATED;
+        }
+        if (Util.isSymbolicLink(source)) {
+            return destination.exists() ? Change.UPDATED : Change.ADDED;
+        }
+        if (!destination.isFile()) {
+            return Change.ADDED;
+        }
+        if (source.length() != destination.length()) {
+            return Change.UPDATED;
+        }
+        if (compareContent) {
+            return Util.contentEquals(source, destination) ? Change.UNCHANGED : Change.UPDATED;
+        }
+        return Math.abs(source.lastModified() - destination.lastModified()) <= MODIFICATION_TIME_TOLERANCE
+                ? Change.UNCHANGED : Change.UPDATED;
+    }
+
+    /**
+     *
+     * @return what the last restore changed, null if nothing was restored since Jenkins started
+     */
+    public Report getReport() {
+        return report;
+    }
+
+    @Override
+    public Collection<String> getChangedPaths() {
+        if (report == null) {
+            return null;
+        }
+        List<String> changed = Lists.newArrayList(report.getAdded());
+        changed.addAll(report.getUpdated());
+        return changed;
+    }
 
-        FileUtils.copyDirectory(tempDir, hudsonRoot);
-        LOGGER.info("Restoring of files finished");
+    public enum Change {
+        ADDED, UPDATED, UNCHANGED
     }
 
+    /**
+     *
+     * Files changed by a restore, as paths relative to the home directory
+     */
+    public static final class Report {
+
+        /**
+         * Maximum number of changed files named in the log
+         */
+        private static final int MAX_LOGGED_FILES = 100;
+
+        private final List<String> added = Lists.newArrayList();
+        private final List<String> updated = Lists.newArrayList();
+        private int unchanged;
+
+        synchronized void add(Change change, String relativePath) {
+            switch (change) {
+                case ADDED:
+                    added.add(relativePath);
+                    break;
+                case UPDATED:
+                    updated.add(relativePath);
+                    break;
+                default:
+                    unchanged++;
+            }
+        }
+
+        public synchronized List<String> getAdded() {
+            return ImmutableList.copyOf(added);
+        }
+
+        public synchronized List<String> getUpdated() {
+            return ImmutableList.copyOf(updated);
+        }
+
+        public synchronized int getUnchanged() {
+            return unchanged;
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder result = new StringBuilder();
+            result.append(added.size()).append(" files added, ").append(updated.size()).append(" files updated, ")
+                    .append(unchanged).append(" files unchanged.");
+            int logged = 0;
+            for (String path : added) {
+                if (logged++ < MAX_LOGGED_FILES) {
+                    result.append("\n  added ").append(path);
+                }
+            }
+            for (String path : updated) {
+                if (logged++ < MAX_LOGGED_FILES) {
+                    result.append("\n  updated ").append(path);
+                }
+            }
+            if (logged > MAX_LOGGED_FILES) {
+                result.append("\n  and ").append(logged - MAX_LOGGED_FILES).append(" more");
+            }
+            return result.toString();
+        }
+    }
 }
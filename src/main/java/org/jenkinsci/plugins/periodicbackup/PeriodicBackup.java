@@ -24,26 +24,37 @@
 
 package org.jenkinsci.plugins.periodicbackup;
 
-import antlr.ANTLRException;
+import com.google.common.collect.Sets;
 import hudson.Extension;
 import hudson.model.AsyncPeriodicWork;
 import hudson.model.TaskListener;
-import org.codehaus.plexus.archiver.ArchiverException;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 
-import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import hudson.scheduler.CronTab;
 
 /**
  *
  * PeriodicBackup is responsible for performing backups periodically
- * according to configured first backup time and backup frequency
+ * according to configured first backup time and backup frequency.
+ * Every backup profile runs on its own thread, so the backups of independent profiles overlap
+ * while the ones storing their backups in the same Location wait for each other.
  */
 @Extension
 public class PeriodicBackup extends AsyncPeriodicWork {
 
     private static final Logger LOGGER = Logger.getLogger(PeriodicBackup.class.getName());
 
+    private final ExecutorService profileExecutor = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "PeriodicBackup profile"));
+    private final Set<String> runningProfiles = Sets.newHashSet();     // Profiles started and not finished yet, guarded by this
+    private final Set<String> busyResources = Sets.newHashSet();       // Resources used by the running backups, guarded by this
+
     public PeriodicBackup() {
         super("PeriodicBackup");
     }
@@ -51,35 +62,91 @@ public class PeriodicBackup extends AsyncPeriodicWork {
     @Override
     protected void execute(TaskListener taskListener) {
         PeriodicBackupLink link = PeriodicBackupLink.get();
-        String cron = link.getCron();
-        if(cron != null) {
-            try {
-
-                CronTab cronTab = new CronTab(link.getCron());
-                long currentTime = System.currentTimeMillis();
-                if ((cronTab.ceil(currentTime).getTimeInMillis() - currentTime) == 0 || link.isBackupNow()) {
-                    link.setBackupNow(false);
-                    BackupExecutor executor = new BackupExecutor();
-                    try {
-                        executor.backup(link.getFileManagerPlugin(), link.getStorages(), link.getLocations(), link.getTempDirectory(), link.getCycleQuantity(), link.getCycleDays());
-                    } catch (PeriodicBackupException e) {
-                        LOGGER.warning("Backup failure " + e.getMessage());
-                    } catch (IOException e) {
-                        LOGGER.warning("Backup failure " + e.getMessage());
-                    } catch (ArchiverException e) {
-                        LOGGER.warning("Backup failure " + e.getMessage());
-                    } finally {
-                        // Setting message to an empty String will make the "Creating backup..." message disappear in the UI
-                        link.setMessage("");
-                    }
+        long now = System.currentTimeMillis();
+        for (BackupProfile profile : link.getAllProfiles()) {
+            if (profile.isDue(now, link.getMissedBackupPolicy())) {
+                try {
+                    start(profile);
+                    profile.started(now);
+                } catch (PeriodicBackupException e) {
+                    // The schedule is not moved on, the backup is tried again at the next check
+                    LOGGER.warning("The scheduled backup of the profile " + profile.getDisplayName() + " could not be started. " + e.getMessage());
                 }
-            } catch (ANTLRException e) {
-                LOGGER.warning("Could not parse given cron tab! " + e.getMessage());
             }
         }
-        else {
-            LOGGER.warning("Cron is not defined.");
+    }
+
+    /**
+     *
+     * Starts a backup of the given profile in the background. It waits for the running backups of the profiles
+     * sharing a Location with it.
+     *
+     * @param profile the profile to back up
+     * @throws PeriodicBackupException if the profile is already running or a restore or verification is running
+     */
+    public void start(final BackupProfile profile) throws PeriodicBackupException {
+        final String name = profile.getDisplayName();
+        synchronized (this) {
+            if (!runningProfiles.add(name)) {
+                throw new PeriodicBackupException("The backup of the profile " + name + " is already running");
+            }
+        }
+        try {
+            BackupProgress.get().startBackup();
+        } catch (PeriodicBackupException e) {
+            finished(name);
+            throw e;
+        }
+        profileExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    run(profile);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Backup failure of the profile " + name, e);
+                } finally {
+                    // Finishing the progress will make the "Creating backup..." message disappear in the UI
+                    BackupProgress.get().finish();
+                    finished(name);
+                }
+            }
+
+            private void run(BackupProfile profile) {
+                Set<String> resources = profile.getResources();
+                try {
+                    acquire(resources);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    LOGGER.warning("Interrupted while waiting to start the backup of the profile " + name);
+                    return;
+                }
+                try {
+                    profile.backup(PeriodicBackupLink.get());
+                } finally {
+                    release(resources);
+                }
+            }
+        });
+    }
+
+    private synchronized void finished(String name) {
+        runningProfiles.remove(name);
+    }
+
+    /**
+     *
+     * Waits until none of the given resources is used by another backup and takes all of them at once,
+     * so the waiting backups cannot deadlock
+     */
+    private synchronized void acquire(Set<String> resources) throws InterruptedException {
+        while (!Collections.disjoint(busyResources, resources)) {
+            wait();
         }
+        busyResources.addAll(resources);
+    }
+
+    private synchronized void release(Set<String> resources) {
+        busyResources.removeAll(resources);
+        notifyAll();
     }
 
     @Override
@@ -38,7 +38,7 @@ public class PeriodicBackupConfigurator extends BaseConfigurator<PeriodicBackupL
 
 
     protected Set<String> exclusions() {
-        return ImmutableSet.of("message", "backupNow");
+        return ImmutableSet.of("message", "nextBackup", "defaultProfile", "allProfiles", "allLocations");
     }
 
     @Override
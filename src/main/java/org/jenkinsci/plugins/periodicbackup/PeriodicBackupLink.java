@@ -26,7 +26,12 @@
 package org.jenkinsci.plugins.periodicbackup;
 
 import antlr.ANTLRException;
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import hudson.BulkChange;
 import hudson.Extension;
 import hudson.RestrictedSince;
@@ -36,8 +41,11 @@ import hudson.model.Descriptor;
 import hudson.model.ManagementLink;
 import hudson.model.Saveable;
 import hudson.scheduler.CronTab;
+import hudson.security.ACL;
 import hudson.util.DescribableList;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
@@ -47,8 +55,13 @@ import javax.servlet.ServletException;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.acegisecurity.AccessDeniedException;
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 import jenkins.model.Jenkins;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
@@ -68,13 +81,27 @@ public class PeriodicBackupLink extends ManagementLink implements Describable<Pe
     private FileManager fileManagerPlugin = null;
     private final DescribableList<Location, LocationDescriptor> locationPlugins = new DescribableList<Location, LocationDescriptor>(this);
     private final DescribableList<Storage, StorageDescriptor> storagePlugins = new DescribableList<Storage, StorageDescriptor>(this);
+    private List<BackupProfile> profiles = Lists.newArrayList();     // Additional backup profiles with their own schedules
 
-    private transient String message;   // Message shown on the web page when the backup/restore is performed
-    private boolean backupNow = false;  // Flag to determine if backup is triggered by cron or manually
     private String tempDirectory;       // Temporary directory for local storage of files, it should not be placed anywhere inside the Jenkins homedir
     private String cron;                // Backup schedule (cron like)
     private int cycleQuantity;          // Maximum amount of backups allowed
     private int cycleDays;              // Maximum number of days to keep the backup for
+    private boolean loadAwarePacing;    // Slow down or pause the backup while the controller is under load
+    private int maxBusyExecutorsPercent = 90;   // Busy executors (in percent of all online executors) above which the backup is slowed down
+    private int maxQueueLength = 20;            // Number of buildable items in the queue above which the backup is slowed down
+    private double maxLoadAverage = 1.0;        // System load average per CPU core above which the backup is slowed down
+    private int requiredLocations;      // Number of locations which have to store the backup successfully, 0 means all enabled locations
+    private BackupSchedule.MissedBackupPolicy missedBackupPolicy = BackupSchedule.MissedBackupPolicy.RUN_ONCE;   // What happens when the time of a scheduled backup passed without it being started
+    private int checkpointMaxAgeHours = 24;     // Age after which an interrupted backup is started again instead of resumed, 0 disables resuming
+    private String encryptionCredentialsId;     // Secret text credentials the archives are encrypted with, none means no encryption
+    private boolean forkWorker;                 // Create the archives in a separate JVM instead of the controller JVM
+    private String workerJvmOptions;            // Options of the worker JVM, for example its heap size
+    private String workerLabel;                 // Label of the agent creating the archives, null to create them on the controller
+    private boolean workerSecrets;              // Send the secrets directory to the agent creating the archives
+    private boolean tieredReplication;          // Store the backup in the primary LocalDirectory only and replicate it to the other locations in the background
+    private boolean deduplicate;                // Store the copies of already archived files as references
+    private transient volatile String verificationResult;   // Outcome of the last backup verification
 
     public PeriodicBackupLink() throws IOException {
         load();
@@ -100,14 +127,6 @@ public class PeriodicBackupLink extends ManagementLink implements Describable<Pe
         this.cron = cron;
     }
 
-    public boolean isBackupNow() {
-        return backupNow;
-    }
-
-    public void setBackupNow(boolean backupNow) {
-        this.backupNow = backupNow;
-    }
-
     @SuppressWarnings("unused")
     public int getCycleQuantity() {
         return cycleQuantity;
@@ -129,6 +148,183 @@ public class PeriodicBackupLink extends ManagementLink implements Describable<Pe
     }
 
 
+    @SuppressWarnings("unused")
+    public boolean isLoadAwarePacing() {
+        return loadAwarePacing;
+    }
+
+    @SuppressWarnings("unused")
+    public void setLoadAwarePacing(boolean loadAwarePacing) {
+        this.loadAwarePacing = loadAwarePacing;
+    }
+
+    @SuppressWarnings("unused")
+    public int getMaxBusyExecutorsPercent() {
+        return maxBusyExecutorsPercent;
+    }
+
+    @SuppressWarnings("unused")
+    public void setMaxBusyExecutorsPercent(int maxBusyExecutorsPercent) {
+        this.maxBusyExecutorsPercent = maxBusyExecutorsPercent;
+    }
+
+    @SuppressWarnings("unused")
+    public int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    @SuppressWarnings("unused")
+    public void setMaxQueueLength(int maxQueueLength) {
+        this.maxQueueLength = maxQueueLength;
+    }
+
+    @SuppressWarnings("unused")
+    public double getMaxLoadAverage() {
+        return maxLoadAverage;
+    }
+
+    @SuppressWarnings("unused")
+    public void setMaxLoadAverage(double maxLoadAverage) {
+        this.maxLoadAverage = maxLoadAverage;
+    }
+
+    @SuppressWarnings("unused")
+    public int getRequiredLocations() {
+        return requiredLocations;
+    }
+
+    @SuppressWarnings("unused")
+    public void setRequiredLocations(int requiredLocations) {
+        this.requiredLocations = requiredLocations;
+    }
+
+    @SuppressWarnings("unused")
+    public BackupSchedule.MissedBackupPolicy getMissedBackupPolicy() {
+        return missedBackupPolicy != null ? missedBackupPolicy : BackupSchedule.MissedBackupPolicy.RUN_ONCE;
+    }
+
+    @SuppressWarnings("unused")
+    public void setMissedBackupPolicy(BackupSchedule.MissedBackupPolicy missedBackupPolicy) {
+        this.missedBackupPolicy = missedBackupPolicy;
+    }
+
+    /**
+     *
+     * @return time of the next scheduled backup or null if the cron is not valid
+     */
+    @SuppressWarnings("unused")
+    public Date getNextBackup() {
+        return getDefaultProfile().getNextBackup();
+    }
+
+    @SuppressWarnings("unused")
+    public List<BackupProfile> getProfiles() {
+        return profiles != null ? Collections.unmodifiableList(profiles) : Collections.<BackupProfile>emptyList();
+    }
+
+    @SuppressWarnings("unused")
+    public void setProfiles(List<BackupProfile> profiles) {
+        this.profiles = Lists.newArrayList(profiles);
+    }
+
+    /**
+     *
+     * @return the profile made of the FileManager, Storages, Locations, cron and retention of the main configuration
+     */
+    public BackupProfile getDefaultProfile() {
+        return new BackupProfile(null, fileManagerPlugin, locationPlugins, storagePlugins, cron, cycleQuantity, cycleDays);
+    }
+
+    /**
+     *
+     * @return the default profile followed by the additional profiles
+     */
+    public List<BackupProfile> getAllProfiles() {
+        List<BackupProfile> allProfiles = Lists.newArrayList(getDefaultProfile());
+        allProfiles.addAll(getProfiles());
+        return allProfiles;
+    }
+
+    @SuppressWarnings("unused")
+    public int getCheckpointMaxAgeHours() {
+        return checkpointMaxAgeHours;
+    }
+
+    @SuppressWarnings("unused")
+    public void setCheckpointMaxAgeHours(int checkpointMaxAgeHours) {
+        this.checkpointMaxAgeHours = checkpointMaxAgeHours;
+    }
+
+    @SuppressWarnings("unused")
+    public String getEncryptionCredentialsId() {
+        return encryptionCredentialsId;
+    }
+
+    @SuppressWarnings("unused")
+    public void setEncryptionCredentialsId(String encryptionCredentialsId) {
+        this.encryptionCredentialsId = encryptionCredentialsId;
+    }
+
+    @SuppressWarnings("unused")
+    public boolean isForkWorker() {
+        return forkWorker;
+    }
+
+    @SuppressWarnings("unused")
+    public void setForkWorker(boolean forkWorker) {
+        this.forkWorker = forkWorker;
+    }
+
+    @SuppressWarnings("unused")
+    public String getWorkerJvmOptions() {
+        return workerJvmOptions;
+    }
+
+    @SuppressWarnings("unused")
+    public void setWorkerJvmOptions(String workerJvmOptions) {
+        this.workerJvmOptions = workerJvmOptions;
+    }
+
+    @SuppressWarnings("unused")
+    public String getWorkerLabel() {
+        return workerLabel;
+    }
+
+    @SuppressWarnings("unused")
+    public void setWorkerLabel(String workerLabel) {
+        this.workerLabel = workerLabel;
+    }
+
+    @SuppressWarnings("unused")
+    public boolean isWorkerSecrets() {
+        return workerSecrets;
+    }
+
+    @SuppressWarnings("unused")
+    public void setWorkerSecrets(boolean workerSecrets) {
+        this.workerSecrets = workerSecrets;
+    }
+
+    @SuppressWarnings("unused")
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    @SuppressWarnings("unused")
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    @SuppressWarnings("unused")
+    public boolean isTieredReplication() {
+        return tieredReplication;
+    }
+
+    @SuppressWarnings("unused")
+    public void setTieredReplication(boolean tieredReplication) {
+        this.tieredReplication = tieredReplication;
+    }
+
     public String getDisplayName() {
         return Messages.displayName();
     }
@@ -138,19 +334,17 @@ public class PeriodicBackupLink extends ManagementLink implements Describable<Pe
     @RestrictedSince("1.4")
     public void doBackup(StaplerRequest req, StaplerResponse rsp) throws Exception {
         Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
-        backupNow = true;
-        PeriodicBackup.get().doRun();
-        message = "Creating backup...";
+        PeriodicBackup.get().start(getDefaultProfile());
         rsp.sendRedirect(".");
     }
 
     /**
      *
-     * Performing restore when triggered form restore web page, backupHash of selected backup is passed to determine which backup in this location should be chosen
+     * Performing restore when triggered form restore web page, backupId of selected backup is passed to determine which backup in which location should be chosen
      *
      * @param req StaplerRequest
      * @param rsp StaplerResponse
-     * @param backupHash hash code of the selected BackupObject set to be restored
+     * @param backupId id of the selected backup as listed by {@link #doBackups}
      * @throws IOException If an IO problem occurs
      * @throws PeriodicBackupException If other problem occurs
      */
@@ -158,28 +352,186 @@ public class PeriodicBackupLink extends ManagementLink implements Describable<Pe
     @RequirePOST
     @Restricted(NoExternalUse.class)
     @RestrictedSince("1.4")
-    public void doRestore(StaplerRequest req, StaplerResponse rsp, @QueryParameter("backupHash") int backupHash) throws IOException, PeriodicBackupException {
+    public void doRestore(StaplerRequest req, StaplerResponse rsp, @QueryParameter("backupId") String backupId) throws IOException, PeriodicBackupException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        // Perform the restore of the matching BackupObject
+        RestoreExecutor restoreExecutor = new RestoreExecutor(findBackup(backupId).getValue(), tempDirectory);
+        BackupProgress.get().startExclusive(BackupProgress.Operation.RESTORE);
+        Thread t = new Thread(restoreExecutor);
+        t.start();
+        rsp.sendRedirect(".");
+    }
+
+    /**
+     *
+     * Verifies the selected backup against the checksums recorded when it was created, the archives are read in the
+     * background and the outcome is shown on the restore web page
+     *
+     * @param req StaplerRequest
+     * @param rsp StaplerResponse
+     * @param backupId id of the selected backup as listed by {@link #doBackups}
+     * @throws IOException If an IO problem occurs
+     * @throws PeriodicBackupException If other problem occurs
+     */
+    @SuppressWarnings("unused")
+    @RequirePOST
+    @Restricted(NoExternalUse.class)
+    public void doVerify(StaplerRequest req, StaplerResponse rsp, @QueryParameter("backupId") String backupId) throws IOException, PeriodicBackupException {
         Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
-        Map<Integer, BackupObject> backupObjectMap = Maps.newHashMap();
-        // Populate the map with key=hashcode of value
-        for (Location location : locationPlugins) {
-            if (location.getAvailableBackups() != null) {
-                for (BackupObject backupObject : location.getAvailableBackups()) {
-                    backupObjectMap.put(backupObject.hashCode(), backupObject);
+        final Map.Entry<Location, BackupObject> backup = findBackup(backupId);
+        BackupProgress.get().startExclusive(BackupProgress.Operation.VERIFY);
+        verificationResult = null;
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    verificationResult = new BackupVerifier(backup.getKey()).verify(backup.getValue()).toString();
+                } catch (PeriodicBackupException e) {
+                    verificationResult = e.getMessage();
+                } finally {
+                    BackupProgress.get().finish();
                 }
             }
-        }
-        if(!backupObjectMap.keySet().contains(backupHash)) {
-            throw new PeriodicBackupException("The provided hash code was not found in the map");
-        }
-        // Perform the restore of the matching BackupObject
-        RestoreExecutor restoreExecutor = new RestoreExecutor(backupObjectMap.get(backupHash), tempDirectory);
+        }, "PeriodicBackup verification");
+        t.start();
+        rsp.sendRedirect(".");
+    }
+
+    /**
+     *
+     * Restores only the given path or job from the selected backup, the other files of the Jenkins home directory are left untouched
+     *
+     * @param req StaplerRequest
+     * @param rsp StaplerResponse
+     * @param backupId id of the selected backup as listed by {@link #doBackups}
+     * @param restorePath path relative to the Jenkins home directory or full name of a job
+     * @throws IOException If an IO problem occurs
+     * @throws PeriodicBackupException If other problem occurs
+     */
+    @SuppressWarnings("unused")
+    @RequirePOST
+    @Restricted(NoExternalUse.class)
+    public void doRestoreSelected(StaplerRequest req, StaplerResponse rsp, @QueryParameter("backupId") String backupId,
+                                  @QueryParameter("restorePath") String restorePath) throws IOException, PeriodicBackupException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        RestoreSelection selection = RestoreSelection.parse(restorePath);
+        Map.Entry<Location, BackupObject> backup = findBackup(backupId);
+        SelectiveRestoreExecutor restoreExecutor = new SelectiveRestoreExecutor(backup.getValue(), backup.getKey(), selection, tempDirectory);
+        BackupProgress.get().startExclusive(BackupProgress.Operation.RESTORE);
         Thread t = new Thread(restoreExecutor);
         t.start();
-        message = "Restoring backup...";
         rsp.sendRedirect(".");
     }
 
+    /**
+     *
+     * Serves the list of the files in the selected backup as JSON, read from the per-file index of its metadata
+     *
+     * @param req StaplerRequest
+     * @param rsp StaplerResponse
+     * @param backupId id of the selected backup as listed by {@link #doBackups}
+     * @throws IOException If an IO problem occurs
+     * @throws PeriodicBackupException If the backup has no metadata
+     */
+    @SuppressWarnings("unused")
+    public void doContents(StaplerRequest req, StaplerResponse rsp, @QueryParameter("backupId") String backupId) throws IOException, PeriodicBackupException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        Map.Entry<Location, BackupObject> backup = findBackup(backupId);
+        JSONArray entries = new JSONArray();
+        for (BackupMetadata.Entry entry : BackupMetadata.read(backup.getKey(), backup.getValue()).getEntries()) {
+            JSONObject json = new JSONObject();
+            json.put("name", entry.getName());
+            json.put("size", entry.getSize());
+            json.put("archive", entry.getArchive());
+            entries.add(json);
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(entries.toString());
+    }
+
+    /**
+     *
+     * Serves a page of the backups of all the locations as JSON, the restore web page loads its list from here
+     *
+     * @param req StaplerRequest
+     * @param rsp StaplerResponse
+     * @param location display name of the only location to list, empty for all
+     * @param profile display name of the only profile to list, empty for all
+     * @param storage display name of the only storage to list, empty for all
+     * @param query text the listed backups contain, empty for all
+     * @param sort TIMESTAMP, LOCATION, PROFILE or STORAGE
+     * @param ascending true to list the oldest backup or the first name first
+     * @param start index of the first backup of the page
+     * @param limit number of backups of the page, 0 for the default
+     * @throws IOException If an IO problem occurs
+     */
+    @SuppressWarnings("unused")
+    public void doBackups(StaplerRequest req, StaplerResponse rsp, @QueryParameter String location,
+                          @QueryParameter String profile, @QueryParameter String storage, @QueryParameter String query,
+                          @QueryParameter String sort, @QueryParameter boolean ascending, @QueryParameter int start,
+                          @QueryParameter int limit) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        Map<Location, List<BackupObject>> backups = Maps.newLinkedHashMap();
+        for (Location l : getAllLocations()) {
+            if (location == null || location.isEmpty() || location.equals(l.getDisplayName())) {
+                backups.put(l, getBackups(l));
+            }
+        }
+        JSONObject result = new BackupListing().location(location).profile(profile).storage(storage).query(query)
+                .sort(BackupListing.Sort.parse(sort), ascending).page(start, limit).list(backups);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(result.toString());
+    }
+
+    /**
+     *
+     * Finds the backup selected on the restore web page together with the Location it was listed from
+     */
+    private Map.Entry<Location, BackupObject> findBackup(String backupId) throws PeriodicBackupException {
+        for (Location location : getAllLocations()) {
+            // The id ends with the location, the other locations are not listed
+            if (backupId == null || !backupId.endsWith("@" + location.getDisplayName())) {
+                continue;
+            }
+            for (BackupObject backupObject : getBackups(location)) {
+                if (BackupListing.getId(location, backupObject).equals(backupId)) {
+                    return Maps.immutableEntry(location, backupObject);
+                }
+            }
+        }
+        throw new PeriodicBackupException("The selected backup " + backupId + " was not found");
+    }
+
+    /**
+     *
+     * @return outcome of the last backup verification, null if no backup was verified
+     */
+    @SuppressWarnings("unused")
+    public String getVerificationResult() {
+        return verificationResult;
+    }
+
+    /**
+     *
+     * Serves the progress of the running backup or restore as JSON
+     */
+    public void doProgress(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(BackupProgress.get().toJSON().toString());
+    }
+
+    /**
+     *
+     * Serves the metrics of the backup and restore phases and the state of the replication queue as JSON
+     */
+    public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        rsp.setContentType("application/json;charset=UTF-8");
+        JSONObject metrics = BackupMetrics.get().toJSON();
+        metrics.put("replication", BackupReplicator.get().toJSON());
+        rsp.getWriter().print(metrics.toString(2));
+    }
+
     @Override
     public String getUrlName() {
         return "periodicbackup";
@@ -219,26 +571,61 @@ public class PeriodicBackupLink extends ManagementLink implements Describable<Pe
     @RequirePOST
     @Restricted(NoExternalUse.class)
     @RestrictedSince("1.4")
-    public void doConfigSubmit(StaplerRequest req, StaplerResponse rsp) throws ServletException, IOException, ClassNotFoundException {
+    public void doConfigSubmit(StaplerRequest req, StaplerResponse rsp) throws ServletException, IOException, ClassNotFoundException,
+            Descriptor.FormException {
         Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);   
         JSONObject form = req.getSubmittedForm(); // Submitted configuration form
 
+        // Everything which can be rejected is bound and validated first, an invalid form leaves the configuration
+        // untouched and the error is shown to the user
+        JSONObject fileManagerDescribableJson = form.getJSONObject("fileManagerPlugin");
+        FileManager submittedFileManager = (FileManager) req.bindJSON(Class.forName(fileManagerDescribableJson.getString("stapler-class")), fileManagerDescribableJson);
+        List<Location> submittedLocations = Descriptor.newInstancesFromHeteroList(req, form, "Location", getLocationDescriptors());
+        List<Storage> submittedStorages = Descriptor.newInstancesFromHeteroList(req, form, "Storage", getStorageDescriptors());
+        List<BackupProfile> submittedProfiles = req.bindJSONToList(BackupProfile.class, form.opt("profiles"));
+        int submittedCycleQuantity = form.getInt("cycleQuantity");
+        int submittedCycleDays = form.getInt("cycleDays");
+        String policy = form.optString("missedBackupPolicy");
+        BackupSchedule.MissedBackupPolicy submittedPolicy = policy.isEmpty() ? BackupSchedule.MissedBackupPolicy.RUN_ONCE : BackupSchedule.MissedBackupPolicy.valueOf(policy);
+        Set<String> names = Sets.newHashSet();
+        for (BackupProfile profile : submittedProfiles) {
+            if (profile.getName() == null || !names.add(profile.getName())) {
+                throw new Descriptor.FormException("Every backup profile needs a unique name", "profiles");
+            }
+        }
+
         // Persist the setting
         BulkChange bc = new BulkChange(this);
         try {
             tempDirectory = form.getString("tempDirectory");
-            JSONObject fileManagerDescribableJson = form.getJSONObject("fileManagerPlugin");
-            fileManagerPlugin = (FileManager) req.bindJSON(Class.forName(fileManagerDescribableJson.getString("stapler-class")), fileManagerDescribableJson);
+            fileManagerPlugin = submittedFileManager;
             cron = form.getString("cron");
-            cycleQuantity = form.getInt("cycleQuantity");
-            cycleDays = form.getInt("cycleDays");
-            locationPlugins.rebuildHetero(req, form, getLocationDescriptors(), "Location");
-            storagePlugins.rebuildHetero(req, form, getStorageDescriptors(), "Storage");
-
-        } catch (Descriptor.FormException e) {
-            e.printStackTrace();
-        } finally {
+            cycleQuantity = submittedCycleQuantity;
+            cycleDays = submittedCycleDays;
+            requiredLocations = form.optInt("requiredLocations");
+            tieredReplication = form.optBoolean("tieredReplication");
+            deduplicate = form.optBoolean("deduplicate");
+            checkpointMaxAgeHours = form.optInt("checkpointMaxAgeHours");
+            missedBackupPolicy = submittedPolicy;
+            encryptionCredentialsId = hudson.Util.fixEmptyAndTrim(form.optString("encryptionCredentialsId"));
+            forkWorker = form.optBoolean("forkWorker");
+            if (forkWorker) {
+                workerJvmOptions = hudson.Util.fixEmptyAndTrim(form.optString("workerJvmOptions"));
+            }
+            workerLabel = hudson.Util.fixEmptyAndTrim(form.optString("workerLabel"));
+            workerSecrets = form.optBoolean("workerSecrets");
+            loadAwarePacing = form.optBoolean("loadAwarePacing");
+            if (loadAwarePacing) {
+                maxBusyExecutorsPercent = form.optInt("maxBusyExecutorsPercent");
+                maxQueueLength = form.optInt("maxQueueLength");
+                maxLoadAverage = form.optDouble("maxLoadAverage", 0);
+            }
+            locationPlugins.replaceBy(submittedLocations);
+            storagePlugins.replaceBy(submittedStorages);
+            profiles = submittedProfiles;
             bc.commit();
+        } finally {
+            bc.abort();
         }
         rsp.sendRedirect(".");
     }
@@ -278,6 +665,18 @@ public class PeriodicBackupLink extends ManagementLink implements Describable<Pe
             }
             return "This cron is OK";
         }
+
+        @RequirePOST
+        @Restricted(NoExternalUse.class)
+        public ListBoxModel doFillEncryptionCredentialsIdItems() {
+            Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            ListBoxModel credentials = new ListBoxModel();
+            credentials.add("Do not encrypt", "");
+            credentials.addAll(CredentialsProvider.listCredentials(StringCredentials.class, Jenkins.get(),
+                    ACL.SYSTEM, Collections.<DomainRequirement>emptyList(),
+                    CredentialsMatchers.instanceOf(StringCredentials.class)));
+            return credentials;
+        }
     }
 
     @SuppressWarnings("unused")
@@ -312,17 +711,40 @@ public class PeriodicBackupLink extends ManagementLink implements Describable<Pe
         return locationPlugins;
     }
 
+    /**
+     *
+     * @return the Locations of the main configuration and of the backup profiles, each one listed once
+     */
+    public List<Location> getAllLocations() {
+        Set<Location> allLocations = Sets.newLinkedHashSet(locationPlugins);
+        for (BackupProfile profile : getProfiles()) {
+            allLocations.addAll(profile.getLocations());
+        }
+        return Lists.newArrayList(allLocations);
+    }
+
+    /**
+     *
+     * Returns the backups available in the given location from the BackupCatalog
+     *
+     * @param location Location
+     * @return BackupObject(s) in the location sorted by timestamp
+     */
+    public List<BackupObject> getBackups(Location location) {
+        return BackupCatalog.get().getBackups(location);
+    }
+
     public static PeriodicBackupLink get() {
         return ManagementLink.all().get(PeriodicBackupLink.class);
     }
 
+    /**
+     *
+     * @return message shown on the web page while the backup/restore is performed
+     */
     @SuppressWarnings("unused")
     public String getMessage() {
-        return message;
-    }
-
-    public void setMessage(String message) {
-        this.message = message;
+        return BackupProgress.get().getMessage();
     }
 }
 
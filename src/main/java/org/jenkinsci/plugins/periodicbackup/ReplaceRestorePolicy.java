@@ -25,7 +25,6 @@
 package org.jenkinsci.plugins.periodicbackup;
 
 import com.google.common.collect.Lists;
-import org.apache.commons.io.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
@@ -45,6 +44,8 @@ public class ReplaceRestorePolicy implements RestorePolicy {
     private File hudsonRoot;
     private List<String> autoExclusionList;
     private transient int filesDeleted, filesReplaced, filesKept;
+    private transient BackupProgress.PhaseProgress progress;
+    private transient Util.Copier copier;
 
     public void restore(File tempDir) throws IOException, PeriodicBackupException {
         hudsonRoot = Jenkins.getActiveInstance().getRootDir();
@@ -56,6 +57,9 @@ public class ReplaceRestorePolicy implements RestorePolicy {
         filesReplaced = 0;
         filesKept = 0;
 
+        progress = BackupProgress.get().get(BackupMetrics.Phase.RESTORE_COPY);
+        progress.addTotal(Util.listFilesAndLinks(tempDir).size(), 0);
+        copier = new Util.Copier();
         deleteAccessible(Util.listFiles(hudsonRoot));
         LOGGER.info(filesDeleted + " files have been deleted from " + hudsonRoot.getAbsolutePath());
         replaceAccessible(Util.listFiles(tempDir), tempDir);
@@ -74,8 +78,10 @@ public class ReplaceRestorePolicy implements RestorePolicy {
     private void deleteAccessible(@Nonnull File[] files) throws PeriodicBackupException {
         String relativePath;
         for(File file : files) {
-            if(!file.isDirectory()) {
-                if(!file.canWrite()) {
+            // Links are deleted themselves, the directories they point to are kept
+            boolean link = Util.isSymbolicLink(file);
+            if(!file.isDirectory() || link) {
+                if(!link && !file.canWrite()) {
                     LOGGER.warning("Access denied to " + file.getAbsolutePath() + ", file will not be replaced");
                     relativePath = Util.getRelativePath(file, hudsonRoot);
                     autoExclusionList.add(relativePath);
@@ -112,19 +118,21 @@ public class ReplaceRestorePolicy implements RestorePolicy {
         File destinationFile;
         for(File file : files) {
             // Empty directories will not be created
-            if(!file.isDirectory()) {
+            if(!file.isDirectory() || Util.isSymbolicLink(file)) {
                 relativePath = Util.getRelativePath(file, tempDir);
                 if(     autoExclusionList == null ||
                         autoExclusionList.size() == 0 ||
                         (autoExclusionList.size() > 0 && !autoExclusionList.contains(relativePath))) {
                     LOGGER.info("Copying " + file.getAbsolutePath() + " to " + hudsonRoot.getAbsolutePath());
                     destinationFile = new File(hudsonRoot, relativePath);
-                    FileUtils.copyFile(file, destinationFile);
+                    copier.copy(file, destinationFile);
                     filesReplaced++;
+                    progress.addDone(1, file.length());
                 }
                 else if(autoExclusionList.contains(relativePath)) {
                         LOGGER.warning("File " + file.getAbsolutePath() + " is excluded from the restore process, original file will be kept");
                         filesKept++;
+                        progress.addDone(1, 0);
                 }
             }
             else {
@@ -31,6 +31,7 @@ import org.apache.commons.io.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jenkins.model.Jenkins;
@@ -47,6 +48,16 @@ public class RestoreExecutor implements Runnable {
     }
 
     public void run() {
+        try {
+            restore();
+        } finally {
+            // The next backup or restore can only start once this one is finished, even if it failed unexpectedly.
+            // Finishing the progress also makes the "Restoring backup..." message disappear in the UI
+            BackupProgress.get().finish();
+        }
+    }
+
+    private void restore() {
         // RestoreExecutor thread is not handled by Jenkins therefore we need to be sure that the safeRestart will not be performed during the restore execution
         PeriodicBackupRestartListener restartListener = PeriodicBackupRestartListener.get();
         restartListener.notReady();
@@ -55,8 +66,6 @@ public class RestoreExecutor implements Runnable {
         File tempDir = new File(tempDirectoryPath);
         if(!Util.isWritableDirectory(tempDir)) {
             LOGGER.warning("Restoration Failure! The temporary folder " + tempDir.getAbsolutePath() + " is not writable. ");
-            // Setting message to an empty String will make the "Creating backup..." message disappear in the UI
-            PeriodicBackupLink.get().setMessage("");
             return;
         }
 
@@ -69,7 +78,6 @@ public class RestoreExecutor implements Runnable {
             finalResultDirFileList = Util.listFiles(finalResultDir);
         } catch (PeriodicBackupException ex) {
             LOGGER.log(Level.WARNING, "Restoration Failure! Cannot list contents of " + finalResultDir.getAbsolutePath(), ex);
-            PeriodicBackupLink.get().setMessage("");
             return;
         }
         
@@ -85,45 +93,84 @@ public class RestoreExecutor implements Runnable {
             LOGGER.info(finalResultDir.getAbsolutePath() + " does not exist, making new directory");
             if (!finalResultDir.mkdir()) {
                 LOGGER.warning("Restoration Failure! Could not create " + finalResultDir.getAbsolutePath());
-                // Setting message to an empty String will make the "Creating backup..." message disappear in the UI
-                PeriodicBackupLink.get().setMessage("");
                 return;
             }
         }
 
         // Retrieving archive files related to the given BackupObject
         Iterable<File> archives = null;
+        long archivesSize = 0;
+        BackupMetrics metrics = BackupMetrics.get();
+        BackupProgress progress = BackupProgress.get();
+        BackupMetrics.Timer downloadTimer = metrics.start(BackupMetrics.Phase.DOWNLOAD, backupObject.getLocation().getDisplayName());
+        BackupProgress.PhaseProgress downloadProgress = progress.enter(BackupMetrics.Phase.DOWNLOAD);
+        if (backupObject.getMetadata() != null) {
+            downloadProgress.addTotal(backupObject.getMetadata().getArchives().size(), backupObject.getMetadata().getTotalSize());
+        }
         try {
             archives = backupObject.getLocation().retrieveBackupFromLocation(backupObject, tempDir);
+            for (File archive : archives) {
+                long archiveSize = archive.isDirectory() ? FileUtils.sizeOfDirectory(archive) : archive.length();
+                archivesSize += archiveSize;
+                downloadTimer.files(1);
+                downloadProgress.addDone(1, archiveSize);
+            }
+            downloadTimer.bytesIn(archivesSize);
         } catch (Exception e) {
+            downloadTimer.failed();
             LOGGER.warning("Could not retrieve backup from location. " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            downloadTimer.stop();
         }
 
         // Extracting the backup archives to the final result directory
-        backupObject.getStorage().unarchiveFiles(archives, finalResultDir);
+        BackupMetrics.Timer extractTimer = metrics.start(BackupMetrics.Phase.EXTRACT, backupObject.getStorage().getDisplayName());
+        BackupProgress.PhaseProgress extractProgress = progress.enter(BackupMetrics.Phase.EXTRACT)
+                .addTotal(downloadProgress.getFilesDone(), archivesSize);
+        try {
+            backupObject.getStorage().unarchiveFiles(archives, finalResultDir);
+            extractProgress.addDone(downloadProgress.getFilesDone(), archivesSize);
+            extractTimer.bytesIn(archivesSize).bytesOut(FileUtils.sizeOfDirectory(finalResultDir));
+        } catch (RuntimeException e) {
+            extractTimer.failed();
+            throw e;
+        } finally {
+            extractTimer.stop();
+        }
         // At this point in the /finalResult directory should be only the extracted backup archives
+        BackupMetrics.Timer restoreTimer = metrics.start(BackupMetrics.Phase.RESTORE_COPY, backupObject.getFileManager().getDisplayName());
+        progress.enter(BackupMetrics.Phase.RESTORE_COPY);
+        // Without the list of changed files, e.g. after a failure, the whole configuration is reloaded
+        Collection<String> changedPaths = null;
         try {
             backupObject.getFileManager().restoreFiles(finalResultDir);
+            changedPaths = backupObject.getFileManager().getChangedPaths();
         } catch (Exception e) {
+            restoreTimer.failed();
             LOGGER.warning("Could not restore files. " + e.getMessage());
+        } finally {
+            restoreTimer.stop();
         }
-        LOGGER.info("Reloading configuration...");
         // Sometimes reload fails, because lack of permission.
         // If user is allowed to do restore operation, also reload should be possible.
         // Thus, we temporarily raise authentication for reload operation.
         Authentication origAuth = SecurityContextHolder.getContext().getAuthentication();
         SecurityContextHolder.getContext().setAuthentication(ACL.SYSTEM);
         try {
-            Jenkins.getActiveInstance().doReload();
+            if (changedPaths != null) {
+                LOGGER.info("Reloading what the " + changedPaths.size() + " changed files belong to...");
+                new ItemReloader().reload(changedPaths);
+            } else {
+                LOGGER.info("Reloading configuration...");
+                Jenkins.getActiveInstance().doReload();
+            }
         } catch (IOException e) {
             LOGGER.log(Level.WARNING, "Error reloading config files from disk: {0}", e.getMessage());
         } finally {
             LOGGER.log(Level.INFO, "Restoration finished after {0} ms", (System.currentTimeMillis() - start));
             // Revert back to original authentication.
             SecurityContextHolder.getContext().setAuthentication(origAuth);
-            // Setting message to an empty String will make the "Restoring backup..." message disappear in the UI
-            PeriodicBackupLink.get().setMessage("");
             restartListener.ready();
         }
     }
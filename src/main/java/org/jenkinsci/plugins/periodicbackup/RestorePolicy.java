@@ -26,6 +26,7 @@ package org.jenkinsci.plugins.periodicbackup;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
 
 /**
  *
@@ -43,4 +44,15 @@ public interface RestorePolicy {
      */
     void restore(File finalResultDir) throws IOException, PeriodicBackupException;
 
+    /**
+     *
+     * Returns the files changed by the last restore, Jenkins only reloads what they belong to
+     *
+     * @return paths of the changed files relative to the home directory, null if they are unknown
+     * and the whole configuration has to be reloaded
+     */
+    default Collection<String> getChangedPaths() {
+        return null;
+    }
+
 }
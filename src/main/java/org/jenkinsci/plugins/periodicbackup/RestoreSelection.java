@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.List;
+
+/**
+ *
+ * RestoreSelection selects the files of a backup which are restored by a selective restore.
+ * It accepts the entries equal to one of its paths or placed inside one of them, the paths are relative to the Jenkins home directory.
+ */
+public class RestoreSelection implements Predicate<String> {
+
+    private final List<String> paths;
+
+    private RestoreSelection(List<String> paths) {
+        this.paths = ImmutableList.copyOf(paths);
+    }
+
+    /**
+     *
+     * @param path file or directory relative to the Jenkins home directory
+     * @return RestoreSelection of the given path
+     * @throws PeriodicBackupException if the path is empty or points outside of the Jenkins home directory
+     */
+    public static RestoreSelection forPath(String path) throws PeriodicBackupException {
+        return new RestoreSelection(ImmutableList.of(normalize(path)));
+    }
+
+    /**
+     *
+     * @param fullName full name of the job, folders separated by '/'
+     * @return RestoreSelection of the directory of the job
+     * @throws PeriodicBackupException if the name is empty or invalid
+     */
+    public static RestoreSelection forJob(String fullName) throws PeriodicBackupException {
+        return new RestoreSelection(ImmutableList.of(getJobPath(fullName)));
+    }
+
+    /**
+     *
+     * Parses the value entered in the restore page, which is either a path or the full name of a job.
+     * Both interpretations are kept until {@link #narrow(Iterable)} resolves the ambiguity with the content of the backup.
+     *
+     * @param pathOrJobName path relative to the Jenkins home directory or full name of a job
+     * @return RestoreSelection
+     * @throws PeriodicBackupException if the value is empty or invalid
+     */
+    public static RestoreSelection parse(String pathOrJobName) throws PeriodicBackupException {
+        String path = normalize(pathOrJobName);
+        List<String> paths = Lists.newArrayList(path);
+        if (!path.startsWith("jobs/")) {
+            paths.add(getJobPath(path));
+        }
+        return new RestoreSelection(paths);
+    }
+
+    private static String getJobPath(String fullName) throws PeriodicBackupException {
+        StringBuilder path = new StringBuilder();
+        for (String name : StringUtils.split(normalize(fullName), '/')) {
+            path.append(path.length() == 0 ? "" : "/").append("jobs/").append(name);
+        }
+        return path.toString();
+    }
+
+    /**
+     *
+     * Normalizes a path relative to the Jenkins home directory: forward slashes, no leading or trailing slash
+     */
+    static String normalize(String path) throws PeriodicBackupException {
+        String normalized = StringUtils.strip(StringUtils.trimToEmpty(path).replace('\\', '/'), "/");
+        while (normalized.startsWith("./")) {
+            normalized = normalized.substring(2);
+        }
+        if (normalized.isEmpty()) {
+            throw new PeriodicBackupException("No path or job name given for the restore");
+        }
+        for (String segment : StringUtils.split(normalized, '/')) {
+            if (segment.equals("..")) {
+                throw new PeriodicBackupException("The path " + path + " points outside of the Jenkins home directory");
+            }
+        }
+        return normalized;
+    }
+
+    public boolean apply(String entryName) {
+        String name = StringUtils.stripStart(entryName.replace('\\', '/'), "/");
+        for (String path : paths) {
+            if (name.equals(path) || name.startsWith(path + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *
+     * Keeps only the paths which select at least one of the given entries
+     *
+     * @param entryNames names of the entries in the backup
+     * @return narrowed RestoreSelection, or this one if none of its paths matches any entry
+     */
+    public RestoreSelection narrow(Iterable<String> entryNames) {
+        List<String> matching = Lists.newArrayList();
+        for (String path : paths) {
+            RestoreSelection single = new RestoreSelection(ImmutableList.of(path));
+            for (String entryName : entryNames) {
+                if (single.apply(entryName)) {
+                    matching.add(path);
+                    break;
+                }
+            }
+        }
+        return matching.isEmpty() ? this : new RestoreSelection(matching);
+    }
+
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    @Override
+    public String toString() {
+        return StringUtils.join(paths, ", ");
+    }
+}
@@ -26,6 +26,7 @@ package org.jenkinsci.plugins.periodicbackup;
 
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
@@ -39,8 +40,9 @@ import hudson.security.ACL;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
-import org.acegisecurity.AccessDeniedException;
+import jenkins.util.SystemProperties;
 import org.apache.commons.io.IOUtils;
+import org.acegisecurity.AccessDeniedException;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
@@ -50,14 +52,16 @@ import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.interceptor.RequirePOST;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 /**
  * S3 defines Amazon S3 (Simple Storage Service) to store the backup files
@@ -74,6 +78,12 @@ public class S3 extends Location {
 
     private static final Logger LOGGER = Logger.getLogger(S3.class.getName());
 
+    /**
+     * Number of bytes of a metadata sidecar downloaded to list a backup, the summary comes before the per-file entries
+     */
+    private static final int SUMMARY_RANGE = Math.max(1024,
+            SystemProperties.getInteger(S3.class.getName() + ".summaryRange", 64 * 1024));
+
     @DataBoundConstructor
     public S3(String bucket, boolean enabled, boolean forcePathStyle, String tmpDir, String region, String credentialsId, String endPointUrl) {
         super(enabled);
@@ -90,6 +100,8 @@ public class S3 extends Location {
         AmazonS3 client = AmazonUtil.getAmazonS3Client(region, credentialsId, endPointUrl, forcePathStyle);
 
         List<S3ObjectSummary> objectSummarys = getObjectSummaries(client);
+        Map<String, Long> sizes = objectSummarys.stream()
+                .collect(Collectors.toMap(S3ObjectSummary::getKey, S3ObjectSummary::getSize, (a, b) -> a));
         return objectSummarys
                 .parallelStream()
                 .filter(objectSummary ->
@@ -97,9 +109,18 @@ public class S3 extends Location {
                                 && isMatchPrefix(objectSummary.getKey())
                 )
                 .map(objectSummary -> {
+                            String metadataKey = Util.getMetadataName(objectSummary.getKey());
+                            if (sizes.containsKey(metadataKey)) {
+                                // Only the summary of the sidecar is downloaded, the BackupObject itself is fetched when needed
+                                try {
+                                    return BackupObject.fromMetadata(readMetadataSummary(client, metadataKey, sizes.get(metadataKey)),
+                                            this, () -> readBackupObject(client, objectSummary.getKey()));
+                                } catch (Exception e) {
+                                    LOGGER.warning("Exception while reading backup metadata from S3: " + e);
+                                }
+                            }
                             try {
-                                S3ObjectInputStream content = client.getObject(bucket, objectSummary.getKey()).getObjectContent();
-                                return BackupObject.getFromInputStream().apply(content);
+                                return readBackupObject(client, objectSummary.getKey());
                             } catch (Exception e) {
                                 LOGGER.warning("Exception while getting available backups from S3: " + e);
                                 return null;
@@ -111,6 +132,34 @@ public class S3 extends Location {
                 ::iterator;
     }
 
+    /**
+     *
+     * Reads the summary of a metadata sidecar, a large sidecar is read with a ranged GET of its beginning
+     * and completely only if its summary does not fit in the range
+     */
+    private BackupMetadata readMetadataSummary(AmazonS3 client, String key, long size) throws IOException {
+        if (size > SUMMARY_RANGE) {
+            GetObjectRequest request = new GetObjectRequest(bucket, key).withRange(0, SUMMARY_RANGE - 1);
+            try (S3ObjectInputStream content = client.getObject(request).getObjectContent()) {
+                BackupMetadata summary = BackupMetadata.readSummary(content, true);
+                // The rest of the range is read so that the connection can be reused
+                IOUtils.skip(content, SUMMARY_RANGE);
+                return summary;
+            } catch (IOException e) {
+                LOGGER.fine("Reading all of " + key + " since its summary is larger than " + SUMMARY_RANGE + " bytes: " + e.getMessage());
+            }
+        }
+        try (S3ObjectInputStream content = client.getObject(bucket, key).getObjectContent()) {
+            return BackupMetadata.readSummary(content);
+        }
+    }
+
+    private BackupObject readBackupObject(AmazonS3 client, String key) throws IOException {
+        try (S3ObjectInputStream content = client.getObject(bucket, key).getObjectContent()) {
+            return BackupObject.getFromInputStream().apply(content);
+        }
+    }
+
     private boolean isMatchPrefix(String key) {
         Path s3ParentFolder = Paths.get(key).getParent();
         if (s3ParentFolder == null) {
@@ -160,9 +209,7 @@ public class S3 extends Location {
         List<S3ObjectSummary> objectSummarys = getObjectSummaries(client);
         return objectSummarys
                 .parallelStream()
-                .filter(objectSummary -> objectSummary.getKey()
-                        .contains(Util.getFormattedDate(BackupObject.FILE_TIMESTAMP_PATTERN, backup.getTimestamp()))
-                        && !objectSummary.getKey().endsWith(BackupObject.EXTENSION)
+                .filter(objectSummary -> backup.isArchive(objectSummary.getKey())
                         && isMatchPrefix(objectSummary.getKey()))
                 .map(S3ObjectSummary::getKey)
                 .map(backupFilename -> {
@@ -175,8 +222,7 @@ public class S3 extends Location {
                             File copiedFile = p.toFile();
                             try {
                                 LOGGER.fine("Copying from: " + bucket + " > " + backupFilename + " to " + copiedFile.getAbsolutePath());
-                                IOUtils.copy(client.getObject(bucket, backupFilename).getObjectContent(),
-                                        new FileOutputStream(copiedFile));
+                                Util.copyToFile(client.getObject(bucket, backupFilename).getObjectContent(), copiedFile);
                                 return copiedFile;
                             } catch (Exception e) {
                                 LOGGER.warning("Exception while retriving the backup file from S3: " + e);
@@ -188,6 +234,22 @@ public class S3 extends Location {
                 ::iterator;
     }
 
+    @Override
+    public InputStream openBackupFile(String fileName) throws IOException {
+        AmazonS3 client = AmazonUtil.getAmazonS3Client(region, credentialsId, endPointUrl, forcePathStyle);
+        String backupPath = Paths.get(prefix, fileName).toString().replace("\\", "/");
+        return client.getObject(bucket, backupPath).getObjectContent();
+    }
+
+    @Override
+    public InputStream openBackupFile(String fileName, long offset) throws IOException {
+        AmazonS3 client = AmazonUtil.getAmazonS3Client(region, credentialsId, endPointUrl, forcePathStyle);
+        String backupPath = Paths.get(prefix, fileName).toString().replace("\\", "/");
+        GetObjectRequest request = new GetObjectRequest(bucket, backupPath);
+        request.setRange(offset);
+        return client.getObject(request).getObjectContent();
+    }
+
     private List<S3ObjectSummary> getObjectSummaries(AmazonS3 client) {
         ObjectListing objectListing = StringUtils.isEmpty(prefix) ? client.listObjects(bucket) : client.listObjects(bucket, prefix);
         return objectListing.getObjectSummaries();
@@ -196,12 +258,11 @@ public class S3 extends Location {
     @Override
     public void deleteBackupFiles(BackupObject backupObject) {
         LOGGER.info("Deleting backupObject...");
-        String filenamePart = Util.generateFileNameBase(backupObject.getTimestamp());
         AmazonS3 client = AmazonUtil.getAmazonS3Client(region, credentialsId, endPointUrl, forcePathStyle);
 
         List<S3ObjectSummary> objectSummarys = getObjectSummaries(client);
         for (S3ObjectSummary objectSummary : objectSummarys) {
-            if (StringUtils.contains(objectSummary.getKey(), filenamePart)) {
+            if (backupObject.isBackupFile(objectSummary.getKey()) && isMatchPrefix(objectSummary.getKey())) {
                 LOGGER.info("Deleting backupObject..." + objectSummary.getKey());
                 client.deleteObject(bucket, objectSummary.getKey());
                 LOGGER.info("Deleted backupObject..." + objectSummary.getKey());
@@ -289,7 +350,8 @@ public class S3 extends Location {
     public boolean equals(Object o) {
         if (o instanceof S3) {
             S3 that = (S3) o;
-            return Objects.equal(this.bucket, that.bucket) && Objects.equal(this.enabled, that.enabled);
+            return Objects.equal(this.bucket, that.bucket) && Objects.equal(this.enabled, that.enabled)
+                    && StringUtils.equals(StringUtils.defaultString(this.prefix), StringUtils.defaultString(that.prefix));
         }
         return false;
     }
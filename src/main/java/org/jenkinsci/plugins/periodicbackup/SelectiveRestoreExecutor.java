@@ -0,0 +1,253 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ *
+ * SelectiveRestoreExecutor restores only the selected files of a backup, for example a single job.
+ * The per-file index of the metadata sidecar tells which archives hold the selected files, only those archives are
+ * fetched from the Location and only the selected entries are extracted. The affected items are reloaded afterwards.
+ */
+public class SelectiveRestoreExecutor implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(SelectiveRestoreExecutor.class.getName());
+    private final BackupObject backupObject;
+    private final Location location;
+    private final RestoreSelection selection;
+    private final String tempDirectoryPath;
+
+    public SelectiveRestoreExecutor(BackupObject backupObject, Location location, RestoreSelection selection, String tempDirectoryPath) {
+        this.backupObject = backupObject;
+        this.location = location;
+        this.selection = selection;
+        this.tempDirectoryPath = tempDirectoryPath;
+    }
+
+    public void run() {
+        // The restore thread is not handled by Jenkins therefore we need to be sure that the safeRestart will not be performed during the restore execution
+        PeriodicBackupRestartListener restartListener = PeriodicBackupRestartListener.get();
+        restartListener.notReady();
+        long start = System.currentTimeMillis();
+        File workDir = new File(tempDirectoryPath, "selectiveRestore");
+        try {
+            if (workDir.exists()) {
+                FileUtils.deleteDirectory(workDir);
+            }
+            File archivesDir = new File(workDir, "archives");
+            File finalResultDir = new File(workDir, "finalResult");
+            if (!archivesDir.mkdirs() || !finalResultDir.mkdirs()) {
+                throw new PeriodicBackupException("Could not create " + workDir.getAbsolutePath());
+            }
+            List<String> restored = restore(archivesDir, finalResultDir);
+            if (restored.isEmpty()) {
+                LOGGER.warning("Nothing in the backup matches " + selection);
+            } else {
+                new ItemReloader().reload(restored);
+            }
+            LOGGER.log(Level.INFO, "Selective restore of {0} ({1} files) finished after {2} ms",
+                    new Object[] {selection, restored.size(), System.currentTimeMillis() - start});
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Selective restore of " + selection + " failed", e);
+        } finally {
+            try {
+                FileUtils.deleteDirectory(workDir);
+            } catch (IOException e) {
+                LOGGER.warning("Could not delete " + workDir.getAbsolutePath() + " " + e.getMessage());
+            }
+            // Finishing the progress will make the "Restoring backup..." message disappear in the UI
+            BackupProgress.get().finish();
+            restartListener.ready();
+        }
+    }
+
+    /**
+     *
+     * Fetches the needed archives, extracts the selected entries and copies them to the Jenkins home directory
+     *
+     * @return paths of the restored files relative to the Jenkins home directory
+     */
+    private List<String> restore(File archivesDir, File finalResultDir) throws IOException, PeriodicBackupException {
+        Storage storage = backupObject.getStorage();
+        if (storage == null) {
+            throw new PeriodicBackupException("Could not load the backup " + backupObject.getDisplayName());
+        }
+        BackupMetrics metrics = BackupMetrics.get();
+        BackupProgress progress = BackupProgress.get();
+
+        // Find the archives holding the selected files, every archive is needed when the backup has no per-file index
+        RestoreSelection effectiveSelection = selection;
+        Set<String> neededArchives = null;
+        try {
+            BackupMetadata metadata = BackupMetadata.read(location, backupObject);
+            if (!metadata.getEntries().isEmpty()) {
+                List<String> names = Lists.newArrayList();
+                for (BackupMetadata.Entry entry : metadata.getEntries()) {
+                    names.add(entry.getName());
+                }
+                effectiveSelection = selection.narrow(names);
+                neededArchives = Sets.newHashSet();
+                for (BackupMetadata.Entry entry : metadata.getEntries()) {
+                    if (effectiveSelection.apply(entry.getName())) {
+                        neededArchives.add(entry.getArchive());
+                    }
+                }
+                if (neededArchives.isEmpty()) {
+                    return Lists.newArrayList();
+                }
+            }
+        } catch (PeriodicBackupException e) {
+            LOGGER.info("The backup has no per-file index, all its archives are retrieved: " + e.getMessage());
+        }
+
+        if (neededArchives != null) {
+            // Storages which index their archives extract the selected entries in place, reading only the parts they need
+            BackupMetrics.Timer extractTimer = metrics.start(BackupMetrics.Phase.EXTRACT, storage.getDisplayName());
+            progress.enter(BackupMetrics.Phase.EXTRACT);
+            try {
+                for (Iterator<String> it = neededArchives.iterator(); it.hasNext(); ) {
+                    if (storage.unarchiveFiles(location, it.next(), effectiveSelection, finalResultDir)) {
+                        it.remove();
+                    }
+                }
+            } catch (UnsupportedOperationException e) {
+                LOGGER.info(e.getMessage() + ", the archives are retrieved");
+            } finally {
+                extractTimer.stop();
+            }
+            if (neededArchives.isEmpty()) {
+                return copyToHome(finalResultDir);
+            }
+        }
+
+        BackupMetrics.Timer downloadTimer = metrics.start(BackupMetrics.Phase.DOWNLOAD, location.getDisplayName());
+        BackupProgress.PhaseProgress downloadProgress = progress.enter(BackupMetrics.Phase.DOWNLOAD);
+        Collection<File> archives;
+        try {
+            archives = neededArchives != null ? fetchArchives(neededArchives, archivesDir)
+                    : Lists.newArrayList(location.retrieveBackupFromLocation(backupObject, archivesDir));
+            for (File archive : archives) {
+                long archiveSize = archive.isDirectory() ? FileUtils.sizeOfDirectory(archive) : archive.length();
+                downloadTimer.files(1).bytesIn(archiveSize);
+                downloadProgress.addDone(1, archiveSize);
+            }
+        } catch (IOException e) {
+            downloadTimer.failed();
+            throw e;
+        } catch (PeriodicBackupException e) {
+            downloadTimer.failed();
+            throw e;
+        } finally {
+            downloadTimer.stop();
+        }
+        LOGGER.info("Extracting " + effectiveSelection + " from " + archives.size() + " archive(s)");
+
+        BackupMetrics.Timer extractTimer = metrics.start(BackupMetrics.Phase.EXTRACT, storage.getDisplayName());
+        progress.enter(BackupMetrics.Phase.EXTRACT);
+        try {
+            storage.unarchiveFiles(archives, finalResultDir, effectiveSelection);
+        } finally {
+            extractTimer.stop();
+        }
+        return copyToHome(finalResultDir);
+    }
+
+    /**
+     *
+     * Copies the extracted files over the ones in the Jenkins home directory
+     *
+     * @return paths of the restored files relative to the Jenkins home directory
+     */
+    private List<String> copyToHome(File finalResultDir) throws IOException {
+        BackupMetrics metrics = BackupMetrics.get();
+        BackupProgress progress = BackupProgress.get();
+        File rootDir = Jenkins.getActiveInstance().getRootDir();
+        Collection<File> files = Util.listFilesAndLinks(finalResultDir);
+        Util.Copier copier = new Util.Copier();
+        BackupMetrics.Timer restoreTimer = metrics.start(BackupMetrics.Phase.RESTORE_COPY, "selective");
+        BackupProgress.PhaseProgress restoreProgress = progress.enter(BackupMetrics.Phase.RESTORE_COPY).addTotal(files.size(), 0);
+        List<String> restored = Lists.newArrayList();
+        try {
+            for (File file : files) {
+                String relativePath = Util.getRelativePath(file, finalResultDir);
+                copier.copy(file, new File(rootDir, relativePath));
+                restored.add(relativePath);
+                restoreTimer.files(1).bytesOut(file.length());
+                restoreProgress.addDone(1, file.length());
+            }
+        } catch (IOException e) {
+            restoreTimer.failed();
+            throw e;
+        } finally {
+            restoreTimer.stop();
+        }
+        return restored;
+    }
+
+    /**
+     *
+     * Copies the named archives from the Location, falls back to retrieving the whole backup when the Location
+     * cannot read single files
+     */
+    private Collection<File> fetchArchives(Set<String> archiveNames, File archivesDir) throws IOException, PeriodicBackupException {
+        List<File> archives = Lists.newArrayList();
+        try {
+            for (String archiveName : archiveNames) {
+                File archive = new File(archivesDir, archiveName);
+                InputStream in = location.openBackupFile(archiveName);
+                try {
+                    Util.copyToFile(in, archive);
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+                archives.add(archive);
+            }
+            return archives;
+        } catch (UnsupportedOperationException e) {
+            LOGGER.info(e.getMessage() + ", retrieving the whole backup");
+        }
+        for (File archive : location.retrieveBackupFromLocation(backupObject, archivesDir)) {
+            if (archiveNames.contains(archive.getName())) {
+                archives.add(archive);
+            }
+        }
+        return archives;
+    }
+}
@@ -24,18 +24,38 @@
 
 package org.jenkinsci.plugins.periodicbackup;
 
+import com.google.common.base.Predicate;
 import hudson.DescriptorExtensionList;
 import hudson.model.AbstractModelObject;
 import hudson.model.Describable;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
 import jenkins.model.Jenkins;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
 
 /**
  *
  * Storage is responsible for operating on backup archives
  */
-public abstract class Storage extends AbstractModelObject implements Describable<Storage> {
+public abstract class Storage extends AbstractModelObject implements Describable<Storage>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger LOGGER = Logger.getLogger(Storage.class.getName());
+
+    private transient BackupWorker.Environment workerEnvironment;  // Set when archiving in a BackupWorker, null inside Jenkins
+    private transient boolean preserveLinks;                       // Set when the symbolic links of the backup are not followed
+    private transient boolean deduplicate;                         // Set when deduplication is enabled in the backup configuration
 
     /**
      *
@@ -65,6 +85,35 @@ public abstract class Storage extends AbstractModelObject implements Describable
      */
     public abstract Iterable<File> backupStop() throws PeriodicBackupException;
 
+    /**
+     *
+     * Returns the archives of the current archiving process which are finished,
+     * they are not modified by the files added afterwards
+     *
+     * @return finished archive files
+     */
+    public Collection<File> getCompletedArchives() {
+        return Collections.emptyList();
+    }
+
+    /**
+     *
+     * Initializes Storage to continue an interrupted archiving process after the archives finished before
+     * the interruption, the files inside them are not added again. Storages which cannot continue
+     * return false and the archiving process is started from the beginning.
+     *
+     * @param tempDirectoryPath String with a path to the temporary directory holding the finished archives
+     * @param archiveFilenameBase first part of the archive filename
+     * @param completedArchives archives finished before the interruption
+     * @param checksums checksums of the finished archives and of their entries
+     * @return false if the archiving process cannot be continued
+     * @throws PeriodicBackupException if something goes wrong
+     */
+    public boolean backupResume(String tempDirectoryPath, String archiveFilenameBase, List<File> completedArchives,
+                                ArchiveChecksums checksums) throws PeriodicBackupException {
+        return false;
+    }
+
     /**
      *
      * Extracts backup files from given archives into the temporary directory
@@ -75,6 +124,221 @@ public abstract class Storage extends AbstractModelObject implements Describable
      */
     public abstract void unarchiveFiles(Iterable<File> archives, File finalResultDir);
 
+    /**
+     *
+     * Extracts only the entries accepted by the filter from the given archives into the temporary directory,
+     * after extraction the archives will be deleted. By default everything is extracted and the files
+     * which are not accepted are deleted afterwards, Storages able to read single entries override this.
+     *
+     * @param archives backup archives
+     * @param finalResultDir Directory where the files will be extracted to, it should be empty at this point
+     * @param entryFilter accepts the names of the entries (paths relative to the Jenkins home directory) to extract
+     */
+    public void unarchiveFiles(Iterable<File> archives, File finalResultDir, Predicate<String> entryFilter) {
+        unarchiveFiles(archives, finalResultDir);
+        for (File file : FileUtils.listFiles(finalResultDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE)) {
+            if (!entryFilter.apply(Util.getRelativePath(file, finalResultDir)) && !file.delete()) {
+                LOGGER.warning("Could not delete " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     *
+     * Extracts the entries accepted by the filter directly from an archive stored in a Location,
+     * reading only the parts of the archive which hold them
+     *
+     * @param location Location where the archive is stored
+     * @param archiveName name of the archive
+     * @param entryFilter accepts the names of the entries to extract
+     * @param finalResultDir Directory where the files will be extracted to
+     * @return false if this Storage cannot read the archive in place, it then has to be retrieved first
+     * @throws IOException If an IO problem occurs
+     */
+    public boolean unarchiveFiles(Location location, String archiveName, Predicate<String> entryFilter, File finalResultDir) throws IOException {
+        return false;
+    }
+
+    /**
+     *
+     * Returns the checksums recorded while the last backup was archived,
+     * Storages which do not compute them inline return null and the archives are checksummed afterwards
+     *
+     * @return ArchiveChecksums of the last backup or null
+     */
+    public ArchiveChecksums getChecksums() {
+        return null;
+    }
+
+    /**
+     *
+     * Wraps the stream of an archive file being written, the archive is encrypted when
+     * encryption credentials are configured
+     *
+     * @param archiveFile stream of the archive file
+     * @return stream the archive has to be written to
+     * @throws IOException if the configured encryption credentials cannot be used
+     */
+    protected OutputStream encryptArchive(OutputStream archiveFile) throws IOException {
+        ArchiveEncryption encryption = workerEnvironment != null ? workerEnvironment.getEncryption() : ArchiveEncryption.get();
+        return encryption != null ? encryption.encrypt(archiveFile) : archiveFile;
+    }
+
+    /**
+     *
+     * Storages which can create their archives in a BackupWorker override this. The Storage is serialized
+     * to the worker JVM, where it must not use Jenkins but the directory and extension provided by this class.
+     *
+     * @return true if the archives can be created outside of the Jenkins JVM
+     */
+    public boolean isWorkerSupported() {
+        return false;
+    }
+
+    /**
+     *
+     * Called in the BackupWorker before archiving
+     *
+     * @param workerEnvironment what the Storage needs from Jenkins while archiving
+     */
+    void setWorkerEnvironment(BackupWorker.Environment workerEnvironment) {
+        this.workerEnvironment = workerEnvironment;
+    }
+
+    /**
+     *
+     * Called before archiving, see {@link FileManager#isLinksPreserved()}
+     *
+     * @param preserveLinks true if the symbolic links among the files have to be stored as links
+     */
+    void setPreserveLinks(boolean preserveLinks) {
+        this.preserveLinks = preserveLinks;
+    }
+
+    /**
+     *
+     * @return true if the symbolic links among the files to back up have to be stored as links instead of the content
+     * of their targets, Storages which cannot store links skip them
+     */
+    protected boolean isPreserveLinks() {
+        return workerEnvironment != null ? workerEnvironment.isPreserveLinks() : preserveLinks;
+    }
+
+    /**
+     *
+     * Called before archiving, see {@link PeriodicBackupLink#isDeduplicate()}
+     *
+     * @param deduplicate true if the copies of already archived files have to be stored as references
+     */
+    void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     *
+     * @return true if Storages which support it store the copies of already archived files as references,
+     * see {@link Deduplicator}
+     */
+    protected boolean isDeduplicate() {
+        return workerEnvironment != null ? workerEnvironment.isDeduplicate() : deduplicate;
+    }
+
+    /**
+     *
+     * @return Jenkins home directory, the names of the archive entries are relative to it
+     */
+    protected File getRootDirectory() {
+        return workerEnvironment != null ? workerEnvironment.getRootDirectory() : Jenkins.getActiveInstance().getRootDir();
+    }
+
+    /**
+     *
+     * @return extension of the archive files created by this Storage
+     */
+    protected String getArchiveFileExtension() {
+        return workerEnvironment != null ? workerEnvironment.getArchiveFileExtension() : getDescriptor().getArchiveFileExtension();
+    }
+
+    /**
+     *
+     * Wraps the stream of an archive file being read, encrypted archives are decrypted
+     *
+     * @param archiveFile stream of the archive file
+     * @return stream with the content of the archive
+     * @throws IOException if the archive is encrypted and cannot be decrypted
+     */
+    protected InputStream decryptArchive(InputStream archiveFile) throws IOException {
+        return ArchiveEncryption.open(archiveFile);
+    }
+
+    /**
+     *
+     * Decrypts an encrypted archive file in place, for archives which are read with random access
+     *
+     * @param archive archive file, nothing is done when it is not encrypted
+     * @throws IOException if the archive cannot be decrypted
+     */
+    protected void decryptArchive(File archive) throws IOException {
+        InputStream in = new FileInputStream(archive);
+        try {
+            if (ArchiveEncryption.readHeader(in) == null) {
+                return;
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        File decrypted = new File(archive.getParentFile(), archive.getName() + ".decrypted");
+        in = ArchiveEncryption.open(new FileInputStream(archive));
+        try {
+            Util.copyToFile(in, decrypted);
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(decrypted);
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        if (!archive.delete() || !decrypted.renameTo(archive)) {
+            throw new IOException("Could not replace " + archive.getAbsolutePath() + " with its decrypted content");
+        }
+    }
+
+    /**
+     *
+     * Reads the entries of an archive created by this Storage from a stream, without extracting them to disk
+     *
+     * @param archive stream with the content of the archive file, it is not closed
+     * @param visitor receives every file entry of the archive
+     * @return false if the archives of this Storage cannot be read from a stream
+     * @throws IOException If an IO problem occurs
+     */
+    public boolean readArchive(InputStream archive, ArchiveEntryVisitor visitor) throws IOException {
+        return false;
+    }
+
+    /**
+     *
+     * Receives the entries of an archive read by {@link #readArchive(InputStream, ArchiveEntryVisitor)}
+     */
+    public interface ArchiveEntryVisitor {
+
+        /**
+         *
+         * @param name name of the entry inside the archive
+         * @param content content of the entry, it must not be closed
+         * @throws IOException If an IO problem occurs
+         */
+        void visit(String name, InputStream content) throws IOException;
+
+        /**
+         *
+         * @param name name of the entry stored as a reference to an earlier entry with the same content
+         * @param original name of the earlier entry holding the content
+         * @throws IOException If an IO problem occurs
+         */
+        default void visitDuplicate(String name, String original) throws IOException {
+        }
+    }
+
     public StorageDescriptor getDescriptor() {
         return (StorageDescriptor) Jenkins.getActiveInstance().getDescriptor(getClass());
     }
@@ -24,22 +24,72 @@
 
 package org.jenkinsci.plugins.periodicbackup;
 
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import hudson.Extension;
-import org.codehaus.plexus.archiver.ArchiverException;
-import org.codehaus.plexus.archiver.tar.TarArchiver;
-import org.codehaus.plexus.archiver.tar.TarGZipUnArchiver;
-import org.codehaus.plexus.archiver.tar.TarLongFileMode;
+import jenkins.util.SystemProperties;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.kohsuke.stapler.DataBoundConstructor;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.logging.Logger;
-import jenkins.model.Jenkins;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPOutputStream;
 
+/**
+ *
+ * TarGzStorage writes a tar archive compressed in independently decodable gzip members together with a {@link TarIndex}.
+ * Standard gzip tools read the archive as a single stream, the index allows reading single entries without
+ * decompressing the archive from its beginning. Files with the same content as an earlier file are stored as hard link
+ * entries to it, so are the hard links of a file. Preserved symbolic links are stored as symbolic link entries.
+ */
 public class TarGzStorage extends Storage {
 
-    private transient TarArchiver archiver;
+    private final static int BUFFER_SIZE = 64 * 1024;
+    private final static int RECORD_SIZE = 512;
+
+    /**
+     * PAX header of the hard link entries of files which only had the same content as their original
+     */
+    private final static String DUPLICATE_HEADER = "PERIODICBACKUP.duplicate";
+
+    /**
+     * Uncompressed size after which a new gzip member is started at the next entry
+     */
+    private static final int BLOCK_SIZE = Math.max(RECORD_SIZE,
+            SystemProperties.getInteger(TarGzStorage.class.getName() + ".blockSize", 4 * 1024 * 1024));
+
+    private transient File destination;
+    private transient CheckedOutputStream archiveFileStream;
+    private transient BlockGzipOutputStream blockStream;
+    private transient TarArchiveOutputStream archiveStream;
+    private transient List<TarIndex.Entry> index;
+    private transient ArchiveChecksums checksums;
+    private transient Deduplicator deduplicator;
+    private transient Map<Object, BackupMetadata.Entry> hardLinks;
 
     private static final Logger LOGGER = Logger.getLogger(TarGzStorage.class.getName());
 
@@ -48,57 +98,209 @@ public class TarGzStorage extends Storage {
         super();
     }
 
+    @Override
+    public ArchiveChecksums getChecksums() {
+        return checksums;
+    }
+
     @Override
     public void backupStart(String tempDirectoryPath, String archiveFilenameBase) throws PeriodicBackupException {
-        // Create a new archiver
-        archiver = new TarArchiver();
+        checksums = new ArchiveChecksums();
+        index = Lists.newArrayList();
+        deduplicator = isDeduplicate() ? new Deduplicator() : null;
+        hardLinks = Maps.newHashMap();
         // Set the destination file
-        File destination = new File(new File(tempDirectoryPath), Util.createFileName(archiveFilenameBase, this.getDescriptor().getArchiveFileExtension()));
-        archiver.setDestFile(destination);
-
-        // Support long filenames
-        archiver.setLongfile(TarLongFileMode.gnu);
-        // Set the compression method
-        archiver.setCompression(TarArchiver.TarCompressionMethod.gzip);
+        destination = new File(new File(tempDirectoryPath), Util.createFileName(archiveFilenameBase, getArchiveFileExtension()));
+        try {
+            // The checksum of the archive file is computed on the compressed bytes while they are written
+            archiveFileStream = new CheckedOutputStream(new FileOutputStream(destination), new CRC32());
+            blockStream = new BlockGzipOutputStream(new BufferedOutputStream(encryptArchive(archiveFileStream), BUFFER_SIZE));
+        } catch (IOException e) {
+            IOUtils.closeQuietly(archiveFileStream);
+            throw new PeriodicBackupException("Could not create archive " + destination.getAbsolutePath() + " " + e.getMessage());
+        }
+        // Every record is passed on immediately so that the entries start at known offsets
+        archiveStream = new TarArchiveOutputStream(blockStream, RECORD_SIZE);
+        // Support long filenames and big files
+        archiveStream.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+        archiveStream.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
     }
 
     @Override
     public void backupAddFile(File fileToStore) throws PeriodicBackupException {
+        if (isPreserveLinks() && Util.isSymbolicLink(fileToStore)) {
+            addSymbolicLink(fileToStore);
+            return;
+        }
+        InputStream in;
         try {
-            archiver.addFile(fileToStore, Util.getRelativePath(fileToStore, Jenkins.getActiveInstance().getRootDir()));
-        } catch (ArchiverException e) {
+            in = new FileInputStream(fileToStore);
+        } catch (FileNotFoundException e) {
             LOGGER.warning("Could not add file to the archive. " + e.getMessage());
+            return;
+        }
+        try {
+            String name = Util.getRelativePath(fileToStore, getRootDirectory());
+            Object linkKey = Util.getHardLinkKey(fileToStore);
+            BackupMetadata.Entry linked = linkKey != null ? hardLinks.get(linkKey) : null;
+            Deduplicator.Original original = linked == null && deduplicator != null ? deduplicator.find(fileToStore) : null;
+            BackupMetadata.Entry content = linked != null ? linked : original != null ? original.getEntry() : null;
+            TarArchiveEntry entry;
+            if (content != null) {
+                entry = new TarArchiveEntry(name, TarConstants.LF_LINK);
+                entry.setLinkName(content.getName());
+                entry.setModTime(fileToStore.lastModified());
+                if (linked == null) {
+                    // Unlike the hard links, files with the same content are restored as separate files
+                    entry.addPaxHeader(DUPLICATE_HEADER, "true");
+                }
+            } else {
+                entry = new TarArchiveEntry(fileToStore, name);
+            }
+            if (fileToStore.canExecute()) {
+                entry.setMode(TarArchiveEntry.DEFAULT_FILE_MODE | 0111);
+            }
+            putEntry(entry);
+            if (content != null) {
+                archiveStream.closeArchiveEntry();
+                checksums.addEntry(destination.getName(), name, content.getSize(), content.getChecksum());
+                return;
+            }
+            // The size in the header is fixed, a file which changed since it was measured is truncated or padded
+            BackupMetadata.Entry stored = checksums.copyEntry(destination.getName(), entry.getName(), in, archiveStream, entry.getSize());
+            long size = stored.getSize();
+            if (deduplicator != null) {
+                deduplicator.archived(fileToStore, stored);
+            }
+            if (linkKey != null) {
+                hardLinks.put(linkKey, stored);
+            }
+            if (size < entry.getSize()) {
+                LOGGER.warning(fileToStore.getAbsolutePath() + " was truncated while it was archived");
+                byte[] padding = new byte[BUFFER_SIZE];
+                for (long remaining = entry.getSize() - size; remaining > 0; remaining -= padding.length) {
+                    archiveStream.write(padding, 0, (int) Math.min(remaining, padding.length));
+                }
+            }
+            archiveStream.closeArchiveEntry();
+        } catch (IOException e) {
+            throw new PeriodicBackupException("Could not add " + fileToStore.getAbsolutePath() + " to the archive " + destination.getAbsolutePath() + " " + e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(in);
         }
     }
 
+    /**
+     *
+     * Writes a symbolic link entry, the target of the link is not archived
+     */
+    private void addSymbolicLink(File link) throws PeriodicBackupException {
+        try {
+            TarArchiveEntry entry = new TarArchiveEntry(Util.getRelativePath(link, getRootDirectory()), TarConstants.LF_SYMLINK);
+            entry.setLinkName(Util.readSymbolicLink(link));
+            putEntry(entry);
+            archiveStream.closeArchiveEntry();
+        } catch (IOException e) {
+            throw new PeriodicBackupException("Could not add the link " + link.getAbsolutePath() + " to the archive " + destination.getAbsolutePath() + " " + e.getMessage());
+        }
+    }
+
+    private void putEntry(TarArchiveEntry entry) throws IOException {
+        // Entries always start a new member once the current one is big enough
+        if (blockStream.getMemberSize() >= BLOCK_SIZE) {
+            blockStream.startMember();
+        }
+        index.add(new TarIndex.Entry(entry.getName(), blockStream.getMemberOffset(), blockStream.getMemberSize(), entry.getSize()));
+        archiveStream.putArchiveEntry(entry);
+    }
+
     @Override
     public Iterable<File> backupStop() throws PeriodicBackupException {
         try {
-            archiver.createArchive();
-        } catch (ArchiverException e) {
-            LOGGER.warning("Could not create archive " + archiver.getDestFile() + " " + e.getMessage());
+            archiveStream.close();
         } catch (IOException e) {
-            LOGGER.warning("Could not create archive " + archiver.getDestFile() + " " + e.getMessage());
+            throw new PeriodicBackupException("Could not create archive " + destination.getAbsolutePath() + " " + e.getMessage());
         }
-        return Lists.newArrayList(archiver.getDestFile());
+        checksums.setArchiveChecksum(destination.getName(), archiveFileStream.getChecksum().getValue());
+
+        File indexFile = new File(destination.getParentFile(), TarIndex.getIndexName(destination.getName()));
+        try {
+            CheckedOutputStream out = new CheckedOutputStream(new FileOutputStream(indexFile), new CRC32());
+            try {
+                OutputStream indexStream = encryptArchive(out);
+                new TarIndex(index).write(indexStream);
+                indexStream.close();
+            } finally {
+                out.close();
+            }
+            checksums.setArchiveChecksum(indexFile.getName(), out.getChecksum().getValue());
+        } catch (IOException e) {
+            throw new PeriodicBackupException("Could not create the index " + indexFile.getAbsolutePath() + " " + e.getMessage());
+        }
+        return Lists.newArrayList(destination, indexFile);
     }
 
     @Override
-    public void unarchiveFiles(Iterable<File> archives, File tempDir) {
-        // Setting up unArchiver
-        TarGZipUnArchiver unArchiver = new TarGZipUnArchiver();
-        unArchiver.setDestDirectory(tempDir);
-
-        // Extracting each archive to the temporary directory
-        for(File archive : archives) {
-            unArchiver.setSourceFile(archive);
-            LOGGER.info("Extracting files from " + archive.getAbsolutePath() + " to " + tempDir.getAbsolutePath());
-            try {
-                unArchiver.extract();
-            } catch (ArchiverException e) {
-                LOGGER.warning("Could not extract from " + archive.getAbsolutePath() + e.getMessage());
+    public boolean readArchive(InputStream archive, ArchiveEntryVisitor visitor) throws IOException {
+        TarArchiveInputStream in = new TarArchiveInputStream(new GzipCompressorInputStream(archive, true));
+        TarArchiveEntry entry;
+        while ((entry = in.getNextTarEntry()) != null) {
+            if (entry.isLink()) {
+                visitor.visitDuplicate(entry.getName(), entry.getLinkName());
+            } else if (entry.isFile() && !entry.isSymbolicLink()) {
+                visitor.visit(entry.getName(), in);
             }
+        }
+        return true;
+    }
 
+    @Override
+    public void unarchiveFiles(Iterable<File> archives, File tempDir) {
+        unarchiveFiles(archives, tempDir, Predicates.<String>alwaysTrue());
+    }
+
+    @Override
+    public void unarchiveFiles(Iterable<File> archives, File tempDir, Predicate<String> entryFilter) {
+        Map<String, File> files = Maps.newHashMap();
+        for (File archive : archives) {
+            files.put(archive.getName(), archive);
+        }
+        for (final File archive : files.values()) {
+            if (isArchive(archive.getName())) {
+                LOGGER.info("Extracting selected files from " + archive.getAbsolutePath() + " to " + tempDir.getAbsolutePath());
+                File indexFile = files.get(TarIndex.getIndexName(archive.getName()));
+                try {
+                    decryptArchive(archive);
+                    if (indexFile != null) {
+                        decryptArchive(indexFile);
+                        // Only the members holding the selected entries are decompressed
+                        InputStream in = new FileInputStream(indexFile);
+                        TarIndex tarIndex;
+                        try {
+                            tarIndex = TarIndex.read(in);
+                        } finally {
+                            IOUtils.closeQuietly(in);
+                        }
+                        extract(tarIndex, new MemberSource() {
+                            public InputStream open(long offset) throws IOException {
+                                FileInputStream in = new FileInputStream(archive);
+                                in.getChannel().position(offset);
+                                return in;
+                            }
+                        }, entryFilter, tempDir);
+                    } else {
+                        extract(new Extraction() {
+                            public List<Deduplicator.Reference> extract(Predicate<String> entryFilter, File directory) throws IOException {
+                                return extractEntries(new FileInputStream(archive), entryFilter, directory);
+                            }
+                        }, entryFilter, tempDir);
+                    }
+                } catch (IOException e) {
+                    LOGGER.warning("Could not extract from " + archive.getAbsolutePath() + " " + e.getMessage());
+                }
+            }
+        }
+        for (File archive : files.values()) {
             // Deleting the archive file
             LOGGER.info("Deleting " + archive.getAbsolutePath());
             if(!archive.delete()) {
@@ -107,6 +309,192 @@ public class TarGzStorage extends Storage {
         }
     }
 
+    @Override
+    public boolean unarchiveFiles(final Location location, final String archiveName, Predicate<String> entryFilter, File finalResultDir) throws IOException {
+        if (!isArchive(archiveName)) {
+            return true;
+        }
+        TarIndex tarIndex;
+        InputStream in;
+        try {
+            in = location.openBackupFile(TarIndex.getIndexName(archiveName));
+        } catch (IOException e) {
+            LOGGER.info("The archive " + archiveName + " has no index " + e.getMessage());
+            return false;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+        try {
+            tarIndex = TarIndex.read(decryptArchive(in));
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        // Encrypted archives are decrypted from the beginning of the chunk holding the member
+        in = location.openBackupFile(archiveName);
+        final byte[] header;
+        try {
+            header = ArchiveEncryption.readHeader(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        final ArchiveEncryption encryption = header != null ? ArchiveEncryption.forArchive(header) : null;
+        LOGGER.info("Extracting selected files from " + archiveName + " in " + location.getDisplayName());
+        extract(tarIndex, new MemberSource() {
+            public InputStream open(long offset) throws IOException {
+                if (encryption == null) {
+                    return location.openBackupFile(archiveName, offset);
+                }
+                return encryption.decrypt(header, location.openBackupFile(archiveName, ArchiveEncryption.getEncryptedOffset(header, offset)), offset);
+            }
+        }, entryFilter, finalResultDir);
+        return true;
+    }
+
+    private boolean isArchive(String fileName) {
+        return fileName.endsWith("." + getDescriptor().getArchiveFileExtension());
+    }
+
+    /**
+     *
+     * Opens the archive at the beginning of a gzip member
+     */
+    private interface MemberSource {
+        InputStream open(long offset) throws IOException;
+    }
+
+    /**
+     *
+     * Extracts the selected entries of an archive and returns the selected hard links
+     */
+    private interface Extraction {
+        List<Deduplicator.Reference> extract(Predicate<String> entryFilter, File directory) throws IOException;
+    }
+
+    private static void extract(final TarIndex tarIndex, final MemberSource source, Predicate<String> entryFilter, File tempDir) throws IOException {
+        extract(new Extraction() {
+            public List<Deduplicator.Reference> extract(Predicate<String> entryFilter, File directory) throws IOException {
+                return extractEntries(tarIndex, source, entryFilter, directory);
+            }
+        }, entryFilter, tempDir);
+    }
+
+    /**
+     *
+     * Extracts the selected entries and creates the files of the selected hard links. Originals which were not selected
+     * are extracted in a second pass next to the temporary directory and copied. Entries which were hard links
+     * in the backed up directory are linked to their extracted original.
+     */
+    private static void extract(Extraction extraction, Predicate<String> entryFilter, File tempDir) throws IOException {
+        List<Deduplicator.Reference> references = extraction.extract(entryFilter, tempDir);
+        Set<String> missing = Sets.newHashSet();
+        for (Deduplicator.Reference reference : references) {
+            if (!entryFilter.apply(reference.getOriginal())) {
+                missing.add(reference.getOriginal());
+            }
+        }
+        File originals = new File(tempDir.getParentFile(), tempDir.getName() + ".duplicates");
+        try {
+            if (!missing.isEmpty()) {
+                extraction.extract(Predicates.in(missing), originals);
+            }
+            for (Deduplicator.Reference reference : references) {
+                if (reference.isHardLink() && !missing.contains(reference.getOriginal())) {
+                    Util.createHardLink(Util.resolveEntry(reference.getName(), tempDir), new File(tempDir, reference.getOriginal()));
+                } else {
+                    File directory = missing.contains(reference.getOriginal()) ? originals : tempDir;
+                    Deduplicator.materialize(reference, new File(directory, reference.getOriginal()), tempDir);
+                }
+            }
+        } finally {
+            if (!missing.isEmpty()) {
+                FileUtils.deleteDirectory(originals);
+            }
+        }
+    }
+
+    /**
+     *
+     * Extracts the selected entries, every member holding at least one of them is decompressed once
+     * starting at the first selected entry
+     */
+    private static List<Deduplicator.Reference> extractEntries(TarIndex tarIndex, MemberSource source, Predicate<String> entryFilter, File tempDir) throws IOException {
+        List<Deduplicator.Reference> references = Lists.newArrayList();
+        SortedMap<Long, List<TarIndex.Entry>> members = Maps.newTreeMap();
+        for (TarIndex.Entry entry : tarIndex.getEntries()) {
+            if (entryFilter.apply(entry.getName())) {
+                List<TarIndex.Entry> entries = members.get(entry.getMemberOffset());
+                if (entries == null) {
+                    entries = Lists.newArrayList();
+                    members.put(entry.getMemberOffset(), entries);
+                }
+                entries.add(entry);
+            }
+        }
+        for (Map.Entry<Long, List<TarIndex.Entry>> member : members.entrySet()) {
+            // The entries of a member are indexed in archive order
+            List<TarIndex.Entry> entries = member.getValue();
+            InputStream in = source.open(member.getKey());
+            try {
+                InputStream gzipIn = new GzipCompressorInputStream(in, true);
+                IOUtils.skipFully(gzipIn, entries.get(0).getOffsetInMember());
+                TarArchiveInputStream tarIn = new TarArchiveInputStream(gzipIn);
+                int remaining = entries.size();
+                TarArchiveEntry entry;
+                while (remaining > 0 && (entry = tarIn.getNextTarEntry()) != null) {
+                    if ((entry.isFile() || entry.isLink() || entry.isSymbolicLink()) && entryFilter.apply(entry.getName())) {
+                        extractEntry(tarIn, entry, tempDir, references);
+                        remaining--;
+                    }
+                }
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        return references;
+    }
+
+    /**
+     *
+     * Extracts the selected entries reading the whole archive, used for archives without index
+     */
+    private static List<Deduplicator.Reference> extractEntries(InputStream in, Predicate<String> entryFilter, File tempDir) throws IOException {
+        List<Deduplicator.Reference> references = Lists.newArrayList();
+        try {
+            TarArchiveInputStream tarIn = new TarArchiveInputStream(new GzipCompressorInputStream(in, true));
+            TarArchiveEntry entry;
+            while ((entry = tarIn.getNextTarEntry()) != null) {
+                if ((entry.isFile() || entry.isLink() || entry.isSymbolicLink()) && entryFilter.apply(entry.getName())) {
+                    extractEntry(tarIn, entry, tempDir, references);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return references;
+    }
+
+    private static void extractEntry(TarArchiveInputStream tarIn, TarArchiveEntry entry, File tempDir, List<Deduplicator.Reference> references) throws IOException {
+        if (entry.isSymbolicLink()) {
+            Util.createSymbolicLink(Util.resolveEntry(entry.getName(), tempDir), entry.getLinkName());
+            return;
+        }
+        if (entry.isLink()) {
+            // Hard links are created once all the originals are extracted
+            references.add(new Deduplicator.Reference(entry.getName(), entry.getLinkName(), entry.getModTime().getTime(),
+                    entry.getExtraPaxHeader(DUPLICATE_HEADER) == null));
+            return;
+        }
+        File file = Util.extractEntry(tarIn, entry.getName(), entry.getModTime().getTime(), tempDir);
+        if ((entry.getMode() & 0100) != 0 && !file.setExecutable(true)) {
+            LOGGER.warning("Could not make " + file.getAbsolutePath() + " executable");
+        }
+    }
+
+    @Override
+    public boolean isWorkerSupported() {
+        return true;
+    }
+
     public String getDisplayName() {
         return "TarGz";
     }
@@ -121,6 +509,67 @@ public class TarGzStorage extends Storage {
         return 89;
     }
 
+    /**
+     *
+     * Gzip stream made of several members, a new member can be started whenever the written data is at an entry boundary
+     */
+    private static class BlockGzipOutputStream extends OutputStream {
+
+        private final CountingOutputStream out;
+        private GZIPOutputStream member;
+        private long memberOffset;
+        private long memberSize;
+
+        BlockGzipOutputStream(OutputStream out) throws IOException {
+            this.out = new CountingOutputStream(out);
+            startMember();
+        }
+
+        /**
+         * Finishes the current member, the data written afterwards can be decompressed on its own
+         */
+        void startMember() throws IOException {
+            if (member != null) {
+                // The underlying stream is shielded, closing only writes the trailer and releases the deflater
+                member.close();
+            }
+            memberOffset = out.getByteCount();
+            memberSize = 0;
+            member = new GZIPOutputStream(new CloseShieldOutputStream(out), BUFFER_SIZE);
+        }
+
+        long getMemberOffset() {
+            return memberOffset;
+        }
+
+        long getMemberSize() {
+            return memberSize;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            member.write(b);
+            memberSize++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            member.write(b, off, len);
+            memberSize += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            member.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            member.close();
+            out.close();
+        }
+    }
+
     @SuppressWarnings("unused")
     @Extension
     public static class DescriptorImpl extends StorageDescriptor {
@@ -0,0 +1,173 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2010 - 2011, Tomasz Blaszczynski, Emanuele Zattin
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ *
+ * TarIndex is the entry index written next to a block compressed tar archive.
+ * The archive is a sequence of independently decodable gzip members which always start at an entry boundary,
+ * so an entry is read by seeking to the offset of its member, skipping to the entry inside the decompressed member
+ * and reading the tar header found there.
+ *
+ * The format is a header line with the magic string and the format version followed by one line per entry:
+ * member offset, offset inside the member, size and name.
+ */
+public class TarIndex {
+
+    public final static String EXTENSION = "idx";
+    final static String MAGIC = "periodicbackup-tar-index";
+    final static int VERSION = 1;
+
+    private final List<Entry> entries;
+
+    public TarIndex(List<Entry> entries) {
+        this.entries = ImmutableList.copyOf(entries);
+    }
+
+    /**
+     *
+     * @param archiveName name of the archive
+     * @return name of the index sidecar of the archive
+     */
+    public static String getIndexName(String archiveName) {
+        return Util.createFileName(archiveName, EXTENSION);
+    }
+
+    /**
+     *
+     * Reads an index, the stream is not closed
+     *
+     * @param in stream with the content of the index
+     * @return TarIndex
+     * @throws IOException If an IO problem occurs or the content is not an index
+     */
+    public static TarIndex read(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charsets.UTF_8));
+        String header = reader.readLine();
+        if (header == null || !header.equals(MAGIC + " " + VERSION)) {
+            throw new IOException("Not a tar index: " + header);
+        }
+        List<Entry> entries = Lists.newArrayList();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.isEmpty()) {
+                entries.add(Entry.parse(line));
+            }
+        }
+        return new TarIndex(entries);
+    }
+
+    /**
+     *
+     * Writes the index, the stream is not closed
+     *
+     * @param out destination stream
+     * @throws IOException If an IO problem occurs
+     */
+    public void write(OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, Charsets.UTF_8);
+        writer.write(MAGIC + " " + VERSION + "\n");
+        for (Entry entry : entries) {
+            writer.write(entry.toString() + "\n");
+        }
+        writer.flush();
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     *
+     * Position of a single entry in the archive
+     */
+    public static class Entry {
+        private final String name;
+        private final long memberOffset;
+        private final long offsetInMember;
+        private final long size;
+
+        public Entry(String name, long memberOffset, long offsetInMember, long size) {
+            this.name = name;
+            this.memberOffset = memberOffset;
+            this.offsetInMember = offsetInMember;
+            this.size = size;
+        }
+
+        static Entry parse(String line) throws IOException {
+            // The name is the last field since it may contain the separator
+            String[] fields = line.split(";", 4);
+            if (fields.length != 4) {
+                throw new IOException("Invalid tar index entry: " + line);
+            }
+            try {
+                return new Entry(BackupMetadata.Entry.unescape(fields[3]), Long.parseLong(fields[0]),
+                        Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid tar index entry: " + line);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return offset of the gzip member holding the entry in the compressed archive
+         */
+        public long getMemberOffset() {
+            return memberOffset;
+        }
+
+        /**
+         * @return offset of the tar header of the entry in the decompressed member
+         */
+        public long getOffsetInMember() {
+            return offsetInMember;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return memberOffset + ";" + offsetInMember + ";" + size + ";" + BackupMetadata.Entry.escape(name);
+        }
+    }
+}
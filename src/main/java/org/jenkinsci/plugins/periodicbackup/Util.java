@@ -25,15 +25,35 @@
 package org.jenkinsci.plugins.periodicbackup;
 
 import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.io.Files;
 import hudson.Functions;
 import hudson.util.FormValidation;
+import org.apache.commons.io.input.CloseShieldInputStream;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.Checksum;
 import org.acegisecurity.AccessDeniedException;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
@@ -43,6 +63,9 @@ import jenkins.model.Jenkins;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 public class Util {
+
+    private static final Logger LOGGER = Logger.getLogger(Util.class.getName());
+
     /**
      *
      * This returns relative path of given file with respect to given base directory
@@ -52,7 +75,12 @@ public class Util {
      * @return String with relative @file path with respect to its @baseDir
      */
     public static String getRelativePath(final File file, final File baseDir) {
-        return baseDir.toURI().relativize(file.toURI()).getPath();
+        String path = baseDir.toURI().relativize(file.toURI()).getPath();
+        if (path.endsWith("/") && isSymbolicLink(file)) {
+            // The URI of a link to a directory is the URI of a directory, the link itself is a file
+            return path.substring(0, path.length() - 1);
+        }
+        return path;
     }
 
     /**
@@ -66,6 +94,19 @@ public class Util {
         return "backup_" + getFormattedDate(BackupObject.FILE_TIMESTAMP_PATTERN, date);
     }
 
+    /**
+     *
+     * This returns the filename base of the BackupObject and metadata files of the given Storage,
+     * all the storages of a backup run share the timestamp so the archive extension is appended
+     *
+     * @param date Date of the backup run
+     * @param storage Storage which created the archives
+     * @return String with the filename base
+     */
+    public static String generateFileNameBase(Date date, Storage storage) {
+        return createFileName(generateFileNameBase(date), storage.getDescriptor().getArchiveFileExtension());
+    }
+
     /**
      *
      * This returns timestamp String
@@ -110,7 +151,49 @@ public class Util {
 
     /**
      *
-     * This test if a given file is a valid serialized BackupObject file
+     * Creates the metadata sidecar File for the given BackupMetadata
+     *
+     * @param metadata BackupMetadata to be written
+     * @param destinationDir String with path to the directory where the file will be created
+     * @param fileNameBase first part of the filename
+     * @return metadata sidecar File
+     * @throws IOException If an IO problem occurs
+     */
+    public static File createBackupMetadataFile(BackupMetadata metadata, String destinationDir, String fileNameBase) throws IOException {
+        File metadataFile = new File(destinationDir, createFileName(fileNameBase, BackupMetadata.EXTENSION));
+        metadata.write(metadataFile);
+        return metadataFile;
+    }
+
+    /**
+     *
+     * Returns the metadata sidecar File of the given BackupObject file, the sidecar might not exist
+     *
+     * @param backupObjectFile serialized BackupObject File
+     * @return metadata sidecar File
+     */
+    public static File getMetadataFile(File backupObjectFile) {
+        return new File(backupObjectFile.getParentFile(), getMetadataName(backupObjectFile.getName()));
+    }
+
+    /**
+     *
+     * Returns the name of the metadata sidecar of the given BackupObject file name
+     *
+     * @param backupObjectFileName name (or path) of a serialized BackupObject file
+     * @return name (or path) of the metadata sidecar
+     */
+    public static String getMetadataName(String backupObjectFileName) {
+        String base = backupObjectFileName.endsWith("." + BackupObject.EXTENSION) ?
+                backupObjectFileName.substring(0, backupObjectFileName.length() - BackupObject.EXTENSION.length() - 1) :
+                backupObjectFileName;
+        return createFileName(base, BackupMetadata.EXTENSION);
+    }
+
+    /**
+     *
+     * This tests if a given file is a valid serialized BackupObject file.
+     * The file is read only until the FileManager, Storage and Location elements have been found.
      *
      * @param backupObjectFile File to test
      * @return true if valid, false otherwise
@@ -118,11 +201,21 @@ public class Util {
      */
     public static boolean isValidBackupObjectFile(File backupObjectFile) throws IOException {
         if(!backupObjectFile.exists() || !(backupObjectFile.getUsableSpace() > 0)) return false;
-        else {
-            String fileAsString = Files.toString(backupObjectFile, Charsets.UTF_8);
-            return fileAsString.contains("fileManager class=\"org.jenkinsci.plugins.periodicbackup") &&
-                   fileAsString.contains("storage class=\"org.jenkinsci.plugins.periodicbackup") &&
-                   fileAsString.contains("location class=\"org.jenkinsci.plugins.periodicbackup");
+        boolean hasFileManager = false, hasStorage = false, hasLocation = false;
+        BufferedReader reader = Files.newReader(backupObjectFile, Charsets.UTF_8);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                hasFileManager |= line.contains("fileManager class=\"org.jenkinsci.plugins.periodicbackup");
+                hasStorage |= line.contains("storage class=\"org.jenkinsci.plugins.periodicbackup");
+                hasLocation |= line.contains("location class=\"org.jenkinsci.plugins.periodicbackup");
+                if (hasFileManager && hasStorage && hasLocation) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            reader.close();
         }
     }
 
@@ -162,6 +255,376 @@ public class Util {
         return ext;
     }
 
+    /**
+     *
+     * Writes the content of an archive entry to the file with the same relative path inside the destination directory
+     *
+     * @param content content of the entry, it is not closed
+     * @param entryName name of the entry
+     * @param lastModified modification time of the entry, negative if unknown
+     * @param destinationDir directory where the entry is extracted
+     * @return the extracted file
+     * @throws IOException If an IO problem occurs or the entry would be written outside of the destination directory
+     */
+    public static File extractEntry(InputStream content, String entryName, long lastModified, File destinationDir) throws IOException {
+        File destination = resolveEntry(entryName, destinationDir);
+        copyToFile(new CloseShieldInputStream(content), destination);
+        if (lastModified >= 0 && !destination.setLastModified(lastModified)) {
+            LOGGER.fine("Could not set the modification time of " + destination.getAbsolutePath());
+        }
+        return destination;
+    }
+
+    /**
+     *
+     * @param entryName name of an archive entry
+     * @param destinationDir directory where the entry is extracted
+     * @return the file of the entry inside the destination directory
+     * @throws IOException If the entry would be written outside of the destination directory
+     */
+    public static File resolveEntry(String entryName, File destinationDir) throws IOException {
+        File destination = new File(destinationDir, entryName);
+        if (!destination.getCanonicalPath().startsWith(destinationDir.getCanonicalPath() + File.separator)) {
+            throw new IOException("The entry " + entryName + " is outside of " + destinationDir.getAbsolutePath());
+        }
+        return destination;
+    }
+
+    /**
+     *
+     * Copies a file with FileChannel.transferTo so that no copy buffer is needed, the parent directories of the
+     * destination are created and the modification time is kept. A symbolic link at the destination is replaced
+     * instead of being written through.
+     *
+     * @param source file to copy
+     * @param destination file to create or overwrite
+     * @throws IOException If an IO problem occurs
+     */
+    public static void copyFile(File source, File destination) throws IOException {
+        createParentDirectory(destination);
+        if (isSymbolicLink(destination)) {
+            java.nio.file.Files.delete(destination.toPath());
+        }
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(destination);
+            try {
+                FileChannel sourceChannel = in.getChannel();
+                FileChannel destinationChannel = out.getChannel();
+                long size = sourceChannel.size();
+                long position = 0;
+                while (position < size) {
+                    long transferred = sourceChannel.transferTo(position, size - position, destinationChannel);
+                    if (transferred <= 0) {
+                        // The file was truncated while it was copied
+                        break;
+                    }
+                    position += transferred;
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!destination.setLastModified(source.lastModified())) {
+            LOGGER.fine("Could not set the modification time of " + destination.getAbsolutePath());
+        }
+    }
+
+    /**
+     *
+     * Copies the content of a directory into another directory with {@link #copyFile(File, File)}, existing files
+     * are overwritten
+     *
+     * @param source directory to copy
+     * @param destination directory receiving the content, it is created if needed
+     * @throws IOException If an IO problem occurs
+     */
+    public static void copyDirectory(File source, File destination) throws IOException {
+        if (!destination.isDirectory() && !destination.mkdirs()) {
+            throw new IOException("Could not create the directory " + destination.getAbsolutePath());
+        }
+        File[] files = source.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list " + source.getAbsolutePath());
+        }
+        for (File file : files) {
+            if (file.isDirectory() && !isSymbolicLink(file)) {
+                copyDirectory(file, new File(destination, file.getName()));
+            } else {
+                copyFileOrLink(file, new File(destination, file.getName()));
+            }
+        }
+    }
+
+    /**
+     *
+     * Copies a file like {@link #copyFile(File, File)}, a symbolic link is copied as a link to the same target
+     *
+     * @param source file or symbolic link to copy
+     * @param destination file to create or overwrite
+     * @throws IOException If an IO problem occurs
+     */
+    public static void copyFileOrLink(File source, File destination) throws IOException {
+        if (isSymbolicLink(source)) {
+            createSymbolicLink(destination, readSymbolicLink(source));
+        } else {
+            copyFile(source, destination);
+        }
+    }
+
+    /**
+     *
+     * Lists the files inside a directory and its subdirectories. Unlike FileUtils.listFiles, symbolic links are
+     * listed as files and the directories they point to are not listed.
+     *
+     * @param directory directory to list
+     * @return the files and symbolic links, empty if the directory does not exist
+     * @throws IOException If a directory cannot be listed
+     */
+    public static List<File> listFilesAndLinks(File directory) throws IOException {
+        final List<File> files = Lists.newArrayList();
+        if (!directory.isDirectory()) {
+            return files;
+        }
+        java.nio.file.Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                files.add(file.toFile());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    /**
+     *
+     * @param file file to check
+     * @return true if the file is a symbolic link, whatever it points to
+     */
+    public static boolean isSymbolicLink(File file) {
+        return java.nio.file.Files.isSymbolicLink(file.toPath());
+    }
+
+    /**
+     *
+     * @param link symbolic link
+     * @return the target of the link as it was created, it may be relative to the directory of the link
+     * @throws IOException If the file is not a symbolic link
+     */
+    public static String readSymbolicLink(File link) throws IOException {
+        return java.nio.file.Files.readSymbolicLink(link.toPath()).toString();
+    }
+
+    /**
+     *
+     * Creates a symbolic link, its parent directories are created and a file or link at its place is replaced
+     *
+     * @param link path of the link
+     * @param target target of the link
+     * @throws IOException If the link cannot be created
+     */
+    public static void createSymbolicLink(File link, String target) throws IOException {
+        createParentDirectory(link);
+        java.nio.file.Files.deleteIfExists(link.toPath());
+        java.nio.file.Files.createSymbolicLink(link.toPath(), Paths.get(target));
+    }
+
+    /**
+     *
+     * Creates a hard link, its parent directories are created and a file or link at its place is replaced
+     *
+     * @param link path of the new link
+     * @param existing file the link shares its content with
+     * @throws IOException If the link cannot be created
+     */
+    public static void createHardLink(File link, File existing) throws IOException {
+        createParentDirectory(link);
+        java.nio.file.Files.deleteIfExists(link.toPath());
+        java.nio.file.Files.createLink(link.toPath(), existing.toPath());
+    }
+
+    /**
+     *
+     * @param file file to check
+     * @return a key identifying the content of a file with several hard links, the same for all the links,
+     * null if the file has a single link or if the file system does not tell
+     */
+    public static Object getHardLinkKey(File file) {
+        Path path = file.toPath();
+        try {
+            Object links = java.nio.file.Files.getAttribute(path, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+            if (!(links instanceof Integer) || (Integer) links < 2) {
+                return null;
+            }
+            return java.nio.file.Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).fileKey();
+        } catch (UnsupportedOperationException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     *
+     * Copies the files of a restore with {@link #copyFileOrLink(File, File)}. Files which are hard links to the same
+     * content are copied once, the other destinations are linked to the first copy.
+     */
+    public static final class Copier {
+
+        private final Map<Object, File> copies = Maps.newHashMap();
+
+        public void copy(File source, File destination) throws IOException {
+            Object key = getHardLinkKey(source);
+            if (key == null) {
+                copyFileOrLink(source, destination);
+                return;
+            }
+            // Only the hard links wait for each other, they are rare
+            synchronized (copies) {
+                File copy = copies.get(key);
+                if (copy != null) {
+                    createHardLink(destination, copy);
+                } else {
+                    copyFile(source, destination);
+                    copies.put(key, destination);
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * Writes the content of a stream to a file through a FileChannel with a pooled buffer, the parent directories
+     * of the file are created
+     *
+     * @param in content of the file, it is closed
+     * @param destination file to create or overwrite
+     * @throws IOException If an IO problem occurs
+     */
+    public static void copyToFile(InputStream in, File destination) throws IOException {
+        ByteBuffer buffer = BufferPool.heap().acquire();
+        try {
+            createParentDirectory(destination);
+            FileOutputStream out = new FileOutputStream(destination);
+            try {
+                FileChannel channel = out.getChannel();
+                int read;
+                while ((read = in.read(buffer.array())) != -1) {
+                    buffer.clear().limit(read);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+            BufferPool.heap().release(buffer);
+        }
+    }
+
+    /**
+     *
+     * Copies a stream with a pooled buffer
+     *
+     * @param in source, it is not closed
+     * @param out destination, it is not closed
+     * @param maxSize maximum number of bytes to copy, negative for the whole stream
+     * @param checksum updated with the copied bytes, may be null
+     * @return number of bytes copied
+     * @throws IOException If an IO problem occurs
+     */
+    public static long copy(InputStream in, OutputStream out, long maxSize, Checksum checksum) throws IOException {
+        ByteBuffer buffer = BufferPool.heap().acquire();
+        try {
+            byte[] bytes = buffer.array();
+            long copied = 0;
+            while (maxSize < 0 || copied < maxSize) {
+                int length = maxSize < 0 ? bytes.length : (int) Math.min(bytes.length, maxSize - copied);
+                int read = in.read(bytes, 0, length);
+                if (read == -1) {
+                    break;
+                }
+                if (checksum != null) {
+                    checksum.update(bytes, 0, read);
+                }
+                out.write(bytes, 0, read);
+                copied += read;
+            }
+            return copied;
+        } finally {
+            BufferPool.heap().release(buffer);
+        }
+    }
+
+    /**
+     *
+     * Compares the content of two files with pooled direct buffers
+     *
+     * @param first first file
+     * @param second second file
+     * @return true if the files have the same content
+     * @throws IOException If an IO problem occurs
+     */
+    public static boolean contentEquals(File first, File second) throws IOException {
+        if (first.length() != second.length()) {
+            return false;
+        }
+        FileInputStream firstIn = new FileInputStream(first);
+        try {
+            FileInputStream secondIn = new FileInputStream(second);
+            ByteBuffer firstBuffer = BufferPool.direct().acquire();
+            ByteBuffer secondBuffer = BufferPool.direct().acquire();
+            try {
+                while (true) {
+                    firstBuffer.clear();
+                    secondBuffer.clear();
+                    boolean end = !fill(firstIn.getChannel(), firstBuffer) | !fill(secondIn.getChannel(), secondBuffer);
+                    firstBuffer.flip();
+                    secondBuffer.flip();
+                    if (!firstBuffer.equals(secondBuffer)) {
+                        return false;
+                    }
+                    if (end) {
+                        return true;
+                    }
+                }
+            } finally {
+                BufferPool.direct().release(firstBuffer);
+                BufferPool.direct().release(secondBuffer);
+                secondIn.close();
+            }
+        } finally {
+            firstIn.close();
+        }
+    }
+
+    /**
+     *
+     * @return false if the end of the channel was reached before the buffer was full
+     */
+    private static boolean fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void createParentDirectory(File file) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create the directory " + parent.getAbsolutePath());
+        }
+    }
+
     public static boolean isWritableDirectory(File directory) {
         return (directory.exists() && directory.isDirectory() && directory.canWrite());
     }
@@ -24,20 +24,38 @@
 
 package org.jenkinsci.plugins.periodicbackup;
 
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import hudson.Extension;
 import net.sf.json.JSONObject;
+import org.apache.commons.compress.archivers.zip.UnixStat;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.IOUtils;
 import org.codehaus.plexus.archiver.ArchiverException;
-import org.codehaus.plexus.archiver.zip.ZipArchiver;
 import org.codehaus.plexus.archiver.zip.ZipUnArchiver;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Logger;
-import jenkins.model.Jenkins;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 public class ZipStorage extends Storage {
 
@@ -46,13 +64,19 @@ public class ZipStorage extends Storage {
     private boolean multiVolume;                                            // Determines if the backup should be divided into few archives
     private long volumeSize;                                                // Determines maximum size of files inside single archive file
     private static final Logger LOGGER = Logger.getLogger(ZipStorage.class.getName());
-    private transient ZipArchiver archiver;                                 // Manages archiving process
+    private transient ZipArchiveOutputStream archiveStream;                 // Stream of the currently processed archive, null until a file is added
+    private transient CheckedOutputStream archiveFileStream;                // Computes the checksum of the currently processed archive file
+    private transient File currentArchive;                                  // Currently processed archive file
+    private transient ArchiveChecksums checksums;                           // Checksums of the files and archives written so far
     private transient File tempDirectory;                                   // Directory where the archives will be created
     private transient String archiveFilePathBase;                           // Part of the archive filename determined by Util.generateFileNameBase
     private transient long currentArchiveTotalFilesSize;                    // Size of all the files inside currently processed archive
     private transient int currentArchiveFilesCount;                         // Number of the files inside currently processed archive
     private transient int archivesNumber;                                   // Number of the archives created so far by the ZipStorage
     private transient Set<File> archives;                                   // Set of created archive files
+    private transient Deduplicator deduplicator;                            // Finds the files already stored in the current archive
+    private transient List<Deduplicator.Reference> references;              // Files of the current archive stored as references
+    private final static int BUFFER_SIZE = 64 * 1024;
 
     @DataBoundConstructor
     public ZipStorage(boolean multiVolume, long volumeSize) {
@@ -65,10 +89,6 @@ public class ZipStorage extends Storage {
         return currentArchiveTotalFilesSize;
     }
 
-    public ZipArchiver getArchiver() {
-        return archiver;
-    }
-
     public int getCurrentArchiveFilesCount() {
         return currentArchiveFilesCount;
     }
@@ -97,32 +117,56 @@ public class ZipStorage extends Storage {
         this.multiVolume = multiVolume;
     }
 
+    @Override
+    public ArchiveChecksums getChecksums() {
+        return checksums;
+    }
+
     @Override
     public void backupStart(String tempDirectoryPath, String archiveFilenameBase) {
-        archiver = new ZipArchiver();
-        archives = Sets.newHashSet();
+        archiveStream = null;
+        archives = Sets.newLinkedHashSet();
+        checksums = new ArchiveChecksums();
         archivesNumber = 1;
         currentArchiveFilesCount = 0;
         currentArchiveTotalFilesSize = 0;
         tempDirectory = new File(tempDirectoryPath);
         this.archiveFilePathBase = archiveFilenameBase;
-        String currentArchiveFilePath = archiveFilePathBase + "_" + archivesNumber; // Defining filename
-        currentArchiveFilePath = Util.createFileName(currentArchiveFilePath, getDescriptor().getArchiveFileExtension()); // Adding extension to the filename
-        archiver.setDestFile(new File(tempDirectory, currentArchiveFilePath));
         if(multiVolume && (volumeSize <= 0 || volumeSize > MAX_SIZE_OF_FILES_PER_ARCHIVE)) {
             LOGGER.warning("Volume size " + volumeSize + " bytes is incorrect, setting to single volume.");
             multiVolume = false;
         }
     }
 
+    @Override
+    public boolean backupResume(String tempDirectoryPath, String archiveFilenameBase, List<File> completedArchives,
+                                ArchiveChecksums checksums) {
+        backupStart(tempDirectoryPath, archiveFilenameBase);
+        // The next file starts a new volume numbered after the completed ones
+        archives.addAll(completedArchives);
+        this.checksums = checksums;
+        archivesNumber = completedArchives.size() + 1;
+        return true;
+    }
+
+    @Override
+    public Collection<File> getCompletedArchives() {
+        return archives == null ? Collections.<File>emptyList() : ImmutableList.copyOf(archives);
+    }
+
     @Override
     public void backupAddFile(File fileToStore) throws PeriodicBackupException {
+        if (isPreserveLinks() && Util.isSymbolicLink(fileToStore)) {
+            LOGGER.fine("Zip archives cannot hold symbolic links, skipping " + fileToStore.getAbsolutePath());
+            return;
+        }
         if(fileToStore.length() > MAX_SIZE_OF_FILES_PER_ARCHIVE) {
             throw new PeriodicBackupException("Size of file " + fileToStore.getAbsolutePath() + " is bigger then maximum allowed size (" + MAX_SIZE_OF_FILES_PER_ARCHIVE / (1024l) + "kB). Cannot create archive.");
         }
         if ((currentArchiveFilesCount + 1) >= MAX_FILES_PER_ARCHIVE || (currentArchiveTotalFilesSize + fileToStore.length()) >= MAX_SIZE_OF_FILES_PER_ARCHIVE) {
-            LOGGER.info("Number of files in archive " + archiver.getDestFile().getAbsolutePath() + " exceeded " + MAX_FILES_PER_ARCHIVE + " or total size of files for this archive exceeded " + MAX_SIZE_OF_FILES_PER_ARCHIVE / (1024l) + " kB");
+            LOGGER.info("Number of files in archive " + archiveFilePathBase + "_" + archivesNumber + " exceeded " + MAX_FILES_PER_ARCHIVE + " or total size of files for this archive exceeded " + MAX_SIZE_OF_FILES_PER_ARCHIVE / (1024l) + " kB");
             createNewArchive();
+            addFile(fileToStore);
         } else {
             // fileToStore is bigger then the limit and there are no other files in archive yet (add and create new)
             if (multiVolume && fileToStore.length() >= volumeSize && currentArchiveFilesCount == 0) {
@@ -153,54 +197,134 @@ public class ZipStorage extends Storage {
 
     /**
      *
-     * This method creates archive file from current ZipArchiver object and then creates new instance of ZipArchiver
+     * This method finishes the current archive file, the next one is opened when a file is added to it
+     *
+     * @throws PeriodicBackupException if the current archive cannot be finished
      */
-    private void createNewArchive() {
-        try {
-            archiver.createArchive();
-        } catch (IOException e) {
-            LOGGER.warning("Could not create archive " + archiver.getDestFile() + " " + e.getMessage());
-        } catch (ArchiverException e) {
-            LOGGER.warning("Could not create archive " + archiver.getDestFile() + " " + e.getMessage());
-        }
-        archives.add(archiver.getDestFile());
+    private void createNewArchive() throws PeriodicBackupException {
+        closeArchive();
         archivesNumber++;
         currentArchiveFilesCount = 0;
         currentArchiveTotalFilesSize = 0;
         LOGGER.info("Creating new archive");
-        archiver = new ZipArchiver();
-        String currentArchiveFilePath = archiveFilePathBase + "_" + archivesNumber;
-        currentArchiveFilePath = Util.createFileName(currentArchiveFilePath, getDescriptor().getArchiveFileExtension());
-        archiver.setDestFile(new File(tempDirectory, currentArchiveFilePath));
     }
 
     /**
      *
-     * Adds a file to the archiver
+     * Opens the stream of the current archive file
+     *
+     * @throws PeriodicBackupException if the archive file cannot be created
+     */
+    private void openArchive() throws PeriodicBackupException {
+        String currentArchiveFilePath = archiveFilePathBase + "_" + archivesNumber; // Defining filename
+        currentArchiveFilePath = Util.createFileName(currentArchiveFilePath, getArchiveFileExtension()); // Adding extension to the filename
+        currentArchive = new File(tempDirectory, currentArchiveFilePath);
+        OutputStream out;
+        try {
+            // The checksum of the archive file is computed on the bytes written to the file, after the encryption
+            archiveFileStream = new CheckedOutputStream(new FileOutputStream(currentArchive), new CRC32());
+            out = encryptArchive(archiveFileStream);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(archiveFileStream);
+            throw new PeriodicBackupException("Could not create archive " + currentArchive.getAbsolutePath() + " " + e.getMessage());
+        }
+        archiveStream = new ZipArchiveOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        // Duplicates only refer to files of the same archive so that every volume can be extracted on its own
+        deduplicator = isDeduplicate() ? new Deduplicator() : null;
+        references = Lists.newArrayList();
+    }
+
+    /**
+     *
+     * Finishes the current archive file and records its checksum
+     *
+     * @throws PeriodicBackupException if the archive cannot be written
+     */
+    private void closeArchive() throws PeriodicBackupException {
+        if (archiveStream == null) {
+            return;
+        }
+        try {
+            if (!references.isEmpty()) {
+                archiveStream.putArchiveEntry(new ZipArchiveEntry(Deduplicator.MANIFEST_NAME));
+                Deduplicator.writeManifest(references, archiveStream);
+                archiveStream.closeArchiveEntry();
+            }
+            archiveStream.close();
+        } catch (IOException e) {
+            throw new PeriodicBackupException("Could not create archive " + currentArchive.getAbsolutePath() + " " + e.getMessage());
+        } finally {
+            archiveStream = null;
+        }
+        checksums.setArchiveChecksum(currentArchive.getName(), archiveFileStream.getChecksum().getValue());
+        archives.add(currentArchive);
+    }
+
+    /**
+     *
+     * Writes a file to the current archive, its checksum is computed while it is copied
      *
      * @param fileToStore file that will be add to the archive
+     * @throws PeriodicBackupException if the archive cannot be written
      */
-    private void addFile(File fileToStore) {
+    private void addFile(File fileToStore) throws PeriodicBackupException {
+        InputStream in;
         try {
-            archiver.addFile(fileToStore, Util.getRelativePath(fileToStore, Jenkins.getActiveInstance().getRootDir()));
-            currentArchiveFilesCount++;
-            currentArchiveTotalFilesSize += fileToStore.length();
-        } catch (ArchiverException e) {
+            in = new FileInputStream(fileToStore);
+        } catch (FileNotFoundException e) {
             LOGGER.warning("Could not add file to the archive. " + e.getMessage());
+            return;
+        }
+        try {
+            if (archiveStream == null) {
+                openArchive();
+            }
+            String name = Util.getRelativePath(fileToStore, getRootDirectory());
+            Deduplicator.Original original = deduplicator != null ? deduplicator.find(fileToStore) : null;
+            if (original != null) {
+                // The content is already in this archive, only a line of the manifest is stored
+                references.add(new Deduplicator.Reference(name, original.getEntry().getName(), fileToStore.lastModified()));
+                checksums.addEntry(currentArchive.getName(), name, original.getEntry().getSize(), original.getEntry().getChecksum());
+                return;
+            }
+            ZipArchiveEntry entry = new ZipArchiveEntry(fileToStore, name);
+            entry.setUnixMode(UnixStat.FILE_FLAG | (fileToStore.canExecute() ? 0755 : 0644));
+            archiveStream.putArchiveEntry(entry);
+            BackupMetadata.Entry stored = checksums.copyEntry(currentArchive.getName(), entry.getName(), in, archiveStream, -1);
+            archiveStream.closeArchiveEntry();
+            if (deduplicator != null) {
+                deduplicator.archived(fileToStore, stored);
+            }
+            currentArchiveFilesCount++;
+            currentArchiveTotalFilesSize += stored.getSize();
+        } catch (IOException e) {
+            throw new PeriodicBackupException("Could not add " + fileToStore.getAbsolutePath() + " to the archive " + currentArchive.getAbsolutePath() + " " + e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(in);
         }
     }
 
     @Override
     public Iterable<File> backupStop() throws PeriodicBackupException {
-        if(!archiver.getFiles().isEmpty()) {
-            try {
-                archiver.createArchive();
-            } catch (Exception e) {
-                throw new PeriodicBackupException("Could not create archive " + archiver.getDestFile().getAbsolutePath() + " " + e.getMessage());
+        closeArchive();
+        return archives;
+    }
+
+    @Override
+    public boolean readArchive(InputStream archive, ArchiveEntryVisitor visitor) throws IOException {
+        ZipArchiveInputStream in = new ZipArchiveInputStream(archive);
+        ZipArchiveEntry entry;
+        while ((entry = in.getNextZipEntry()) != null) {
+            if (Deduplicator.MANIFEST_NAME.equals(entry.getName())) {
+                // The manifest is the last entry, the originals were visited before
+                for (Deduplicator.Reference reference : Deduplicator.readManifest(in)) {
+                    visitor.visitDuplicate(reference.getName(), reference.getOriginal());
+                }
+            } else if (!entry.isDirectory()) {
+                visitor.visit(entry.getName(), in);
             }
-            archives.add(archiver.getDestFile());
         }
-        return archives;
+        return true;
     }
 
     @Override
@@ -213,9 +337,54 @@ public class ZipStorage extends Storage {
             unarchiver.setSourceFile(archive);
             LOGGER.info("Extracting files from " + archive.getAbsolutePath() + " to " + tempDir.getAbsolutePath());
             try {
+                decryptArchive(archive);
                 unarchiver.extract();
+                materializeDuplicates(tempDir);
             } catch (ArchiverException e) {
                 LOGGER.warning("Could not extract from " + archive.getAbsolutePath() + e.getMessage());
+            } catch (IOException e) {
+                LOGGER.warning("Could not extract from " + archive.getAbsolutePath() + " " + e.getMessage());
+            }
+
+            // Deleting the archive file
+            LOGGER.info("Deleting " + archive.getAbsolutePath());
+            if(!archive.delete()) {
+                LOGGER.warning("Could not delete " + archive.getAbsolutePath());
+            }
+        }
+    }
+
+    @Override
+    public void unarchiveFiles(Iterable<File> archives, File finalResultDir, Predicate<String> entryFilter) {
+        for(File archive : archives) {
+            LOGGER.info("Extracting selected files from " + archive.getAbsolutePath() + " to " + finalResultDir.getAbsolutePath());
+            ZipFile zipFile = null;
+            try {
+                decryptArchive(archive);
+                // Only the central directory and the selected entries are read
+                zipFile = new ZipFile(archive);
+                for (ZipArchiveEntry entry : Collections.list(zipFile.getEntries())) {
+                    if (!entry.isDirectory() && !Deduplicator.MANIFEST_NAME.equals(entry.getName()) && entryFilter.apply(entry.getName())) {
+                        extractEntry(zipFile, entry, entry.getName(), entry.getTime(), finalResultDir);
+                    }
+                }
+                ZipArchiveEntry manifest = zipFile.getEntry(Deduplicator.MANIFEST_NAME);
+                if (manifest != null) {
+                    // The selected duplicates are extracted from the entries of their originals
+                    for (Deduplicator.Reference reference : readManifest(zipFile, manifest)) {
+                        ZipArchiveEntry original = zipFile.getEntry(reference.getOriginal());
+                        if (entryFilter.apply(reference.getName())) {
+                            if (original == null) {
+                                throw new IOException("The original " + reference.getOriginal() + " of " + reference.getName() + " is missing");
+                            }
+                            extractEntry(zipFile, original, reference.getName(), reference.getLastModified(), finalResultDir);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.warning("Could not extract from " + archive.getAbsolutePath() + " " + e.getMessage());
+            } finally {
+                ZipFile.closeQuietly(zipFile);
             }
 
             // Deleting the archive file
@@ -226,6 +395,54 @@ public class ZipStorage extends Storage {
         }
     }
 
+    /**
+     *
+     * Creates the duplicates listed in the manifest of an archive extracted to the given directory
+     *
+     * @param directory directory where the archive was extracted
+     * @throws IOException if the duplicates cannot be created
+     */
+    private static void materializeDuplicates(File directory) throws IOException {
+        File manifest = new File(directory, Deduplicator.MANIFEST_NAME);
+        if (!manifest.exists()) {
+            return;
+        }
+        List<Deduplicator.Reference> references;
+        InputStream in = new FileInputStream(manifest);
+        try {
+            references = Deduplicator.readManifest(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        Deduplicator.materialize(references, directory);
+        if (!manifest.delete()) {
+            throw new IOException("Could not delete " + manifest.getAbsolutePath());
+        }
+    }
+
+    private static List<Deduplicator.Reference> readManifest(ZipFile zipFile, ZipArchiveEntry manifest) throws IOException {
+        InputStream in = zipFile.getInputStream(manifest);
+        try {
+            return Deduplicator.readManifest(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static void extractEntry(ZipFile zipFile, ZipArchiveEntry entry, String name, long lastModified, File destinationDir) throws IOException {
+        InputStream in = zipFile.getInputStream(entry);
+        try {
+            Util.extractEntry(in, name, lastModified, destinationDir);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    @Override
+    public boolean isWorkerSupported() {
+        return true;
+    }
+
     public String getDisplayName() {
         return "Zip";
     }
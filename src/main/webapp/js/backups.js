@@ -0,0 +1,106 @@
+// Loads the backups of the restore page page by page from the JSON listing
+(function() {
+    var container = document.getElementById('periodicbackup-backups');
+    if (container == null) {
+        return;
+    }
+    var PAGE_SIZE = 25;
+    var url = container.getAttribute('data-url');
+    var list = container.getElementsByClassName('periodicbackup-backups-list')[0];
+    var locationSelect = container.getElementsByClassName('periodicbackup-backups-location')[0];
+    var queryInput = container.getElementsByClassName('periodicbackup-backups-query')[0];
+    var sortSelect = container.getElementsByClassName('periodicbackup-backups-sort')[0];
+    var previous = container.getElementsByClassName('periodicbackup-backups-previous')[0];
+    var next = container.getElementsByClassName('periodicbackup-backups-next')[0];
+    var pageLabel = container.getElementsByClassName('periodicbackup-backups-page')[0];
+    var actions = document.getElementById('periodicbackup-backup-actions');
+    var start = 0;
+    var pending = null;
+    var queryTimer = null;
+
+    function showMessage(text) {
+        list.textContent = text;
+    }
+
+    function render(result) {
+        list.textContent = '';
+        for (var i = 0; i < result.backups.length; i++) {
+            var backup = result.backups[i];
+            var row = document.createElement('div');
+            var label = document.createElement('label');
+            var radio = document.createElement('input');
+            radio.type = 'radio';
+            radio.name = 'backupId';
+            radio.value = backup.id;
+            label.appendChild(radio);
+            label.appendChild(document.createTextNode(' ' + backup.displayName + ' - ' + backup.location
+                + ' - ' + backup.profile + ' - ' + backup.storage));
+            row.appendChild(label);
+            list.appendChild(row);
+        }
+        if (result.total == 0) {
+            showMessage(container.getAttribute('data-empty'));
+        }
+        var end = Math.min(result.start + result.limit, result.total);
+        pageLabel.textContent = result.total == 0 ? '' : (result.start + 1) + '-' + end + ' / ' + result.total;
+        previous.disabled = result.start == 0;
+        next.disabled = end >= result.total;
+        actions.style.display = result.total == 0 ? 'none' : '';
+    }
+
+    function load() {
+        if (pending != null) {
+            pending.abort();
+        }
+        var sort = sortSelect.value.split(':');
+        var parameters = 'start=' + start + '&limit=' + PAGE_SIZE
+            + '&sort=' + encodeURIComponent(sort[0]) + '&ascending=' + (sort[1] == 'asc')
+            + '&location=' + encodeURIComponent(locationSelect.value)
+            + '&query=' + encodeURIComponent(queryInput.value);
+        var request = new XMLHttpRequest();
+        request.open('GET', url + '?' + parameters);
+        request.onload = function() {
+            pending = null;
+            if (request.status != 200) {
+                showMessage(container.getAttribute('data-failed'));
+                return;
+            }
+            render(JSON.parse(request.responseText));
+        };
+        request.onerror = function() {
+            pending = null;
+            showMessage(container.getAttribute('data-failed'));
+        };
+        pending = request;
+        showMessage(container.getAttribute('data-loading'));
+        request.send();
+    }
+
+    function reload() {
+        start = 0;
+        load();
+    }
+
+    previous.onclick = function() {
+        start = Math.max(0, start - PAGE_SIZE);
+        load();
+    };
+    next.onclick = function() {
+        start += PAGE_SIZE;
+        load();
+    };
+    locationSelect.onchange = reload;
+    sortSelect.onchange = reload;
+    queryInput.onkeydown = function(event) {
+        // Enter would submit the restore form
+        if (event.keyCode == 13) {
+            event.preventDefault();
+        }
+    };
+    queryInput.oninput = function() {
+        clearTimeout(queryTimer);
+        queryTimer = setTimeout(reload, 300);
+    };
+
+    load();
+})();
@@ -0,0 +1,43 @@
+// Polls the progress of the running backup or restore and reloads the page once it is done
+(function() {
+    var container = document.getElementById('periodicbackup-progress');
+    if (container == null) {
+        return;
+    }
+    var url = container.getAttribute('data-url');
+    var message = container.getElementsByClassName('periodicbackup-progress-message')[0];
+    var bar = container.getElementsByClassName('periodicbackup-progress-bar')[0];
+
+    function render(progress) {
+        message.textContent = progress.message;
+        var percent = 0;
+        for (var i = 0; i < progress.phases.length; i++) {
+            if (progress.phases[i].phase == progress.phase && progress.phases[i].percent >= 0) {
+                percent = progress.phases[i].percent;
+            }
+        }
+        bar.style.width = percent + '%';
+    }
+
+    function poll() {
+        var request = new XMLHttpRequest();
+        request.open('GET', url);
+        request.onload = function() {
+            if (request.status != 200) {
+                return;
+            }
+            var progress = JSON.parse(request.responseText);
+            if (progress.running) {
+                render(progress);
+                setTimeout(poll, 2000);
+            }
+            else {
+                // Reload to show the backups available after the run
+                window.location.reload();
+            }
+        };
+        request.send();
+    }
+
+    poll();
+})();
@@ -0,0 +1,166 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import hudson.util.Secret;
+import org.apache.commons.io.IOUtils;
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ArchiveEncryptionTest {
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private StringCredentials addCredentials(String id, String secret) throws IOException {
+        StringCredentials credentials = new StringCredentialsImpl(CredentialsScope.GLOBAL, id, null, Secret.fromString(secret));
+        SystemCredentialsProvider.getInstance().getCredentials().add(credentials);
+        SystemCredentialsProvider.getInstance().save();
+        return credentials;
+    }
+
+    private void removeCredentials(StringCredentials credentials) throws IOException {
+        SystemCredentialsProvider.getInstance().getCredentials().remove(credentials);
+        SystemCredentialsProvider.getInstance().save();
+    }
+
+    private byte[] open(byte[] archive) throws IOException {
+        InputStream in = ArchiveEncryption.open(new ByteArrayInputStream(archive));
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private byte[] encrypt(ArchiveEncryption encryption, byte[] content) throws IOException {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        OutputStream out = encryption.encrypt(encrypted);
+        // Uneven writes so that the chunk boundaries fall inside them
+        for (int offset = 0; offset < content.length; offset += 77777) {
+            out.write(content, offset, Math.min(77777, content.length - offset));
+        }
+        out.close();
+        return encrypted.toByteArray();
+    }
+
+    private byte[] decrypt(ArchiveEncryption encryption, byte[] encrypted) throws IOException {
+        InputStream in = encryption.decrypt(new ByteArrayInputStream(encrypted));
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] content = new byte[5 * CHUNK_SIZE / 2];
+        new Random(42).nextBytes(content);
+        addCredentials("test", "secret");
+        ArchiveEncryption encryption = new ArchiveEncryption("test", "secret".toCharArray());
+
+        byte[] encrypted = encrypt(encryption, content);
+        assertTrue(ArchiveEncryption.isEncrypted(encrypted, encrypted.length));
+        assertFalse(Arrays.equals(Arrays.copyOfRange(encrypted, ArchiveEncryption.HEADER_LENGTH, 100), Arrays.copyOf(content, 100 - ArchiveEncryption.HEADER_LENGTH)));
+        assertArrayEquals(content, decrypt(encryption, encrypted));
+
+        // An other instance with the same secret derives the key from the salt in the header, reading the secret again
+        assertArrayEquals(content, decrypt(new ArchiveEncryption("test", "secret".toCharArray()), encrypted));
+        assertArrayEquals(new byte[0], decrypt(encryption, encrypt(encryption, new byte[0])));
+    }
+
+    @Test
+    public void testDecryptFromOffset() throws Exception {
+        byte[] content = new byte[3 * CHUNK_SIZE];
+        new Random(7).nextBytes(content);
+        ArchiveEncryption encryption = new ArchiveEncryption("test", "secret".toCharArray());
+        byte[] encrypted = encrypt(encryption, content);
+        byte[] header = Arrays.copyOf(encrypted, ArchiveEncryption.HEADER_LENGTH);
+
+        long offset = CHUNK_SIZE + 12345;
+        int encryptedOffset = (int) ArchiveEncryption.getEncryptedOffset(header, offset);
+        InputStream in = encryption.decrypt(header,
+                new ByteArrayInputStream(encrypted, encryptedOffset, encrypted.length - encryptedOffset), offset);
+        assertArrayEquals(Arrays.copyOfRange(content, (int) offset, content.length), IOUtils.toByteArray(in));
+        in.close();
+    }
+
+    @Test
+    public void testTamperingIsDetected() throws Exception {
+        byte[] content = new byte[2 * CHUNK_SIZE];
+        new Random(1).nextBytes(content);
+        ArchiveEncryption encryption = new ArchiveEncryption("test", "secret".toCharArray());
+        byte[] encrypted = encrypt(encryption, content);
+
+        byte[] modified = encrypted.clone();
+        modified[ArchiveEncryption.HEADER_LENGTH + CHUNK_SIZE / 2] ^= 1;
+        assertDecryptionFails(encryption, modified);
+        // Dropping the last chunk
+        assertDecryptionFails(encryption, Arrays.copyOf(encrypted, (int) ArchiveEncryption.getEncryptedOffset(encrypted, CHUNK_SIZE)));
+        addCredentials("test", "other");
+        assertDecryptionFails(new ArchiveEncryption("test", "other".toCharArray()), encrypted);
+    }
+
+    @Test
+    public void testArchiveIsDecryptedWithItsCredentials() throws Exception {
+        byte[] content = new byte[CHUNK_SIZE + 1000];
+        new Random(3).nextBytes(content);
+        StringCredentials old = addCredentials("old", "first secret");
+        addCredentials("new", "second secret");
+        PeriodicBackupLink link = PeriodicBackupLink.get();
+
+        link.setEncryptionCredentialsId("old");
+        byte[] oldArchive = encrypt(ArchiveEncryption.get(), content);
+        // The configured credentials are rotated, the archives of both keep being readable
+        link.setEncryptionCredentialsId("new");
+        byte[] newArchive = encrypt(ArchiveEncryption.get(), content);
+        assertEquals("new", ArchiveEncryption.forArchive(newArchive).getCredentialsId());
+        assertEquals("old", ArchiveEncryption.forArchive(oldArchive).getCredentialsId());
+        assertArrayEquals(content, open(oldArchive));
+        assertArrayEquals(content, open(newArchive));
+
+        removeCredentials(old);
+        try {
+            open(oldArchive);
+            fail("The archive was decrypted without its credentials");
+        } catch (IOException e) {
+            // expected
+        }
+        assertArrayEquals(content, open(newArchive));
+    }
+
+    @Test
+    public void testPlainArchiveIsNotEncrypted() throws Exception {
+        assertNull(ArchiveEncryption.readHeader(new ByteArrayInputStream("PK plain archive".getBytes("UTF-8"))));
+    }
+
+    private void assertDecryptionFails(ArchiveEncryption encryption, byte[] encrypted) {
+        try {
+            decrypt(encryption, encrypted);
+            fail("The modified archive was decrypted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
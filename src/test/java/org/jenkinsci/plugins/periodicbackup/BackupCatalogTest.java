@@ -0,0 +1,133 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BackupCatalogTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * Location whose listing is controlled by the test
+     */
+    private static class ListedLocation extends LocalDirectory {
+        private volatile List<BackupObject> available = ImmutableList.of();
+        private volatile RuntimeException failure;
+        private volatile CountDownLatch listing;        // Counted down when a listing starts
+        private volatile CountDownLatch release;        // Awaited by the listing if set
+        private final AtomicInteger listings = new AtomicInteger();
+
+        ListedLocation(File path) {
+            super(path, true);
+        }
+
+        @Override
+        public Iterable<BackupObject> getAvailableBackups() {
+            listings.incrementAndGet();
+            if (listing != null) {
+                listing.countDown();
+            }
+            if (release != null) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return available;
+        }
+    }
+
+    private ListedLocation location() throws Exception {
+        return new ListedLocation(temporaryFolder.newFolder());
+    }
+
+    private static BackupObject backup(Location location, long time) {
+        return new BackupObject(new ConfigOnly(), new ZipStorage(false, 0), location, new Date(time));
+    }
+
+    @Test
+    public void testInvalidatedLocationIsRefreshedInBackground() throws Exception {
+        BackupCatalog catalog = new BackupCatalog();
+        ListedLocation location = location();
+        BackupObject first = backup(location, 1000);
+        BackupObject second = backup(location, 2000);
+        location.available = ImmutableList.of(first);
+        assertEquals(ImmutableList.of(first), catalog.getBackups(location));
+
+        location.available = ImmutableList.of(first, second);
+        location.release = new CountDownLatch(1);
+        Future<?> refresh = catalog.invalidate(location);
+        // The readers get the stale list without waiting for the listing
+        assertTrue(catalog.isDirty(location));
+        assertEquals(ImmutableList.of(first), catalog.getBackups(location));
+
+        location.release.countDown();
+        refresh.get(10, TimeUnit.SECONDS);
+        assertFalse(catalog.isDirty(location));
+        assertEquals(ImmutableList.of(first, second), catalog.getBackups(location));
+        assertEquals(2, location.listings.get());
+    }
+
+    @Test
+    public void testFailedListingKeepsPreviousList() throws Exception {
+        BackupCatalog catalog = new BackupCatalog();
+        ListedLocation location = location();
+        BackupObject backup = backup(location, 1000);
+        location.available = ImmutableList.of(backup);
+        assertEquals(ImmutableList.of(backup), catalog.getBackups(location));
+
+        location.failure = new IllegalStateException("The location is not reachable");
+        assertEquals(ImmutableList.of(backup), catalog.refresh(location));
+        assertEquals(ImmutableList.of(backup), catalog.getBackups(location));
+    }
+
+    @Test
+    public void testInvalidationOnlyAffectsItsLocation() throws Exception {
+        final BackupCatalog catalog = new BackupCatalog();
+        final ListedLocation listed = location();
+        ListedLocation changed = location();
+        listed.available = ImmutableList.of(backup(listed, 1000));
+        listed.listing = new CountDownLatch(1);
+        listed.release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<BackupObject>> refresh = executor.submit(() -> catalog.refresh(listed));
+            assertTrue(listed.listing.await(10, TimeUnit.SECONDS));
+            // Another location changes while the first one is listed
+            catalog.invalidate(changed).get(10, TimeUnit.SECONDS);
+            listed.release.countDown();
+            refresh.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The listing was cached, reading the location does not list it again
+        assertEquals(listed.available, catalog.getBackups(listed));
+        assertEquals(1, listed.listings.get());
+    }
+}
@@ -0,0 +1,94 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import hudson.model.Saveable;
+import hudson.util.DescribableList;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BackupCheckpointTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testCheckpointIsRestoredAndDiscarded() throws Exception {
+        File tempDirectory = temporaryFolder.newFolder();
+        ZipStorage storage = new ZipStorage(false, 0);
+        LocalDirectory location = new LocalDirectory(temporaryFolder.newFolder(), true);
+
+        BackupCheckpoint checkpoint = BackupCheckpoint.load(tempDirectory, new ConfigOnly(), 24);
+        assertNotNull(checkpoint);
+        File archive = new File(checkpoint.getStorageDirectory(storage), "backup_1.zip");
+        assertTrue(archive.getParentFile().mkdirs());
+        Files.write("archive", archive, Charsets.UTF_8);
+        ArchiveChecksums checksums = new ArchiveChecksums();
+        checksums.addEntry("backup_1.zip", "config.xml", 3, 42);
+        checksums.addEntry("backup_2.zip", "jobs/a/config.xml", 3, 43);
+        checkpoint.archivesCompleted(storage, Collections.singletonList(archive), checksums);
+        checkpoint.uploaded(storage, location);
+
+        BackupCheckpoint resumed = BackupCheckpoint.load(tempDirectory, new ConfigOnly(), 24);
+        assertEquals(checkpoint.getTimestamp(), resumed.getTimestamp());
+        assertEquals(Collections.singletonList("backup_1.zip"), resumed.getCompletedArchives(storage));
+        assertEquals(1, resumed.getChecksums(storage).getEntries().size());
+        assertTrue(resumed.isUploaded(storage, location));
+        assertFalse(resumed.isArchived(storage));
+
+        // Resuming disabled, the interrupted backup is discarded
+        assertNull(BackupCheckpoint.load(tempDirectory, new ConfigOnly(), 0));
+        assertFalse(archive.exists());
+        assertFalse(new File(tempDirectory, BackupCheckpoint.FILE_NAME).exists());
+    }
+
+    @Test
+    public void testInterruptedBackupIsResumed() throws Exception {
+        File jobDirectory = new File(r.jenkins.getRootDir(), "jobs/resumed");
+        assertTrue(jobDirectory.mkdirs());
+        Files.write("<project/>", new File(jobDirectory, "config.xml"), Charsets.UTF_8);
+        File tempDirectory = temporaryFolder.newFolder();
+
+        DescribableList<Storage, StorageDescriptor> storages = new DescribableList<Storage, StorageDescriptor>(Saveable.NOOP);
+        storages.add(new ZipStorage(false, 0));
+        // A location which cannot store anything makes the first backup fail after the archives are created
+        DescribableList<Location, LocationDescriptor> locations = new DescribableList<Location, LocationDescriptor>(Saveable.NOOP);
+        locations.add(new LocalDirectory(temporaryFolder.newFile(), true));
+        try {
+            new BackupExecutor(null, new BackupExecutor.Settings().checkpointMaxAgeHours(24)).backup(new ConfigOnly(), storages, locations,
+                tempDirectory.getAbsolutePath(), 10, 10);
+            fail("The backup was stored in a file");
+        } catch (PeriodicBackupException e) {
+            // expected
+        }
+        BackupCheckpoint checkpoint = BackupCheckpoint.load(tempDirectory, new ConfigOnly(), 24);
+        Date timestamp = checkpoint.getTimestamp();
+        assertTrue(checkpoint.isArchived(storages.get(0)));
+
+        File locationDirectory = temporaryFolder.newFolder();
+        locations.clear();
+        locations.add(new LocalDirectory(locationDirectory, true));
+        new BackupExecutor(null, new BackupExecutor.Settings().checkpointMaxAgeHours(24)).backup(new ConfigOnly(), storages, locations,
+                tempDirectory.getAbsolutePath(), 10, 10);
+
+        // The resumed backup keeps the timestamp of the interrupted one and the temporary files are removed
+        assertTrue(new File(locationDirectory, Util.createFileName(Util.generateFileNameBase(timestamp) + "_1", "zip")).exists());
+        assertEquals(Lists.newArrayList(), Lists.newArrayList(tempDirectory.list()));
+    }
+}
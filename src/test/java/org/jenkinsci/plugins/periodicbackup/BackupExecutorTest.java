@@ -0,0 +1,195 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BackupExecutorTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * Location which cannot store backups, it lists old backups which the retention must not touch
+     */
+    private static class FailingLocation extends LocalDirectory {
+        private final List<BackupObject> oldBackups = Lists.newArrayList();
+        private int deleted;
+
+        FailingLocation(File path) {
+            super(path, true);
+            oldBackups.add(new BackupObject(new ConfigOnly(), new ZipStorage(false, 0), this, new Date(1000)));
+            oldBackups.add(new BackupObject(new ConfigOnly(), new ZipStorage(false, 0), this, new Date(2000)));
+        }
+
+        @Override
+        public void storeBackupInLocation(Iterable<File> archives, File backupObjectFile) throws IOException {
+            throw new IOException("The location is not reachable");
+        }
+
+        @Override
+        public Iterable<BackupObject> getAvailableBackups() {
+            return oldBackups;
+        }
+
+        @Override
+        public void deleteBackupFiles(BackupObject backupObject) {
+            deleted++;
+        }
+    }
+
+    /**
+     * Counts how often the files are scanned
+     */
+    private static class CountingFileManager extends ConfigOnly {
+        private transient int scans;
+
+        @Override
+        public Iterable<File> getFilesToBackup() throws PeriodicBackupException {
+            scans++;
+            return super.getFilesToBackup();
+        }
+    }
+
+    /**
+     * Backs up the given files
+     */
+    private static class ListedFileManager extends ConfigOnly {
+        private final transient List<File> files;
+
+        ListedFileManager(List<File> files) {
+            this.files = files;
+        }
+
+        @Override
+        public Iterable<File> getFilesToBackup() {
+            return files;
+        }
+    }
+
+    /**
+     * Location which signals when it receives its first archive
+     */
+    private static class SignalingLocation extends LocalDirectory {
+        private static volatile CountDownLatch received = new CountDownLatch(1);
+
+        SignalingLocation(File path) {
+            super(path, true);
+        }
+
+        @Override
+        public void storeBackupInLocation(Iterable<File> archives, File backupObjectFile) throws IOException {
+            super.storeBackupInLocation(Iterables.transform(archives, archive -> {
+                received.countDown();
+                return archive;
+            }), backupObjectFile);
+        }
+    }
+
+    @Test
+    public void testArchivesAreUploadedWhileArchiving() throws Exception {
+        List<File> files = Lists.newArrayList();
+        Random random = new Random(5);
+        for (int i = 0; i < 8; i++) {
+            byte[] content = new byte[64 * 1024];
+            random.nextBytes(content);
+            File file = new File(r.jenkins.getRootDir(), "jobs/job" + i + "/config.xml");
+            assertTrue(file.getParentFile().mkdirs() || file.getParentFile().isDirectory());
+            Files.write(content, file);
+            files.add(file);
+        }
+        SignalingLocation.received = new CountDownLatch(1);
+        SignalingLocation location = new SignalingLocation(temporaryFolder.newFolder());
+        final boolean[] uploadedBeforeEnd = new boolean[1];
+        // Every volume holds one file, the archiving waits halfway for the upload of the first volume
+        LoadMonitor monitor = new LoadMonitor(false, 0, 0, 0) {
+            private int files;
+
+            @Override
+            public void pace(String stage) {
+                if ("compression".equals(stage) && ++files == 4) {
+                    try {
+                        uploadedBeforeEnd[0] = SignalingLocation.received.await(20, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        };
+
+        new BackupExecutor(null, new BackupExecutor.Settings().loadMonitor(monitor)).backup(new ListedFileManager(files),
+                Lists.<Storage>newArrayList(new ZipStorage(true, 100 * 1024)), Lists.<Location>newArrayList(location),
+                temporaryFolder.newFolder().getAbsolutePath(), 10, 10);
+
+        assertTrue("The first volume was not uploaded before the archiving finished", uploadedBeforeEnd[0]);
+        List<BackupObject> backups = BackupCatalog.get().refresh(location);
+        assertEquals(1, backups.size());
+        assertTrue(new BackupVerifier(location).verify(backups.get(0)).isValid());
+    }
+
+    @Test
+    public void testStoragesShareScanAndTimestamp() throws Exception {
+        LocalDirectory location = new LocalDirectory(temporaryFolder.newFolder(), true);
+        List<Storage> storages = Lists.<Storage>newArrayList(new ZipStorage(false, 0), new TarGzStorage(), new NullStorage());
+        CountingFileManager fileManager = new CountingFileManager();
+
+        new BackupExecutor().backup(fileManager, storages, Lists.<Location>newArrayList(location),
+                temporaryFolder.newFolder().getAbsolutePath(), 10, 10);
+
+        assertEquals(1, fileManager.scans);
+        List<BackupObject> backups = BackupCatalog.get().refresh(location);
+        assertEquals(storages.size(), backups.size());
+        Set<Date> timestamps = Sets.newHashSet();
+        for (BackupObject backup : backups) {
+            timestamps.add(backup.getTimestamp());
+        }
+        assertEquals(1, timestamps.size());
+    }
+
+    @Test
+    public void testBackupSucceedsWithEnoughLocations() throws Exception {
+        LocalDirectory stored = new LocalDirectory(temporaryFolder.newFolder(), true);
+        FailingLocation failing = new FailingLocation(temporaryFolder.newFolder());
+        List<Location> locations = Lists.<Location>newArrayList(stored, failing);
+        List<Storage> storages = Lists.<Storage>newArrayList(new ZipStorage(false, 0));
+        String tempDirectory = temporaryFolder.newFolder().getAbsolutePath();
+
+        // One out of two locations is enough, the retention only runs in the location which stored the backup
+        BackupExecutor.Settings settings = new BackupExecutor.Settings().requiredLocations(1);
+        new BackupExecutor(null, settings).backup(new ConfigOnly(), storages, locations, tempDirectory, 1, 10);
+        new BackupExecutor(null, settings).backup(new ConfigOnly(), storages, locations, tempDirectory, 1, 10);
+        assertEquals(1, BackupCatalog.get().refresh(stored).size());
+        assertEquals(0, failing.deleted);
+
+        try {
+            new BackupExecutor(null, new BackupExecutor.Settings().requiredLocations(2)).backup(new ConfigOnly(), storages,
+                    locations, tempDirectory, 1, 10);
+            fail("The backup succeeded although a required location failed");
+        } catch (PeriodicBackupException e) {
+            // expected
+        }
+        assertEquals(0, failing.deleted);
+        assertEquals(ImmutableList.copyOf(failing.oldBackups), BackupCatalog.get().refresh(failing));
+    }
+}
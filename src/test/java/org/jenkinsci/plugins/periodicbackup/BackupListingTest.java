@@ -0,0 +1,76 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class BackupListingTest {
+
+    private final Location primary = new LocalDirectory(new File("primary"), true);
+    private final Location secondary = new LocalDirectory(new File("secondary"), true);
+
+    @Test
+    public void testPagesAreSortedNewestFirst() throws Exception {
+        JSONObject result = new BackupListing().page(2, 2).list(backups());
+
+        assertEquals(6, result.getInt("total"));
+        JSONArray page = result.getJSONArray("backups");
+        assertEquals(2, page.size());
+        assertEquals(3000L, page.getJSONObject(0).getLong("timestamp"));
+        assertEquals(2000L, page.getJSONObject(1).getLong("timestamp"));
+        assertEquals(0, new BackupListing().page(10, 2).list(backups()).getJSONArray("backups").size());
+        // The end of a page far beyond the last backup does not overflow
+        assertEquals(0, new BackupListing().page(Integer.MAX_VALUE, 2).list(backups()).getJSONArray("backups").size());
+    }
+
+    @Test
+    public void testFilterAndSort() throws Exception {
+        JSONObject result = new BackupListing().location(secondary.getDisplayName()).profile("nightly")
+                .sort(BackupListing.Sort.TIMESTAMP, true).list(backups());
+        assertEquals(2, result.getInt("total"));
+        JSONObject backup = result.getJSONArray("backups").getJSONObject(0);
+        assertEquals(3000L, backup.getLong("timestamp"));
+        assertEquals("nightly", backup.getString("profile"));
+        assertEquals("ZipStorage", backup.getString("storage"));
+
+        result = new BackupListing().query("PRIMARY").sort(BackupListing.Sort.parse("location"), true).list(backups());
+        assertEquals(3, result.getInt("total"));
+        assertEquals(0L, result.getJSONArray("backups").getJSONObject(0).getLong("timestamp"));
+        assertEquals(3, new BackupListing().profile("Default").list(backups()).getInt("total"));
+    }
+
+    @Test
+    public void testIdsAreStable() throws Exception {
+        BackupObject backup = new BackupObject(new ConfigOnly(), new ZipStorage(false, 0), primary, new Date(1000));
+        BackupObject listedAgain = new BackupObject(new ConfigOnly(), new ZipStorage(false, 0), primary, new Date(1000));
+
+        assertEquals(BackupListing.getId(primary, backup), BackupListing.getId(primary, listedAgain));
+        assertEquals(Util.generateFileNameBase(new Date(1000)) + ".ZipStorage@" + primary.getDisplayName(),
+                BackupListing.getId(primary, backup));
+        JSONObject result = new BackupListing().sort(BackupListing.Sort.TIMESTAMP, true).page(1, 1).list(backups());
+        // The second oldest backup is the one of the secondary location
+        assertEquals(BackupListing.getId(secondary, backup), result.getJSONArray("backups").getJSONObject(0).getString("id"));
+    }
+
+    private Map<Location, List<BackupObject>> backups() {
+        Map<Location, List<BackupObject>> backups = Maps.newLinkedHashMap();
+        backups.put(primary, Lists.<BackupObject>newArrayList());
+        backups.put(secondary, Lists.<BackupObject>newArrayList());
+        for (int i = 0; i < 6; i++) {
+            Location location = i % 2 == 0 ? primary : secondary;
+            String profile = i < 3 ? null : "nightly";
+            backups.get(location).add(new BackupObject(new ConfigOnly(), new ZipStorage(false, 0), location,
+                    new Date(i * 1000L), profile));
+        }
+        return backups;
+    }
+}
@@ -0,0 +1,131 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BackupMetadataTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        File archive = temporaryFolder.newFile("backup_2011_01_01_00_00_00_000.zip");
+        Files.write("archive content", archive, Charsets.UTF_8);
+        File archiveDirectory = temporaryFolder.newFolder("backup_2011_01_01_00_00_00_000");
+        Files.write("abc", new File(archiveDirectory, "config.xml"), Charsets.UTF_8);
+        Date timestamp = new Date(1293840000000L);
+
+        BackupMetadata metadata = BackupMetadata.create("backup_2011_01_01_00_00_00_000", timestamp,
+                new ConfigOnly(), new ZipStorage(false, 0), Arrays.asList(archive, archiveDirectory));
+        File metadataFile = new File(temporaryFolder.getRoot(), "backup_2011_01_01_00_00_00_000.pbmeta");
+        metadata.write(metadataFile);
+        BackupMetadata result = BackupMetadata.read(metadataFile);
+
+        assertEquals(BackupMetadata.VERSION, result.getVersion());
+        assertEquals("backup_2011_01_01_00_00_00_000", result.getId());
+        assertEquals(timestamp, result.getTimestamp());
+        assertEquals(ConfigOnly.class.getName(), result.getFileManagerClass());
+        assertEquals(ZipStorage.class.getName(), result.getStorageClass());
+        assertEquals(2, result.getArchives().size());
+        BackupMetadata.Archive zip = result.getArchives().get(0);
+        assertEquals(archive.getName(), zip.getName());
+        assertEquals(archive.length(), zip.getSize());
+        assertEquals(BackupMetadata.checksum(archive), zip.getChecksum());
+        assertTrue(zip.hasChecksum());
+        assertFalse(result.getArchives().get(1).hasChecksum());
+        assertEquals(archive.length() + 3, result.getTotalSize());
+    }
+
+    @Test
+    public void testEntriesAndSummary() throws Exception {
+        BackupMetadata metadata = new BackupMetadata(BackupMetadata.VERSION, "backup_2011_01_01_00_00_00_000", 1293840000000L,
+                ConfigOnly.class.getName(), "ConfigOnly", ZipStorage.class.getName(),
+                Arrays.asList(new BackupMetadata.Archive("backup_2011_01_01_00_00_00_000.zip_1.zip", 10, 42)),
+                Arrays.asList(new BackupMetadata.Entry("backup_2011_01_01_00_00_00_000.zip_1.zip", "jobs/a;b\\c\nd/config.xml", 3, 7)));
+        File metadataFile = temporaryFolder.newFile("backup_2011_01_01_00_00_00_000.zip.pbmeta");
+        metadata.write(metadataFile);
+
+        BackupMetadata result = BackupMetadata.read(metadataFile);
+        assertEquals(1, result.getEntries().size());
+        BackupMetadata.Entry entry = result.getEntries().get(0);
+        assertEquals("backup_2011_01_01_00_00_00_000.zip_1.zip", entry.getArchive());
+        assertEquals("jobs/a;b\\c\nd/config.xml", entry.getName());
+        assertEquals(3, entry.getSize());
+        assertEquals(7, entry.getChecksum());
+
+        BackupMetadata summary = BackupMetadata.readSummary(metadataFile);
+        assertEquals(1, summary.getArchives().size());
+        assertTrue(summary.getEntries().isEmpty());
+    }
+
+    @Test
+    public void testSummaryOfTruncatedSidecar() throws Exception {
+        List<BackupMetadata.Entry> entries = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            entries.add(new BackupMetadata.Entry("backup_2011_01_01_00_00_00_000.zip_1.zip", "jobs/job" + i + "/config.xml", 3, i));
+        }
+        BackupMetadata metadata = new BackupMetadata(BackupMetadata.VERSION, "backup_2011_01_01_00_00_00_000", 1293840000000L,
+                ConfigOnly.class.getName(), "ConfigOnly", ZipStorage.class.getName(),
+                Arrays.asList(new BackupMetadata.Archive("backup_2011_01_01_00_00_00_000.zip_1.zip", 10, 42)), entries);
+        File metadataFile = temporaryFolder.newFile("backup_2011_01_01_00_00_00_000.zip.pbmeta");
+        metadata.write(metadataFile);
+        byte[] content = Files.toByteArray(metadataFile);
+
+        // The beginning of the sidecar is enough to list the backup
+        BackupMetadata summary = BackupMetadata.readSummary(new ByteArrayInputStream(content, 0, 1024), true);
+        assertEquals(1, summary.getArchives().size());
+        assertEquals(ZipStorage.class.getName(), summary.getStorageClass());
+        try {
+            BackupMetadata.readSummary(new ByteArrayInputStream(content, 0, 100), true);
+            fail("A summary cut before the entries has to be read completely");
+        } catch (IOException expected) {
+            // The caller reads the whole sidecar instead
+        }
+    }
+
+    @Test
+    public void testListedBackupsAreComparedWithoutLoading() throws Exception {
+        BackupMetadata metadata = new BackupMetadata(BackupMetadata.VERSION, "backup_2011_01_01_00_00_00_000", 1293840000000L,
+                ConfigOnly.class.getName(), "ConfigOnly", ZipStorage.class.getName(),
+                Arrays.asList(new BackupMetadata.Archive("backup_2011_01_01_00_00_00_000.zip_1.zip", 10, 42)));
+        Location location = new LocalDirectory(temporaryFolder.getRoot(), true);
+        Callable<BackupObject> loader = new Callable<BackupObject>() {
+            public BackupObject call() {
+                throw new AssertionError("The BackupObject must not be loaded");
+            }
+        };
+
+        Set<BackupObject> backups = Sets.newHashSet(BackupObject.fromMetadata(metadata, location, loader));
+        assertTrue(backups.contains(BackupObject.fromMetadata(metadata, location, loader)));
+        assertFalse(backups.contains(BackupObject.fromMetadata(metadata, new LocalDirectory(temporaryFolder.newFolder(), true), loader)));
+        // A listed backup equals the full BackupObject it was created from
+        assertTrue(backups.contains(new BackupObject(new ConfigOnly(), new ZipStorage(false, 0), location, metadata.getTimestamp())));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadRejectsOtherFiles() throws Exception {
+        File file = temporaryFolder.newFile("backup.pbobj");
+        Files.write("<org.jenkinsci.plugins.periodicbackup.BackupObject/>", file, Charsets.UTF_8);
+        BackupMetadata.read(file);
+    }
+}
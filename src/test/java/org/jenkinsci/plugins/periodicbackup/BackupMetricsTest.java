@@ -0,0 +1,45 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class BackupMetricsTest {
+
+    private final BackupMetrics metrics = new BackupMetrics(false);
+
+    @Test
+    public void testTimerRecordsTotalAndComponent() {
+        metrics.start(BackupMetrics.Phase.ARCHIVE, "Zip").files(3).bytesIn(1000).bytesOut(250).stop();
+        BackupMetrics.Timer failed = metrics.start(BackupMetrics.Phase.ARCHIVE, "TarGz").files(1).failed();
+        failed.stop();
+        failed.stop();
+
+        BackupMetrics.Stats total = metrics.getStats(BackupMetrics.Phase.ARCHIVE, BackupMetrics.TOTAL);
+        assertEquals(2, total.getRuns());
+        assertEquals(1, total.getErrors());
+        assertEquals(4, total.getFiles());
+
+        BackupMetrics.Stats zip = metrics.getStats(BackupMetrics.Phase.ARCHIVE, "Zip");
+        assertEquals(1, zip.getRuns());
+        assertEquals(0, zip.getErrors());
+        assertEquals(1000, zip.getBytesIn());
+        assertEquals(0.25, zip.getLastCompressionRatio(), 0.0001);
+    }
+
+    @Test
+    public void testToJSON() {
+        metrics.start(BackupMetrics.Phase.UPLOAD, "LocalDirectory: /tmp").bytesOut(10).stop();
+
+        JSONObject upload = metrics.toJSON().getJSONObject("phases").getJSONObject("upload");
+        assertEquals(10, upload.getJSONObject("LocalDirectory: /tmp").getLong("bytesOut"));
+        assertEquals(1, upload.getJSONObject(BackupMetrics.TOTAL).getLong("runs"));
+    }
+
+    @Test
+    public void testMetricName() {
+        assertEquals("periodicbackup.upload.s3_bucket_backups",
+                BackupMetrics.metricName(BackupMetrics.Phase.UPLOAD, "S3 bucket: backups"));
+    }
+}
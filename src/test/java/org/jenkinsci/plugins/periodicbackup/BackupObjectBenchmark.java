@@ -0,0 +1,38 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.util.Date;
+
+@JmhBenchmark
+public class BackupObjectBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class BackupObjectState {
+
+        private BackupObject backupObject;
+        private String xml;
+
+        @Setup
+        public void setup() {
+            backupObject = new BackupObject(new ConfigOnly(), new ZipStorage(true, 1024 * 1024),
+                    new LocalDirectory(new File("/var/backups/jenkins"), true), new Date());
+            xml = backupObject.getAsString();
+        }
+    }
+
+    @Benchmark
+    public String serialize(BackupObjectState state) {
+        return state.backupObject.getAsString();
+    }
+
+    @Benchmark
+    public BackupObject deserialize(BackupObjectState state) {
+        return BackupObject.getFromString().apply(state.xml);
+    }
+}
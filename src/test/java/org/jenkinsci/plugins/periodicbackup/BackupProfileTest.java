@@ -0,0 +1,74 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BackupProfileTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testRetentionIsAppliedPerProfile() throws Exception {
+        LocalDirectory location = new LocalDirectory(temporaryFolder.newFolder(), true);
+        List<Location> locations = Lists.<Location>newArrayList(location);
+        List<Storage> storages = Lists.<Storage>newArrayList(new ZipStorage(false, 0));
+        String tempDirectory = temporaryFolder.newFolder().getAbsolutePath();
+
+        new BackupExecutor().backup(new ConfigOnly(), storages, locations, tempDirectory, 1, 10);
+        for (int i = 0; i < 3; i++) {
+            new BackupExecutor("frequent").backup(new ConfigOnly(), storages, locations, tempDirectory, 2, 10);
+        }
+
+        int defaultBackups = 0;
+        int frequentBackups = 0;
+        for (BackupObject backup : BackupCatalog.get().refresh(location)) {
+            if (backup.getProfile() == null) {
+                defaultBackups++;
+            } else {
+                assertEquals("frequent", backup.getProfile());
+                frequentBackups++;
+            }
+        }
+        // The backups of one profile do not count against the limit of the other one
+        assertEquals(1, defaultBackups);
+        assertEquals(2, frequentBackups);
+        // Backups started without PeriodicBackup finish their progress too, a restore can start afterwards
+        assertEquals(BackupProgress.Operation.IDLE, BackupProgress.get().getOperation());
+        BackupProgress.get().startExclusive(BackupProgress.Operation.RESTORE);
+        BackupProgress.get().finish();
+    }
+
+    @Test
+    public void testProfilesSharingLocationCompete() throws Exception {
+        File directory = temporaryFolder.newFolder();
+        BackupProfile nightly = new BackupProfile(null, new FullBackup("", "", false), Lists.<Location>newArrayList(
+                new LocalDirectory(directory, true)), Collections.<Storage>emptyList(), "0 2 * * *", 7, 7);
+        BackupProfile frequent = new BackupProfile("frequent", new ConfigOnly(), Lists.<Location>newArrayList(
+                new LocalDirectory(directory, true), new LocalDirectory(temporaryFolder.newFolder(), false)),
+                Collections.<Storage>emptyList(), "H/15 * * * *", 96, 1);
+        BackupProfile independent = new BackupProfile("independent", new ConfigOnly(), Lists.<Location>newArrayList(
+                new LocalDirectory(temporaryFolder.newFolder(), true)), Collections.<Storage>emptyList(), "H/15 * * * *", 96, 1);
+
+        assertEquals(nightly.getResources(), frequent.getResources());
+        assertTrue(Collections.disjoint(nightly.getResources(), independent.getResources()));
+        assertEquals("/tmp", nightly.getTempDirectory("/tmp"));
+        assertFalse("/tmp".equals(frequent.getTempDirectory("/tmp")));
+        assertEquals("Default", nightly.getDisplayName());
+        assertNull(nightly.getName());
+    }
+}
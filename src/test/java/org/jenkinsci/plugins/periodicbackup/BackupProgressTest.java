@@ -0,0 +1,68 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BackupProgressTest {
+
+    private final BackupProgress progress = new BackupProgress();
+
+    @Test
+    public void testProgressOfCurrentPhase() {
+        progress.start(BackupProgress.Operation.BACKUP);
+        progress.enter(BackupMetrics.Phase.SCAN).addDone(10, 1000);
+        BackupProgress.PhaseProgress archive = progress.enter(BackupMetrics.Phase.ARCHIVE).addTotal(10, 1000);
+        archive.addDone(3, 250);
+
+        assertTrue(progress.isRunning());
+        assertEquals(25, archive.getPercent());
+        assertEquals("Creating backup... archive: 3/10 files (25%)", progress.getMessage().replaceAll(", .* left$", ""));
+
+        JSONObject json = progress.toJSON();
+        assertEquals("archive", json.getString("phase"));
+        assertEquals(2, json.getJSONArray("phases").size());
+    }
+
+    @Test
+    public void testPercentFallsBackToFiles() {
+        progress.start(BackupProgress.Operation.RESTORE);
+        BackupProgress.PhaseProgress copy = progress.enter(BackupMetrics.Phase.RESTORE_COPY).addTotal(4, 0);
+        copy.addDone(1, 0);
+        assertEquals(25, copy.getPercent());
+        assertEquals(-1, progress.get(BackupMetrics.Phase.DOWNLOAD).getPercent());
+    }
+
+    @Test
+    public void testOperationsDoNotOverlap() throws Exception {
+        progress.startExclusive(BackupProgress.Operation.BACKUP);
+        try {
+            progress.startExclusive(BackupProgress.Operation.RESTORE);
+            fail("A restore was started during a backup");
+        } catch (PeriodicBackupException e) {
+            assertEquals(BackupProgress.Operation.BACKUP, progress.getOperation());
+        }
+        progress.finish();
+        progress.startExclusive(BackupProgress.Operation.RESTORE);
+        assertEquals(BackupProgress.Operation.RESTORE, progress.getOperation());
+    }
+
+    @Test
+    public void testFinish() {
+        progress.start(BackupProgress.Operation.BACKUP);
+        progress.finish();
+        assertFalse(progress.isRunning());
+        assertEquals("", progress.getMessage());
+    }
+
+    @Test
+    public void testFormatDuration() {
+        assertEquals("42 s", BackupProgress.formatDuration(42000));
+        assertEquals("5 min", BackupProgress.formatDuration(5 * 60000 + 1000));
+        assertEquals("2 h 3 min", BackupProgress.formatDuration((2 * 60 + 3) * 60000));
+    }
+}
@@ -0,0 +1,156 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class BackupReplicatorTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * Target location which cannot store backups
+     */
+    private static class FailingLocation extends LocalDirectory {
+        FailingLocation(File path) {
+            super(path, true);
+        }
+
+        @Override
+        public void storeBackupInLocation(Iterable<File> archives, File backupObjectFile) throws IOException {
+            throw new IOException("The location is not reachable");
+        }
+    }
+
+    /**
+     * Target location whose copies hang until they are interrupted or released
+     */
+    private static class HangingLocation extends LocalDirectory {
+        private static volatile CountDownLatch release = new CountDownLatch(1);
+
+        HangingLocation(File path) {
+            super(path, true);
+        }
+
+        @Override
+        public void storeBackupInLocation(Iterable<File> archives, File backupObjectFile) throws IOException {
+            try {
+                release.await(60, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("The copy was interrupted");
+            }
+            super.storeBackupInLocation(archives, backupObjectFile);
+        }
+    }
+
+    private BackupReplicator.Replication findPending(BackupReplicator replicator, Location target) {
+        for (BackupReplicator.Replication replication : replicator.getPending()) {
+            if (replication.getTarget().equals(target.getDisplayName())) {
+                return replication;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testBackupIsReplicatedFromPrimaryLocation() throws Exception {
+        LocalDirectory primary = new LocalDirectory(temporaryFolder.newFolder(), true);
+        LocalDirectory secondary = new LocalDirectory(temporaryFolder.newFolder(), true);
+        List<Location> locations = Lists.<Location>newArrayList(primary, secondary);
+        List<Storage> storages = Lists.<Storage>newArrayList(new ZipStorage(false, 0));
+        PeriodicBackupLink.get().setProfiles(Collections.singletonList(new BackupProfile("tiered", new ConfigOnly(),
+                locations, storages, "0 2 * * *", 1, 10)));
+        String tempDirectory = temporaryFolder.newFolder().getAbsolutePath();
+
+        BackupReplicator replicator = BackupReplicator.get();
+        for (int i = 0; i < 2; i++) {
+            new BackupExecutor("tiered", new BackupExecutor.Settings().tieredReplication(true)).backup(new ConfigOnly(),
+                    storages, locations, tempDirectory, 1, 10);
+            assertEquals(1, BackupCatalog.get().refresh(primary).size());
+            replicator.replicate();
+        }
+
+        assertTrue(replicator.getPending().isEmpty());
+        assertEquals(0, replicator.getLag());
+        // The copy is a complete backup of the profile and the retention applies to the secondary location too
+        List<BackupObject> replicated = BackupCatalog.get().refresh(secondary);
+        assertEquals(1, replicated.size());
+        assertEquals("tiered", replicated.get(0).getProfile());
+        assertEquals(BackupCatalog.get().refresh(primary).get(0).getTimestamp(), replicated.get(0).getTimestamp());
+        assertTrue(new BackupVerifier(secondary).verify(replicated.get(0)).isValid());
+    }
+
+    @Test
+    public void testPrimaryKeepsBackupsUntilReplicated() throws Exception {
+        LocalDirectory primary = new LocalDirectory(temporaryFolder.newFolder(), true);
+        FailingLocation secondary = new FailingLocation(temporaryFolder.newFolder());
+        List<Location> locations = Lists.<Location>newArrayList(primary, secondary);
+        List<Storage> storages = Lists.<Storage>newArrayList(new ZipStorage(false, 0));
+        PeriodicBackupLink.get().setProfiles(Collections.singletonList(new BackupProfile("tiered", new ConfigOnly(),
+                locations, storages, "0 2 * * *", 1, 10)));
+        String tempDirectory = temporaryFolder.newFolder().getAbsolutePath();
+
+        for (int i = 0; i < 2; i++) {
+            new BackupExecutor("tiered", new BackupExecutor.Settings().tieredReplication(true)).backup(new ConfigOnly(),
+                    storages, locations, tempDirectory, 1, 10);
+        }
+
+        // Only one backup is allowed, but the first one was not copied yet
+        List<BackupObject> backups = BackupCatalog.get().refresh(primary);
+        assertEquals(2, backups.size());
+        for (BackupObject backup : backups) {
+            assertTrue(BackupReplicator.get().isPending(primary, backup));
+            assertFalse(BackupReplicator.get().isPending(secondary, backup));
+        }
+    }
+
+    @Test
+    public void testHangingCopyTimesOutWithoutBlockingOtherTargets() throws Exception {
+        LocalDirectory primary = new LocalDirectory(temporaryFolder.newFolder(), true);
+        HangingLocation hanging = new HangingLocation(temporaryFolder.newFolder());
+        LocalDirectory secondary = new LocalDirectory(temporaryFolder.newFolder(), true);
+        List<Location> locations = Lists.<Location>newArrayList(primary, hanging, secondary);
+        List<Storage> storages = Lists.<Storage>newArrayList(new ZipStorage(false, 0));
+        PeriodicBackupLink.get().setProfiles(Collections.singletonList(new BackupProfile("tiered", new ConfigOnly(),
+                locations, storages, "0 2 * * *", 1, 10)));
+        BackupReplicator replicator = BackupReplicator.get();
+        replicator.setTimeoutMillis(2000);
+        HangingLocation.release = new CountDownLatch(1);
+        try {
+            new BackupExecutor("tiered", new BackupExecutor.Settings().tieredReplication(true)).backup(new ConfigOnly(),
+                    storages, locations, temporaryFolder.newFolder().getAbsolutePath(), 1, 10);
+            long start = System.currentTimeMillis();
+            replicator.replicate();
+            assertTrue(System.currentTimeMillis() - start < 30000);
+
+            assertEquals(1, BackupCatalog.get().refresh(secondary).size());
+            assertEquals(0, BackupCatalog.get().refresh(hanging).size());
+            BackupReplicator.Replication timedOut = findPending(replicator, hanging);
+            assertNotNull(timedOut);
+            assertEquals(1, timedOut.getAttempts());
+            assertTrue(timedOut.getLastError(), timedOut.getLastError().contains("did not finish"));
+            assertEquals(null, findPending(replicator, secondary));
+        } finally {
+            HangingLocation.release.countDown();
+            replicator.setTimeoutMillis(TimeUnit.MINUTES.toMillis(360));
+        }
+    }
+}
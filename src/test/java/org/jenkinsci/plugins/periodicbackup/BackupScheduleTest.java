@@ -0,0 +1,87 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BackupScheduleTest {
+
+    private static final String CRON = "0 3 * * *";
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    private static long time(int day, int hour, int minute, int second) {
+        return new GregorianCalendar(2020, Calendar.JANUARY, day, hour, minute, second).getTimeInMillis();
+    }
+
+    @Test
+    public void testScheduledBackupRunsOnce() throws Exception {
+        BackupSchedule schedule = new BackupSchedule();
+        assertFalse(schedule.isDue(CRON, time(1, 12, 0, 0), BackupSchedule.MissedBackupPolicy.SKIP));
+        assertFalse(schedule.isDue(CRON, time(2, 2, 59, 0), BackupSchedule.MissedBackupPolicy.SKIP));
+        // The periodic check runs a bit late, the backup is still on time
+        assertTrue(schedule.isDue(CRON, time(2, 3, 0, 40), BackupSchedule.MissedBackupPolicy.SKIP));
+        schedule.started(CRON, time(2, 3, 0, 40));
+        assertFalse(schedule.isDue(CRON, time(2, 3, 1, 40), BackupSchedule.MissedBackupPolicy.SKIP));
+        assertEquals(time(3, 3, 0, 0), schedule.getNextRun(CRON).getTime());
+    }
+
+    @Test
+    public void testRejectedBackupStaysDue() throws Exception {
+        BackupSchedule schedule = new BackupSchedule();
+        schedule.isDue(CRON, time(1, 12, 0, 0), BackupSchedule.MissedBackupPolicy.RUN_ONCE);
+        // A restore was running when the backup was due, it is started at the next check
+        assertTrue(schedule.isDue(CRON, time(2, 3, 0, 10), BackupSchedule.MissedBackupPolicy.RUN_ONCE));
+        assertTrue(schedule.isDue(CRON, time(2, 3, 1, 10), BackupSchedule.MissedBackupPolicy.RUN_ONCE));
+        // The restore took long, the backup is run once it is over
+        assertTrue(schedule.isDue(CRON, time(2, 4, 0, 10), BackupSchedule.MissedBackupPolicy.RUN_ONCE));
+        schedule.started(CRON, time(2, 4, 0, 10));
+        assertFalse(schedule.isDue(CRON, time(2, 4, 1, 10), BackupSchedule.MissedBackupPolicy.RUN_ONCE));
+        assertEquals(time(3, 3, 0, 0), schedule.getNextRun(CRON).getTime());
+    }
+
+    @Test
+    public void testNextRunIsReadOnly() throws Exception {
+        BackupSchedule schedule = new BackupSchedule("read-only");
+        schedule.getNextRun(CRON);
+        assertFalse(new File(r.jenkins.getRootDir(), BackupSchedule.class.getName() + "-read-only.xml").exists());
+    }
+
+    @Test
+    public void testMissedBackupsRunOnce() throws Exception {
+        BackupSchedule schedule = new BackupSchedule();
+        schedule.isDue(CRON, time(1, 12, 0, 0), BackupSchedule.MissedBackupPolicy.RUN_ONCE);
+        // Jenkins was down for three days
+        long now = time(4, 10, 0, 0);
+        assertTrue(schedule.isDue(CRON, now, BackupSchedule.MissedBackupPolicy.RUN_ONCE));
+        schedule.started(CRON, now);
+        assertFalse(schedule.isDue(CRON, now + TimeUnit.MINUTES.toMillis(1), BackupSchedule.MissedBackupPolicy.RUN_ONCE));
+        assertEquals(time(5, 3, 0, 0), schedule.getNextRun(CRON).getTime());
+    }
+
+    @Test
+    public void testMissedBackupsAreSkipped() throws Exception {
+        BackupSchedule schedule = new BackupSchedule();
+        schedule.isDue(CRON, time(1, 12, 0, 0), BackupSchedule.MissedBackupPolicy.SKIP);
+        assertFalse(schedule.isDue(CRON, time(2, 3, 30, 0), BackupSchedule.MissedBackupPolicy.SKIP));
+        assertEquals(time(3, 3, 0, 0), schedule.getNextRun(CRON).getTime());
+    }
+
+    @Test
+    public void testChangedCronIsRescheduled() throws Exception {
+        BackupSchedule schedule = new BackupSchedule();
+        schedule.isDue(CRON, time(1, 12, 0, 0), BackupSchedule.MissedBackupPolicy.SKIP);
+        assertFalse(schedule.isDue("0 13 * * *", time(1, 12, 30, 0), BackupSchedule.MissedBackupPolicy.SKIP));
+        assertTrue(schedule.isDue("0 13 * * *", time(1, 13, 0, 10), BackupSchedule.MissedBackupPolicy.SKIP));
+    }
+}
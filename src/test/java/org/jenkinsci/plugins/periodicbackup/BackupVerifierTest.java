@@ -0,0 +1,90 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BackupVerifierTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private List<File> createBackup(Storage storage, File locationDirectory, Date timestamp) throws Exception {
+        File jobDirectory = new File(r.jenkins.getRootDir(), "jobs/verified");
+        assertTrue(jobDirectory.mkdirs());
+        File config = new File(jobDirectory, "config.xml");
+        Files.write("<project/>", config, Charsets.UTF_8);
+        File log = new File(jobDirectory, "log");
+        Files.write("some build output", log, Charsets.UTF_8);
+
+        File tempDirectory = temporaryFolder.newFolder();
+        String fileNameBase = Util.generateFileNameBase(timestamp, storage);
+        storage.backupStart(tempDirectory.getAbsolutePath(), fileNameBase);
+        storage.backupAddFile(config);
+        storage.backupAddFile(log);
+        List<File> archives = Lists.newArrayList(storage.backupStop());
+        BackupMetadata metadata = BackupMetadata.create(fileNameBase, timestamp, new ConfigOnly(), storage, archives);
+        assertEquals(2, metadata.getEntries().size());
+        for (File archive : archives) {
+            Files.copy(archive, new File(locationDirectory, archive.getName()));
+        }
+        metadata.write(new File(locationDirectory, Util.createFileName(fileNameBase, BackupMetadata.EXTENSION)));
+        return archives;
+    }
+
+    @Test
+    public void testVerifyIntactBackups() throws Exception {
+        for (Storage storage : new Storage[] {new ZipStorage(false, 0), new TarGzStorage()}) {
+            File locationDirectory = temporaryFolder.newFolder();
+            Date timestamp = new Date();
+            int archives = createBackup(storage, locationDirectory, timestamp).size();
+            LocalDirectory location = new LocalDirectory(locationDirectory, true);
+
+            BackupVerifier.Result result = new BackupVerifier(location).verify(new BackupObject(new ConfigOnly(), storage, location, timestamp));
+
+            assertTrue(result.toString(), result.isValid());
+            assertEquals(archives, result.getVerifiedArchives());
+            assertEquals(2, result.getVerifiedEntries());
+            FileUtils.deleteDirectory(new File(r.jenkins.getRootDir(), "jobs/verified"));
+        }
+    }
+
+    @Test
+    public void testVerifyCorruptedBackup() throws Exception {
+        File locationDirectory = temporaryFolder.newFolder();
+        Date timestamp = new Date();
+        ZipStorage storage = new ZipStorage(false, 0);
+        File archive = new File(locationDirectory, createBackup(storage, locationDirectory, timestamp).get(0).getName());
+        RandomAccessFile file = new RandomAccessFile(archive, "rw");
+        try {
+            file.seek(archive.length() / 2);
+            int b = file.read();
+            file.seek(archive.length() / 2);
+            file.write(b ^ 0xFF);
+        } finally {
+            file.close();
+        }
+        LocalDirectory location = new LocalDirectory(locationDirectory, true);
+
+        BackupVerifier.Result result = new BackupVerifier(location).verify(new BackupObject(new ConfigOnly(), storage, location, timestamp));
+
+        assertFalse(result.isValid());
+        assertFalse(result.getProblems().isEmpty());
+    }
+}
@@ -0,0 +1,132 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import hudson.model.Label;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BackupWorkerTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testArchivesAreCreatedInWorker() throws Exception {
+        createJob("forked");
+        LocalDirectory location = new LocalDirectory(temporaryFolder.newFolder(), true);
+
+        new BackupExecutor(null, new BackupExecutor.Settings().forkWorker(true, "-Xmx64m")).backup(new ConfigOnly(), storages(),
+                Lists.<Location>newArrayList(location), temporaryFolder.newFolder().getAbsolutePath(), 10, 10);
+
+        assertBackupsContain(location, "jobs/forked/config.xml");
+    }
+
+    @Test
+    public void testArchivesAreCreatedOnAgent() throws Exception {
+        r.createOnlineSlave(Label.get("backup"));
+        createJob("offloaded");
+        LocalDirectory location = new LocalDirectory(temporaryFolder.newFolder(), true);
+
+        new BackupExecutor(null, new BackupExecutor.Settings().workerLabel("backup", false)).backup(new ConfigOnly(), storages(),
+                Lists.<Location>newArrayList(location), temporaryFolder.newFolder().getAbsolutePath(), 10, 10);
+
+        assertBackupsContain(location, "jobs/offloaded/config.xml");
+    }
+
+    @Test
+    public void testAgentArchivesAreEncryptedOnController() throws Exception {
+        r.createOnlineSlave(Label.get("backup"));
+        createJob("encrypted");
+        File file = new File(r.jenkins.getRootDir(), "jobs/encrypted/config.xml");
+        ZipStorage storage = new ZipStorage(false, 0);
+        ArchiveEncryption encryption = new ArchiveEncryption("test", "secret".toCharArray());
+        File tempDirectory = temporaryFolder.newFolder();
+
+        BackupWorker worker = BackupWorker.onAgent("backup", false);
+        BackupWorker.Result result = worker.archive(storage, Lists.newArrayList(file), tempDirectory, "encrypted",
+                new BackupWorker.Environment(r.jenkins.getRootDir(), storage, encryption), new NoReporter());
+
+        assertEquals(1, result.getArchives().size());
+        File archive = result.getArchives().get(0);
+        byte[] content = Files.toByteArray(archive);
+        assertTrue(ArchiveEncryption.isEncrypted(content, content.length));
+        // The checksum of the archive is the one of the encrypted file
+        CRC32 checksum = new CRC32();
+        checksum.update(content);
+        assertEquals(Long.valueOf(checksum.getValue()), result.getChecksums().getArchiveChecksum(archive.getName()));
+        ZipArchiveInputStream in = new ZipArchiveInputStream(encryption.decrypt(new ByteArrayInputStream(content)));
+        try {
+            assertEquals("jobs/encrypted/config.xml", in.getNextZipEntry().getName());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testSecretsAreNotSentToAgent() throws Exception {
+        r.createOnlineSlave(Label.get("backup"));
+        File secret = new File(r.jenkins.getRootDir(), "secrets/master.key");
+        Files.createParentDirs(secret);
+        Files.touch(secret);
+        ZipStorage storage = new ZipStorage(false, 0);
+
+        try {
+            BackupWorker.onAgent("backup", false).archive(storage, Lists.newArrayList(secret), temporaryFolder.newFolder(),
+                    "secrets", new BackupWorker.Environment(r.jenkins.getRootDir(), storage, null), new NoReporter());
+            fail("The secrets were sent to the agent");
+        } catch (IOException e) {
+            // expected
+        }
+        BackupWorker.Result result = BackupWorker.onAgent("backup", true).archive(storage, Lists.newArrayList(secret),
+                temporaryFolder.newFolder(), "secrets", new BackupWorker.Environment(r.jenkins.getRootDir(), storage, null),
+                new NoReporter());
+        assertEquals(1, result.getArchives().size());
+    }
+
+    private void createJob(String name) throws Exception {
+        File jobDirectory = new File(r.jenkins.getRootDir(), "jobs/" + name);
+        assertTrue(jobDirectory.mkdirs());
+        Files.write("<project/>", new File(jobDirectory, "config.xml"), Charsets.UTF_8);
+    }
+
+    private static class NoReporter implements BackupWorker.Reporter {
+        public void archived(int files, long bytes) {
+        }
+    }
+
+    private static List<Storage> storages() {
+        return Lists.<Storage>newArrayList(new ZipStorage(false, 0), new TarGzStorage());
+    }
+
+    private static void assertBackupsContain(LocalDirectory location, String entryName) throws Exception {
+        List<BackupObject> backups = BackupCatalog.get().refresh(location);
+        assertEquals(2, backups.size());
+        for (BackupObject backup : backups) {
+            // The entries are named relative to the Jenkins home directory passed to the worker
+            boolean found = false;
+            for (BackupMetadata.Entry entry : BackupMetadata.read(location, backup).getEntries()) {
+                found |= entry.getName().equals(entryName);
+            }
+            assertTrue(found);
+            BackupVerifier.Result result = new BackupVerifier(location).verify(backup);
+            assertTrue(result.toString(), result.isValid());
+        }
+    }
+}
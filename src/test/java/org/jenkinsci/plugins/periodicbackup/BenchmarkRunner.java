@@ -0,0 +1,47 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import jenkins.benchmark.jmh.BenchmarkFinder;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the JMH benchmarks, use {@code mvn test -Dbenchmark}.
+ * The synthetic data can be changed with {@code -Dbenchmark.fileCount=100,10000}
+ * and {@code -Dbenchmark.sizeDistribution=CONFIG,MIXED,LARGE}.
+ */
+public class BenchmarkRunner {
+
+    @Test
+    public void runJmhBenchmarks() throws Exception {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .mode(Mode.AverageTime)
+                .timeUnit(TimeUnit.MILLISECONDS)
+                .warmupIterations(2)
+                .measurementIterations(5)
+                .threads(1)
+                .forks(1)
+                .shouldFailOnError(true)
+                .shouldDoGC(true)
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-report.json");
+        param(options, "fileCount");
+        param(options, "sizeDistribution");
+
+        BenchmarkFinder finder = new BenchmarkFinder(getClass());
+        finder.findBenchmarks(options);
+        new Runner(options.build()).run();
+    }
+
+    private static void param(ChainedOptionsBuilder options, String name) {
+        String values = System.getProperty("benchmark." + name);
+        if (values != null && !values.trim().isEmpty()) {
+            options.param(name, values.trim().split("\\s*,\\s*"));
+        }
+    }
+}
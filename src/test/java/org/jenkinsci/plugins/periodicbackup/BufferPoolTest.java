@@ -0,0 +1,126 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class BufferPoolTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testBuffersAreReused() {
+        BufferPool pool = new BufferPool(false, 2);
+        ByteBuffer buffer = pool.acquire();
+        buffer.put((byte) 1);
+        pool.release(buffer);
+
+        ByteBuffer reused = pool.acquire();
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(BufferPool.BUFFER_SIZE, pool.getAllocatedBytes());
+    }
+
+    @Test
+    public void testIdleBuffersAreBounded() {
+        BufferPool pool = new BufferPool(true, 1);
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+        assertTrue(first.isDirect());
+        pool.release(first);
+        pool.release(second);
+
+        // Only one idle buffer was kept, the third acquire allocates again
+        pool.acquire();
+        pool.acquire();
+        assertEquals(3L * BufferPool.BUFFER_SIZE, pool.getAllocatedBytes());
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported());
+        return (com.sun.management.ThreadMXBean) threadBean;
+    }
+
+    @Test
+    public void testSteadyStateCopyAllocatesAlmostNothingPerFile() throws Exception {
+        com.sun.management.ThreadMXBean allocationBean = allocationBean();
+        File file = temporaryFolder.newFile();
+        Files.write(new byte[16 * 1024], file);
+        // Warm up the pool and the JIT
+        copy(file, 1000);
+
+        int files = 10000;
+        long before = allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        copy(file, files);
+        long perFile = (allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before) / files;
+
+        // A copy buffer of its own would be at least 4 kB per file
+        assertTrue("Allocated " + perFile + " bytes per file", perFile < 2048);
+    }
+
+    @Test
+    public void testStoragesAllocateNoBufferPerFile() throws Exception {
+        com.sun.management.ThreadMXBean allocationBean = allocationBean();
+        List<File> files = Lists.newArrayList();
+        for (int i = 0; i < 2000; i++) {
+            File file = new File(r.jenkins.getRootDir(), "jobs/job" + (i % 20) + "/builds/" + i + "/log");
+            assertTrue(file.getParentFile().mkdirs() || file.getParentFile().isDirectory());
+            Files.write(new byte[16 * 1024], file);
+            files.add(file);
+        }
+        for (Storage storage : new Storage[] {new ZipStorage(false, 0), new TarGzStorage(), new NullStorage()}) {
+            // Warm up the pool and the JIT
+            backup(storage, files);
+            long before = allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            backup(storage, files);
+            long perFile = (allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - before) / files.size();
+
+            // The entries and names are allocated per file, a copy buffer of 64 kB would be far above this
+            assertTrue(storage.getDisplayName() + " allocated " + perFile + " bytes per file", perFile < 16 * 1024);
+        }
+    }
+
+    private void backup(Storage storage, List<File> files) throws Exception {
+        File tempDirectory = temporaryFolder.newFolder();
+        storage.backupStart(tempDirectory.getAbsolutePath(), Util.generateFileNameBase(new Date(), storage));
+        for (File file : files) {
+            storage.backupAddFile(file);
+        }
+        storage.backupStop();
+    }
+
+    private static void copy(File file, int times) throws Exception {
+        for (int i = 0; i < times; i++) {
+            InputStream in = new FileInputStream(file);
+            try {
+                assertEquals(file.length(), Util.copy(in, NullOutputStream.NULL_OUTPUT_STREAM, -1, new CRC32()));
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
@@ -46,7 +46,14 @@ public class ConfigurationAsCodeTest {
         assertEquals(File.separator + "var" + File.separator + "jenkins" +
                 File.separator + "backup", localDirectory.getPath().getPath());
         assertTrue(localDirectory.enabled);
-
+        assertEquals(1, target.getProfiles().size());
+        BackupProfile profile = target.getProfiles().get(0);
+        assertEquals("frequent", profile.getName());
+        assertEquals("*/15 * * * *", profile.getCron());
+        assertEquals(96, profile.getCycleQuantity());
+        assertTrue(profile.getFileManagerPlugin() instanceof ConfigOnly);
+        assertTrue(profile.getStorages().get(0) instanceof TarGzStorage);
+        assertTrue(profile.getLocations().get(0) instanceof LocalDirectory);
 
     }
 }
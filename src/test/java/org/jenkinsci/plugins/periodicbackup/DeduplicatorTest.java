@@ -0,0 +1,185 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeduplicatorTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static final String[] NAMES = {"jobs/a/builds/1/artifact.bin", "jobs/a/builds/2/artifact.bin",
+            "jobs/b/builds/1/artifact.bin", "jobs/a/config.xml", "jobs/b/config.xml"};
+
+    private List<File> createFiles() throws IOException {
+        byte[] artifact = new byte[64 * 1024];
+        new Random(42).nextBytes(artifact);
+        List<File> files = Lists.newArrayList();
+        for (String name : NAMES) {
+            File file = new File(r.jenkins.getRootDir(), name);
+            assertTrue(file.getParentFile().mkdirs() || file.getParentFile().isDirectory());
+            if (name.endsWith(".bin")) {
+                Files.write(artifact, file);
+            } else {
+                // Small files are stored even when they are identical
+                Files.write("<project/>".getBytes("UTF-8"), file);
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    private static List<File> copy(List<File> archives, File directory) throws IOException {
+        List<File> copies = Lists.newArrayList();
+        for (File archive : archives) {
+            File copy = new File(directory, archive.getName());
+            Files.copy(archive, copy);
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    @Test
+    public void testDuplicatesAreStoredOnceAndRestored() throws Exception {
+        List<File> files = createFiles();
+        for (Storage storage : new Storage[] {new ZipStorage(false, 0), new TarGzStorage()}) {
+            File tempDirectory = temporaryFolder.newFolder();
+            Date timestamp = new Date();
+            String fileNameBase = Util.generateFileNameBase(timestamp, storage);
+            storage.setDeduplicate(true);
+            storage.backupStart(tempDirectory.getAbsolutePath(), fileNameBase);
+            for (File file : files) {
+                storage.backupAddFile(file);
+            }
+            List<File> archives = Lists.newArrayList(storage.backupStop());
+            BackupMetadata metadata = BackupMetadata.create(fileNameBase, timestamp, new ConfigOnly(), storage, archives);
+            assertEquals(NAMES.length, metadata.getEntries().size());
+
+            final List<String> stored = Lists.newArrayList();
+            final List<String> duplicates = Lists.newArrayList();
+            InputStream in = new FileInputStream(archives.get(0));
+            try {
+                storage.readArchive(in, new Storage.ArchiveEntryVisitor() {
+                    public void visit(String name, InputStream content) {
+                        stored.add(name);
+                    }
+
+                    @Override
+                    public void visitDuplicate(String name, String original) {
+                        assertEquals(NAMES[0], original);
+                        duplicates.add(name);
+                    }
+                });
+            } finally {
+                in.close();
+            }
+            assertEquals(storage.getDisplayName(), Lists.newArrayList(NAMES[0], NAMES[3], NAMES[4]), stored);
+            assertEquals(storage.getDisplayName(), Lists.newArrayList(NAMES[1], NAMES[2]), duplicates);
+
+            File locationDirectory = temporaryFolder.newFolder();
+            copy(archives, locationDirectory);
+            metadata.write(new File(locationDirectory, Util.createFileName(fileNameBase, BackupMetadata.EXTENSION)));
+            LocalDirectory location = new LocalDirectory(locationDirectory, true);
+            BackupVerifier.Result result = new BackupVerifier(location).verify(new BackupObject(new ConfigOnly(), storage, location, timestamp));
+            assertTrue(result.toString(), result.isValid());
+            assertEquals(NAMES.length, result.getVerifiedEntries());
+
+            File restored = temporaryFolder.newFolder();
+            storage.unarchiveFiles(copy(archives, temporaryFolder.newFolder()), restored);
+            assertEquals(NAMES.length, FileUtils.listFiles(restored, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE).size());
+            for (int i = 0; i < NAMES.length; i++) {
+                assertArrayEquals(NAMES[i], Files.toByteArray(files.get(i)), Files.toByteArray(new File(restored, NAMES[i])));
+            }
+
+            // A duplicate is restored on its own even when its original is not selected
+            File selected = temporaryFolder.newFolder();
+            storage.unarchiveFiles(copy(archives, temporaryFolder.newFolder()), selected, new Predicate<String>() {
+                public boolean apply(String name) {
+                    return name.equals(NAMES[2]);
+                }
+            });
+            Collection<File> extracted = FileUtils.listFiles(selected, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
+            assertEquals(storage.getDisplayName(), 1, extracted.size());
+            assertArrayEquals(Files.toByteArray(files.get(2)), Files.toByteArray(new File(selected, NAMES[2])));
+        }
+    }
+
+    @Test
+    public void testRewrittenOriginalIsNotUsed() throws Exception {
+        byte[] archived = new byte[64 * 1024];
+        new Random(1).nextBytes(archived);
+        byte[] rewritten = archived.clone();
+        rewritten[100] ^= 1;
+        File original = temporaryFolder.newFile();
+        Files.write(archived, original);
+        CRC32 checksum = new CRC32();
+        checksum.update(archived);
+
+        Deduplicator deduplicator = new Deduplicator();
+        deduplicator.archived(original, new BackupMetadata.Entry("archive", "original", archived.length, checksum.getValue()));
+        // The original is rewritten with the same size and modification time after it was archived
+        long lastModified = original.lastModified();
+        Files.write(rewritten, original);
+        assertTrue(original.setLastModified(lastModified));
+
+        File copy = temporaryFolder.newFile();
+        Files.write(rewritten, copy);
+        assertNull(deduplicator.find(copy));
+        assertEquals(0, deduplicator.getDeduplicatedBytes());
+    }
+
+    @Test
+    public void testDuplicatesAreStoredUnlessEnabled() throws Exception {
+        List<File> files = createFiles();
+        for (Storage storage : new Storage[] {new ZipStorage(false, 0), new TarGzStorage()}) {
+            storage.backupStart(temporaryFolder.newFolder().getAbsolutePath(), Util.generateFileNameBase(new Date(), storage));
+            for (File file : files) {
+                storage.backupAddFile(file);
+            }
+            File archive = storage.backupStop().iterator().next();
+
+            final List<String> stored = Lists.newArrayList();
+            InputStream in = new FileInputStream(archive);
+            try {
+                storage.readArchive(in, new Storage.ArchiveEntryVisitor() {
+                    public void visit(String name, InputStream content) {
+                        stored.add(name);
+                    }
+
+                    @Override
+                    public void visitDuplicate(String name, String original) {
+                        fail(name + " was stored as a duplicate of " + original);
+                    }
+                });
+            } finally {
+                in.close();
+            }
+            assertEquals(storage.getDisplayName(), Lists.newArrayList(NAMES), stored);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+
+@JmhBenchmark
+public class FileManagerBenchmark {
+
+    public static class ScanState extends SyntheticHomeState {
+
+        private FullBackup fullBackup;
+        private ConfigOnly configOnly;
+
+        @Override
+        public void setup() throws Exception {
+            super.setup();
+            fullBackup = new FullBackup(null, null, false, getJenkins().getRootDir());
+            configOnly = new ConfigOnly();
+        }
+    }
+
+    @Benchmark
+    public Iterable<?> fullBackupScan(ScanState state) {
+        return state.fullBackup.getFilesToBackup();
+    }
+
+    @Benchmark
+    public Iterable<?> configOnlyScan(ScanState state) throws Exception {
+        return state.configOnly.getFilesToBackup();
+    }
+}
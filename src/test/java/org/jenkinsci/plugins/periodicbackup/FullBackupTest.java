@@ -36,13 +36,16 @@ public class FullBackupTest {
 	private static final File NEXT_BUILD_NUMBER = new File(BASE_DIR, "jobs/myjob/nextBuildNumber");
 	private static final File PLUGIN = new File(BASE_DIR, "plugins/periodicbackup.jpl");
 	private static final File SOFTLINK = new File(BASE_DIR, "soft-link-to-source.txt");
+	private static final File BUILD_LINK = new File(BASE_DIR, "jobs/myjob/builds/lastSuccessfulBuild");
 
 	private static final List<File> ALL_FILES = Arrays.asList(
 			CONFIG_XML,
 			BUILD_XML,
 			JOB_CONFIG_XML,
 			NEXT_BUILD_NUMBER,
-			PLUGIN
+			PLUGIN,
+			BUILD_LINK,
+			SOFTLINK
 		);
 
 	@Before
@@ -76,7 +79,7 @@ public class FullBackupTest {
 
 		// test include all xml files
 		testData.add(new Object[] { "**/*.xml", null, false,
-				Arrays.asList(CONFIG_XML, BUILD_XML, JOB_CONFIG_XML) });
+				Arrays.asList(CONFIG_XML, BUILD_XML, JOB_CONFIG_XML, BUILD_LINK) });
 
 		// test exclude all
 		testData.add(new Object[] { null, "**", false,
@@ -84,27 +87,31 @@ public class FullBackupTest {
 
 		// test exclude config.xml
 		testData.add(new Object[] { null, "config.xml", false,
-				Arrays.asList(BUILD_XML, JOB_CONFIG_XML, NEXT_BUILD_NUMBER, PLUGIN) });
+				Arrays.asList(BUILD_XML, JOB_CONFIG_XML, NEXT_BUILD_NUMBER, PLUGIN, BUILD_LINK, SOFTLINK) });
 
 		// test exclude all xml files
 		testData.add(new Object[] { null, "**/*.xml", false,
-				Arrays.asList(NEXT_BUILD_NUMBER, PLUGIN) });
+				Arrays.asList(NEXT_BUILD_NUMBER, PLUGIN, BUILD_LINK, SOFTLINK) });
 
 		// test exclude jobs files
 		testData.add(new Object[] { null, "jobs/", false,
-				Arrays.asList(CONFIG_XML, PLUGIN) });
+				Arrays.asList(CONFIG_XML, PLUGIN, SOFTLINK) });
 
 		// test exclude jobs-build files
 		testData.add(new Object[] { null, "jobs/*/builds/", false,
-				Arrays.asList(CONFIG_XML, JOB_CONFIG_XML, NEXT_BUILD_NUMBER, PLUGIN) });
+				Arrays.asList(CONFIG_XML, JOB_CONFIG_XML, NEXT_BUILD_NUMBER, PLUGIN, SOFTLINK) });
 
 		// test exclude jobs-build files and nextBuildNumber
 		testData.add(new Object[] { null, "jobs/*/builds/; **/nextBuildNumber", false,
-				Arrays.asList(CONFIG_XML, JOB_CONFIG_XML, PLUGIN) });
+				Arrays.asList(CONFIG_XML, JOB_CONFIG_XML, PLUGIN, SOFTLINK) });
 
 		// test include all xml files except config.xml
 		testData.add(new Object[] { "**/*.xml", "config.xml", false,
-				Arrays.asList(BUILD_XML, JOB_CONFIG_XML) });
+				Arrays.asList(BUILD_XML, JOB_CONFIG_XML, BUILD_LINK) });
+
+		// test with follow symbolic links disabled, the links are backed up themselves
+		testData.add(new Object[] { null, "jobs/*/builds/1/; **/nextBuildNumber", false,
+				Arrays.asList(CONFIG_XML, JOB_CONFIG_XML, PLUGIN, BUILD_LINK, SOFTLINK) });
 
 		// test with follow symbolic links enabled
 		testData.add(new Object[] { null, "jobs/*/builds/; **/nextBuildNumber", true,
@@ -130,6 +137,7 @@ public class FullBackupTest {
 		FullBackup fullBackup = new FullBackup(includesString, excludesString, followSymbolicLinks, BASE_DIR);
 		List<File> filesToBackup = asList(fullBackup.getFilesToBackup());
 		Assert.assertThat(filesToBackup, Matchers.equalTo(expectedFiles));
+		Assert.assertEquals(!followSymbolicLinks, fullBackup.isLinksPreserved());
 	}
 
 	private List<File> asList(Iterable<File> iterable) {
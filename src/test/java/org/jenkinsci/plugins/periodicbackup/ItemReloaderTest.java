@@ -0,0 +1,61 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import hudson.model.FreeStyleProject;
+import hudson.tasks.Shell;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+
+public class ItemReloaderTest {
+
+    @Rule
+    public JenkinsRule r = new JenkinsRule();
+
+    @Test
+    public void testOnlyChangedItemsAreReloaded() throws Exception {
+        FreeStyleProject restored = r.createFreeStyleProject("restored");
+        FreeStyleProject untouched = r.createFreeStyleProject("untouched");
+        writeDescriptionOnDisk(restored, "from the backup");
+        writeDescriptionOnDisk(untouched, "changed on disk");
+
+        new ItemReloader().reload(ImmutableList.of("jobs/restored/config.xml", "userContent/readme.txt"));
+
+        assertEquals("from the backup", r.jenkins.getItemByFullName("restored", FreeStyleProject.class).getDescription());
+        // A full reload would have read the other job from the disk as well
+        assertEquals("live", r.jenkins.getItemByFullName("untouched", FreeStyleProject.class).getDescription());
+    }
+
+    @Test
+    public void testRestoredDescriptorConfigurationIsReloaded() throws Exception {
+        FreeStyleProject untouched = r.createFreeStyleProject("untouched");
+        writeDescriptionOnDisk(untouched, "changed on disk");
+        Shell.DescriptorImpl descriptor = r.jenkins.getDescriptorByType(Shell.DescriptorImpl.class);
+        File configFile = new File(r.jenkins.getRootDir(), "hudson.tasks.Shell.xml");
+        descriptor.setShell("/bin/restored");
+        String config = Files.toString(configFile, Charsets.UTF_8);
+        descriptor.setShell("/bin/live");
+        Files.write(config, configFile, Charsets.UTF_8);
+
+        new ItemReloader().reload(ImmutableList.of("hudson.tasks.Shell.xml"));
+
+        assertEquals("/bin/restored", descriptor.getShell());
+        assertEquals("live", r.jenkins.getItemByFullName("untouched", FreeStyleProject.class).getDescription());
+    }
+
+    /**
+     * Leaves the description "live" in memory and the given description in the config.xml
+     */
+    private static void writeDescriptionOnDisk(FreeStyleProject project, String description) throws Exception {
+        project.setDescription(description);
+        String config = project.getConfigFile().asString();
+        project.setDescription("live");
+        Files.write(config, project.getConfigFile().getFile(), Charsets.UTF_8);
+    }
+}
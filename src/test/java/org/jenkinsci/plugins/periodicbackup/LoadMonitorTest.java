@@ -0,0 +1,100 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoadMonitorTest {
+
+    private final LoadMonitor loadMonitor = new LoadMonitor(true, 80, 10, 1.0);
+
+    @Test
+    public void testEvaluateNormal() {
+        assertEquals(LoadMonitor.Pace.NORMAL, loadMonitor.evaluate(new LoadMonitor.Sample(2, 10, 3, 0.5)));
+    }
+
+    @Test
+    public void testEvaluateSlow() {
+        assertEquals(LoadMonitor.Pace.SLOW, loadMonitor.evaluate(new LoadMonitor.Sample(9, 10, 0, 0.1)));
+        assertEquals(LoadMonitor.Pace.SLOW, loadMonitor.evaluate(new LoadMonitor.Sample(0, 10, 12, 0.1)));
+        assertEquals(LoadMonitor.Pace.SLOW, loadMonitor.evaluate(new LoadMonitor.Sample(0, 10, 0, 1.2)));
+    }
+
+    @Test
+    public void testEvaluatePaused() {
+        assertEquals(LoadMonitor.Pace.PAUSED, loadMonitor.evaluate(new LoadMonitor.Sample(0, 10, 15, 0.1)));
+        assertEquals(LoadMonitor.Pace.PAUSED, loadMonitor.evaluate(new LoadMonitor.Sample(0, 10, 0, 2.0)));
+    }
+
+    @Test
+    public void testDisabledThresholdsAreIgnored() {
+        LoadMonitor queueOnly = new LoadMonitor(true, 0, 10, 0);
+        assertEquals(LoadMonitor.Pace.NORMAL, queueOnly.evaluate(new LoadMonitor.Sample(10, 10, 0, 8.0)));
+    }
+
+    @Test
+    public void testUnavailableLoadAverageIsIgnored() {
+        assertEquals(LoadMonitor.Pace.NORMAL, loadMonitor.evaluate(new LoadMonitor.Sample(0, 0, 0, -1)));
+    }
+
+    @Test
+    public void testSlowPaceSleepsInProportionToWork() {
+        final AtomicLong clock = new AtomicLong(100000);
+        final List<Long> sleeps = new CopyOnWriteArrayList<Long>();
+        LoadMonitor monitor = new LoadMonitor(true, 80, 10, 1.0, clock::get, millis -> {
+            sleeps.add(millis);
+            clock.addAndGet(millis);
+        }, () -> new LoadMonitor.Sample(9, 10, 0, 0.1));
+
+        // Many small files do not cost a delay each
+        long worked = 0;
+        for (int i = 0; i < 10000; i++) {
+            monitor.pace("archive");
+            clock.addAndGet(1);
+            worked++;
+        }
+        assertEquals(LoadMonitor.Pace.SLOW, monitor.getPace());
+        long slept = 0;
+        for (long sleep : sleeps) {
+            assertTrue(sleep >= LoadMonitor.MIN_WORK_SLICE);
+            slept += sleep;
+        }
+        assertTrue(slept <= worked);
+        assertTrue(slept >= worked - LoadMonitor.MIN_WORK_SLICE);
+    }
+
+    @Test
+    public void testPausedPaceWaitsUntilLoadDrops() {
+        final AtomicLong clock = new AtomicLong(100000);
+        final AtomicReference<LoadMonitor.Sample> sample = new AtomicReference<LoadMonitor.Sample>(
+                new LoadMonitor.Sample(0, 10, 20, 0.1));
+        final List<Long> sleeps = new CopyOnWriteArrayList<Long>();
+        LoadMonitor monitor = new LoadMonitor(true, 80, 10, 1.0, clock::get, millis -> {
+            sleeps.add(millis);
+            clock.addAndGet(millis);
+            if (sleeps.size() == 3) {
+                sample.set(new LoadMonitor.Sample(0, 10, 0, 0.1));
+            }
+        }, sample::get);
+
+        monitor.pace("upload");
+        assertEquals(3, sleeps.size());
+        assertEquals(LoadMonitor.PAUSE_POLL_INTERVAL, (long) sleeps.get(0));
+        assertEquals(LoadMonitor.Pace.NORMAL, monitor.getPace());
+
+        // The pause ends after the maximum time even if the load stays high
+        sleeps.clear();
+        sample.set(new LoadMonitor.Sample(0, 10, 20, 0.1));
+        clock.addAndGet(LoadMonitor.SAMPLE_INTERVAL);
+        LoadMonitor stuck = new LoadMonitor(true, 80, 10, 1.0, clock::get, millis -> clock.addAndGet(millis), sample::get);
+        long start = clock.get();
+        stuck.pace("upload");
+        assertEquals(LoadMonitor.MAX_PAUSE, clock.get() - start);
+    }
+}
@@ -0,0 +1,71 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+
+public class OverwriteRestorePolicyTest {
+
+    private static final long MODIFIED = 1300000000000L;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testOnlyChangedFilesAreCopied() throws Exception {
+        File tempDir = temporaryFolder.newFolder();
+        File home = temporaryFolder.newFolder();
+        write(tempDir, "config.xml", "<hudson/>", MODIFIED);
+        write(home, "config.xml", "<hudson/>", MODIFIED + 1000);
+        write(tempDir, "jobs/a/config.xml", "<project>a</project>", MODIFIED);
+        write(home, "jobs/a/config.xml", "<project>b</project>", MODIFIED);
+        write(tempDir, "jobs/b/config.xml", "<project/>", MODIFIED);
+        write(home, "users/admin/config.xml", "<user/>", MODIFIED);
+
+        OverwriteRestorePolicy policy = new OverwriteRestorePolicy();
+        policy.restore(tempDir, home, false);
+
+        OverwriteRestorePolicy.Report report = policy.getReport();
+        assertEquals(ImmutableList.of("jobs/b/config.xml"), report.getAdded());
+        assertEquals(ImmutableList.of("jobs/b/config.xml"), policy.getChangedPaths());
+        // Same size and modification time within the tolerance, the content is not compared
+        assertEquals(2, report.getUnchanged());
+        assertEquals(MODIFIED + 1000, new File(home, "config.xml").lastModified());
+        assertEquals("<project>b</project>", Files.toString(new File(home, "jobs/a/config.xml"), Charsets.UTF_8));
+        assertEquals("<project/>", Files.toString(new File(home, "jobs/b/config.xml"), Charsets.UTF_8));
+        assertEquals("<user/>", Files.toString(new File(home, "users/admin/config.xml"), Charsets.UTF_8));
+    }
+
+    @Test
+    public void testContentIsComparedWhenRequested() throws Exception {
+        File tempDir = temporaryFolder.newFolder();
+        File home = temporaryFolder.newFolder();
+        write(tempDir, "config.xml", "<hudson/>", MODIFIED);
+        write(home, "config.xml", "<hudson/>", MODIFIED + 60000);
+        write(tempDir, "jobs/a/config.xml", "<project>a</project>", MODIFIED);
+        write(home, "jobs/a/config.xml", "<project>b</project>", MODIFIED);
+
+        OverwriteRestorePolicy policy = new OverwriteRestorePolicy();
+        policy.restore(tempDir, home, true);
+
+        OverwriteRestorePolicy.Report report = policy.getReport();
+        assertEquals(ImmutableList.of("jobs/a/config.xml"), report.getUpdated());
+        assertEquals(1, report.getUnchanged());
+        assertEquals(MODIFIED + 60000, new File(home, "config.xml").lastModified());
+        assertEquals("<project>a</project>", Files.toString(new File(home, "jobs/a/config.xml"), Charsets.UTF_8));
+    }
+
+    private static void write(File directory, String path, String content, long lastModified) throws Exception {
+        File file = new File(directory, path);
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+        file.setLastModified(lastModified);
+    }
+}
@@ -0,0 +1,41 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+import java.io.File;
+import java.nio.file.Files;
+
+@JmhBenchmark
+public class RestorePolicyBenchmark {
+
+    public static class RestoreState extends SyntheticHomeState {
+
+        @Param({"replace", "overwrite"})
+        public String policy;
+
+        private RestorePolicy restorePolicy;
+        private File finalResultDir;
+
+        @Override
+        public void setup() throws Exception {
+            super.setup();
+            restorePolicy = "replace".equals(policy) ? new ReplaceRestorePolicy() : new OverwriteRestorePolicy();
+            // Restore the same files which are in the home directory, like restoring the latest backup
+            finalResultDir = Files.createTempDirectory("periodicbackup-benchmark").toFile();
+            new SyntheticJenkinsHome(finalResultDir, fileCount, sizeDistribution, SEED).generate();
+        }
+
+        @Override
+        public void tearDown() {
+            FileUtils.deleteQuietly(finalResultDir);
+        }
+    }
+
+    @Benchmark
+    public void restore(RestoreState state) throws Exception {
+        state.restorePolicy.restore(state.finalResultDir);
+    }
+}
@@ -0,0 +1,48 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RestoreSelectionTest {
+
+    @Test
+    public void testForJob() throws Exception {
+        RestoreSelection selection = RestoreSelection.forJob("folder/job");
+
+        assertEquals(ImmutableList.of("jobs/folder/jobs/job"), selection.getPaths());
+        assertTrue(selection.apply("jobs/folder/jobs/job/config.xml"));
+        assertTrue(selection.apply("/jobs/folder/jobs/job/builds/1/build.xml"));
+        assertFalse(selection.apply("jobs/folder/jobs/job2/config.xml"));
+        assertFalse(selection.apply("jobs/folder/config.xml"));
+    }
+
+    @Test
+    public void testParseAndNarrow() throws Exception {
+        RestoreSelection selection = RestoreSelection.parse("\\my-job\\");
+        assertEquals(ImmutableList.of("my-job", "jobs/my-job"), selection.getPaths());
+
+        RestoreSelection narrowed = selection.narrow(ImmutableList.of("config.xml", "jobs/my-job/config.xml"));
+        assertEquals(ImmutableList.of("jobs/my-job"), narrowed.getPaths());
+
+        assertEquals(ImmutableList.of("users"), RestoreSelection.parse("./users/").narrow(ImmutableList.of("users/admin/config.xml")).getPaths());
+    }
+
+    @Test(expected = PeriodicBackupException.class)
+    public void testRejectsParentDirectory() throws Exception {
+        RestoreSelection.forPath("jobs/../../etc");
+    }
+
+    @Test
+    public void testItemFullName() {
+        assertEquals("folder/job", ItemReloader.getItemFullName("jobs/folder/jobs/job/builds/1/build.xml"));
+        assertEquals("folder", ItemReloader.getItemFullName("jobs/folder/config.xml"));
+        assertEquals("folder", ItemReloader.getItemFullName("jobs/folder/jobs/stray-file"));
+        assertNull(ItemReloader.getItemFullName("jobs/stray-file"));
+        assertNull(ItemReloader.getItemFullName("users/admin/config.xml"));
+    }
+}
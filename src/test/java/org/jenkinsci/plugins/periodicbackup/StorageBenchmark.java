@@ -0,0 +1,83 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.collect.Lists;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+@JmhBenchmark
+public class StorageBenchmark {
+
+    public static class StorageState extends SyntheticHomeState {
+
+        @Param({"zip", "targz"})
+        public String storageType;
+
+        private Storage storage;
+        private File workDir;
+        private List<File> masterArchives;
+        private File archiveDir;
+        private File extractDir;
+        private List<File> archives;
+
+        @Override
+        public void setup() throws Exception {
+            super.setup();
+            storage = "zip".equals(storageType) ? new ZipStorage(false, 0) : new TarGzStorage();
+            workDir = Files.createTempDirectory("periodicbackup-benchmark").toFile();
+            // The archives extracted by the unarchive benchmark
+            File masterDir = new File(workDir, "master");
+            FileUtils.forceMkdir(masterDir);
+            storage.backupStart(masterDir.getAbsolutePath(), "backup_master");
+            for (File file : home.getFiles()) {
+                storage.backupAddFile(file);
+            }
+            masterArchives = Lists.newArrayList(storage.backupStop());
+        }
+
+        @Setup(Level.Invocation)
+        public void prepareInvocation() throws IOException {
+            archiveDir = new File(workDir, "archives");
+            extractDir = new File(workDir, "extracted");
+            FileUtils.deleteDirectory(archiveDir);
+            FileUtils.deleteDirectory(extractDir);
+            FileUtils.forceMkdir(archiveDir);
+            FileUtils.forceMkdir(extractDir);
+            // Storages delete the archives after extracting them
+            archives = Lists.newArrayList();
+            for (File masterArchive : masterArchives) {
+                File archive = new File(archiveDir, masterArchive.getName());
+                FileUtils.copyFile(masterArchive, archive);
+                archives.add(archive);
+            }
+        }
+
+        @Override
+        public void tearDown() {
+            FileUtils.deleteQuietly(workDir);
+        }
+    }
+
+    @Benchmark
+    public Iterable<File> archive(StorageState state) throws Exception {
+        state.storage.backupStart(state.archiveDir.getAbsolutePath(), "backup_benchmark");
+        for (File file : state.home.getFiles()) {
+            state.storage.backupAddFile(file);
+        }
+        return state.storage.backupStop();
+    }
+
+    @Benchmark
+    public File unarchive(StorageState state) {
+        state.storage.unarchiveFiles(state.archives, state.extractDir);
+        return state.extractDir;
+    }
+}
@@ -0,0 +1,27 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Benchmark state running Jenkins with a synthetic home directory, the number of files and
+ * their size distribution can be set with the fileCount and sizeDistribution parameters.
+ */
+public abstract class SyntheticHomeState extends JmhBenchmarkState {
+
+    static final long SEED = 42;
+
+    @Param({"1000"})
+    public int fileCount;
+
+    @Param({"CONFIG", "MIXED"})
+    public SyntheticJenkinsHome.SizeDistribution sizeDistribution;
+
+    protected SyntheticJenkinsHome home;
+
+    @Override
+    public void setup() throws Exception {
+        home = new SyntheticJenkinsHome(getJenkins().getRootDir(), fileCount, sizeDistribution, SEED);
+        home.generate();
+    }
+}
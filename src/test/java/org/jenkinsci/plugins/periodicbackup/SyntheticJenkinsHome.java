@@ -0,0 +1,152 @@
+package org.jenkinsci.plugins.periodicbackup;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a Jenkins home like directory tree with a given number of files, used by the benchmarks.
+ * One file in ten is a job, user or root configuration file, the rest are build records and logs.
+ * The content is text with some randomness, so it compresses like real configuration and logs.
+ */
+public class SyntheticJenkinsHome {
+
+    /**
+     * Distribution of the generated file sizes
+     */
+    public enum SizeDistribution {
+        /** 1 - 8 kB, typical configuration files */
+        CONFIG(1024, 8 * 1024, false),
+        /** 256 B - 1 MB, log-uniform, a mix of configuration files and build logs */
+        MIXED(256, 1024 * 1024, true),
+        /** 1 - 8 MB, large build logs and artifacts */
+        LARGE(1024 * 1024, 8 * 1024 * 1024, false);
+
+        private final long min;
+        private final long max;
+        private final boolean logarithmic;
+
+        SizeDistribution(long min, long max, boolean logarithmic) {
+            this.min = min;
+            this.max = max;
+            this.logarithmic = logarithmic;
+        }
+
+        long nextSize(Random random) {
+            if (logarithmic) {
+                return (long) Math.exp(Math.log(min) + random.nextDouble() * (Math.log(max) - Math.log(min)));
+            }
+            return min + (long) (random.nextDouble() * (max - min));
+        }
+    }
+
+    private static final byte[][] LINES = {
+            "<?xml version='1.1' encoding='UTF-8'?>\n".getBytes(Charsets.UTF_8),
+            "  <description>Synthetic benchmark data</description>\n".getBytes(Charsets.UTF_8),
+            "[INFO] Building module ".getBytes(Charsets.UTF_8),
+            "  <hudson.model.ParametersAction/>\n".getBytes(Charsets.UTF_8),
+            "Started by timer\n".getBytes(Charsets.UTF_8)
+    };
+
+    private final File root;
+    private final int fileCount;
+    private final SizeDistribution sizeDistribution;
+    private final Random random;
+    private final List<File> files = Lists.newArrayList();
+    private long totalSize;
+
+    public SyntheticJenkinsHome(File root, int fileCount, SizeDistribution sizeDistribution, long seed) {
+        this.root = root;
+        this.fileCount = fileCount;
+        this.sizeDistribution = sizeDistribution;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Creates the files, existing files with the same names are overwritten
+     *
+     * @throws IOException If an IO problem occurs
+     */
+    public void generate() throws IOException {
+        int configFiles = Math.max(1, fileCount / 10);
+        List<File> jobs = Lists.newArrayList();
+        int created = 0;
+        for (int i = 0; created < fileCount && i < configFiles; i++) {
+            switch (i % 5) {
+                case 0:
+                    write(new File(root, "synthetic-" + i + ".xml"));
+                    break;
+                case 1:
+                    write(new File(root, "users/user-" + i + "/config.xml"));
+                    break;
+                default:
+                    File job = new File(root, "jobs/job-" + i);
+                    write(new File(job, "config.xml"));
+                    jobs.add(job);
+            }
+            created++;
+        }
+        if (jobs.isEmpty() && created < fileCount) {
+            File job = new File(root, "jobs/job-0");
+            write(new File(job, "config.xml"));
+            jobs.add(job);
+            created++;
+        }
+        // Every build has a build.xml and a log
+        for (int i = 0; created < fileCount; i++) {
+            int build = i / 2;
+            File buildDir = new File(jobs.get(build % jobs.size()), "builds/" + build);
+            write(new File(buildDir, (i & 1) == 0 ? "build.xml" : "log"));
+            created++;
+        }
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the generated files
+     */
+    public List<File> getFiles() {
+        return files;
+    }
+
+    /**
+     * @return total size of the generated files in bytes
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    private void write(File file) throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent.getAbsolutePath());
+        }
+        long size = sizeDistribution.nextSize(random);
+        byte[] digits = new byte[12];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            long written = 0;
+            while (written < size) {
+                byte[] line = LINES[random.nextInt(LINES.length)];
+                int len = (int) Math.min(line.length, size - written);
+                out.write(line, 0, len);
+                written += len;
+                for (int i = 0; i < digits.length && written < size; i++, written++) {
+                    digits[i] = (byte) ('0' + random.nextInt(10));
+                    out.write(digits[i]);
+                }
+            }
+        }
+        files.add(file);
+        totalSize += size;
+    }
+}
@@ -1,18 +1,25 @@
 package org.jenkinsci.plugins.periodicbackup;
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
 import com.google.common.io.Resources;
+import hudson.Functions;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 
@@ -55,6 +62,67 @@ public class TarGzStorageTest {
         assertEquals(files.iterator().next(), expectedResult);
     }
 
+    @Test
+    public void testUnarchiveSelectedFilesWithIndex() throws Exception {
+        File archive2 = new File(Resources.getResource("data/archive2").getFile());
+        tarGzStorage.backupStart(tempDirectory.getAbsolutePath(), baseFileName);
+        tarGzStorage.backupAddFile(archive1);
+        tarGzStorage.backupAddFile(archive2);
+        List<File> files = Lists.newArrayList(tarGzStorage.backupStop());
+
+        assertEquals(2, files.size());
+        assertEquals(TarIndex.getIndexName(files.get(0).getName()), files.get(1).getName());
+        FileInputStream in = new FileInputStream(files.get(1));
+        try {
+            assertEquals(2, TarIndex.read(in).getEntries().size());
+        } finally {
+            in.close();
+        }
+
+        File resultDir = new File(tempDirectory, "result");
+        tarGzStorage.unarchiveFiles(files, resultDir, new Predicate<String>() {
+            public boolean apply(String name) {
+                return name.endsWith("archive2");
+            }
+        });
+
+        Collection<File> extracted = FileUtils.listFiles(resultDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
+        assertEquals(1, extracted.size());
+        assertEquals(FileUtils.readFileToString(archive2), FileUtils.readFileToString(extracted.iterator().next()));
+        assertFalse(files.get(0).exists());
+    }
+
+    @Test
+    public void testLinksAreRestoredAsLinks() throws Exception {
+        Assume.assumeFalse(Functions.isWindows());
+        File builds = new File(r.jenkins.getRootDir(), "jobs/linked/builds");
+        File log = new File(builds, "1/log");
+        FileUtils.writeStringToFile(log, "build output");
+        File hardLink = new File(builds, "1/log.link");
+        java.nio.file.Files.createLink(hardLink.toPath(), log.toPath());
+        File symbolicLink = new File(builds, "lastSuccessfulBuild");
+        java.nio.file.Files.createSymbolicLink(symbolicLink.toPath(), new File("1").toPath());
+
+        tarGzStorage.setPreserveLinks(true);
+        tarGzStorage.backupStart(tempDirectory.getAbsolutePath(), baseFileName);
+        tarGzStorage.backupAddFile(log);
+        tarGzStorage.backupAddFile(hardLink);
+        tarGzStorage.backupAddFile(symbolicLink);
+        List<File> files = Lists.newArrayList(tarGzStorage.backupStop());
+        // The links have no content of their own, the hard link refers to the content of the first file
+        assertEquals(2, tarGzStorage.getChecksums().getEntries().size());
+
+        File resultDir = new File(tempDirectory, "result");
+        tarGzStorage.unarchiveFiles(files, resultDir);
+
+        File restoredBuilds = new File(resultDir, "jobs/linked/builds");
+        assertTrue(Util.isSymbolicLink(new File(restoredBuilds, "lastSuccessfulBuild")));
+        assertEquals("1", Util.readSymbolicLink(new File(restoredBuilds, "lastSuccessfulBuild")));
+        File restoredLog = new File(restoredBuilds, "1/log");
+        assertEquals("build output", FileUtils.readFileToString(restoredLog));
+        assertEquals(Util.getHardLinkKey(restoredLog), Util.getHardLinkKey(new File(restoredBuilds, "1/log.link")));
+    }
+
     @Test
     public void testUnarchiveFiles() throws IOException {
         File zipArchive1 = new File(Resources.getResource("data/targzfile.tar.gz").getFile());
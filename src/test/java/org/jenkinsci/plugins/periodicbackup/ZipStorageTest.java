@@ -62,17 +62,17 @@ public class ZipStorageTest {
     @Test
     public void testBackupAddFile() throws IOException, ArchiverException, PeriodicBackupException {
         zipStorage.backupStart(tempDirectory.getAbsolutePath(), baseFileName);
-        int sizeBefore = zipStorage.getArchiver().getFiles().size();
+        int entriesBefore = zipStorage.getChecksums().getEntries().size();
         int filesInArchiveBefore = zipStorage.getCurrentArchiveFilesCount();
         long sizeOfFilesInArchiveBefore = zipStorage.getCurrentArchiveTotalFilesSize();
         long sizeOfTheFile = archive1.length();
 
         zipStorage.backupAddFile(archive1);
-        int sizeAfter = zipStorage.getArchiver().getFiles().size();
+        int entriesAfter = zipStorage.getChecksums().getEntries().size();
         int filesInArchiveAfter = zipStorage.getCurrentArchiveFilesCount();
         long sizeOfFilesInArchiveAfter = zipStorage.getCurrentArchiveTotalFilesSize();
 
-        assertEquals(sizeBefore + 1, sizeAfter);
+        assertEquals(entriesBefore + 1, entriesAfter);
         assertEquals(filesInArchiveBefore + 1, filesInArchiveAfter);
         assertEquals(sizeOfFilesInArchiveBefore + sizeOfTheFile, sizeOfFilesInArchiveAfter);
 